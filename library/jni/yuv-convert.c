@@ -0,0 +1,670 @@
+#include "yuv-convert.h"
+
+#include <pthread.h>
+#include <unistd.h>
+
+#if defined(YUV_NO_SIMD)
+/* Scalar loops only, e.g. to test the vector kernels against them */
+#elif defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#define YUV_NEON 1
+#elif defined(__SSE2__)
+#include <emmintrin.h>
+#define YUV_SSE2 1
+#endif
+
+/* Frames smaller than this are not worth waking the workers for */
+#define PARALLEL_MIN_PIXELS (640 * 480)
+#define MAX_WORKERS 3
+
+/* How the chroma samples are laid out, picks the vector loads */
+#define CHROMA_PLANAR 0
+#define CHROMA_VU 1
+#define CHROMA_UV 2
+#define CHROMA_OTHER 3
+
+/*
+ * The original decoder read the planes as signed bytes and corrected them
+ * with "if (Y < 0) Y += 255" and "if (C < 0) C += 127; else C -= 128", which
+ * maps unsigned values of 128 and above one lower than expected. Both
+ * corrections are kept, branch free, to stay bit-exact:
+ *
+ *   Y = y - (y >> 7)
+ *   C = c - 128 - (c >> 7)
+ *
+ * The conversion itself approximates BT.601 with shifts, V and U being the
+ * chroma samples shared by each 2x2 block of pixels:
+ *
+ *   Y' = Y + (Y >> 3) + (Y >> 5) + (Y >> 7)
+ *   R  = Y' + V + (V >> 1) + (V >> 4) + (V >> 5)
+ *   G  = Y' - V + (V >> 3) + (V >> 4) - (U >> 1) + (U >> 3)
+ *   B  = Y' + (U << 1) + (U >> 6)
+ *
+ * All intermediates fit into 16 bits, so the vector kernels use 16 bit lanes.
+ */
+
+static inline int clamp255(int v)
+{
+    v &= ~(v >> 31);
+    return v > 255 ? 255 : v;
+}
+
+static inline uint32_t convert_pixel(int y, int r_term, int g_term, int b_term, int argb)
+{
+    int r;
+    int g;
+    int b;
+    y -= y >> 7;
+    y = y + (y >> 3) + (y >> 5) + (y >> 7);
+    r = clamp255(y + r_term);
+    g = clamp255(y + g_term);
+    b = clamp255(y + b_term);
+    if (argb) {
+        return 0xff000000u | ((uint32_t) r << 16) | ((uint32_t) g << 8) | (uint32_t) b;
+    }
+    return 0xff000000u | ((uint32_t) b << 16) | ((uint32_t) g << 8) | (uint32_t) r;
+}
+
+static void convert_row_scalar(const uint8_t *y_row, const uint8_t *u_row, const uint8_t *v_row,
+                               int pixel_stride, int from, int to, uint32_t *out, int argb)
+{
+    int i;
+    for (i = from; i < to; i += 2) {
+        int c = (i >> 1) * pixel_stride;
+        int v = v_row[c] - 128 - (v_row[c] >> 7);
+        int u = u_row[c] - 128 - (u_row[c] >> 7);
+        /* The chroma terms are shared by both pixels of the pair */
+        int r_term = v + (v >> 1) + (v >> 4) + (v >> 5);
+        int g_term = -v + (v >> 3) + (v >> 4) - (u >> 1) + (u >> 3);
+        int b_term = (u << 1) + (u >> 6);
+        out[i] = convert_pixel(y_row[i], r_term, g_term, b_term, argb);
+        if (i + 1 < to) {
+            out[i + 1] = convert_pixel(y_row[i + 1], r_term, g_term, b_term, argb);
+        }
+    }
+}
+
+#if YUV_NEON
+
+/* Converts 16 pixels per iteration, returns the number of pixels done */
+static int convert_row_vector(const uint8_t *y_row, const uint8_t *u_row, const uint8_t *v_row,
+                              int layout, int width, uint32_t *out, int argb)
+{
+    const int16x8_t bias = vdupq_n_s16(128);
+    int i;
+    if (layout == CHROMA_OTHER) {
+        return 0;
+    }
+    for (i = 0; i + 16 <= width; i += 16) {
+        uint8x16_t y8 = vld1q_u8(y_row + i);
+        uint8x8_t v8;
+        uint8x8_t u8;
+        int16x8_t v;
+        int16x8_t u;
+        int16x8x2_t v2;
+        int16x8x2_t u2;
+        uint8x16x4_t pixels;
+        uint8x16_t r;
+        uint8x16_t g;
+        uint8x16_t b;
+        uint8x8_t r_half[2];
+        uint8x8_t g_half[2];
+        uint8x8_t b_half[2];
+        int half;
+
+        if (layout == CHROMA_PLANAR) {
+            v8 = vld1_u8(v_row + (i >> 1));
+            u8 = vld1_u8(u_row + (i >> 1));
+        } else if (layout == CHROMA_VU) {
+            uint8x8x2_t pairs = vld2_u8(v_row + i);
+            v8 = pairs.val[0];
+            u8 = pairs.val[1];
+        } else {
+            uint8x8x2_t pairs = vld2_u8(u_row + i);
+            u8 = pairs.val[0];
+            v8 = pairs.val[1];
+        }
+        v = vreinterpretq_s16_u16(vmovl_u8(v8));
+        u = vreinterpretq_s16_u16(vmovl_u8(u8));
+        v = vsubq_s16(vsubq_s16(v, bias), vshrq_n_s16(v, 7));
+        u = vsubq_s16(vsubq_s16(u, bias), vshrq_n_s16(u, 7));
+        /* Each chroma pair covers two pixels */
+        v2 = vzipq_s16(v, v);
+        u2 = vzipq_s16(u, u);
+
+        for (half = 0; half < 2; half++) {
+            uint8x8_t y_half = half == 0 ? vget_low_u8(y8) : vget_high_u8(y8);
+            int16x8_t y = vreinterpretq_s16_u16(vmovl_u8(y_half));
+            int16x8_t cv = v2.val[half];
+            int16x8_t cu = u2.val[half];
+            int16x8_t t;
+            y = vsubq_s16(y, vshrq_n_s16(y, 7));
+            y = vaddq_s16(vaddq_s16(y, vshrq_n_s16(y, 3)),
+                          vaddq_s16(vshrq_n_s16(y, 5), vshrq_n_s16(y, 7)));
+
+            t = vaddq_s16(y, cv);
+            t = vaddq_s16(t, vaddq_s16(vshrq_n_s16(cv, 1), vshrq_n_s16(cv, 4)));
+            t = vaddq_s16(t, vshrq_n_s16(cv, 5));
+            r_half[half] = vqmovun_s16(t);
+
+            t = vsubq_s16(y, cv);
+            t = vaddq_s16(t, vaddq_s16(vshrq_n_s16(cv, 3), vshrq_n_s16(cv, 4)));
+            t = vsubq_s16(t, vshrq_n_s16(cu, 1));
+            t = vaddq_s16(t, vshrq_n_s16(cu, 3));
+            g_half[half] = vqmovun_s16(t);
+
+            t = vaddq_s16(y, vaddq_s16(vshlq_n_s16(cu, 1), vshrq_n_s16(cu, 6)));
+            b_half[half] = vqmovun_s16(t);
+        }
+        r = vcombine_u8(r_half[0], r_half[1]);
+        g = vcombine_u8(g_half[0], g_half[1]);
+        b = vcombine_u8(b_half[0], b_half[1]);
+
+        /* Little endian 0xAARRGGBB ints are B, G, R, A in memory */
+        pixels.val[0] = argb ? b : r;
+        pixels.val[1] = g;
+        pixels.val[2] = argb ? r : b;
+        pixels.val[3] = vdupq_n_u8(0xff);
+        vst4q_u8((uint8_t *) (out + i), pixels);
+    }
+    return i;
+}
+
+#elif YUV_SSE2
+
+static inline __m128i convert_y(__m128i y)
+{
+    y = _mm_sub_epi16(y, _mm_srai_epi16(y, 7));
+    return _mm_add_epi16(_mm_add_epi16(y, _mm_srai_epi16(y, 3)),
+                         _mm_add_epi16(_mm_srai_epi16(y, 5), _mm_srai_epi16(y, 7)));
+}
+
+static inline __m128i correct_chroma(__m128i c)
+{
+    return _mm_sub_epi16(_mm_sub_epi16(c, _mm_set1_epi16(128)), _mm_srai_epi16(c, 7));
+}
+
+static inline void convert_half(__m128i y, __m128i pairs, __m128i *r, __m128i *g, __m128i *b)
+{
+    /* Each 32 bit lane holds one chroma pair, spread each byte over two pixels */
+    __m128i first = _mm_and_si128(pairs, _mm_set1_epi32(0xffff));
+    __m128i second = _mm_srli_epi32(pairs, 16);
+    __m128i v = correct_chroma(_mm_or_si128(first, _mm_slli_epi32(first, 16)));
+    __m128i u = correct_chroma(_mm_or_si128(second, _mm_slli_epi32(second, 16)));
+    __m128i t;
+    y = convert_y(y);
+
+    t = _mm_add_epi16(y, v);
+    t = _mm_add_epi16(t, _mm_add_epi16(_mm_srai_epi16(v, 1), _mm_srai_epi16(v, 4)));
+    *r = _mm_add_epi16(t, _mm_srai_epi16(v, 5));
+
+    t = _mm_sub_epi16(y, v);
+    t = _mm_add_epi16(t, _mm_add_epi16(_mm_srai_epi16(v, 3), _mm_srai_epi16(v, 4)));
+    t = _mm_sub_epi16(t, _mm_srai_epi16(u, 1));
+    *g = _mm_add_epi16(t, _mm_srai_epi16(u, 3));
+
+    *b = _mm_add_epi16(y, _mm_add_epi16(_mm_slli_epi16(u, 1), _mm_srai_epi16(u, 6)));
+}
+
+/* Converts 16 pixels per iteration, returns the number of pixels done */
+static int convert_row_vector(const uint8_t *y_row, const uint8_t *u_row, const uint8_t *v_row,
+                              int layout, int width, uint32_t *out, int argb)
+{
+    const __m128i zero = _mm_setzero_si128();
+    const __m128i alpha = _mm_set1_epi8((char) 0xff);
+    int i;
+    if (layout == CHROMA_OTHER) {
+        return 0;
+    }
+    for (i = 0; i + 16 <= width; i += 16) {
+        __m128i y8 = _mm_loadu_si128((const __m128i *) (y_row + i));
+        __m128i vu8;
+        __m128i r_low, g_low, b_low, r_high, g_high, b_high;
+        __m128i r, g, b, first, third, low, high;
+
+        /* Bring the chroma into V, U pair order */
+        if (layout == CHROMA_PLANAR) {
+            vu8 = _mm_unpacklo_epi8(_mm_loadl_epi64((const __m128i *) (v_row + (i >> 1))),
+                                    _mm_loadl_epi64((const __m128i *) (u_row + (i >> 1))));
+        } else if (layout == CHROMA_VU) {
+            vu8 = _mm_loadu_si128((const __m128i *) (v_row + i));
+        } else {
+            vu8 = _mm_loadu_si128((const __m128i *) (u_row + i));
+            vu8 = _mm_or_si128(_mm_slli_epi16(vu8, 8), _mm_srli_epi16(vu8, 8));
+        }
+        convert_half(_mm_unpacklo_epi8(y8, zero), _mm_unpacklo_epi8(vu8, zero),
+                     &r_low, &g_low, &b_low);
+        convert_half(_mm_unpackhi_epi8(y8, zero), _mm_unpackhi_epi8(vu8, zero),
+                     &r_high, &g_high, &b_high);
+        r = _mm_packus_epi16(r_low, r_high);
+        g = _mm_packus_epi16(g_low, g_high);
+        b = _mm_packus_epi16(b_low, b_high);
+
+        /* Little endian 0xAARRGGBB ints are B, G, R, A in memory */
+        first = argb ? b : r;
+        third = argb ? r : b;
+        low = _mm_unpacklo_epi8(first, g);
+        high = _mm_unpacklo_epi8(third, alpha);
+        _mm_storeu_si128((__m128i *) (out + i), _mm_unpacklo_epi16(low, high));
+        _mm_storeu_si128((__m128i *) (out + i + 4), _mm_unpackhi_epi16(low, high));
+        low = _mm_unpackhi_epi8(first, g);
+        high = _mm_unpackhi_epi8(third, alpha);
+        _mm_storeu_si128((__m128i *) (out + i + 8), _mm_unpacklo_epi16(low, high));
+        _mm_storeu_si128((__m128i *) (out + i + 12), _mm_unpackhi_epi16(low, high));
+    }
+    return i;
+}
+
+#else
+
+static int convert_row_vector(const uint8_t *y_row, const uint8_t *u_row, const uint8_t *v_row,
+                              int layout, int width, uint32_t *out, int argb)
+{
+    return 0;
+}
+
+#endif
+
+static int chroma_layout(const uint8_t *u, const uint8_t *v, int pixel_stride)
+{
+    if (pixel_stride == 1) {
+        return CHROMA_PLANAR;
+    }
+    if (pixel_stride == 2 && u == v + 1) {
+        return CHROMA_VU;
+    }
+    if (pixel_stride == 2 && v == u + 1) {
+        return CHROMA_UV;
+    }
+    return CHROMA_OTHER;
+}
+
+void yuv_convert_rows(const struct yuv_frame *frame, int first_row, int last_row)
+{
+    int layout = chroma_layout(frame->u, frame->v, frame->uv_pixel_stride);
+    int j;
+    for (j = first_row; j < last_row; j++) {
+        const uint8_t *y_row = frame->y + j * frame->y_stride;
+        const uint8_t *u_row = frame->u + (j >> 1) * frame->uv_stride;
+        const uint8_t *v_row = frame->v + (j >> 1) * frame->uv_stride;
+        uint32_t *out_row = (uint32_t *) (frame->out + j * frame->out_stride);
+        int done = convert_row_vector(y_row, u_row, v_row, layout, frame->width, out_row,
+                                      frame->argb);
+        convert_row_scalar(y_row, u_row, v_row, frame->uv_pixel_stride, done, frame->width,
+                           out_row, frame->argb);
+    }
+}
+
+/*
+ * Worker pool. A frame is split into one band per thread; the calling thread
+ * converts the first band while the workers convert the others.
+ */
+
+static pthread_once_t pool_once = PTHREAD_ONCE_INIT;
+static pthread_mutex_t submit_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_mutex_t pool_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t work_available = PTHREAD_COND_INITIALIZER;
+static pthread_cond_t work_done = PTHREAD_COND_INITIALIZER;
+static struct yuv_frame current_frame;
+static int current_bands;
+static unsigned int generation;
+static int pending;
+static int worker_count;
+
+static void convert_band(const struct yuv_frame *frame, int bands, int band)
+{
+    /* Bands start on even rows so no chroma row is split */
+    int rows_per_band = ((frame->height + bands - 1) / bands + 1) & ~1;
+    int first = band * rows_per_band;
+    int last = first + rows_per_band;
+    if (last > frame->height) {
+        last = frame->height;
+    }
+    if (first < last) {
+        yuv_convert_rows(frame, first, last);
+    }
+}
+
+static void *worker_main(void *arg)
+{
+    int band = (int) (intptr_t) arg;
+    unsigned int seen = 0;
+    for (;;) {
+        struct yuv_frame frame;
+        int bands;
+        pthread_mutex_lock(&pool_lock);
+        while (generation == seen) {
+            pthread_cond_wait(&work_available, &pool_lock);
+        }
+        seen = generation;
+        frame = current_frame;
+        bands = current_bands;
+        pthread_mutex_unlock(&pool_lock);
+
+        convert_band(&frame, bands, band);
+
+        pthread_mutex_lock(&pool_lock);
+        if (--pending == 0) {
+            pthread_cond_signal(&work_done);
+        }
+        pthread_mutex_unlock(&pool_lock);
+    }
+    return NULL;
+}
+
+static void start_pool(void)
+{
+    long cpus = sysconf(_SC_NPROCESSORS_ONLN);
+    int workers = cpus > 1 ? (int) cpus - 1 : 0;
+    int i;
+    if (workers > MAX_WORKERS) {
+        workers = MAX_WORKERS;
+    }
+    for (i = 0; i < workers; i++) {
+        pthread_t thread;
+        pthread_attr_t attr;
+        pthread_attr_init(&attr);
+        pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+        if (pthread_create(&thread, &attr, worker_main, (void *) (intptr_t) (i + 1)) == 0) {
+            worker_count++;
+        }
+        pthread_attr_destroy(&attr);
+        if (worker_count != i + 1) {
+            break;
+        }
+    }
+}
+
+int yuv_convert_thread_count(void)
+{
+    pthread_once(&pool_once, start_pool);
+    return worker_count + 1;
+}
+
+void yuv_convert(const struct yuv_frame *frame)
+{
+    if (frame->width * frame->height < PARALLEL_MIN_PIXELS || yuv_convert_thread_count() == 1) {
+        yuv_convert_rows(frame, 0, frame->height);
+        return;
+    }
+
+    /* One frame at a time, callers on other threads wait here */
+    pthread_mutex_lock(&submit_lock);
+    pthread_mutex_lock(&pool_lock);
+    current_frame = *frame;
+    current_bands = worker_count + 1;
+    pending = worker_count;
+    generation++;
+    pthread_cond_broadcast(&work_available);
+    pthread_mutex_unlock(&pool_lock);
+
+    convert_band(frame, worker_count + 1, 0);
+
+    pthread_mutex_lock(&pool_lock);
+    while (pending > 0) {
+        pthread_cond_wait(&work_done, &pool_lock);
+    }
+    pthread_mutex_unlock(&pool_lock);
+    pthread_mutex_unlock(&submit_lock);
+}
+
+void yuv_nv21_to_argb(const uint8_t *yuv, int width, int height, uint32_t *out, int argb)
+{
+    struct yuv_frame frame;
+    frame.y = yuv;
+    frame.y_stride = width;
+    frame.v = yuv + width * height;
+    frame.u = frame.v + 1;
+    frame.uv_stride = width;
+    frame.uv_pixel_stride = 2;
+    frame.width = width;
+    frame.height = height;
+    frame.out = (uint8_t *) out;
+    frame.out_stride = width * 4;
+    frame.argb = argb;
+    yuv_convert(&frame);
+}
+
+/*
+ * RGBA to 4:2:0 YUV, BT.601 limited range in 8 bit fixed point:
+ *
+ *   Y = ((66 R + 129 G + 25 B + 128) >> 8) + 16
+ *   U = ((-38 R - 74 G + 112 B + 128) >> 8) + 128
+ *   V = ((112 R - 94 G - 18 B + 128) >> 8) + 128
+ *
+ * Chroma is computed from the rounded average of each 2x2 block. Y fits
+ * into unsigned and U and V into signed 16 bit lanes.
+ */
+
+static inline uint8_t rgb_to_y(int r, int g, int b)
+{
+    return (uint8_t) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+}
+
+static inline uint8_t rgb_to_u(int r, int g, int b)
+{
+    return (uint8_t) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+}
+
+static inline uint8_t rgb_to_v(int r, int g, int b)
+{
+    return (uint8_t) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+}
+
+/* Converts the pixel pairs from "from" on; row1 is row0 again on an odd last row */
+static void encode_rows_scalar(const uint8_t *row0, const uint8_t *row1, uint8_t *y_row0,
+                               uint8_t *y_row1, uint8_t *u_row, uint8_t *v_row,
+                               int pixel_stride, int from, int width)
+{
+    int i;
+    for (i = from; i < width; i += 2) {
+        const uint8_t *p0 = row0 + i * 4;
+        const uint8_t *p1 = row1 + i * 4;
+        /* An odd last column counts twice */
+        int next = i + 1 < width ? 4 : 0;
+        int r = (p0[0] + p0[next] + p1[0] + p1[next] + 2) >> 2;
+        int g = (p0[1] + p0[next + 1] + p1[1] + p1[next + 1] + 2) >> 2;
+        int b = (p0[2] + p0[next + 2] + p1[2] + p1[next + 2] + 2) >> 2;
+        int c = (i >> 1) * pixel_stride;
+        y_row0[i] = rgb_to_y(p0[0], p0[1], p0[2]);
+        if (y_row1 != NULL) {
+            y_row1[i] = rgb_to_y(p1[0], p1[1], p1[2]);
+        }
+        if (next) {
+            y_row0[i + 1] = rgb_to_y(p0[4], p0[5], p0[6]);
+            if (y_row1 != NULL) {
+                y_row1[i + 1] = rgb_to_y(p1[4], p1[5], p1[6]);
+            }
+        }
+        u_row[c] = rgb_to_u(r, g, b);
+        v_row[c] = rgb_to_v(r, g, b);
+    }
+}
+
+#if YUV_NEON
+
+static inline uint8x16_t encode_y(uint8x16x4_t p)
+{
+    uint16x8_t low = vmull_u8(vget_low_u8(p.val[0]), vdup_n_u8(66));
+    uint16x8_t high = vmull_u8(vget_high_u8(p.val[0]), vdup_n_u8(66));
+    low = vmlal_u8(low, vget_low_u8(p.val[1]), vdup_n_u8(129));
+    high = vmlal_u8(high, vget_high_u8(p.val[1]), vdup_n_u8(129));
+    low = vmlal_u8(low, vget_low_u8(p.val[2]), vdup_n_u8(25));
+    high = vmlal_u8(high, vget_high_u8(p.val[2]), vdup_n_u8(25));
+    return vaddq_u8(vcombine_u8(vshrn_n_u16(vaddq_u16(low, vdupq_n_u16(128)), 8),
+                                vshrn_n_u16(vaddq_u16(high, vdupq_n_u16(128)), 8)),
+                    vdupq_n_u8(16));
+}
+
+static inline uint8x8_t encode_chroma(int16x8_t r, int16x8_t g, int16x8_t b,
+                                      int cr, int cg, int cb)
+{
+    int16x8_t t = vmulq_n_s16(r, cr);
+    t = vmlaq_n_s16(t, g, cg);
+    t = vmlaq_n_s16(t, b, cb);
+    t = vshrq_n_s16(vaddq_s16(t, vdupq_n_s16(128)), 8);
+    return vreinterpret_u8_s8(vmovn_s16(vaddq_s16(t, vdupq_n_s16(128))));
+}
+
+/* Converts 16 pixel pairs per iteration, returns the number of pixels done */
+static int encode_rows_vector(const uint8_t *row0, const uint8_t *row1, uint8_t *y_row0,
+                              uint8_t *y_row1, uint8_t *u_row, uint8_t *v_row,
+                              int layout, int width)
+{
+    int i;
+    if (layout == CHROMA_OTHER) {
+        return 0;
+    }
+    for (i = 0; i + 16 <= width; i += 16) {
+        uint8x16x4_t p0 = vld4q_u8(row0 + i * 4);
+        uint8x16x4_t p1 = vld4q_u8(row1 + i * 4);
+        int16x8_t r = vreinterpretq_s16_u16(
+                vrshrq_n_u16(vpadalq_u8(vpaddlq_u8(p0.val[0]), p1.val[0]), 2));
+        int16x8_t g = vreinterpretq_s16_u16(
+                vrshrq_n_u16(vpadalq_u8(vpaddlq_u8(p0.val[1]), p1.val[1]), 2));
+        int16x8_t b = vreinterpretq_s16_u16(
+                vrshrq_n_u16(vpadalq_u8(vpaddlq_u8(p0.val[2]), p1.val[2]), 2));
+        uint8x8_t u = encode_chroma(r, g, b, -38, -74, 112);
+        uint8x8_t v = encode_chroma(r, g, b, 112, -94, -18);
+
+        vst1q_u8(y_row0 + i, encode_y(p0));
+        if (y_row1 != NULL) {
+            vst1q_u8(y_row1 + i, encode_y(p1));
+        }
+        if (layout == CHROMA_PLANAR) {
+            vst1_u8(u_row + (i >> 1), u);
+            vst1_u8(v_row + (i >> 1), v);
+        } else if (layout == CHROMA_VU) {
+            uint8x8x2_t pairs;
+            pairs.val[0] = v;
+            pairs.val[1] = u;
+            vst2_u8(v_row + i, pairs);
+        } else {
+            uint8x8x2_t pairs;
+            pairs.val[0] = u;
+            pairs.val[1] = v;
+            vst2_u8(u_row + i, pairs);
+        }
+    }
+    return i;
+}
+
+#elif YUV_SSE2
+
+/* Splits 8 RGBA pixels into 16 bit R, G and B lanes */
+static inline void load_rgb(const uint8_t *p, __m128i *r, __m128i *g, __m128i *b)
+{
+    const __m128i mask = _mm_set1_epi32(0xff);
+    __m128i low = _mm_loadu_si128((const __m128i *) p);
+    __m128i high = _mm_loadu_si128((const __m128i *) (p + 16));
+    *r = _mm_packs_epi32(_mm_and_si128(low, mask), _mm_and_si128(high, mask));
+    *g = _mm_packs_epi32(_mm_and_si128(_mm_srli_epi32(low, 8), mask),
+                         _mm_and_si128(_mm_srli_epi32(high, 8), mask));
+    *b = _mm_packs_epi32(_mm_and_si128(_mm_srli_epi32(low, 16), mask),
+                         _mm_and_si128(_mm_srli_epi32(high, 16), mask));
+}
+
+static inline __m128i encode_y(__m128i r, __m128i g, __m128i b)
+{
+    __m128i t = _mm_add_epi16(_mm_mullo_epi16(r, _mm_set1_epi16(66)),
+                              _mm_mullo_epi16(g, _mm_set1_epi16(129)));
+    t = _mm_add_epi16(t, _mm_mullo_epi16(b, _mm_set1_epi16(25)));
+    t = _mm_srli_epi16(_mm_add_epi16(t, _mm_set1_epi16(128)), 8);
+    return _mm_add_epi16(t, _mm_set1_epi16(16));
+}
+
+static inline __m128i encode_chroma(__m128i r, __m128i g, __m128i b, int cr, int cg, int cb)
+{
+    __m128i t = _mm_add_epi16(_mm_mullo_epi16(r, _mm_set1_epi16((short) cr)),
+                              _mm_mullo_epi16(g, _mm_set1_epi16((short) cg)));
+    t = _mm_add_epi16(t, _mm_mullo_epi16(b, _mm_set1_epi16((short) cb)));
+    t = _mm_srai_epi16(_mm_add_epi16(t, _mm_set1_epi16(128)), 8);
+    return _mm_add_epi16(t, _mm_set1_epi16(128));
+}
+
+/* Rounded average of the 2x2 blocks of two rows of 8 pixels, as 32 bit lanes */
+static inline __m128i block_sum(__m128i c0, __m128i c1)
+{
+    const __m128i ones = _mm_set1_epi16(1);
+    return _mm_add_epi32(_mm_madd_epi16(c0, ones), _mm_madd_epi16(c1, ones));
+}
+
+static inline __m128i block_average(__m128i low, __m128i high)
+{
+    return _mm_srli_epi16(_mm_add_epi16(_mm_packs_epi32(low, high), _mm_set1_epi16(2)), 2);
+}
+
+/* Converts 16 pixel pairs per iteration, returns the number of pixels done */
+static int encode_rows_vector(const uint8_t *row0, const uint8_t *row1, uint8_t *y_row0,
+                              uint8_t *y_row1, uint8_t *u_row, uint8_t *v_row,
+                              int layout, int width)
+{
+    int i;
+    if (layout == CHROMA_OTHER) {
+        return 0;
+    }
+    for (i = 0; i + 16 <= width; i += 16) {
+        __m128i r0, g0, b0, r1, g1, b1, r2, g2, b2, r3, g3, b3;
+        __m128i r, g, b, u, v;
+        /* Pixels 0 to 7 and 8 to 15 of both rows */
+        load_rgb(row0 + i * 4, &r0, &g0, &b0);
+        load_rgb(row0 + i * 4 + 32, &r1, &g1, &b1);
+        load_rgb(row1 + i * 4, &r2, &g2, &b2);
+        load_rgb(row1 + i * 4 + 32, &r3, &g3, &b3);
+
+        _mm_storeu_si128((__m128i *) (y_row0 + i),
+                         _mm_packus_epi16(encode_y(r0, g0, b0), encode_y(r1, g1, b1)));
+        if (y_row1 != NULL) {
+            _mm_storeu_si128((__m128i *) (y_row1 + i),
+                             _mm_packus_epi16(encode_y(r2, g2, b2), encode_y(r3, g3, b3)));
+        }
+
+        r = block_average(block_sum(r0, r2), block_sum(r1, r3));
+        g = block_average(block_sum(g0, g2), block_sum(g1, g3));
+        b = block_average(block_sum(b0, b2), block_sum(b1, b3));
+        u = _mm_packus_epi16(encode_chroma(r, g, b, -38, -74, 112), _mm_setzero_si128());
+        v = _mm_packus_epi16(encode_chroma(r, g, b, 112, -94, -18), _mm_setzero_si128());
+        if (layout == CHROMA_PLANAR) {
+            _mm_storel_epi64((__m128i *) (u_row + (i >> 1)), u);
+            _mm_storel_epi64((__m128i *) (v_row + (i >> 1)), v);
+        } else if (layout == CHROMA_VU) {
+            _mm_storeu_si128((__m128i *) (v_row + i), _mm_unpacklo_epi8(v, u));
+        } else {
+            _mm_storeu_si128((__m128i *) (u_row + i), _mm_unpacklo_epi8(u, v));
+        }
+    }
+    return i;
+}
+
+#else
+
+static int encode_rows_vector(const uint8_t *row0, const uint8_t *row1, uint8_t *y_row0,
+                              uint8_t *y_row1, uint8_t *u_row, uint8_t *v_row,
+                              int layout, int width)
+{
+    return 0;
+}
+
+#endif
+
+void rgba_to_yuv420(const struct rgba_frame *frame)
+{
+    int layout = chroma_layout(frame->u, frame->v, frame->uv_pixel_stride);
+    int j;
+    for (j = 0; j < frame->height; j += 2) {
+        int last = j + 1 >= frame->height;
+        /* Flipping only changes which source rows are read */
+        int src0 = frame->flip ? frame->height - 1 - j : j;
+        int src1 = last ? src0 : frame->flip ? src0 - 1 : src0 + 1;
+        const uint8_t *row0 = frame->rgba + src0 * frame->rgba_stride;
+        const uint8_t *row1 = frame->rgba + src1 * frame->rgba_stride;
+        uint8_t *y_row0 = frame->y + j * frame->y_stride;
+        uint8_t *y_row1 = last ? NULL : y_row0 + frame->y_stride;
+        uint8_t *u_row = frame->u + (j >> 1) * frame->uv_stride;
+        uint8_t *v_row = frame->v + (j >> 1) * frame->uv_stride;
+        int done = encode_rows_vector(row0, row1, y_row0, y_row1, u_row, v_row, layout,
+                                      frame->width);
+        encode_rows_scalar(row0, row1, y_row0, y_row1, u_row, v_row, frame->uv_pixel_stride,
+                           done, frame->width);
+    }
+}
@@ -0,0 +1,84 @@
+#ifndef GPUIMAGE_YUV_CONVERT_H
+#define GPUIMAGE_YUV_CONVERT_H
+
+#include <stdint.h>
+
+/*
+ * Conversion between 4:2:0 YUV and 32 bit pixels, free of JNI so it also
+ * builds as a host library:
+ *
+ *   gcc -O3 -shared -fPIC -o libyuv-convert.so yuv-convert.c -lpthread
+ *
+ * Defining YUV_NO_SIMD leaves out the SSE2 and NEON kernels. ../native-test holds a
+ * host test against the original decoder and a benchmark.
+ *
+ * Decoded pixels are written as 0xAARRGGBB ints if argb is set, as used by
+ * Bitmaps, and as R, G, B, A bytes otherwise, as uploaded with GL_RGBA. The
+ * result is bit-exact with the original scalar decoder.
+ */
+
+/*
+ * A frame with one chroma sample of each kind per 2x2 block. The layouts
+ * differ only in where the samples live:
+ *
+ *   I420, YV12     separate U and V planes, uv_pixel_stride 1
+ *   NV21           u == v + 1, uv_pixel_stride 2
+ *   NV12           v == u + 1, uv_pixel_stride 2
+ *   YUV_420_888    any of the above, or any other pixel stride
+ *
+ * Planar and interleaved chroma use the vector kernels, other pixel strides
+ * are converted by the scalar loop.
+ */
+struct yuv_frame {
+    const uint8_t *y;
+    int y_stride;
+    const uint8_t *u;
+    const uint8_t *v;
+    /* Shared by both chroma planes, as for android.media.Image */
+    int uv_stride;
+    int uv_pixel_stride;
+    int width;
+    int height;
+    /* Row strides are in bytes and must keep the output rows 4 byte aligned */
+    uint8_t *out;
+    int out_stride;
+    int argb;
+};
+
+/* Converts a frame, splitting large frames into row bands that are converted
+ * on a small pool of worker threads. */
+void yuv_convert(const struct yuv_frame *frame);
+
+/* Converts the rows [first_row, last_row) of a frame on the calling thread. */
+void yuv_convert_rows(const struct yuv_frame *frame, int first_row, int last_row);
+
+/* Converts a contiguous NV21 frame whose chroma follows the luma plane. */
+void yuv_nv21_to_argb(const uint8_t *yuv, int width, int height, uint32_t *out, int argb);
+
+/* Number of threads converting large frames, including the calling one. */
+int yuv_convert_thread_count(void);
+
+/*
+ * An RGBA image to be encoded into a frame with the same plane layouts as
+ * struct yuv_frame describes. The alpha channel is ignored.
+ */
+struct rgba_frame {
+    const uint8_t *rgba;
+    int rgba_stride;
+    int width;
+    int height;
+    /* Reads the rows bottom up, e.g. for pixels read back from GL */
+    int flip;
+    uint8_t *y;
+    int y_stride;
+    uint8_t *u;
+    uint8_t *v;
+    int uv_stride;
+    int uv_pixel_stride;
+};
+
+/* Converts to BT.601 limited range YUV on the calling thread, writing the
+ * flipped image if requested in the same pass. */
+void rgba_to_yuv420(const struct rgba_frame *frame);
+
+#endif
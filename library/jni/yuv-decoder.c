@@ -1,115 +1,257 @@
 #include <jni.h>
-#include <android/log.h>
-
-
-JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_YUVtoRBGA(JNIEnv * env, jobject obj, jbyteArray yuv420sp, jint width, jint height, jintArray rgbOut)
-{
-    int             sz;
-    int             i;
-    int             j;
-    int             Y;
-    int             Cr = 0;
-    int             Cb = 0;
-    int             pixPtr = 0;
-    int             jDiv2 = 0;
-    int             R = 0;
-    int             G = 0;
-    int             B = 0;
-    int             cOff;
-    int w = width;
-    int h = height;
-    sz = w * h;
 
+#include "yuv-convert.h"
+
+/*
+ * The converters are overloaded in Java, so their symbols carry the mangled
+ * argument signature.
+ */
+
+static void convert_array(JNIEnv * env, jbyteArray yuv420sp, jint width, jint height, jintArray rgbOut, int argb)
+{
     jint *rgbData = (jint*) ((*env)->GetPrimitiveArrayCritical(env, rgbOut, 0));
     jbyte* yuv = (jbyte*) (*env)->GetPrimitiveArrayCritical(env, yuv420sp, 0);
 
-    for(j = 0; j < h; j++) {
-             pixPtr = j * w;
-             jDiv2 = j >> 1;
-             for(i = 0; i < w; i++) {
-                     Y = yuv[pixPtr];
-                     if(Y < 0) Y += 255;
-                     if((i & 0x1) != 1) {
-                             cOff = sz + jDiv2 * w + (i >> 1) * 2;
-                             Cb = yuv[cOff];
-                             if(Cb < 0) Cb += 127; else Cb -= 128;
-                             Cr = yuv[cOff + 1];
-                             if(Cr < 0) Cr += 127; else Cr -= 128;
-                     }
-                     
-                     //ITU-R BT.601 conversion
-                     //
-                     //R = 1.164*(Y-16) + 2.018*(Cr-128);
-                     //G = 1.164*(Y-16) - 0.813*(Cb-128) - 0.391*(Cr-128);
-                     //B = 1.164*(Y-16) + 1.596*(Cb-128);
-                     //
-                     Y = Y + (Y >> 3) + (Y >> 5) + (Y >> 7);
-                     R = Y + (Cr << 1) + (Cr >> 6);
-                     if(R < 0) R = 0; else if(R > 255) R = 255;
-                     G = Y - Cb + (Cb >> 3) + (Cb >> 4) - (Cr >> 1) + (Cr >> 3);
-                     if(G < 0) G = 0; else if(G > 255) G = 255;
-                     B = Y + Cb + (Cb >> 1) + (Cb >> 4) + (Cb >> 5);
-                     if(B < 0) B = 0; else if(B > 255) B = 255;
-                     rgbData[pixPtr++] = 0xff000000 + (R << 16) + (G << 8) + B;
-             }
-    }
+    yuv_nv21_to_argb((const uint8_t *) yuv, width, height, (uint32_t *) rgbData, argb);
 
     (*env)->ReleasePrimitiveArrayCritical(env, rgbOut, rgbData, 0);
     (*env)->ReleasePrimitiveArrayCritical(env, yuv420sp, yuv, 0);
 }
 
-JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_YUVtoARBG(JNIEnv * env, jobject obj, jbyteArray yuv420sp, jint width, jint height, jintArray rgbOut)
-{
-    int             sz;
-    int             i;
-    int             j;
-    int             Y;
-    int             Cr = 0;
-    int             Cb = 0;
-    int             pixPtr = 0;
-    int             jDiv2 = 0;
-    int             R = 0;
-    int             G = 0;
-    int             B = 0;
-    int             cOff;
-    int w = width;
-    int h = height;
-    sz = w * h;
+static int throw_illegal_argument(JNIEnv * env, const char *message)
+{
+    jclass exception = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
+    if (exception != NULL) {
+        (*env)->ThrowNew(env, exception, message);
+    }
+    return 0;
+}
 
-    jint *rgbData = (jint*) ((*env)->GetPrimitiveArrayCritical(env, rgbOut, 0));
-    jbyte* yuv = (jbyte*) (*env)->GetPrimitiveArrayCritical(env, yuv420sp, 0);
+static int get_buffer(JNIEnv * env, jobject buffer, jlong required, uint8_t **address)
+{
+    jlong capacity;
+    if (buffer == NULL) {
+        return throw_illegal_argument(env, "buffer is null");
+    }
+    *address = (uint8_t *) (*env)->GetDirectBufferAddress(env, buffer);
+    capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+    if (*address == NULL || capacity < 0) {
+        return throw_illegal_argument(env, "buffer is not direct");
+    }
+    if (capacity < required) {
+        return throw_illegal_argument(env, "buffer is too small for the frame");
+    }
+    return 1;
+}
 
-    for(j = 0; j < h; j++) {
-             pixPtr = j * w;
-             jDiv2 = j >> 1;
-             for(i = 0; i < w; i++) {
-                     Y = yuv[pixPtr];
-                     if(Y < 0) Y += 255;
-                     if((i & 0x1) != 1) {
-                             cOff = sz + jDiv2 * w + (i >> 1) * 2;
-                             Cb = yuv[cOff];
-                             if(Cb < 0) Cb += 127; else Cb -= 128;
-                             Cr = yuv[cOff + 1];
-                             if(Cr < 0) Cr += 127; else Cr -= 128;
-                     }
-                     
-                     //ITU-R BT.601 conversion
-                     //
-                     //R = 1.164*(Y-16) + 2.018*(Cr-128);
-                     //G = 1.164*(Y-16) - 0.813*(Cb-128) - 0.391*(Cr-128);
-                     //B = 1.164*(Y-16) + 1.596*(Cb-128);
-                     //
-                     Y = Y + (Y >> 3) + (Y >> 5) + (Y >> 7);
-                     R = Y + (Cr << 1) + (Cr >> 6);
-                     if(R < 0) R = 0; else if(R > 255) R = 255;
-                     G = Y - Cb + (Cb >> 3) + (Cb >> 4) - (Cr >> 1) + (Cr >> 3);
-                     if(G < 0) G = 0; else if(G > 255) G = 255;
-                     B = Y + Cb + (Cb >> 1) + (Cb >> 4) + (Cb >> 5);
-                     if(B < 0) B = 0; else if(B > 255) B = 255;
-                     rgbData[pixPtr++] = 0xff000000 + (B << 16) + (G << 8) + R;
-             }
+static int check_frame(JNIEnv * env, jint yRowStride, jint width, jint height, jint outRowStride)
+{
+    if (width <= 0 || height <= 0 || yRowStride < width || outRowStride < width * 4
+            || (outRowStride & 3) != 0) {
+        return throw_illegal_argument(env, "invalid frame size or row stride");
     }
+    return 1;
+}
 
-    (*env)->ReleasePrimitiveArrayCritical(env, rgbOut, rgbData, 0);
-    (*env)->ReleasePrimitiveArrayCritical(env, yuv420sp, yuv, 0);
-}
\ No newline at end of file
+static void convert_direct(JNIEnv * env, jobject y, jint yRowStride, jobject vu, jint vuRowStride, jint width, jint height, jobject out, jint outRowStride, int argb)
+{
+    struct yuv_frame frame;
+    uint8_t *y_data;
+    uint8_t *vu_data;
+    uint8_t *out_data;
+    jint chromaHeight = (height + 1) / 2;
+
+    if (!check_frame(env, yRowStride, width, height, outRowStride)) {
+        return;
+    }
+    if (vuRowStride < (width + 1) / 2 * 2) {
+        throw_illegal_argument(env, "invalid frame size or row stride");
+        return;
+    }
+    if (!get_buffer(env, y, (jlong) yRowStride * (height - 1) + width, &y_data)
+            || !get_buffer(env, vu, (jlong) vuRowStride * (chromaHeight - 1) + (width + 1) / 2 * 2, &vu_data)
+            || !get_buffer(env, out, (jlong) outRowStride * (height - 1) + width * 4, &out_data)) {
+        return;
+    }
+
+    frame.y = y_data;
+    frame.y_stride = yRowStride;
+    frame.v = vu_data;
+    frame.u = vu_data + 1;
+    frame.uv_stride = vuRowStride;
+    frame.uv_pixel_stride = 2;
+    frame.width = width;
+    frame.height = height;
+    frame.out = out_data;
+    frame.out_stride = outRowStride;
+    frame.argb = argb;
+    yuv_convert(&frame);
+}
+
+/*
+ * A camera preview array into a direct buffer. The array is pinned while
+ * converting rather than copied into a direct buffer first.
+ */
+static void convert_array_direct(JNIEnv * env, jbyteArray yuv420sp, jint width, jint height, jobject out, jint outRowStride, int argb)
+{
+    struct yuv_frame frame;
+    uint8_t *out_data;
+    jbyte *yuv;
+    jint chromaWidth = (width + 1) / 2;
+    jint chromaHeight = (height + 1) / 2;
+
+    if (!check_frame(env, width, width, height, outRowStride)
+            || !get_buffer(env, out, (jlong) outRowStride * (height - 1) + width * 4, &out_data)) {
+        return;
+    }
+    /* The chroma rows are width bytes apart, as in yuv_nv21_to_argb */
+    if (yuv420sp == NULL || (*env)->GetArrayLength(env, yuv420sp)
+            < (jlong) width * height + (jlong) width * (chromaHeight - 1) + chromaWidth * 2) {
+        throw_illegal_argument(env, "array is too small for the frame");
+        return;
+    }
+    yuv = (jbyte*) (*env)->GetPrimitiveArrayCritical(env, yuv420sp, 0);
+    if (yuv == NULL) {
+        return;
+    }
+
+    frame.y = (const uint8_t *) yuv;
+    frame.y_stride = width;
+    frame.v = (const uint8_t *) yuv + width * height;
+    frame.u = frame.v + 1;
+    frame.uv_stride = width;
+    frame.uv_pixel_stride = 2;
+    frame.width = width;
+    frame.height = height;
+    frame.out = out_data;
+    frame.out_stride = outRowStride;
+    frame.argb = argb;
+    yuv_convert(&frame);
+
+    (*env)->ReleasePrimitiveArrayCritical(env, yuv420sp, yuv, JNI_ABORT);
+}
+
+/*
+ * The U and V buffers may overlap, as the planes of a semi-planar
+ * android.media.Image do, so each is only required to reach its own last
+ * sample.
+ */
+static void convert_planes(JNIEnv * env, jobject y, jint yRowStride, jobject u, jobject v, jint uvRowStride, jint uvPixelStride, jint width, jint height, jobject out, jint outRowStride, int argb)
+{
+    struct yuv_frame frame;
+    uint8_t *y_data;
+    uint8_t *u_data;
+    uint8_t *v_data;
+    uint8_t *out_data;
+    jint chromaWidth = (width + 1) / 2;
+    jint chromaHeight = (height + 1) / 2;
+    jlong chromaSize;
+
+    if (!check_frame(env, yRowStride, width, height, outRowStride)) {
+        return;
+    }
+    if (uvPixelStride <= 0 || uvRowStride < (chromaWidth - 1) * uvPixelStride + 1) {
+        throw_illegal_argument(env, "invalid chroma row or pixel stride");
+        return;
+    }
+    chromaSize = (jlong) uvRowStride * (chromaHeight - 1) + (jlong) (chromaWidth - 1) * uvPixelStride + 1;
+    if (!get_buffer(env, y, (jlong) yRowStride * (height - 1) + width, &y_data)
+            || !get_buffer(env, u, chromaSize, &u_data)
+            || !get_buffer(env, v, chromaSize, &v_data)
+            || !get_buffer(env, out, (jlong) outRowStride * (height - 1) + width * 4, &out_data)) {
+        return;
+    }
+
+    frame.y = y_data;
+    frame.y_stride = yRowStride;
+    frame.u = u_data;
+    frame.v = v_data;
+    frame.uv_stride = uvRowStride;
+    frame.uv_pixel_stride = uvPixelStride;
+    frame.width = width;
+    frame.height = height;
+    frame.out = out_data;
+    frame.out_stride = outRowStride;
+    frame.argb = argb;
+    yuv_convert(&frame);
+}
+
+static void convert_to_yuv(JNIEnv * env, jobject rgba, jint rgbaRowStride, jint width, jint height, jboolean flipVertical, jobject y, jint yRowStride, jobject u, jobject v, jint uvRowStride, jint uvPixelStride)
+{
+    struct rgba_frame frame;
+    uint8_t *rgba_data;
+    uint8_t *y_data;
+    uint8_t *u_data;
+    uint8_t *v_data;
+    jint chromaWidth = (width + 1) / 2;
+    jint chromaHeight = (height + 1) / 2;
+    jlong chromaSize;
+
+    if (!check_frame(env, yRowStride, width, height, rgbaRowStride)) {
+        return;
+    }
+    if (uvPixelStride <= 0 || uvRowStride < (chromaWidth - 1) * uvPixelStride + 1) {
+        throw_illegal_argument(env, "invalid chroma row or pixel stride");
+        return;
+    }
+    chromaSize = (jlong) uvRowStride * (chromaHeight - 1) + (jlong) (chromaWidth - 1) * uvPixelStride + 1;
+    if (!get_buffer(env, rgba, (jlong) rgbaRowStride * (height - 1) + width * 4, &rgba_data)
+            || !get_buffer(env, y, (jlong) yRowStride * (height - 1) + width, &y_data)
+            || !get_buffer(env, u, chromaSize, &u_data)
+            || !get_buffer(env, v, chromaSize, &v_data)) {
+        return;
+    }
+
+    frame.rgba = rgba_data;
+    frame.rgba_stride = rgbaRowStride;
+    frame.width = width;
+    frame.height = height;
+    frame.flip = flipVertical;
+    frame.y = y_data;
+    frame.y_stride = yRowStride;
+    frame.u = u_data;
+    frame.v = v_data;
+    frame.uv_stride = uvRowStride;
+    frame.uv_pixel_stride = uvPixelStride;
+    rgba_to_yuv420(&frame);
+}
+
+JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_YUVtoRBGA___3BII_3I(JNIEnv * env, jobject obj, jbyteArray yuv420sp, jint width, jint height, jintArray rgbOut)
+{
+    convert_array(env, yuv420sp, width, height, rgbOut, 0);
+}
+
+JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_YUVtoARBG___3BII_3I(JNIEnv * env, jobject obj, jbyteArray yuv420sp, jint width, jint height, jintArray rgbOut)
+{
+    convert_array(env, yuv420sp, width, height, rgbOut, 1);
+}
+
+JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_YUVtoRBGA___3BIILjava_nio_ByteBuffer_2I(JNIEnv * env, jobject obj, jbyteArray yuv420sp, jint width, jint height, jobject out, jint outRowStride)
+{
+    convert_array_direct(env, yuv420sp, width, height, out, outRowStride, 0);
+}
+
+JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_YUVtoRBGA__Ljava_nio_ByteBuffer_2ILjava_nio_ByteBuffer_2IIILjava_nio_ByteBuffer_2I(JNIEnv * env, jobject obj, jobject y, jint yRowStride, jobject vu, jint vuRowStride, jint width, jint height, jobject out, jint outRowStride)
+{
+    convert_direct(env, y, yRowStride, vu, vuRowStride, width, height, out, outRowStride, 0);
+}
+
+JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_YUVtoARBG__Ljava_nio_ByteBuffer_2ILjava_nio_ByteBuffer_2IIILjava_nio_ByteBuffer_2I(JNIEnv * env, jobject obj, jobject y, jint yRowStride, jobject vu, jint vuRowStride, jint width, jint height, jobject out, jint outRowStride)
+{
+    convert_direct(env, y, yRowStride, vu, vuRowStride, width, height, out, outRowStride, 1);
+}
+
+JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_YUVtoRBGA__Ljava_nio_ByteBuffer_2ILjava_nio_ByteBuffer_2Ljava_nio_ByteBuffer_2IIIILjava_nio_ByteBuffer_2I(JNIEnv * env, jobject obj, jobject y, jint yRowStride, jobject u, jobject v, jint uvRowStride, jint uvPixelStride, jint width, jint height, jobject out, jint outRowStride)
+{
+    convert_planes(env, y, yRowStride, u, v, uvRowStride, uvPixelStride, width, height, out, outRowStride, 0);
+}
+
+JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_YUVtoARBG__Ljava_nio_ByteBuffer_2ILjava_nio_ByteBuffer_2Ljava_nio_ByteBuffer_2IIIILjava_nio_ByteBuffer_2I(JNIEnv * env, jobject obj, jobject y, jint yRowStride, jobject u, jobject v, jint uvRowStride, jint uvPixelStride, jint width, jint height, jobject out, jint outRowStride)
+{
+    convert_planes(env, y, yRowStride, u, v, uvRowStride, uvPixelStride, width, height, out, outRowStride, 1);
+}
+
+JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_RGBAtoYUV__Ljava_nio_ByteBuffer_2IIIZLjava_nio_ByteBuffer_2ILjava_nio_ByteBuffer_2Ljava_nio_ByteBuffer_2II(JNIEnv * env, jobject obj, jobject rgba, jint rgbaRowStride, jint width, jint height, jboolean flipVertical, jobject y, jint yRowStride, jobject u, jobject v, jint uvRowStride, jint uvPixelStride)
+{
+    convert_to_yuv(env, rgba, rgbaRowStride, width, height, flipVertical, y, yRowStride, u, v, uvRowStride, uvPixelStride);
+}
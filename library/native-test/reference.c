@@ -0,0 +1,108 @@
+#include "reference.h"
+
+/*
+ * The decoder the library shipped before the vector kernels, with the JNI
+ * glue replaced by the frame description. The arithmetic, including reading
+ * the planes as signed bytes, is unchanged.
+ */
+void reference_convert(const struct yuv_frame *frame)
+{
+    int i;
+    int j;
+    int Y;
+    int Cr = 0;
+    int Cb = 0;
+    int R;
+    int G;
+    int B;
+    int cOff;
+
+    for (j = 0; j < frame->height; j++) {
+        const int8_t *y_row = (const int8_t *) (frame->y + j * frame->y_stride);
+        uint32_t *out_row = (uint32_t *) (frame->out + j * frame->out_stride);
+        for (i = 0; i < frame->width; i++) {
+            Y = y_row[i];
+            if (Y < 0) Y += 255;
+            if ((i & 0x1) != 1) {
+                cOff = (j >> 1) * frame->uv_stride + (i >> 1) * frame->uv_pixel_stride;
+                Cb = (int8_t) frame->v[cOff];
+                if (Cb < 0) Cb += 127; else Cb -= 128;
+                Cr = (int8_t) frame->u[cOff];
+                if (Cr < 0) Cr += 127; else Cr -= 128;
+            }
+
+            Y = Y + (Y >> 3) + (Y >> 5) + (Y >> 7);
+            R = Y + (Cr << 1) + (Cr >> 6);
+            if (R < 0) R = 0; else if (R > 255) R = 255;
+            G = Y - Cb + (Cb >> 3) + (Cb >> 4) - (Cr >> 1) + (Cr >> 3);
+            if (G < 0) G = 0; else if (G > 255) G = 255;
+            B = Y + Cb + (Cb >> 1) + (Cb >> 4) + (Cb >> 5);
+            if (B < 0) B = 0; else if (B > 255) B = 255;
+            if (frame->argb) {
+                out_row[i] = 0xff000000u + (B << 16) + (G << 8) + R;
+            } else {
+                out_row[i] = 0xff000000u + (R << 16) + (G << 8) + B;
+            }
+        }
+    }
+}
+
+void reference_nv21(const uint8_t *yuv, int width, int height, uint32_t *out, int argb)
+{
+    struct yuv_frame frame;
+    frame.y = yuv;
+    frame.y_stride = width;
+    frame.v = yuv + width * height;
+    frame.u = frame.v + 1;
+    frame.uv_stride = width;
+    frame.uv_pixel_stride = 2;
+    frame.width = width;
+    frame.height = height;
+    frame.out = (uint8_t *) out;
+    frame.out_stride = width * 4;
+    frame.argb = argb;
+    reference_convert(&frame);
+}
+
+/* The source pixel shown at x, y of the (possibly flipped) image */
+static const uint8_t *source_pixel(const struct rgba_frame *frame, int x, int y)
+{
+    int row = frame->flip ? frame->height - 1 - y : y;
+    return frame->rgba + row * frame->rgba_stride + x * 4;
+}
+
+void reference_encode(const struct rgba_frame *frame)
+{
+    int x;
+    int y;
+    int c;
+
+    for (y = 0; y < frame->height; y++) {
+        for (x = 0; x < frame->width; x++) {
+            const uint8_t *p = source_pixel(frame, x, y);
+            frame->y[y * frame->y_stride + x] =
+                    (uint8_t) (((66 * p[0] + 129 * p[1] + 25 * p[2] + 128) >> 8) + 16);
+        }
+    }
+    for (y = 0; y < frame->height; y += 2) {
+        for (x = 0; x < frame->width; x += 2) {
+            /* Blocks at an odd right or bottom edge repeat their last pixel */
+            int x1 = x + 1 < frame->width ? x + 1 : x;
+            int y1 = y + 1 < frame->height ? y + 1 : y;
+            const uint8_t *block[4];
+            int sum[3];
+            int offset = (y / 2) * frame->uv_stride + (x / 2) * frame->uv_pixel_stride;
+            block[0] = source_pixel(frame, x, y);
+            block[1] = source_pixel(frame, x1, y);
+            block[2] = source_pixel(frame, x, y1);
+            block[3] = source_pixel(frame, x1, y1);
+            for (c = 0; c < 3; c++) {
+                sum[c] = (block[0][c] + block[1][c] + block[2][c] + block[3][c] + 2) / 4;
+            }
+            frame->u[offset] =
+                    (uint8_t) (((-38 * sum[0] - 74 * sum[1] + 112 * sum[2] + 128) >> 8) + 128);
+            frame->v[offset] =
+                    (uint8_t) (((112 * sum[0] - 94 * sum[1] - 18 * sum[2] + 128) >> 8) + 128);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+#ifndef GPUIMAGE_YUV_REFERENCE_H
+#define GPUIMAGE_YUV_REFERENCE_H
+
+#include "yuv-convert.h"
+
+/* Converts a frame with the original scalar decoder, one pixel at a time. */
+void reference_convert(const struct yuv_frame *frame);
+
+/* Converts a contiguous NV21 frame with the original scalar decoder. */
+void reference_nv21(const uint8_t *yuv, int width, int height, uint32_t *out, int argb);
+
+/* Encodes to YUV 4:2:0 one sample at a time, straight from the BT.601
+ * formulas documented in yuv-convert.c. */
+void reference_encode(const struct rgba_frame *frame);
+
+#endif
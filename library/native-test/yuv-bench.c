@@ -0,0 +1,114 @@
+/*
+ * Times the original decoder, see reference.c, against the converter on one
+ * thread and split across the worker threads, for contiguous NV21 frames of
+ * common camera sizes.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <time.h>
+
+#include "reference.h"
+
+#define MIN_SECONDS 0.5
+
+struct bench_frame {
+    struct yuv_frame frame;
+    const uint8_t *yuv;
+};
+
+static double now(void)
+{
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec + t.tv_nsec * 1e-9;
+}
+
+static void run_reference(const struct bench_frame *bench)
+{
+    reference_nv21(bench->yuv, bench->frame.width, bench->frame.height,
+                   (uint32_t *) bench->frame.out, 0);
+}
+
+static void run_rows(const struct bench_frame *bench)
+{
+    yuv_convert_rows(&bench->frame, 0, bench->frame.height);
+}
+
+static void run_threads(const struct bench_frame *bench)
+{
+    yuv_convert(&bench->frame);
+}
+
+/* Milliseconds per frame, repeating until MIN_SECONDS have passed */
+static double measure(void (*run)(const struct bench_frame *), const struct bench_frame *bench)
+{
+    int frames = 0;
+    double start;
+    double elapsed;
+    run(bench);
+    start = now();
+    do {
+        run(bench);
+        frames++;
+        elapsed = now() - start;
+    } while (elapsed < MIN_SECONDS);
+    return elapsed * 1e3 / frames;
+}
+
+int main(void)
+{
+    static const int sizes[][2] = {{640, 480}, {1280, 720}, {1920, 1080}, {4032, 3024}};
+    const char *kernels;
+    size_t s;
+
+#if defined(YUV_NO_SIMD)
+    kernels = "scalar";
+#elif defined(__ARM_NEON) || defined(__ARM_NEON__)
+    kernels = "NEON";
+#elif defined(__SSE2__)
+    kernels = "SSE2";
+#else
+    kernels = "scalar";
+#endif
+
+    printf("%s kernels, %d threads\n", kernels, yuv_convert_thread_count());
+    printf("%-10s %12s %12s %12s %9s\n", "size", "original ms", "1 thread ms", "threads ms",
+           "speedup");
+    for (s = 0; s < sizeof(sizes) / sizeof(sizes[0]); s++) {
+        int width = sizes[s][0];
+        int height = sizes[s][1];
+        size_t size = (size_t) width * height * 3 / 2;
+        uint8_t *yuv = malloc(size);
+        uint32_t *out = malloc((size_t) width * height * 4);
+        struct bench_frame bench;
+        double reference;
+        double rows;
+        double threads;
+        size_t i;
+
+        for (i = 0; i < size; i++) {
+            yuv[i] = (uint8_t) rand();
+        }
+        bench.yuv = yuv;
+        bench.frame.y = yuv;
+        bench.frame.y_stride = width;
+        bench.frame.v = yuv + width * height;
+        bench.frame.u = bench.frame.v + 1;
+        bench.frame.uv_stride = width;
+        bench.frame.uv_pixel_stride = 2;
+        bench.frame.width = width;
+        bench.frame.height = height;
+        bench.frame.out = (uint8_t *) out;
+        bench.frame.out_stride = width * 4;
+        bench.frame.argb = 0;
+
+        reference = measure(run_reference, &bench);
+        rows = measure(run_rows, &bench);
+        threads = measure(run_threads, &bench);
+        printf("%4dx%-5d %12.2f %12.2f %12.2f %8.1fx\n", width, height, reference, rows,
+               threads, reference / threads);
+        free(yuv);
+        free(out);
+    }
+    return 0;
+}
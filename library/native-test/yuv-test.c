@@ -0,0 +1,416 @@
+/*
+ * Checks that the converters are bit-exact with the original decoder, see
+ * reference.c, for odd sizes, all chroma layouts, padded rows and frames
+ * large enough to be split across the worker threads, and the RGBA encoder
+ * against a per sample encoder for the same layouts, flipped or not. Built
+ * once with the vector kernels and once with YUV_NO_SIMD, see the Makefile,
+ * so both builds are held to the same reference.
+ */
+#include <pthread.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+
+#include "reference.h"
+
+#define TEST_CPUS 4
+
+enum layout {
+    LAYOUT_NV21,
+    LAYOUT_NV12,
+    LAYOUT_I420,
+    LAYOUT_YV12,
+    /* Interleaved with a pixel stride of 3, converted by the scalar loop */
+    LAYOUT_OTHER,
+    LAYOUT_COUNT
+};
+
+static const char *layout_names[] = {"NV21", "NV12", "I420", "YV12", "stride 3"};
+
+struct test_frame {
+    struct yuv_frame frame;
+    uint8_t *luma;
+    uint8_t *chroma;
+    uint8_t *expected;
+    size_t out_size;
+};
+
+static int failures;
+static int checked;
+
+/*
+ * yuv-convert.c is built with -Dsysconf=yuv_test_sysconf, so the worker pool
+ * starts and large frames are split into bands even on a single CPU host.
+ */
+long yuv_test_sysconf(int name)
+{
+    return name == _SC_NPROCESSORS_ONLN ? TEST_CPUS : sysconf(name);
+}
+
+static void fill_random(uint8_t *data, size_t size, unsigned int *seed)
+{
+    size_t i;
+    for (i = 0; i < size; i++) {
+        *seed = *seed * 1103515245u + 12345u;
+        data[i] = (uint8_t) (*seed >> 16);
+    }
+}
+
+/* Row padding is given in samples and keeps the output rows 4 byte aligned */
+static void create_frame(struct test_frame *test, int width, int height, enum layout layout,
+                         int padding, int argb, unsigned int *seed)
+{
+    struct yuv_frame *frame = &test->frame;
+    int chroma_width = (width + 1) / 2;
+    int chroma_height = (height + 1) / 2;
+    size_t plane_size;
+
+    memset(test, 0, sizeof(*test));
+    frame->width = width;
+    frame->height = height;
+    frame->argb = argb;
+    frame->y_stride = width + padding;
+    frame->out_stride = (width + padding) * 4;
+
+    test->luma = malloc((size_t) frame->y_stride * height);
+    fill_random(test->luma, (size_t) frame->y_stride * height, seed);
+    frame->y = test->luma;
+
+    switch (layout) {
+    case LAYOUT_NV21:
+    case LAYOUT_NV12:
+        frame->uv_pixel_stride = 2;
+        frame->uv_stride = chroma_width * 2 + padding;
+        break;
+    case LAYOUT_I420:
+    case LAYOUT_YV12:
+        frame->uv_pixel_stride = 1;
+        frame->uv_stride = chroma_width + padding;
+        break;
+    default:
+        frame->uv_pixel_stride = 3;
+        frame->uv_stride = chroma_width * 3 + padding;
+        break;
+    }
+    plane_size = (size_t) frame->uv_stride * chroma_height;
+    test->chroma = malloc(plane_size * 2);
+    fill_random(test->chroma, plane_size * 2, seed);
+    switch (layout) {
+    case LAYOUT_NV21:
+        frame->v = test->chroma;
+        frame->u = test->chroma + 1;
+        break;
+    case LAYOUT_NV12:
+        frame->u = test->chroma;
+        frame->v = test->chroma + 1;
+        break;
+    case LAYOUT_I420:
+        frame->u = test->chroma;
+        frame->v = test->chroma + plane_size;
+        break;
+    case LAYOUT_YV12:
+        frame->v = test->chroma;
+        frame->u = test->chroma + plane_size;
+        break;
+    default:
+        frame->u = test->chroma;
+        frame->v = test->chroma + 1;
+        break;
+    }
+
+    /* The padding of both outputs starts out equal and must stay untouched */
+    test->out_size = (size_t) frame->out_stride * height;
+    test->expected = malloc(test->out_size);
+    memset(test->expected, 0x5a, test->out_size);
+    frame->out = test->expected;
+    reference_convert(frame);
+}
+
+static void free_frame(struct test_frame *test)
+{
+    free(test->luma);
+    free(test->chroma);
+    free(test->expected);
+}
+
+static void report(const char *what, const struct yuv_frame *frame, const char *layout,
+                   const uint8_t *expected, const uint8_t *actual)
+{
+    int x;
+    int y;
+    for (y = 0; y < frame->height; y++) {
+        for (x = 0; x < frame->out_stride / 4; x++) {
+            uint32_t e;
+            uint32_t a;
+            memcpy(&e, expected + y * frame->out_stride + x * 4, 4);
+            memcpy(&a, actual + y * frame->out_stride + x * 4, 4);
+            if (e != a) {
+                printf("FAIL %s %dx%d %s argb %d: pixel %d,%d is %08x, expected %08x\n",
+                       what, frame->width, frame->height, layout, frame->argb, x, y, a, e);
+                return;
+            }
+        }
+    }
+}
+
+/* Converts with yuv_convert and with yuv_convert_rows on the calling thread */
+static void check_frame(struct test_frame *test, const char *layout)
+{
+    struct yuv_frame frame = test->frame;
+    uint8_t *actual = malloc(test->out_size);
+    int failed = 0;
+
+    memset(actual, 0x5a, test->out_size);
+    frame.out = actual;
+    yuv_convert(&frame);
+    if (memcmp(test->expected, actual, test->out_size) != 0) {
+        report("yuv_convert", &frame, layout, test->expected, actual);
+        failed = 1;
+    }
+
+    memset(actual, 0x5a, test->out_size);
+    yuv_convert_rows(&frame, 0, frame.height);
+    if (memcmp(test->expected, actual, test->out_size) != 0) {
+        report("yuv_convert_rows", &frame, layout, test->expected, actual);
+        failed = 1;
+    }
+    failures += failed;
+    checked++;
+    free(actual);
+}
+
+static void test_layouts(int width, int height, unsigned int *seed)
+{
+    int layout;
+    int argb;
+    int padding;
+    for (layout = 0; layout < LAYOUT_COUNT; layout++) {
+        for (argb = 0; argb < 2; argb++) {
+            for (padding = 0; padding <= 5; padding += 5) {
+                struct test_frame test;
+                create_frame(&test, width, height, (enum layout) layout, padding, argb, seed);
+                check_frame(&test, layout_names[layout]);
+                free_frame(&test);
+            }
+        }
+    }
+}
+
+/* The contiguous NV21 entry point, whose chroma rows overlap for odd widths */
+static void test_nv21(int width, int height, unsigned int *seed)
+{
+    int argb;
+    for (argb = 0; argb < 2; argb++) {
+        /* The last chroma sample of an odd width frame lies one past its rows */
+        size_t size = (size_t) width * height + (size_t) width * ((height + 1) / 2) + 1;
+        uint8_t *yuv = malloc(size);
+        uint32_t *expected = malloc((size_t) width * height * 4);
+        uint32_t *actual = malloc((size_t) width * height * 4);
+        fill_random(yuv, size, seed);
+        reference_nv21(yuv, width, height, expected, argb);
+        yuv_nv21_to_argb(yuv, width, height, actual, argb);
+        if (memcmp(expected, actual, (size_t) width * height * 4) != 0) {
+            printf("FAIL yuv_nv21_to_argb %dx%d argb %d\n", width, height, argb);
+            failures++;
+        }
+        checked++;
+        free(yuv);
+        free(expected);
+        free(actual);
+    }
+}
+
+/* Encodes into planes laid out as for decoding, padding given in samples */
+static void test_encode(int width, int height, unsigned int *seed)
+{
+    int chroma_width = (width + 1) / 2;
+    int chroma_height = (height + 1) / 2;
+    int layout;
+    int flip;
+    int padding;
+    for (layout = 0; layout < LAYOUT_COUNT; layout++) {
+        for (flip = 0; flip < 2; flip++) {
+            for (padding = 0; padding <= 5; padding += 5) {
+                struct rgba_frame frame;
+                uint8_t *rgba;
+                uint8_t *planes[2];
+                size_t luma_size;
+                size_t plane_size;
+                size_t size;
+                int uv_offset[2];
+                int failed = 0;
+                int i;
+
+                memset(&frame, 0, sizeof(frame));
+                frame.width = width;
+                frame.height = height;
+                frame.flip = flip;
+                frame.rgba_stride = (width + padding) * 4;
+                frame.y_stride = width + padding;
+                switch (layout) {
+                case LAYOUT_NV21:
+                case LAYOUT_NV12:
+                    frame.uv_pixel_stride = 2;
+                    frame.uv_stride = chroma_width * 2 + padding;
+                    break;
+                case LAYOUT_I420:
+                case LAYOUT_YV12:
+                    frame.uv_pixel_stride = 1;
+                    frame.uv_stride = chroma_width + padding;
+                    break;
+                default:
+                    frame.uv_pixel_stride = 3;
+                    frame.uv_stride = chroma_width * 3 + padding;
+                    break;
+                }
+                luma_size = (size_t) frame.y_stride * height;
+                plane_size = (size_t) frame.uv_stride * chroma_height;
+                /* Luma followed by both chroma planes, or one interleaved plane */
+                size = luma_size + plane_size * 2;
+                switch (layout) {
+                case LAYOUT_NV21:
+                    uv_offset[0] = 1;
+                    uv_offset[1] = 0;
+                    break;
+                case LAYOUT_I420:
+                    uv_offset[0] = 0;
+                    uv_offset[1] = (int) plane_size;
+                    break;
+                case LAYOUT_YV12:
+                    uv_offset[0] = (int) plane_size;
+                    uv_offset[1] = 0;
+                    break;
+                default:
+                    uv_offset[0] = 0;
+                    uv_offset[1] = 1;
+                    break;
+                }
+
+                rgba = malloc((size_t) frame.rgba_stride * height);
+                fill_random(rgba, (size_t) frame.rgba_stride * height, seed);
+                frame.rgba = rgba;
+                for (i = 0; i < 2; i++) {
+                    /* Padding and unused samples start out equal and must stay untouched */
+                    planes[i] = malloc(size);
+                    memset(planes[i], 0x5a, size);
+                }
+
+                frame.y = planes[0];
+                frame.u = planes[0] + luma_size + uv_offset[0];
+                frame.v = planes[0] + luma_size + uv_offset[1];
+                reference_encode(&frame);
+                frame.y = planes[1];
+                frame.u = planes[1] + luma_size + uv_offset[0];
+                frame.v = planes[1] + luma_size + uv_offset[1];
+                rgba_to_yuv420(&frame);
+
+                for (i = 0; i < (int) size && !failed; i++) {
+                    if (planes[0][i] != planes[1][i]) {
+                        printf("FAIL rgba_to_yuv420 %dx%d %s flip %d padding %d: %s byte %d is "
+                               "%02x, expected %02x\n", width, height, layout_names[layout],
+                               flip, padding, i < (int) luma_size ? "luma" : "chroma",
+                               i < (int) luma_size ? i : i - (int) luma_size, planes[1][i],
+                               planes[0][i]);
+                        failed = 1;
+                    }
+                }
+                failures += failed;
+                checked++;
+                free(rgba);
+                free(planes[0]);
+                free(planes[1]);
+            }
+        }
+    }
+}
+
+struct concurrent_job {
+    struct test_frame test;
+    int mismatches;
+};
+
+static void *run_concurrent(void *arg)
+{
+    struct concurrent_job *job = arg;
+    struct yuv_frame frame = job->test.frame;
+    uint8_t *actual = malloc(job->test.out_size);
+    int i;
+    frame.out = actual;
+    for (i = 0; i < 10; i++) {
+        memset(actual, 0x5a, job->test.out_size);
+        yuv_convert(&frame);
+        if (memcmp(job->test.expected, actual, job->test.out_size) != 0) {
+            job->mismatches++;
+        }
+    }
+    free(actual);
+    return NULL;
+}
+
+/* Callers on several threads share the worker pool */
+static void test_concurrent_callers(unsigned int *seed)
+{
+    struct concurrent_job jobs[4];
+    pthread_t threads[4];
+    int i;
+    for (i = 0; i < 4; i++) {
+        memset(&jobs[i], 0, sizeof(jobs[i]));
+        create_frame(&jobs[i].test, 1280 + i, 720 + i, (enum layout) (i % LAYOUT_COUNT), i,
+                     i & 1, seed);
+        pthread_create(&threads[i], NULL, run_concurrent, &jobs[i]);
+    }
+    for (i = 0; i < 4; i++) {
+        pthread_join(threads[i], NULL);
+        if (jobs[i].mismatches != 0) {
+            printf("FAIL concurrent caller %d: %d mismatches\n", i, jobs[i].mismatches);
+            failures++;
+        }
+        checked++;
+        free_frame(&jobs[i].test);
+    }
+}
+
+int main(void)
+{
+    static const int widths[] = {1, 2, 3, 7, 8, 15, 16, 17, 31, 32, 33, 47, 63, 64, 65, 127, 129};
+    static const int heights[] = {1, 2, 3, 4, 5, 9};
+    /* Above the size that is split into bands, odd ones included */
+    static const int large[][2] = {{641, 481}, {1280, 720}, {1283, 723}, {1920, 1080}};
+    unsigned int seed = 42;
+    size_t w;
+    size_t h;
+    const char *kernels;
+
+#if defined(YUV_NO_SIMD)
+    kernels = "scalar";
+#elif defined(__ARM_NEON) || defined(__ARM_NEON__)
+    kernels = "NEON";
+#elif defined(__SSE2__)
+    kernels = "SSE2";
+#else
+    kernels = "scalar";
+#endif
+
+    if (yuv_convert_thread_count() < 2) {
+        printf("FAIL no worker threads, the threaded path is not tested\n");
+        return 1;
+    }
+    for (w = 0; w < sizeof(widths) / sizeof(widths[0]); w++) {
+        for (h = 0; h < sizeof(heights) / sizeof(heights[0]); h++) {
+            test_layouts(widths[w], heights[h], &seed);
+            test_nv21(widths[w], heights[h], &seed);
+            test_encode(widths[w], heights[h], &seed);
+        }
+    }
+    for (w = 0; w < sizeof(large) / sizeof(large[0]); w++) {
+        test_layouts(large[w][0], large[w][1], &seed);
+        test_nv21(large[w][0], large[w][1], &seed);
+        test_encode(large[w][0], large[w][1], &seed);
+    }
+    test_concurrent_callers(&seed);
+
+    printf("%s kernels, %d threads: %d of %d conversions bit-exact\n", kernels,
+           yuv_convert_thread_count(), checked - failures, checked);
+    return failures == 0 ? 0 : 1;
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads rendered frames back without stalling the GL thread, e.g. for
+ * recording. On OpenGL ES 3.0 contexts each read goes into one of a ring of
+ * pixel buffer objects and returns right away; a frame is mapped only once the
+ * reads of the following frames were issued, by which time the GPU is done
+ * with it. Its pixels are then handed to the listener on a separate thread.
+ * On ES 2.0 contexts frames are read synchronously and delivered the same way.
+ * <br>
+ * Frames the listener cannot keep up with are dropped rather than queued, see
+ * {@link #getDroppedFrameCount()}. Except for that counter, all methods must
+ * be called on the thread owning the GL context.
+ */
+public class AsyncPixelReader {
+    private static final String TAG = "AsyncPixelReader";
+
+    public static final int DEFAULT_BUFFER_COUNT = 3;
+
+    public interface OnFrameReadListener {
+        /**
+         * Called on the reader's thread for every frame, in the order the
+         * frames were read.
+         *
+         * @param pixels    RGBA pixels with the bottom row first; only valid
+         *                  during this call
+         * @param width     the width of the frame
+         * @param height    the height of the frame
+         * @param timestamp the timestamp passed to
+         *                  {@link #readFramebuffer(int, int, long)}
+         */
+        void onFrameRead(ByteBuffer pixels, int width, int height, long timestamp);
+    }
+
+    private final OnFrameReadListener mListener;
+    private final int mBufferCount;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Pixel buffer ring, only touched on the GL thread
+    private Boolean mUsePixelBuffers;
+    private int[] mPixelBuffers;
+    private final boolean[] mPending;
+    private final long[] mTimestamps;
+    private int mNextBuffer;
+    private int mWidth;
+    private int mHeight;
+
+    // Buffers handed to the listener, guarded by mFreeBuffers
+    private final ArrayList<ByteBuffer> mFreeBuffers = new ArrayList<ByteBuffer>();
+    private int mDeliveringCount;
+    private final AtomicLong mDroppedFrameCount = new AtomicLong();
+
+    public AsyncPixelReader(final OnFrameReadListener listener) {
+        this(DEFAULT_BUFFER_COUNT, listener);
+    }
+
+    /**
+     * @param bufferCount number of frames in flight, at least 2
+     * @param listener    the listener receiving the frames
+     */
+    public AsyncPixelReader(final int bufferCount, final OnFrameReadListener listener) {
+        if (bufferCount < 2) {
+            throw new IllegalArgumentException("bufferCount must be at least 2");
+        }
+        mListener = listener;
+        mBufferCount = bufferCount;
+        mPending = new boolean[bufferCount];
+        mTimestamps = new long[bufferCount];
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Reads the given area of the currently bound framebuffer, starting at the
+     * bottom left corner. The frame is delivered to the listener later.
+     *
+     * @param width     the width of the area
+     * @param height    the height of the area
+     * @param timestamp passed on to the listener with the frame
+     */
+    public void readFramebuffer(final int width, final int height, final long timestamp) {
+        if (mUsePixelBuffers == null) {
+            mUsePixelBuffers = OpenGlUtils.isGLES30Supported();
+        }
+        if (mUsePixelBuffers) {
+            readAsync(width, height, timestamp);
+        } else {
+            ByteBuffer buffer = obtainBuffer(width * height * 4);
+            if (buffer == null) {
+                return;
+            }
+            GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                    buffer);
+            deliver(buffer, width, height, timestamp);
+        }
+    }
+
+    /**
+     * Delivers all frames which were read but not mapped yet, e.g. before
+     * recording stops.
+     */
+    public void flush() {
+        if (mPixelBuffers == null) {
+            return;
+        }
+        for (int i = 0; i < mBufferCount; i++) {
+            int index = (mNextBuffer + i) % mBufferCount;
+            if (mPending[index]) {
+                map(index);
+            }
+        }
+    }
+
+    /**
+     * Delivers pending frames, deletes the pixel buffers and stops the
+     * listener thread once it has handled them.
+     */
+    public void release() {
+        flush();
+        if (mPixelBuffers != null) {
+            GLES20.glDeleteBuffers(mBufferCount, mPixelBuffers, 0);
+            mPixelBuffers = null;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mThread.quit();
+            }
+        });
+    }
+
+    /**
+     * @return true if frames are read through pixel buffer objects, false
+     * if they are read synchronously or nothing was read yet
+     */
+    public boolean isAsynchronous() {
+        return mUsePixelBuffers != null && mUsePixelBuffers;
+    }
+
+    /**
+     * @return number of frames dropped because the listener was still busy
+     * with earlier ones
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount.get();
+    }
+
+    @TargetApi(18)
+    private void readAsync(final int width, final int height, final long timestamp) {
+        if (mPixelBuffers == null || width != mWidth || height != mHeight) {
+            allocate(width, height);
+        }
+        int index = mNextBuffer;
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelBuffers[index]);
+        GLES30.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        mPending[index] = true;
+        mTimestamps[index] = timestamp;
+
+        // The next buffer in the ring holds the oldest frame, the GPU had the
+        // time of the other frames in flight to finish it
+        mNextBuffer = (index + 1) % mBufferCount;
+        if (mPending[mNextBuffer]) {
+            map(mNextBuffer);
+        }
+    }
+
+    @TargetApi(18)
+    private void allocate(final int width, final int height) {
+        flush();
+        if (mPixelBuffers == null) {
+            mPixelBuffers = new int[mBufferCount];
+            GLES20.glGenBuffers(mBufferCount, mPixelBuffers, 0);
+        }
+        for (int pixelBuffer : mPixelBuffers) {
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffer);
+            GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, width * height * 4, null,
+                    GLES30.GL_STREAM_READ);
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        mWidth = width;
+        mHeight = height;
+        mNextBuffer = 0;
+    }
+
+    @TargetApi(18)
+    private void map(final int index) {
+        mPending[index] = false;
+        int size = mWidth * mHeight * 4;
+        ByteBuffer buffer = obtainBuffer(size);
+        if (buffer == null) {
+            return;
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelBuffers[index]);
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0,
+                size, GLES30.GL_MAP_READ_BIT);
+        if (mapped != null) {
+            // The mapping is only valid until it is unmapped on this thread
+            buffer.put(mapped);
+            buffer.flip();
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        if (mapped != null) {
+            deliver(buffer, mWidth, mHeight, mTimestamps[index]);
+        } else {
+            recycle(buffer);
+            mDroppedFrameCount.incrementAndGet();
+        }
+    }
+
+    private void deliver(final ByteBuffer buffer, final int width, final int height,
+                         final long timestamp) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    buffer.position(0);
+                    mListener.onFrameRead(buffer, width, height, timestamp);
+                } finally {
+                    recycle(buffer);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns a cleared buffer of the given size, or null if the listener
+     * still holds as many frames as there are buffers in the ring.
+     */
+    private ByteBuffer obtainBuffer(final int size) {
+        synchronized (mFreeBuffers) {
+            if (mDeliveringCount >= mBufferCount) {
+                mDroppedFrameCount.incrementAndGet();
+                return null;
+            }
+            mDeliveringCount++;
+            while (!mFreeBuffers.isEmpty()) {
+                ByteBuffer buffer = mFreeBuffers.remove(mFreeBuffers.size() - 1);
+                if (buffer.capacity() == size) {
+                    buffer.clear();
+                    return buffer;
+                }
+            }
+        }
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+
+    private void recycle(final ByteBuffer buffer) {
+        synchronized (mFreeBuffers) {
+            mDeliveringCount--;
+            mFreeBuffers.add(buffer);
+        }
+    }
+}
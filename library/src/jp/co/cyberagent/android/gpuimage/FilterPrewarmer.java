@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.egl.EGLSurface;
+
+/**
+ * Initializes filters on a background thread, so switching to them does not
+ * stall the render thread while their shaders compile. The thread owns an EGL
+ * context that shares programs and textures with the render context; it
+ * initializes each filter, runs its pending tasks (e.g. tone curve or lookup
+ * texture uploads) and waits for the GPU to finish them.
+ * <br>
+ * The render thread then calls {@link #claim(GPUImageFilter)} before it uses
+ * a filter: a filter that was prewarmed can be drawn right away, one that was
+ * not is taken off the queue and has to be initialized as usual.
+ */
+public class FilterPrewarmer {
+    private static final String TAG = "FilterPrewarmer";
+    private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+    private static final int EGL_OPENGL_ES2_BIT = 4;
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_DONE = 2;
+    private static final int STATE_FAILED = 3;
+
+    private final EGL10 mEGL;
+    private final EGLDisplay mEGLDisplay;
+    private final EGLContext mSharedContext;
+
+    // All guarded by this
+    private final Map<GPUImageFilter, Integer> mStates = new HashMap<GPUImageFilter, Integer>();
+    private final LinkedList<GPUImageFilter> mQueue = new LinkedList<GPUImageFilter>();
+    private Thread mThread;
+    private boolean mReleased;
+
+    /**
+     * Creates a prewarmer sharing objects with the EGL context current on the
+     * calling thread. The background thread is started on the first request.
+     */
+    public FilterPrewarmer() {
+        this((EGL10) EGLContext.getEGL(), ((EGL10) EGLContext.getEGL()).eglGetCurrentDisplay(),
+                ((EGL10) EGLContext.getEGL()).eglGetCurrentContext());
+    }
+
+    /**
+     * Creates a prewarmer sharing objects with the given context.
+     *
+     * @param egl           the EGL instance
+     * @param display       the display of the shared context
+     * @param sharedContext the context filters will be drawn with
+     */
+    public FilterPrewarmer(final EGL10 egl, final EGLDisplay display,
+                           final EGLContext sharedContext) {
+        mEGL = egl;
+        mEGLDisplay = display;
+        mSharedContext = sharedContext;
+    }
+
+    /**
+     * Queues the given filters for initialization. Filters which are already
+     * initialized or queued are skipped.
+     *
+     * @param filters the filters to initialize
+     */
+    public synchronized void prewarm(final Collection<GPUImageFilter> filters) {
+        if (mReleased) {
+            return;
+        }
+        for (GPUImageFilter filter : filters) {
+            if (filter == null || filter.isInitialized() || mStates.containsKey(filter)) {
+                continue;
+            }
+            mStates.put(filter, STATE_PENDING);
+            mQueue.add(filter);
+        }
+        if (mThread == null && !mQueue.isEmpty()) {
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    FilterPrewarmer.this.run();
+                }
+            }, TAG);
+            mThread.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Takes the filter over to the calling render thread. Waits if the filter
+     * is being initialized right now, even if the calling thread is
+     * interrupted; the interrupt is kept for the caller.
+     *
+     * @param filter the filter about to be drawn
+     * @return true if the filter was prewarmed and must not be initialized
+     * again, false if the caller has to initialize it
+     */
+    public synchronized boolean claim(final GPUImageFilter filter) {
+        Integer state = mStates.get(filter);
+        if (state == null) {
+            return false;
+        }
+        // The filter's program is half built while it runs, the caller cannot
+        // use it before the background thread is done with it
+        boolean interrupted = false;
+        while (state == STATE_RUNNING) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            state = mStates.get(filter);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        mStates.remove(filter);
+        if (state == STATE_PENDING) {
+            mQueue.remove(filter);
+        }
+        return state == STATE_DONE;
+    }
+
+    /**
+     * Drops all pending requests and stops the background thread, after
+     * waiting for a filter that is being initialized right now. Filters that
+     * were prewarmed but not claimed stay initialized.
+     */
+    public synchronized void release() {
+        mReleased = true;
+        mQueue.clear();
+        notifyAll();
+        while (mStates.containsValue(STATE_RUNNING)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void run() {
+        EGLConfig config = chooseConfig();
+        EGLContext context = EGL10.EGL_NO_CONTEXT;
+        EGLSurface surface = EGL10.EGL_NO_SURFACE;
+        if (config != null) {
+            context = mEGL.eglCreateContext(mEGLDisplay, config, mSharedContext,
+                    new int[]{EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE});
+            surface = mEGL.eglCreatePbufferSurface(mEGLDisplay, config,
+                    new int[]{EGL10.EGL_WIDTH, 1, EGL10.EGL_HEIGHT, 1, EGL10.EGL_NONE});
+        }
+        if (context == EGL10.EGL_NO_CONTEXT || surface == EGL10.EGL_NO_SURFACE
+                || !mEGL.eglMakeCurrent(mEGLDisplay, surface, surface, context)) {
+            Log.w(TAG, "Could not set up shared context: "
+                    + GLUtils.getEGLErrorString(mEGL.eglGetError()));
+            failAll();
+        } else {
+            ShaderProgramCache.shareWith(mSharedContext);
+            GPUImageFilter filter;
+            while ((filter = next()) != null) {
+                boolean success = initialize(filter);
+                synchronized (this) {
+                    if (mStates.containsKey(filter)) {
+                        mStates.put(filter, success ? STATE_DONE : STATE_FAILED);
+                    }
+                    notifyAll();
+                }
+            }
+            ShaderProgramCache.unshare();
+            mEGL.eglMakeCurrent(mEGLDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE,
+                    EGL10.EGL_NO_CONTEXT);
+        }
+        if (surface != EGL10.EGL_NO_SURFACE) {
+            mEGL.eglDestroySurface(mEGLDisplay, surface);
+        }
+        if (context != EGL10.EGL_NO_CONTEXT) {
+            mEGL.eglDestroyContext(mEGLDisplay, context);
+        }
+    }
+
+    private synchronized GPUImageFilter next() {
+        while (!mReleased && mQueue.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+        if (mReleased) {
+            return null;
+        }
+        GPUImageFilter filter = mQueue.removeFirst();
+        mStates.put(filter, STATE_RUNNING);
+        return filter;
+    }
+
+    private synchronized void failAll() {
+        mReleased = true;
+        mQueue.clear();
+        for (Map.Entry<GPUImageFilter, Integer> entry : mStates.entrySet()) {
+            entry.setValue(STATE_FAILED);
+        }
+        notifyAll();
+    }
+
+    private boolean initialize(final GPUImageFilter filter) {
+        try {
+            filter.init();
+            filter.prepareForDraw();
+            // Objects created here must be complete before another context uses them
+            GLES20.glFinish();
+            return true;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not prewarm " + filter, e);
+            return false;
+        }
+    }
+
+    private EGLConfig chooseConfig() {
+        int[] attribList = new int[]{
+                EGL10.EGL_RED_SIZE, 8,
+                EGL10.EGL_GREEN_SIZE, 8,
+                EGL10.EGL_BLUE_SIZE, 8,
+                EGL10.EGL_ALPHA_SIZE, 8,
+                EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+                EGL10.EGL_SURFACE_TYPE, EGL10.EGL_PBUFFER_BIT,
+                EGL10.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfig = new int[1];
+        if (!mEGL.eglChooseConfig(mEGLDisplay, attribList, configs, 1, numConfig)
+                || numConfig[0] == 0) {
+            return null;
+        }
+        return configs[0];
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+/**
+ * Describes which input pixels a filter reads for each output pixel, see
+ * {@link GPUImageFilter#getTraits()}. Radii are in texels of the output, for
+ * the filter's current parameters and output size, and round fractional
+ * offsets up since linear sampling reads the next texel as well.
+ * <br>
+ * Traits of a chain are combined with {@link #then(FilterTraits)}: radii add
+ * up, alpha is preserved only if every filter preserves it.
+ */
+public final class FilterTraits {
+
+    public enum Footprint {
+        /** Reads only the input pixel at the output position. */
+        POINT_WISE,
+        /** Reads input pixels at most the radius away. */
+        NEIGHBOURHOOD,
+        /** Reads input pixels anywhere in the image, e.g. distortions. */
+        ARBITRARY
+    }
+
+    /** Radius reported for arbitrary footprints. */
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private final Footprint mFootprint;
+    private final int mRadiusX;
+    private final int mRadiusY;
+    private final boolean mPreservesAlpha;
+    private final boolean mPositionDependent;
+
+    private FilterTraits(final Footprint footprint, final int radiusX, final int radiusY,
+                         final boolean preservesAlpha, final boolean positionDependent) {
+        mFootprint = footprint;
+        mRadiusX = radiusX;
+        mRadiusY = radiusY;
+        mPreservesAlpha = preservesAlpha;
+        mPositionDependent = positionDependent;
+    }
+
+    /**
+     * @param preservesAlpha    true if the output alpha is the input alpha
+     * @param positionDependent see {@link #isPositionDependent()}
+     * @return traits of a filter reading only the pixel at the output position
+     */
+    public static FilterTraits pointWise(final boolean preservesAlpha,
+                                         final boolean positionDependent) {
+        return new FilterTraits(Footprint.POINT_WISE, 0, 0, preservesAlpha, positionDependent);
+    }
+
+    /**
+     * @param radiusX           the largest horizontal sampling offset in texels
+     * @param radiusY           the largest vertical sampling offset in texels
+     * @param preservesAlpha    true if the output alpha is the input alpha
+     * @param positionDependent see {@link #isPositionDependent()}
+     * @return traits of a filter reading a bounded neighbourhood; point-wise
+     * traits if both radii round to 0
+     */
+    public static FilterTraits neighbourhood(final float radiusX, final float radiusY,
+                                             final boolean preservesAlpha,
+                                             final boolean positionDependent) {
+        int x = toTexels(radiusX);
+        int y = toTexels(radiusY);
+        if (x == 0 && y == 0) {
+            return pointWise(preservesAlpha, positionDependent);
+        }
+        return new FilterTraits(Footprint.NEIGHBOURHOOD, x, y, preservesAlpha,
+                positionDependent);
+    }
+
+    /**
+     * @param preservesAlpha true if the output alpha is the input alpha at the
+     *                       output position
+     * @return traits of a filter that may read any input pixel
+     */
+    public static FilterTraits arbitrary(final boolean preservesAlpha) {
+        return new FilterTraits(Footprint.ARBITRARY, UNBOUNDED, UNBOUNDED, preservesAlpha, true);
+    }
+
+    /**
+     * @param next the traits of the filter applied to the output of this one
+     * @return the traits of both filters applied one after the other
+     */
+    public FilterTraits then(final FilterTraits next) {
+        boolean preservesAlpha = mPreservesAlpha && next.mPreservesAlpha;
+        boolean positionDependent = mPositionDependent || next.mPositionDependent;
+        if (mFootprint == Footprint.ARBITRARY || next.mFootprint == Footprint.ARBITRARY) {
+            return arbitrary(preservesAlpha);
+        }
+        if (mFootprint == Footprint.POINT_WISE && next.mFootprint == Footprint.POINT_WISE) {
+            return pointWise(preservesAlpha, positionDependent);
+        }
+        return new FilterTraits(Footprint.NEIGHBOURHOOD, mRadiusX + next.mRadiusX,
+                mRadiusY + next.mRadiusY, preservesAlpha, positionDependent);
+    }
+
+    public Footprint getFootprint() {
+        return mFootprint;
+    }
+
+    public boolean isPointWise() {
+        return mFootprint == Footprint.POINT_WISE;
+    }
+
+    /**
+     * @return true unless the filter may read any input pixel
+     */
+    public boolean isBounded() {
+        return mFootprint != Footprint.ARBITRARY;
+    }
+
+    /**
+     * @return the largest horizontal sampling offset in texels, or
+     * {@link #UNBOUNDED}
+     */
+    public int getRadiusX() {
+        return mRadiusX;
+    }
+
+    /**
+     * @return the largest vertical sampling offset in texels, or
+     * {@link #UNBOUNDED}
+     */
+    public int getRadiusY() {
+        return mRadiusY;
+    }
+
+    /**
+     * @return the larger of both radii, e.g. the apron a tile needs
+     */
+    public int getRadius() {
+        return Math.max(mRadiusX, mRadiusY);
+    }
+
+    /**
+     * @return true if the output alpha of each pixel is its input alpha
+     */
+    public boolean preservesAlpha() {
+        return mPreservesAlpha;
+    }
+
+    /**
+     * @return true if the output also depends on where the pixel lies in the
+     * image, e.g. a vignette, a blended second image or a pixelation grid.
+     * Such filters give different results on parts of an image than on the
+     * whole image, so they are neither fused nor rendered in tiles. Offsets
+     * that merely scale with the image size follow
+     * {@link GPUImageFilter#setImageSize(int, int)} instead.
+     */
+    public boolean isPositionDependent() {
+        return mPositionDependent;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FilterTraits)) {
+            return false;
+        }
+        FilterTraits traits = (FilterTraits) o;
+        return mFootprint == traits.mFootprint && mRadiusX == traits.mRadiusX
+                && mRadiusY == traits.mRadiusY && mPreservesAlpha == traits.mPreservesAlpha
+                && mPositionDependent == traits.mPositionDependent;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mFootprint.hashCode();
+        result = 31 * result + mRadiusX;
+        result = 31 * result + mRadiusY;
+        result = 31 * result + (mPreservesAlpha ? 1 : 0);
+        result = 31 * result + (mPositionDependent ? 1 : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "FilterTraits{" + mFootprint
+                + (mFootprint == Footprint.NEIGHBOURHOOD ? " " + mRadiusX + "x" + mRadiusY : "")
+                + (mPreservesAlpha ? ", preserves alpha" : "")
+                + (mPositionDependent ? ", position dependent" : "") + "}";
+    }
+
+    private static int toTexels(final float offset) {
+        if (Float.isNaN(offset) || offset <= 0) {
+            return 0;
+        }
+        if (offset >= UNBOUNDED / 2) {
+            return UNBOUNDED / 2;
+        }
+        // Tolerate rounding errors of offsets computed from normalized sizes
+        return (int) Math.ceil(offset - 1e-3f);
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.content.ComponentCallbacks2;
+import android.opengl.GLES20;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLContext;
+
+/**
+ * Framebuffer and texture pairs shared by all filter groups and renderers of
+ * one EGL context. Framebuffers are reference counted: {@link #obtain(int, int)}
+ * hands out a locked framebuffer and {@link Framebuffer#unlock()} returns it to
+ * the pool once the last user is done with it, so the next pass of the same size
+ * can render into it again. Idle framebuffers are freed least recently used
+ * first whenever the pool exceeds its byte budget.
+ * <br>
+ * All methods except {@link #trimMemory(int)} and {@link #setMaxBytes(long)}
+ * must be called on the thread owning the GL context.
+ */
+public class FramebufferPool {
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    private static final Map<EGLContext, FramebufferPool> sPools =
+            new HashMap<EGLContext, FramebufferPool>();
+    private static volatile long sMaxBytes = DEFAULT_MAX_BYTES;
+
+    /**
+     * A framebuffer with a texture as its color attachment.
+     */
+    public static class Framebuffer {
+        private final FramebufferPool mPool;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mFormat;
+        private final int mFramebufferId;
+        private final int mTextureId;
+        private int mLockCount;
+
+        private Framebuffer(final FramebufferPool pool, final int width, final int height,
+                            final int format, final int framebufferId, final int textureId) {
+            mPool = pool;
+            mWidth = width;
+            mHeight = height;
+            mFormat = format;
+            mFramebufferId = framebufferId;
+            mTextureId = textureId;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public int getFormat() {
+            return mFormat;
+        }
+
+        public int getFramebufferId() {
+            return mFramebufferId;
+        }
+
+        public int getTextureId() {
+            return mTextureId;
+        }
+
+        /**
+         * Adds a reference, e.g. when the texture is read by a later pass.
+         */
+        public void lock() {
+            mLockCount++;
+        }
+
+        /**
+         * Removes a reference. The framebuffer returns to the pool and may be
+         * handed out again when no references are left.
+         */
+        public void unlock() {
+            if (mLockCount <= 0) {
+                return;
+            }
+            mLockCount--;
+            if (mLockCount == 0) {
+                mPool.recycle(this);
+            }
+        }
+
+        long getByteCount() {
+            return (long) mWidth * mHeight * bytesPerPixel(mFormat);
+        }
+
+        boolean matches(final int width, final int height, final int format) {
+            return mWidth == width && mHeight == height && mFormat == format;
+        }
+    }
+
+    // Idle framebuffers, least recently used first
+    private final ArrayList<Framebuffer> mIdle = new ArrayList<Framebuffer>();
+    private long mTotalBytes;
+    private volatile int mPendingTrimLevel = -1;
+
+    private FramebufferPool() {
+    }
+
+    /**
+     * Returns the pool of the EGL context current on the calling thread.
+     *
+     * @return the pool of the current context
+     */
+    public static FramebufferPool getInstance() {
+        EGLContext context = ((EGL10) EGLContext.getEGL()).eglGetCurrentContext();
+        synchronized (sPools) {
+            FramebufferPool pool = sPools.get(context);
+            if (pool == null) {
+                pool = new FramebufferPool();
+                sPools.put(context, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Forgets the pool of the current context without deleting anything. Has
+     * to be called when a new context was created, since the GL objects of a
+     * pool still registered for it belonged to a destroyed context that may
+     * have had the same handle.
+     */
+    public static void onContextCreated() {
+        EGLContext context = ((EGL10) EGLContext.getEGL()).eglGetCurrentContext();
+        synchronized (sPools) {
+            sPools.remove(context);
+        }
+    }
+
+    /**
+     * Deletes all idle framebuffers of the current context and forgets its
+     * pool. Call before the current context gets destroyed.
+     */
+    public static void destroyInstance() {
+        EGLContext context = ((EGL10) EGLContext.getEGL()).eglGetCurrentContext();
+        FramebufferPool pool;
+        synchronized (sPools) {
+            pool = sPools.remove(context);
+        }
+        if (pool != null) {
+            pool.purge(0);
+        }
+    }
+
+    /**
+     * Sets the number of bytes all framebuffers of a pool may occupy before
+     * idle ones get freed. Framebuffers in use are never freed.
+     *
+     * @param maxBytes the budget per pool in bytes
+     */
+    public static void setMaxBytes(final long maxBytes) {
+        sMaxBytes = maxBytes;
+    }
+
+    public static long getMaxBytes() {
+        return sMaxBytes;
+    }
+
+    /**
+     * Releases idle framebuffers of all pools according to the given level of
+     * {@link android.content.ComponentCallbacks2#onTrimMemory(int)}. May be
+     * called from any thread, the GL objects are deleted the next time the pool
+     * is used on its GL thread or {@link #applyPendingTrim()} is called there.
+     *
+     * @param level the trim memory level
+     */
+    public static void trimMemory(final int level) {
+        synchronized (sPools) {
+            for (FramebufferPool pool : sPools.values()) {
+                if (level > pool.mPendingTrimLevel) {
+                    pool.mPendingTrimLevel = level;
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands out a locked RGBA framebuffer of the given size.
+     *
+     * @param width  width in pixels
+     * @param height height in pixels
+     * @return a locked framebuffer, to be unlocked once its content is not
+     * needed anymore
+     */
+    public Framebuffer obtain(final int width, final int height) {
+        return obtain(width, height, GLES20.GL_RGBA);
+    }
+
+    /**
+     * Hands out a locked framebuffer of the given size and texture format.
+     *
+     * @param width  width in pixels
+     * @param height height in pixels
+     * @param format texture format, e.g. GLES20.GL_RGBA
+     * @return a locked framebuffer, to be unlocked once its content is not
+     * needed anymore
+     */
+    public Framebuffer obtain(final int width, final int height, final int format) {
+        applyPendingTrim();
+        Framebuffer framebuffer = null;
+        for (int i = mIdle.size() - 1; i >= 0; i--) {
+            if (mIdle.get(i).matches(width, height, format)) {
+                framebuffer = mIdle.remove(i);
+                break;
+            }
+        }
+        if (framebuffer == null) {
+            framebuffer = create(width, height, format);
+            mTotalBytes += framebuffer.getByteCount();
+            purge(sMaxBytes);
+        }
+        framebuffer.lock();
+        return framebuffer;
+    }
+
+    /**
+     * @return bytes occupied by all framebuffers of this pool, idle or not
+     */
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    public int getIdleCount() {
+        return mIdle.size();
+    }
+
+    private void recycle(final Framebuffer framebuffer) {
+        mIdle.add(framebuffer);
+        applyPendingTrim();
+        purge(sMaxBytes);
+    }
+
+    /**
+     * Frees idle framebuffers as requested by {@link #trimMemory(int)} since
+     * the last call. Renderers call it once per frame, so a pool that is not
+     * used to obtain new framebuffers is trimmed as well.
+     */
+    public void applyPendingTrim() {
+        int level = mPendingTrimLevel;
+        if (level < 0) {
+            return;
+        }
+        mPendingTrimLevel = -1;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            purge(0);
+        } else {
+            purge(sMaxBytes / 2);
+        }
+    }
+
+    private void purge(final long maxBytes) {
+        while (mTotalBytes > maxBytes && !mIdle.isEmpty()) {
+            Framebuffer framebuffer = mIdle.remove(0);
+            GLES20.glDeleteFramebuffers(1, new int[]{framebuffer.mFramebufferId}, 0);
+            GLES20.glDeleteTextures(1, new int[]{framebuffer.mTextureId}, 0);
+            mTotalBytes -= framebuffer.getByteCount();
+        }
+    }
+
+    private Framebuffer create(final int width, final int height, final int format) {
+        int[] framebuffers = new int[1];
+        int[] textures = new int[1];
+        int[] previousFramebuffer = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, previousFramebuffer, 0);
+        GLES20.glGenFramebuffers(1, framebuffers, 0);
+        GLES20.glGenTextures(1, textures, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0,
+                format, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffers[0]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, textures[0], 0);
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, previousFramebuffer[0]);
+        return new Framebuffer(this, width, height, format, framebuffers[0], textures[0]);
+    }
+
+    private static int bytesPerPixel(final int format) {
+        switch (format) {
+            case GLES20.GL_ALPHA:
+            case GLES20.GL_LUMINANCE:
+                return 1;
+            case GLES20.GL_LUMINANCE_ALPHA:
+                return 2;
+            case GLES20.GL_RGB:
+                return 3;
+            default:
+                return 4;
+        }
+    }
+}
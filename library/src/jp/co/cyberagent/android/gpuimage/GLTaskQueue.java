@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free multi-producer, single-consumer queue of tasks to be run on the GL
+ * thread. Any thread may post tasks, only the GL thread may run them.
+ * <br>
+ * A task posted with a key replaces a task with the same key that is still
+ * pending, so e.g. a preview frame that arrives before the previous one was
+ * uploaded supersedes it instead of queuing up behind it.
+ */
+public class GLTaskQueue {
+
+    private static final class Node extends AtomicReference<Runnable> {
+        final Object mKey;
+        final long mEnqueueTime;
+        volatile Node mNext;
+
+        Node(final Object key, final Runnable task) {
+            super(task);
+            mKey = key;
+            mEnqueueTime = System.nanoTime();
+        }
+    }
+
+    private final AtomicReference<Node> mTail;
+    private Node mHead;
+    private final ConcurrentHashMap<Object, Node> mPendingByKey =
+            new ConcurrentHashMap<Object, Node>();
+
+    private final AtomicInteger mDepth = new AtomicInteger();
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+    private volatile long mExecutedCount;
+    private volatile long mLastWaitNanos;
+    private volatile long mMaxWaitNanos;
+    private volatile long mTotalWaitNanos;
+    private volatile Runnable mPostListener;
+
+    public GLTaskQueue() {
+        mHead = new Node(null, null);
+        mTail = new AtomicReference<Node>(mHead);
+    }
+
+    /**
+     * @param listener run on the posting thread after each task is posted,
+     *                 e.g. to wake up the GL thread, or null
+     */
+    public void setPostListener(final Runnable listener) {
+        mPostListener = listener;
+    }
+
+    /**
+     * Posts a task to be run on the next drain.
+     *
+     * @param task the task
+     */
+    public void post(final Runnable task) {
+        enqueue(new Node(null, task));
+        notifyPosted();
+    }
+
+    /**
+     * Posts a task which replaces a still pending task with the same key. The
+     * replacing task keeps the queue position of the task it replaces.
+     *
+     * @param key  identifies tasks that supersede each other
+     * @param task the task
+     */
+    public void post(final Object key, final Runnable task) {
+        if (key == null) {
+            post(task);
+            return;
+        }
+        Node node = null;
+        while (true) {
+            Node pending = mPendingByKey.get(key);
+            if (pending != null) {
+                Runnable current = pending.get();
+                if (current != null && pending.compareAndSet(current, task)) {
+                    mCoalescedCount.incrementAndGet();
+                    notifyPosted();
+                    return;
+                }
+                // The pending task is being run right now, queue a new one behind it
+                if (node == null) {
+                    node = new Node(key, task);
+                }
+                if (mPendingByKey.replace(key, pending, node)) {
+                    enqueue(node);
+                    notifyPosted();
+                    return;
+                }
+            } else {
+                if (node == null) {
+                    node = new Node(key, task);
+                }
+                if (mPendingByKey.putIfAbsent(key, node) == null) {
+                    enqueue(node);
+                    notifyPosted();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs all pending tasks, including the ones posted by the tasks
+     * themselves. Must only be called from the GL thread.
+     */
+    public void runAll() {
+        Node node;
+        while ((node = dequeue()) != null) {
+            if (node.mKey != null) {
+                mPendingByKey.remove(node.mKey, node);
+            }
+            Runnable task = node.getAndSet(null);
+            if (task != null) {
+                recordWait(System.nanoTime() - node.mEnqueueTime);
+                task.run();
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return mDepth.get() == 0;
+    }
+
+    /**
+     * @return number of tasks waiting to be run
+     */
+    public int getDepth() {
+        return mDepth.get();
+    }
+
+    /**
+     * @return number of tasks that were dropped because a task with the same
+     * key superseded them
+     */
+    public long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    public long getExecutedCount() {
+        return mExecutedCount;
+    }
+
+    /**
+     * @return time between posting and running of the last task in nanoseconds
+     */
+    public long getLastWaitNanos() {
+        return mLastWaitNanos;
+    }
+
+    public long getMaxWaitNanos() {
+        return mMaxWaitNanos;
+    }
+
+    public long getAverageWaitNanos() {
+        long executed = mExecutedCount;
+        return executed == 0 ? 0 : mTotalWaitNanos / executed;
+    }
+
+    public void resetStatistics() {
+        mCoalescedCount.set(0);
+        mExecutedCount = 0;
+        mLastWaitNanos = 0;
+        mMaxWaitNanos = 0;
+        mTotalWaitNanos = 0;
+    }
+
+    private void recordWait(final long waitNanos) {
+        // Only the consumer thread writes these, so plain volatile writes suffice
+        mLastWaitNanos = waitNanos;
+        if (waitNanos > mMaxWaitNanos) {
+            mMaxWaitNanos = waitNanos;
+        }
+        mTotalWaitNanos += waitNanos;
+        mExecutedCount++;
+    }
+
+    private void notifyPosted() {
+        Runnable listener = mPostListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private void enqueue(final Node node) {
+        mDepth.incrementAndGet();
+        Node previous = mTail.getAndSet(node);
+        previous.mNext = node;
+    }
+
+    private Node dequeue() {
+        Node next = mHead.mNext;
+        if (next == null) {
+            return null;
+        }
+        mHead = next;
+        mDepth.decrementAndGet();
+        return next;
+    }
+}
@@ -35,13 +35,16 @@ import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.Looper;
 import android.provider.MediaStore;
 import android.view.Display;
 import android.view.WindowManager;
 
 import java.io.*;
 import java.net.URL;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 
 /**
@@ -49,6 +52,10 @@ import java.util.concurrent.Semaphore;
  * tasks through a simple interface.
  */
 public class GPUImage {
+    public static final long DEFAULT_INTERACTION_IDLE_MILLIS = 300;
+    public static final long DEFAULT_TARGET_FRAME_NANOS = 16666667L;
+    public static final float MIN_PROXY_SCALE = 0.25f;
+
     private final Context mContext;
     private final GPUImageRenderer mRenderer;
     private GLSurfaceView mGlSurfaceView;
@@ -56,6 +63,29 @@ public class GPUImage {
     private Bitmap mCurrentBitmap;
     private ScaleType mScaleType = ScaleType.CENTER_CROP;
 
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mFullResolutionRender = new Runnable() {
+        @Override
+        public void run() {
+            mInteracting = false;
+            mRenderer.setFrameTimeMeasured(false);
+            mRenderer.setRenderScale(1f);
+            requestRender();
+        }
+    };
+    private final Runnable mUpdateInteraction = new Runnable() {
+        @Override
+        public void run() {
+            updateInteraction();
+        }
+    };
+    // Read by requestRender(), which may be called on any thread
+    private volatile boolean mInteracting;
+    private volatile float mProxyScale = 1f;
+    private long mInteractionIdleMillis = DEFAULT_INTERACTION_IDLE_MILLIS;
+    private long mTargetFrameNanos = DEFAULT_TARGET_FRAME_NANOS;
+    private boolean mSurfaceTexturePreview;
+
     /**
      * Instantiates a new GPUImage object.
      *
@@ -115,11 +145,112 @@ public class GPUImage {
      * Request the preview to be rendered again.
      */
     public void requestRender() {
+        if (mInteracting) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                updateInteraction();
+            } else {
+                mHandler.post(mUpdateInteraction);
+            }
+        }
         if (mGlSurfaceView != null) {
             mGlSurfaceView.requestRender();
         }
     }
 
+    /**
+     * Starts an interactive adjustment, e.g. when the user touches a slider.
+     * Until the adjustment ends, the preview is rendered at a reduced
+     * resolution whenever rendering at full resolution would not keep up with
+     * the target frame time, see {@link #setTargetFrameNanos(long)}. The
+     * resolution follows the measured frame times. Must be called on the main
+     * thread.
+     * <br>
+     * Filters that sample their neighbours a fixed number of output pixels
+     * away, e.g. {@link GPUImageGaussianBlurFilter},
+     * {@link GPUImageBilateralFilter} and {@link GPUImageSmoothToonFilter},
+     * reach proportionally farther at a reduced resolution and look stronger
+     * until the full resolution render at the end of the adjustment.
+     */
+    public void beginInteraction() {
+        mHandler.removeCallbacks(mFullResolutionRender);
+        if (!mInteracting) {
+            mInteracting = true;
+            mRenderer.setFrameTimeMeasured(true);
+            mRenderer.setRenderScale(mProxyScale);
+        }
+    }
+
+    /**
+     * Ends an interactive adjustment. Once no render was requested for the
+     * idle delay, the preview is rendered once more at full resolution, see
+     * {@link #setInteractionIdleMillis(long)}. Must be called on the main
+     * thread.
+     */
+    public void endInteraction() {
+        if (mInteracting) {
+            mHandler.removeCallbacks(mFullResolutionRender);
+            mHandler.postDelayed(mFullResolutionRender, mInteractionIdleMillis);
+        }
+    }
+
+    public boolean isInteracting() {
+        return mInteracting;
+    }
+
+    /**
+     * @return the fraction of the output size the preview is rendered at
+     * during interactive adjustments, kept between adjustments
+     */
+    public float getProxyScale() {
+        return mProxyScale;
+    }
+
+    /**
+     * @param millis how long no render has to be requested before the preview
+     *               is rendered at full resolution again
+     */
+    public void setInteractionIdleMillis(final long millis) {
+        mInteractionIdleMillis = millis;
+    }
+
+    /**
+     * @param nanos the frame time interactive adjustments should keep to
+     */
+    public void setTargetFrameNanos(final long nanos) {
+        mTargetFrameNanos = nanos;
+    }
+
+    /**
+     * Keeps the adjustment going after a render request. Runs on the main
+     * thread, like the rest of the interaction state changes.
+     */
+    private void updateInteraction() {
+        if (!mInteracting) {
+            return;
+        }
+        updateProxyScale();
+        mHandler.removeCallbacks(mFullResolutionRender);
+        mHandler.postDelayed(mFullResolutionRender, mInteractionIdleMillis);
+    }
+
+    /**
+     * Picks the proxy scale from the last measured frame. The rendered pixels
+     * scale with the square of the scale, so do the frame times of fill bound
+     * filters.
+     */
+    private void updateProxyScale() {
+        long frameNanos = mRenderer.getLastFrameNanos();
+        if (frameNanos <= 0) {
+            return;
+        }
+        float measuredScale = mRenderer.getLastFrameScale();
+        float scale = measuredScale * (float) Math.sqrt((double) mTargetFrameNanos / frameNanos);
+        // Steps of 1/8 keep the proxy size from changing on every frame
+        scale = Math.round(scale * 8) / 8f;
+        mProxyScale = Math.max(MIN_PROXY_SCALE, Math.min(1f, scale));
+        mRenderer.setRenderScale(mProxyScale);
+    }
+
     /**
      * Sets the up camera to be connected to GPUImage to get a filtered preview.
      *
@@ -143,7 +274,7 @@ public class GPUImage {
         if (Build.VERSION.SDK_INT > Build.VERSION_CODES.GINGERBREAD_MR1) {
             setUpCameraGingerbread(camera);
         } else {
-            camera.setPreviewCallback(mRenderer);
+            mRenderer.setUpPreviewCallback(camera);
             camera.startPreview();
         }
         Rotation rotation = Rotation.NORMAL;
@@ -161,9 +292,38 @@ public class GPUImage {
         mRenderer.setRotationCamera(rotation, flipHorizontal, flipVertical);
     }
 
+    /**
+     * Chooses how camera previews set up afterwards reach the filter. By
+     * default every NV21 preview frame is delivered to a preview callback,
+     * converted and uploaded. Enabling this instead draws each frame of the
+     * camera's SurfaceTexture into a framebuffer on the GPU once, which saves
+     * the callback, the conversion and the upload but still copies the frame
+     * on the GPU; the preview callback is not installed then.
+     *
+     * @param enabled true to take previews from the SurfaceTexture
+     */
+    public void setSurfaceTexturePreviewEnabled(final boolean enabled) {
+        mSurfaceTexturePreview = enabled;
+    }
+
+    public boolean isSurfaceTexturePreviewEnabled() {
+        return mSurfaceTexturePreview;
+    }
+
+    /**
+     * Chooses whether NV21 preview frames of the callback path are converted
+     * to RGB on the GPU or the CPU, see
+     * {@link GPUImageRenderer#setPreviewConvertedOnGPU(boolean)}.
+     *
+     * @param enabled true to convert on the GPU
+     */
+    public void setPreviewConvertedOnGPU(final boolean enabled) {
+        mRenderer.setPreviewConvertedOnGPU(enabled);
+    }
+
     @TargetApi(11)
     private void setUpCameraGingerbread(final Camera camera) {
-        mRenderer.setUpSurfaceTexture(camera);
+        mRenderer.setUpSurfaceTexture(camera, mSurfaceTexturePreview);
     }
 
     /**
@@ -178,6 +338,18 @@ public class GPUImage {
         requestRender();
     }
 
+    /**
+     * Initializes the given filters in the background, so a later
+     * {@link #setFilter(GPUImageFilter)} with one of them swaps it in without
+     * compiling shaders on the render thread. Useful for the filters a picker
+     * is about to offer.
+     *
+     * @param filters the filters to prepare
+     */
+    public void prewarm(final Collection<GPUImageFilter> filters) {
+        mRenderer.prewarm(filters);
+    }
+
     /**
      * Sets the image on which the filter should be applied.
      *
@@ -279,6 +451,13 @@ public class GPUImage {
      * @return the bitmap with filter applied
      */
     public Bitmap getBitmapWithFilterApplied(final Bitmap bitmap) {
+        GPUImageFilter snapshot = snapshotFilter();
+        if (snapshot != null) {
+            // The displayed filter keeps running while the copy is rendered
+            return OffscreenRenderer.getInstance().render(bitmap, snapshot,
+                    mRenderer.isFlippedHorizontally(), mRenderer.isFlippedVertically());
+        }
+
         if (mGlSurfaceView != null) {
             mRenderer.deleteImage();
             mRenderer.runOnDraw(new Runnable() {
@@ -301,17 +480,8 @@ public class GPUImage {
             }
         }
 
-        GPUImageRenderer renderer = new GPUImageRenderer(mFilter);
-        renderer.setRotation(Rotation.NORMAL,
+        Bitmap result = OffscreenRenderer.getInstance().render(bitmap, mFilter,
                 mRenderer.isFlippedHorizontally(), mRenderer.isFlippedVertically());
-        renderer.setScaleType(mScaleType);
-        PixelBuffer buffer = new PixelBuffer(bitmap.getWidth(), bitmap.getHeight());
-        buffer.setRenderer(renderer);
-        renderer.setImageBitmap(bitmap, false);
-        Bitmap result = buffer.getBitmap();
-        mFilter.destroy();
-        renderer.deleteImage();
-        buffer.destroy();
 
         mRenderer.setFilter(mFilter);
         if (mCurrentBitmap != null) {
@@ -322,6 +492,54 @@ public class GPUImage {
         return result;
     }
 
+    /**
+     * Applies a snapshot of the current filter to the current image without
+     * blocking, see {@link #getBitmapWithFilterAppliedAsync(Bitmap, ResponseListener)}.
+     *
+     * @param listener the listener called on the main thread with the result
+     * @return the pending result, can be cancelled
+     * @throws IllegalStateException if no image was set, e.g. while showing
+     *         the camera preview
+     */
+    public Future<Bitmap> getBitmapWithFilterAppliedAsync(final ResponseListener<Bitmap> listener) {
+        Bitmap bitmap = mCurrentBitmap;
+        if (bitmap == null) {
+            throw new IllegalStateException("No image set, see setImage(Bitmap)");
+        }
+        return getBitmapWithFilterAppliedAsync(bitmap, listener);
+    }
+
+    /**
+     * Applies a snapshot of the current filter configuration to the bitmap on
+     * a separate GL context and returns immediately. Unlike
+     * {@link #getBitmapWithFilterApplied(Bitmap)} the displayed filter is
+     * neither destroyed nor paused, so the preview keeps running. Changes made
+     * to the filter after this call do not affect the result.
+     *
+     * @param bitmap   the bitmap on which the current filter should be applied
+     * @param listener the listener called on the main thread with the result,
+     *                 or null
+     * @return the pending result, can be cancelled
+     * @throws java.util.concurrent.RejectedExecutionException if too many
+     *         requests are in flight, see
+     *         {@link OffscreenRenderer#setMaxInFlightRequests(int)}
+     * @throws IllegalArgumentException if the filter cannot be copied, see
+     *         {@link GPUImageFilter#canCopy()}
+     */
+    public Future<Bitmap> getBitmapWithFilterAppliedAsync(final Bitmap bitmap,
+            final ResponseListener<Bitmap> listener) {
+        if (!mFilter.canCopy()) {
+            throw new IllegalArgumentException(mFilter.getClass().getSimpleName()
+                    + " cannot be copied, use getBitmapWithFilterApplied()");
+        }
+        return OffscreenRenderer.getInstance().submit(bitmap, mFilter.copy(),
+                mRenderer.isFlippedHorizontally(), mRenderer.isFlippedVertically(), listener);
+    }
+
+    private GPUImageFilter snapshotFilter() {
+        return mFilter.canCopy() ? mFilter.copy() : null;
+    }
+
     /**
      * Gets the images for multiple filters on a image. This can be used to
      * quickly get thumbnail images for filters. <br>
@@ -338,18 +556,11 @@ public class GPUImage {
         if (filters.isEmpty()) {
             return;
         }
-        GPUImageRenderer renderer = new GPUImageRenderer(filters.get(0));
-        renderer.setImageBitmap(bitmap, false);
-        PixelBuffer buffer = new PixelBuffer(bitmap.getWidth(), bitmap.getHeight());
-        buffer.setRenderer(renderer);
-
+        OffscreenRenderer renderer = OffscreenRenderer.getInstance();
         for (GPUImageFilter filter : filters) {
-            renderer.setFilter(filter);
-            listener.response(buffer.getBitmap());
-            filter.destroy();
+            // The input texture is uploaded once and reused for every filter
+            listener.response(renderer.render(bitmap, filter));
         }
-        renderer.deleteImage();
-        buffer.destroy();
     }
 
     /**
@@ -393,6 +604,33 @@ public class GPUImage {
         new SaveTask(bitmap, folderName, fileName, listener).execute();
     }
 
+    /**
+     * Enables or disables storing linked shader programs on disk, so filters
+     * used before start faster after the app was restarted. Only has an effect
+     * on OpenGL ES 3.0+ devices, see {@link ProgramBinaryCache}.
+     *
+     * @param enabled true to cache program binaries in the app's cache directory
+     */
+    public void setProgramBinaryCacheEnabled(final boolean enabled) {
+        if (enabled) {
+            ProgramBinaryCache.enable(mContext);
+        } else {
+            ProgramBinaryCache.setDirectory(null);
+        }
+    }
+
+    /**
+     * Frees pooled framebuffers which are currently not in use. Forward
+     * {@link android.content.ComponentCallbacks2#onTrimMemory(int)} calls of
+     * the Activity or Application here.
+     *
+     * @param level the trim memory level
+     */
+    public void onTrimMemory(final int level) {
+        FramebufferPool.trimMemory(level);
+        requestRender();
+    }
+
     /**
      * Runs the given Runnable on the OpenGL thread.
      *
@@ -85,6 +85,13 @@ public class GPUImage3x3ConvolutionFilter extends GPUImage3x3TextureSamplingFilt
         mConvolutionKernel = convolutionKernel;
     }
 
+    @Override
+    public GPUImage3x3ConvolutionFilter copy() {
+        GPUImage3x3ConvolutionFilter copy = (GPUImage3x3ConvolutionFilter) super.copy();
+        copy.mConvolutionKernel = mConvolutionKernel.clone();
+        return copy;
+    }
+
     @Override
     public void onInit() {
         super.onInit();
@@ -76,6 +76,19 @@ public class GPUImage3x3TextureSamplingFilter extends GPUImageFilter {
         super(THREE_X_THREE_TEXTURE_SAMPLING_VERTEX_SHADER, fragmentShader);
     }
 
+    /**
+     * Samples the neighbours one line size away, or the overridden texel size
+     * which is relative to the image size.
+     */
+    @Override
+    public FilterTraits getTraits() {
+        if (mHasOverriddenImageSizeFactor) {
+            return FilterTraits.neighbourhood(mTexelWidth * getImageWidth(),
+                    mTexelHeight * getImageHeight(), false, false);
+        }
+        return FilterTraits.neighbourhood(mLineSize, mLineSize, false, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
@@ -91,19 +104,21 @@ public class GPUImage3x3TextureSamplingFilter extends GPUImageFilter {
         super.onOutputSizeChanged(width, height);
         if (!mHasOverriddenImageSizeFactor) {
             setLineSize(mLineSize);
+        } else {
+            updateTexelValues();
         }
     }
 
     public void setTexelWidth(final float texelWidth) {
         mHasOverriddenImageSizeFactor = true;
         mTexelWidth = texelWidth;
-        setFloat(mUniformTexelWidthLocation, texelWidth);
+        updateTexelValues();
     }
 
     public void setTexelHeight(final float texelHeight) {
         mHasOverriddenImageSizeFactor = true;
         mTexelHeight = texelHeight;
-        setFloat(mUniformTexelHeightLocation, texelHeight);
+        updateTexelValues();
     }
 
     public void setLineSize(final float size) {
@@ -114,6 +129,12 @@ public class GPUImage3x3TextureSamplingFilter extends GPUImageFilter {
     }
 
     private void updateTexelValues() {
+        if (mHasOverriddenImageSizeFactor && mOutputWidth > 0 && mOutputHeight > 0) {
+            // Overridden sizes are relative to the image, a tile steps as far
+            setFloat(mUniformTexelWidthLocation, mTexelWidth * getImageWidth() / mOutputWidth);
+            setFloat(mUniformTexelHeightLocation, mTexelHeight * getImageHeight() / mOutputHeight);
+            return;
+        }
         setFloat(mUniformTexelWidthLocation, mTexelWidth);
         setFloat(mUniformTexelHeightLocation, mTexelHeight);
     }
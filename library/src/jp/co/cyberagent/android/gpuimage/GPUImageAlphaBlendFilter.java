@@ -43,4 +43,9 @@ public class GPUImageAlphaBlendFilter extends GPUImageMixBlendFilter{
     public GPUImageAlphaBlendFilter(float mix) {
         super(ALPHA_BLEND_FRAGMENT_SHADER, mix);
     }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, true);
+    }
 }
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies filters to many images, e.g. a whole gallery, without blocking the
+ * caller. Each job decodes its input, renders it with its filter and encodes
+ * the result. Decoding and encoding run on separate thread pools that share
+ * one {@link OffscreenRenderer}: a decode worker renders the image it decoded,
+ * then hands the result to an encode worker and decodes the next image, so
+ * decoding, rendering and encoding of consecutive images overlap and the GL
+ * state is set up only once.
+ * <br>
+ * At most the queue capacity of jobs wait at a time; {@link #submit} blocks
+ * when the queue is full, so producers cannot run ahead and fill the memory
+ * with decoded bitmaps.
+ */
+public class GPUImageBatchProcessor {
+    public static final int DEFAULT_QUEUE_CAPACITY = 8;
+
+    /**
+     * Provides the input image of a job. Called on a decode worker thread.
+     * The processor recycles the bitmap once it is rendered, so it must not
+     * be used anywhere else.
+     */
+    public interface InputSource {
+        Bitmap decode() throws IOException;
+    }
+
+    /**
+     * Receives the output image of a job. Called on an encode worker thread.
+     */
+    public interface OutputSink {
+        void encode(Bitmap bitmap) throws IOException;
+    }
+
+    private final OffscreenRenderer mRenderer;
+    private final ThreadPoolExecutor mDecodeExecutor;
+    private final ThreadPoolExecutor mEncodeExecutor;
+    private final Semaphore mQueueSlots;
+
+    private final AtomicInteger mCompletedCount = new AtomicInteger();
+    private final AtomicInteger mFailedCount = new AtomicInteger();
+    private final AtomicLong mStartTime = new AtomicLong();
+    private volatile long mLastCompletionTime;
+
+    public GPUImageBatchProcessor() {
+        this(Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors())),
+                DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param workerCount   number of threads, split between decoding and
+     *                      encoding
+     * @param queueCapacity number of jobs that may wait for a worker
+     */
+    public GPUImageBatchProcessor(final int workerCount, final int queueCapacity) {
+        this(Math.max(1, (workerCount + 1) / 2), Math.max(1, workerCount / 2), queueCapacity);
+    }
+
+    /**
+     * @param decodeCount   number of threads decoding and rendering; with 2 or
+     *                      more, decoding overlaps with rendering
+     * @param encodeCount   number of threads encoding
+     * @param queueCapacity number of jobs that may wait for a worker
+     */
+    public GPUImageBatchProcessor(final int decodeCount, final int encodeCount,
+                                  final int queueCapacity) {
+        if (decodeCount < 1 || encodeCount < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException(
+                    "decodeCount, encodeCount and queueCapacity must be positive");
+        }
+        mRenderer = new OffscreenRenderer();
+        // The slots bound the jobs in flight, the executors' own queues never fill up
+        mQueueSlots = new Semaphore(decodeCount + queueCapacity);
+        mEncodeExecutor = new ThreadPoolExecutor(encodeCount, encodeCount, 0,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new WorkerThreadFactory("encode")) {
+            @Override
+            protected void terminated() {
+                mRenderer.release();
+            }
+        };
+        mDecodeExecutor = new ThreadPoolExecutor(decodeCount, decodeCount, 0,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new WorkerThreadFactory("decode")) {
+            @Override
+            protected void terminated() {
+                // No decoded job is left to hand over
+                mEncodeExecutor.shutdown();
+            }
+        };
+    }
+
+    /**
+     * Queues a job, waiting while the queue is full.
+     *
+     * @param source the input of the job
+     * @param filter the filter to apply; a {@link GPUImageFilterGroup} for a
+     *               chain of filters. The same filter may be used by several
+     *               jobs, it is initialized for each of them on the GL thread.
+     * @param sink   the output of the job, or null if the future's result is
+     *               all that is needed
+     * @return the future result, the filtered bitmap
+     * @throws InterruptedException if interrupted while waiting for the queue
+     */
+    public Future<Bitmap> submit(final InputSource source, final GPUImageFilter filter,
+                                 final OutputSink sink) throws InterruptedException {
+        mQueueSlots.acquire();
+        mStartTime.compareAndSet(0, System.nanoTime());
+        Job job = new Job(source, filter, sink);
+        try {
+            mDecodeExecutor.execute(job.mDecode);
+        } catch (RuntimeException e) {
+            // Rejected after shutdown
+            mQueueSlots.release();
+            throw e;
+        }
+        return job;
+    }
+
+    /**
+     * Finishes the queued jobs and releases the GL context afterwards. No
+     * further jobs are accepted.
+     */
+    public void shutdown() {
+        mDecodeExecutor.shutdown();
+    }
+
+    /**
+     * Waits until all jobs finished after {@link #shutdown()}.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the unit of the timeout
+     * @return true if all jobs finished, false if the timeout elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        // The encode executor shuts down once the decode executor is done
+        return mEncodeExecutor.awaitTermination(timeout, unit);
+    }
+
+    public int getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    public int getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    /**
+     * @return completed jobs per second, from the first submitted job to the
+     * last finished one
+     */
+    public float getImagesPerSecond() {
+        long start = mStartTime.get();
+        long elapsed = mLastCompletionTime - start;
+        if (start == 0 || elapsed <= 0) {
+            return 0;
+        }
+        return mCompletedCount.get() * 1e9f / elapsed;
+    }
+
+    /**
+     * @param file the image file to decode
+     * @return a source decoding the file
+     */
+    public static InputSource fromFile(final File file) {
+        return new InputSource() {
+            @Override
+            public Bitmap decode() throws IOException {
+                Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+                if (bitmap == null) {
+                    throw new IOException("Could not decode " + file);
+                }
+                return bitmap;
+            }
+        };
+    }
+
+    /**
+     * @param file    the file to write
+     * @param format  the image format
+     * @param quality the compression quality, see {@link Bitmap#compress}
+     * @return a sink compressing the output into the file
+     */
+    public static OutputSink toFile(final File file, final CompressFormat format,
+                                    final int quality) {
+        return new OutputSink() {
+            @Override
+            public void encode(final Bitmap bitmap) throws IOException {
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+                try {
+                    if (!bitmap.compress(format, quality, out)) {
+                        throw new IOException("Could not encode " + file);
+                    }
+                } finally {
+                    out.close();
+                }
+            }
+        };
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final String mStage;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        WorkerThreadFactory(final String stage) {
+            mStage = stage;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(runnable,
+                    "GPUImageBatchProcessor " + mStage + " #" + mCount.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+
+    /**
+     * Encodes the rendered image of a job, the last stage and the result of
+     * its future.
+     */
+    private static class EncodeStage implements Callable<Bitmap> {
+        private final OutputSink mSink;
+        // Written by the decode worker before the job is handed over
+        volatile Bitmap mOutput;
+
+        EncodeStage(final OutputSink sink) {
+            mSink = sink;
+        }
+
+        @Override
+        public Bitmap call() throws IOException {
+            Bitmap output = mOutput;
+            mOutput = null;
+            if (mSink != null) {
+                mSink.encode(output);
+            }
+            return output;
+        }
+    }
+
+    /**
+     * A job's result. It is decoded and rendered by {@link #mDecode} on a
+     * decode worker, then run on an encode worker to encode the result.
+     */
+    private class Job extends FutureTask<Bitmap> {
+        private final InputSource mSource;
+        private final GPUImageFilter mFilter;
+        private final EncodeStage mEncodeStage;
+
+        final Runnable mDecode = new Runnable() {
+            @Override
+            public void run() {
+                if (isDone()) {
+                    return;
+                }
+                try {
+                    Bitmap input = mSource.decode();
+                    try {
+                        mEncodeStage.mOutput = mRenderer.render(input, mFilter);
+                    } finally {
+                        input.recycle();
+                    }
+                    mEncodeExecutor.execute(Job.this);
+                } catch (Throwable t) {
+                    setException(t);
+                }
+            }
+        };
+
+        Job(final InputSource source, final GPUImageFilter filter, final OutputSink sink) {
+            this(source, filter, new EncodeStage(sink));
+        }
+
+        private Job(final InputSource source, final GPUImageFilter filter,
+                    final EncodeStage encodeStage) {
+            super(encodeStage);
+            mSource = source;
+            mFilter = filter;
+            mEncodeStage = encodeStage;
+        }
+
+        @Override
+        protected void done() {
+            mEncodeStage.mOutput = null;
+            if (!isCancelled()) {
+                try {
+                    get();
+                    mCompletedCount.incrementAndGet();
+                } catch (ExecutionException e) {
+                    mFailedCount.incrementAndGet();
+                } catch (InterruptedException e) {
+                    // Not reached, the job is done
+                }
+            }
+            mLastCompletionTime = System.nanoTime();
+            mQueueSlots.release();
+        }
+    }
+}
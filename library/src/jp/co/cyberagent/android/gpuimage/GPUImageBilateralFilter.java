@@ -125,6 +125,11 @@ public class GPUImageBilateralFilter extends GPUImageFilter {
 		mDistanceNormalizationFactor = distanceNormalizationFactor;
 	}
 	
+	@Override
+	public FilterTraits getTraits() {
+		return FilterTraits.neighbourhood(4, 4, false, false);
+	}
+
 	@Override
 	public void onInit() {
 		super.onInit();
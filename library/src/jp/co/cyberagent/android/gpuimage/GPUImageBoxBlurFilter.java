@@ -86,6 +86,14 @@ public class GPUImageBoxBlurFilter extends GPUImageTwoPassTextureSamplingFilter
         this.blurSize = blurSize;
     }
 
+    /**
+     * Samples 3.5 steps to each side, horizontally and then vertically.
+     */
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.neighbourhood(3.5f * blurSize, 3.5f * blurSize, false, false);
+    }
+
     /**
      * A scaling for the size of the applied blur, default of 1.0
      *
@@ -93,7 +101,7 @@ public class GPUImageBoxBlurFilter extends GPUImageTwoPassTextureSamplingFilter
      */
     public void setBlurSize(float blurSize) {
         this.blurSize = blurSize;
-        runOnDraw(new Runnable() {
+        runOnDraw(TASK_INIT_TEXEL_OFFSETS, new Runnable() {
             @Override
             public void run() {
                 initTexelOffsets();
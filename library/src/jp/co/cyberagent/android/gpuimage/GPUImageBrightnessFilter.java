@@ -47,6 +47,11 @@ public class GPUImageBrightnessFilter extends GPUImageFilter {
         mBrightness = brightness;
     }
 
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
@@ -69,6 +69,18 @@ public class GPUImageBulgeDistortionFilter extends GPUImageFilter {
         mCenter = center;
     }
 
+    @Override
+    public GPUImageBulgeDistortionFilter copy() {
+        GPUImageBulgeDistortionFilter copy = (GPUImageBulgeDistortionFilter) super.copy();
+        copy.mCenter = new PointF(mCenter.x, mCenter.y);
+        return copy;
+    }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.arbitrary(false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
@@ -64,4 +64,13 @@ public class GPUImageCGAColorspaceFilter extends GPUImageFilter {
     public GPUImageCGAColorspaceFilter() {
         super(NO_FILTER_VERTEX_SHADER, CGACOLORSPACE_FRAGMENT_SHADER);
     }
+
+    /**
+     * Each pixel reads the corner of its cell of a 200x320 grid.
+     */
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.neighbourhood(mOutputWidth / 200f, mOutputHeight / 320f, false,
+                true);
+    }
 }
@@ -32,6 +32,25 @@ public class GPUImageCanvasOverlayFilter extends GPUImageFilter implements Surfa
         this.onSurfaceAvailableListener = onSurfaceAvailableListener;
     }
 
+    /*
+     * The canvas surface is handed out to the listener and can only be drawn
+     * on the context that created it.
+     */
+    @Override
+    public boolean canCopy() {
+        return false;
+    }
+
+    @Override
+    public GPUImageCanvasOverlayFilter copy() {
+        throw new UnsupportedOperationException("Canvas overlays cannot be copied");
+    }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(false, true);
+    }
+
     OnSurfaceAvailableListener onSurfaceAvailableListener;
     SurfaceTexture canvasTexture;
     Surface canvasSurface;
@@ -39,6 +58,7 @@ public class GPUImageCanvasOverlayFilter extends GPUImageFilter implements Surfa
     FloatBuffer canvasTextureBuffer;
     int[] textures = new int[1];
     boolean frameAvailable;
+    volatile int frameCount;
     int canvasProgram;
     protected int canvasAttribPosition;
     protected int canvasUniformTexture;
@@ -130,9 +150,18 @@ public class GPUImageCanvasOverlayFilter extends GPUImageFilter implements Surfa
     public void onFrameAvailable(SurfaceTexture surfaceTexture) {
         synchronized (this) {
             frameAvailable = true;
+            frameCount++;
         }
     }
 
+    /*
+     * Every frame drawn on the canvas changes the output.
+     */
+    @Override
+    public int getParameterVersion() {
+        return super.getParameterVersion() + frameCount;
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
@@ -62,6 +62,13 @@ public class GPUImageChromaKeyBlendFilter extends GPUImageTwoInputFilter {
 
     }
 
+    @Override
+    public GPUImageChromaKeyBlendFilter copy() {
+        GPUImageChromaKeyBlendFilter copy = (GPUImageChromaKeyBlendFilter) super.copy();
+        copy.mColorToReplace = mColorToReplace.clone();
+        return copy;
+    }
+
     @Override
     public void onInit() {
         super.onInit();
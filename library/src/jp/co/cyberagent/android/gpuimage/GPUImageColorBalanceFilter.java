@@ -157,6 +157,20 @@ public class GPUImageColorBalanceFilter extends GPUImageFilter {
         this.preserveLuminosity = true;
     }
 
+    @Override
+    public GPUImageColorBalanceFilter copy() {
+        GPUImageColorBalanceFilter copy = (GPUImageColorBalanceFilter) super.copy();
+        copy.showdows = showdows.clone();
+        copy.midtones = midtones.clone();
+        copy.highlights = highlights.clone();
+        return copy;
+    }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
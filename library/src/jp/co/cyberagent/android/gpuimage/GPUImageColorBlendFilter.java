@@ -63,4 +63,9 @@ public class GPUImageColorBlendFilter extends GPUImageTwoInputFilter {
     public GPUImageColorBlendFilter() {
         super(COLOR_BLEND_FRAGMENT_SHADER);
     }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, true);
+    }
 }
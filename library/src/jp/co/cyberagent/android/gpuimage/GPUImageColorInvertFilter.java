@@ -35,4 +35,9 @@ public class GPUImageColorInvertFilter extends GPUImageFilter {
     public GPUImageColorInvertFilter() {
         super(NO_FILTER_VERTEX_SHADER, COLOR_INVERT_FRAGMENT_SHADER);
     }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, false);
+    }
 }
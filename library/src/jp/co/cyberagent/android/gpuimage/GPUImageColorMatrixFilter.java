@@ -58,6 +58,23 @@ public class GPUImageColorMatrixFilter extends GPUImageFilter {
         mColorMatrix = colorMatrix;
     }
 
+    /**
+     * Alpha is preserved if the last column of the matrix keeps it.
+     */
+    @Override
+    public GPUImageColorMatrixFilter copy() {
+        GPUImageColorMatrixFilter copy = (GPUImageColorMatrixFilter) super.copy();
+        copy.mColorMatrix = mColorMatrix.clone();
+        return copy;
+    }
+
+    @Override
+    public FilterTraits getTraits() {
+        boolean preservesAlpha = mIntensity == 0 || (mColorMatrix[12] == 0
+                && mColorMatrix[13] == 0 && mColorMatrix[14] == 0 && mColorMatrix[15] == 1);
+        return FilterTraits.pointWise(preservesAlpha, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
@@ -49,6 +49,11 @@ public class GPUImageContrastFilter extends GPUImageFilter {
         mContrast = contrast;
     }
 
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
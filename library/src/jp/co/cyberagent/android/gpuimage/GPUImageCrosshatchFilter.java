@@ -82,6 +82,11 @@ public class GPUImageCrosshatchFilter extends GPUImageFilter {
         mLineWidth = lineWidth;
     }
 
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(false, true);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
@@ -33,4 +33,9 @@ public class GPUImageDifferenceBlendFilter extends GPUImageTwoInputFilter {
     public GPUImageDifferenceBlendFilter() {
         super(DIFFERENCE_BLEND_FRAGMENT_SHADER);
     }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, true);
+    }
 }
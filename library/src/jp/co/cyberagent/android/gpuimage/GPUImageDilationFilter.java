@@ -257,6 +257,8 @@ public class GPUImageDilationFilter extends GPUImageTwoPassTextureSamplingFilter
                     "}\n";
 
 
+    private final int mRadius;
+
     public GPUImageDilationFilter() {
         this(1);
     }
@@ -268,11 +270,17 @@ public class GPUImageDilationFilter extends GPUImageTwoPassTextureSamplingFilter
      * @param radius 1, 2, 3 or 4
      */
     public GPUImageDilationFilter(int radius) {
-        this(getVertexShader(radius), getFragmentShader(radius));
+        this(Math.max(1, Math.min(4, radius)), getVertexShader(radius), getFragmentShader(radius));
     }
 
-    private GPUImageDilationFilter(String vertexShader, String fragmentShader) {
+    private GPUImageDilationFilter(int radius, String vertexShader, String fragmentShader) {
         super(vertexShader, fragmentShader, vertexShader, fragmentShader);
+        mRadius = radius;
+    }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.neighbourhood(mRadius, mRadius, false, false);
     }
 
     private static String getVertexShader(int radius) {
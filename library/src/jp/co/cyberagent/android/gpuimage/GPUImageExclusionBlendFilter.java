@@ -36,4 +36,9 @@ public class GPUImageExclusionBlendFilter extends GPUImageTwoInputFilter {
     public GPUImageExclusionBlendFilter() {
         super(EXCLUSION_BLEND_FRAGMENT_SHADER);
     }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, true);
+    }
 }
@@ -47,6 +47,11 @@ public class GPUImageExposureFilter extends GPUImageFilter {
         mExposure = exposure;
     }
 
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
@@ -58,6 +58,19 @@ public class GPUImageFalseColorFilter extends GPUImageFilter {
         mSecondColor = secondColor;
     }
 
+    @Override
+    public GPUImageFalseColorFilter copy() {
+        GPUImageFalseColorFilter copy = (GPUImageFalseColorFilter) super.copy();
+        copy.mFirstColor = mFirstColor.clone();
+        copy.mSecondColor = mSecondColor.clone();
+        return copy;
+    }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
@@ -26,9 +26,8 @@ import android.util.Log;
 
 import java.io.InputStream;
 import java.nio.FloatBuffer;
-import java.util.LinkedList;
 
-public class GPUImageFilter {
+public class GPUImageFilter implements Cloneable {
     public static final String NO_FILTER_VERTEX_SHADER = "" +
             "attribute vec4 position;\n" +
             "attribute vec4 inputTextureCoordinate;\n" +
@@ -53,19 +52,25 @@ public class GPUImageFilter {
             "}";
 
 
-    protected final LinkedList<Runnable> mRunOnDraw;
+    protected GLTaskQueue mRunOnDraw;
+    protected UniformStore mUniforms = new UniformStore();
     protected String mVertexShader;
     protected String mFragmentShader;
     protected int mGLProgId;
+    private ShaderProgramCache.Program mProgram;
     protected int mGLAttribPosition;
     protected int mGLUniformTexture;
     protected int mGLUniformTextureMatrix;
     protected int mGLAttribTextureCoordinate;
     protected int mOutputWidth;
     protected int mOutputHeight;
+    private int mImageWidth;
+    private int mImageHeight;
     private boolean mIsInitialized;
     protected int mGLTexture = GLES20.GL_TEXTURE0;
     protected boolean mExternalOES;
+    private volatile int mTaskVersion;
+    private volatile Runnable mParameterListener;
     protected float[] identityMatrix = new float[]{1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
 
 
@@ -74,7 +79,7 @@ public class GPUImageFilter {
     }
 
     public GPUImageFilter(final String vertexShader, final String fragmentShader) {
-        mRunOnDraw = new LinkedList<Runnable>();
+        mRunOnDraw = new GLTaskQueue();
         mVertexShader = vertexShader;
         mFragmentShader = fragmentShader;
     }
@@ -110,19 +115,76 @@ public class GPUImageFilter {
     }
 
 
+    /**
+     * Returns an uninitialized copy of this filter with the same
+     * configuration. The copy can be initialized and drawn on another GL
+     * context, e.g. to render a snapshot offscreen, while this filter stays in
+     * use on screen. Subclasses owning GL objects or other filters override
+     * this to reset or copy them, and to copy arrays and points they may
+     * change in place. The copy samples ordinary textures even if this filter
+     * samples an external OES texture, e.g. the camera preview.
+     *
+     * @return the copy
+     * @throws UnsupportedOperationException if {@link #canCopy()} is false
+     */
+    public GPUImageFilter copy() {
+        GPUImageFilter copy;
+        try {
+            copy = (GPUImageFilter) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+        copy.mRunOnDraw = new GLTaskQueue();
+        copy.mUniforms = new UniformStore();
+        copy.mParameterListener = null;
+        copy.mIsInitialized = false;
+        copy.mProgram = null;
+        copy.mGLProgId = 0;
+        copy.identityMatrix = identityMatrix.clone();
+        if (mExternalOES) {
+            copy.mExternalOES = false;
+            copy.mFragmentShader = getExternalOESFragmentShader(mFragmentShader, false);
+        }
+        return copy;
+    }
+
+    /**
+     * @return whether {@link #copy()} is supported; false for filters tied to
+     * the context or object that created them
+     */
+    public boolean canCopy() {
+        return true;
+    }
+
+    /**
+     * Describes which input pixels this filter reads for its current
+     * parameters and output size. Built-in filters override this; a filter
+     * with custom shaders is assumed to read any pixel.
+     *
+     * @return the traits of this filter
+     */
+    public FilterTraits getTraits() {
+        if (NO_FILTER_VERTEX_SHADER.equals(mVertexShader) && NO_FILTER_FRAGMENT_SHADER.equals(
+                getExternalOESFragmentShader(mFragmentShader, false))) {
+            return FilterTraits.pointWise(true, false);
+        }
+        return FilterTraits.arbitrary(false);
+    }
+
     public final void init() {
+        mUniforms.clear();
         onInit();
         mIsInitialized = true;
         onInitialized();
     }
 
     public void onInit() {
-        mGLProgId = OpenGlUtils.loadProgram(mVertexShader, mFragmentShader);
-        mGLAttribPosition = GLES20.glGetAttribLocation(mGLProgId, "position");
-        mGLUniformTexture = GLES20.glGetUniformLocation(mGLProgId, "inputImageTexture");
-        mGLAttribTextureCoordinate = GLES20.glGetAttribLocation(mGLProgId,
-                "inputTextureCoordinate");
-        mGLUniformTextureMatrix = GLES20.glGetUniformLocation(mGLProgId, "textureMatrix");
+        mProgram = ShaderProgramCache.getInstance().obtain(mVertexShader, mFragmentShader);
+        mGLProgId = mProgram.getProgramId();
+        mGLAttribPosition = mProgram.getAttribLocation("position");
+        mGLUniformTexture = mProgram.getUniformLocation("inputImageTexture");
+        mGLAttribTextureCoordinate = mProgram.getAttribLocation("inputTextureCoordinate");
+        mGLUniformTextureMatrix = mProgram.getUniformLocation("textureMatrix");
         GLES20.glUseProgram(mGLProgId);
         mIsInitialized = true;
     }
@@ -132,7 +194,11 @@ public class GPUImageFilter {
 
     public final void destroy() {
         mIsInitialized = false;
-        GLES20.glDeleteProgram(mGLProgId);
+        mUniforms.clear();
+        if (mProgram != null) {
+            mProgram.release();
+            mProgram = null;
+        }
         onDestroy();
     }
 
@@ -144,6 +210,37 @@ public class GPUImageFilter {
         mOutputHeight = height;
     }
 
+    /**
+     * Sets the size of the whole image while the output is only a tile of it,
+     * see {@link OffscreenRenderer#renderTiled}. Parameters that scale with
+     * the image, e.g. sampling offsets given relative to the image size,
+     * follow this size so the tiles match the image drawn in one piece. Takes
+     * effect with the next {@link #onOutputSizeChanged(int, int)}.
+     *
+     * @param width  the image width, or 0 if the output is the whole image
+     * @param height the image height, or 0 if the output is the whole image
+     */
+    public void setImageSize(final int width, final int height) {
+        mImageWidth = width;
+        mImageHeight = height;
+    }
+
+    /**
+     * @return the width of the whole image, the output width unless drawing
+     * tiles
+     */
+    public int getImageWidth() {
+        return mImageWidth > 0 ? mImageWidth : mOutputWidth;
+    }
+
+    /**
+     * @return the height of the whole image, the output height unless drawing
+     * tiles
+     */
+    public int getImageHeight() {
+        return mImageHeight > 0 ? mImageHeight : mOutputHeight;
+    }
+
     public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
                        final FloatBuffer textureBuffer) {
         onDraw(textureId, cubeBuffer, textureBuffer, identityMatrix);
@@ -157,43 +254,69 @@ public class GPUImageFilter {
         if (!mIsInitialized) {
             return;
         }
-
-        cubeBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribPosition, 2, GLES20.GL_FLOAT, false, 0, cubeBuffer);
-        GLES20.glEnableVertexAttribArray(mGLAttribPosition);
-        textureBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribTextureCoordinate, 2, GLES20.GL_FLOAT, false, 0,
-                textureBuffer);
-        GLES20.glEnableVertexAttribArray(mGLAttribTextureCoordinate);
-        if (textureId != OpenGlUtils.NO_TEXTURE) {
-            GLES20.glActiveTexture(mGLTexture);
+        mProgram.beginDraw();
+        try {
+            if (!mProgram.claim(this)) {
+                invalidateUniforms();
+            }
+            mUniforms.flush();
+
+            cubeBuffer.position(0);
+            GLES20.glVertexAttribPointer(mGLAttribPosition, 2, GLES20.GL_FLOAT, false, 0, cubeBuffer);
+            GLES20.glEnableVertexAttribArray(mGLAttribPosition);
+            textureBuffer.position(0);
+            GLES20.glVertexAttribPointer(mGLAttribTextureCoordinate, 2, GLES20.GL_FLOAT, false, 0,
+                    textureBuffer);
+            GLES20.glEnableVertexAttribArray(mGLAttribTextureCoordinate);
+            if (textureId != OpenGlUtils.NO_TEXTURE) {
+                GLES20.glActiveTexture(mGLTexture);
+                if (mExternalOES) {
+                    GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+                } else {
+                    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+                }
+                GLES20.glUniform1i(mGLUniformTexture, mGLTexture - GLES20.GL_TEXTURE0);
+            }
+            GLES20.glUniformMatrix4fv(mGLUniformTextureMatrix, 1, false, textureMatrix, 0);
+            onDrawArraysPre();
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+            GLES20.glDisableVertexAttribArray(mGLAttribPosition);
+            GLES20.glDisableVertexAttribArray(mGLAttribTextureCoordinate);
             if (mExternalOES) {
-                GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+                GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
             } else {
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
             }
-            GLES20.glUniform1i(mGLUniformTexture, mGLTexture - GLES20.GL_TEXTURE0);
-        }
-        GLES20.glUniformMatrix4fv(mGLUniformTextureMatrix, 1, false, textureMatrix, 0);
-        onDrawArraysPre();
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-        GLES20.glDisableVertexAttribArray(mGLAttribPosition);
-        GLES20.glDisableVertexAttribArray(mGLAttribTextureCoordinate);
-        if (mExternalOES) {
-            GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
-        } else {
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        } finally {
+            mProgram.endDraw();
         }
     }
 
     protected void onDrawArraysPre() {
     }
 
+    /**
+     * Called before drawing when the program, which may be shared with other
+     * filters using the same shaders, was last used by another filter. All
+     * uniform values have to be uploaded again.
+     */
+    protected void invalidateUniforms() {
+        mUniforms.markAllDirty();
+    }
+
     protected void runPendingOnDrawTasks() {
-        while (!mRunOnDraw.isEmpty()) {
-            mRunOnDraw.removeFirst().run();
-            logError();
-        }
+        mRunOnDraw.runAll();
+    }
+
+    /**
+     * Runs what would otherwise be done at the start of the first draw, e.g.
+     * texture uploads queued during initialization, so the filter can be
+     * prepared ahead of time or drawn exactly once. Must be called on the GL
+     * thread after {@link #init()}.
+     */
+    void prepareForDraw() {
+        GLES20.glUseProgram(mGLProgId);
+        runPendingOnDrawTasks();
     }
 
     public boolean isInitialized() {
@@ -230,96 +353,87 @@ public class GPUImageFilter {
     }
 
     protected void setInteger(final int location, final int intValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform1i(location, intValue);
-            }
-        });
+        mUniforms.setInteger(location, intValue);
     }
 
     protected void setFloat(final int location, final float floatValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform1f(location, floatValue);
-            }
-        });
+        mUniforms.setFloat(location, floatValue);
     }
 
     protected void setFloatVec2(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform2fv(location, 1, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        mUniforms.setFloats(location, UniformStore.TYPE_VEC2, arrayValue, 2);
     }
 
     protected void setFloatVec3(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform3fv(location, 1, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        mUniforms.setFloats(location, UniformStore.TYPE_VEC3, arrayValue, 3);
     }
 
     protected void setFloatVec4(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform4fv(location, 1, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        mUniforms.setFloats(location, UniformStore.TYPE_VEC4, arrayValue, 4);
     }
 
     protected void setFloatArray(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform1fv(location, arrayValue.length, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        mUniforms.setFloats(location, UniformStore.TYPE_FLOAT_ARRAY, arrayValue, arrayValue.length);
     }
 
     protected void setPoint(final int location, final PointF point) {
-        runOnDraw(new Runnable() {
-
-            @Override
-            public void run() {
-                float[] vec2 = new float[2];
-                vec2[0] = point.x;
-                vec2[1] = point.y;
-                GLES20.glUniform2fv(location, 1, vec2, 0);
-            }
-        });
+        mUniforms.setFloatVec2(location, point.x, point.y);
     }
 
     protected void setUniformMatrix3f(final int location, final float[] matrix) {
-        runOnDraw(new Runnable() {
-
-            @Override
-            public void run() {
-                GLES20.glUniformMatrix3fv(location, 1, false, matrix, 0);
-            }
-        });
+        mUniforms.setFloats(location, UniformStore.TYPE_MAT3, matrix, 9);
     }
 
     protected void setUniformMatrix4f(final int location, final float[] matrix) {
-        runOnDraw(new Runnable() {
-
-            @Override
-            public void run() {
-                GLES20.glUniformMatrix4fv(location, 1, false, matrix, 0);
-            }
-        });
+        mUniforms.setFloats(location, UniformStore.TYPE_MAT4, matrix, 16);
     }
 
     public void runOnDraw(final Runnable runnable) {
-        synchronized (mRunOnDraw) {
-            mRunOnDraw.addLast(runnable);
-        }
+        mTaskVersion++;
+        mRunOnDraw.post(runnable);
+    }
+
+    /**
+     * Runs the given Runnable on the next draw, replacing a still pending
+     * Runnable that was posted with the same key.
+     *
+     * @param key      identifies Runnables that supersede each other
+     * @param runnable the Runnable to run on the OpenGL thread
+     */
+    public void runOnDraw(final Object key, final Runnable runnable) {
+        mTaskVersion++;
+        mRunOnDraw.post(key, runnable);
+    }
+
+    /**
+     * Returns a number that changes whenever something that may affect the
+     * output of this filter changes: a uniform value, or a task queued with
+     * {@link #runOnDraw(Runnable)}, e.g. a texture upload.
+     * {@link GPUImageFilterGroup} compares it to find the passes it has to
+     * draw again.
+     *
+     * @return the current version of the filter's parameters
+     */
+    public int getParameterVersion() {
+        return mUniforms.getVersion() + mTaskVersion;
+    }
+
+    /**
+     * Sets a listener run whenever {@link #getParameterVersion()} changes, on
+     * the thread making the change, e.g. so a renderer that only draws when
+     * something changed can wake up instead of polling. A filter has one
+     * listener; copies start without one.
+     *
+     * @param listener the listener, or null to remove it
+     */
+    public void setParameterListener(final Runnable listener) {
+        mParameterListener = listener;
+        mUniforms.setChangeListener(listener);
+        mRunOnDraw.setPostListener(listener);
+    }
+
+    Runnable getParameterListener() {
+        return mParameterListener;
     }
 
     public static String loadShader(String file, Context context) {
@@ -24,7 +24,10 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
 import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_NO_ROTATION;
@@ -32,17 +35,38 @@ import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE
 /**
  * Resembles a filter that consists of multiple filters applied after each
  * other.
+ * <br>
+ * With {@link #setIntermediateCacheLimit(long)} the group keeps the outputs of
+ * its passes between draws and starts drawing at the first pass whose input or
+ * parameters changed, so adjusting the last filter of a chain only draws the
+ * end of the chain again.
  */
 public class GPUImageFilterGroup extends GPUImageFilter {
 
     protected List<GPUImageFilter> mFilters;
     protected List<GPUImageFilter> mMergedFilters;
-    private int[] mFrameBuffers;
-    private int[] mFrameBufferTextures;
+    private List<GPUImageFilter> mPasses;
+    private boolean mFusionEnabled;
+    private FramebufferPool mFramebufferPool;
+    private int[] mTargetFramebuffer = new int[1];
 
-    private final FloatBuffer mGLCubeBuffer;
-    private final FloatBuffer mGLTextureBuffer;
-    private final FloatBuffer mGLTextureFlipBuffer;
+    private FloatBuffer mGLCubeBuffer;
+    private FloatBuffer mGLTextureBuffer;
+    private FloatBuffer mGLTextureFlipBuffer;
+
+    // Outputs of the passes kept between draws, only touched on the GL thread
+    private long mCacheMaxBytes;
+    private List<GPUImageFilter> mCachedPasses;
+    private FramebufferPool.Framebuffer[] mCachedOutputs;
+    private int[] mCachedVersions;
+    private int mCacheWidth;
+    private int mCacheHeight;
+    private int mRetainFrom;
+    private int mCachedInputTexture = OpenGlUtils.NO_TEXTURE;
+    private float[] mCachedInputCoordinates = new float[16];
+    private float[] mInputCoordinates = new float[16];
+    private volatile boolean mInputChanged = true;
+    private int mDrawnPassCount;
 
     /**
      * Instantiates a new GPUImageFilterGroup with no filters.
@@ -87,6 +111,142 @@ public class GPUImageFilterGroup extends GPUImageFilter {
         }
         mFilters.add(aFilter);
         updateMergedFilters();
+        Runnable listener = getParameterListener();
+        if (listener != null) {
+            aFilter.setParameterListener(listener);
+            listener.run();
+        }
+    }
+
+    /*
+     * Changes of the filters of the group change the group's output as well.
+     */
+    @Override
+    public void setParameterListener(final Runnable listener) {
+        super.setParameterListener(listener);
+        for (GPUImageFilter filter : mFilters) {
+            filter.setParameterListener(listener);
+        }
+    }
+
+    @Override
+    public boolean canCopy() {
+        for (GPUImageFilter filter : mFilters) {
+            if (!filter.canCopy()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Copies the filters of the group as well.
+     */
+    @Override
+    public GPUImageFilterGroup copy() {
+        GPUImageFilterGroup copy = (GPUImageFilterGroup) super.copy();
+        copy.mFilters = new ArrayList<GPUImageFilter>(mFilters.size());
+        // A filter added twice stays one filter in the copy
+        Map<GPUImageFilter, GPUImageFilter> copies =
+                new IdentityHashMap<GPUImageFilter, GPUImageFilter>();
+        for (GPUImageFilter filter : mFilters) {
+            GPUImageFilter filterCopy = copies.get(filter);
+            if (filterCopy == null) {
+                filterCopy = filter.copy();
+                copies.put(filter, filterCopy);
+            }
+            copy.mFilters.add(filterCopy);
+        }
+        copy.mMergedFilters = null;
+        copy.mPasses = null;
+        copy.mFramebufferPool = null;
+        copy.mTargetFramebuffer = new int[1];
+        // The copy may draw on another thread, give it its own buffer positions
+        copy.mGLCubeBuffer = mGLCubeBuffer.duplicate();
+        copy.mGLTextureBuffer = mGLTextureBuffer.duplicate();
+        copy.mGLTextureFlipBuffer = mGLTextureFlipBuffer.duplicate();
+        copy.mCachedPasses = null;
+        copy.mCachedOutputs = null;
+        copy.mCachedVersions = null;
+        copy.mCachedInputCoordinates = new float[16];
+        copy.mInputCoordinates = new float[16];
+        copy.mInputChanged = true;
+        copy.updateMergedFilters();
+        return copy;
+    }
+
+    /**
+     * Combines the traits of the filters in the order they are applied.
+     */
+    @Override
+    public FilterTraits getTraits() {
+        FilterTraits traits = FilterTraits.pointWise(true, false);
+        for (GPUImageFilter filter : mFilters) {
+            traits = traits.then(filter.getTraits());
+        }
+        return traits;
+    }
+
+    @Override
+    public int getParameterVersion() {
+        int version = super.getParameterVersion();
+        for (GPUImageFilter filter : mFilters) {
+            version += filter.getParameterVersion();
+        }
+        return version;
+    }
+
+    /**
+     * Enables or disables fusing runs of point-wise filters (color adjustments
+     * and the like) into single passes, see {@link GPUImageFusedFilter}. Fusion
+     * saves a full screen pass and an intermediate framebuffer per fused
+     * filter. Disabled by default.
+     *
+     * @param enabled true to fuse point-wise filters
+     */
+    public void setFusionEnabled(final boolean enabled) {
+        mFusionEnabled = enabled;
+        updateMergedFilters();
+    }
+
+    public boolean isFusionEnabled() {
+        return mFusionEnabled;
+    }
+
+    /**
+     * Lets the group keep the outputs of its passes between draws, up to the
+     * given number of bytes. A draw then starts at the first pass whose
+     * parameters changed, reading the kept output of the pass before it, e.g.
+     * while a slider adjusts one filter of an editor's chain. The passes
+     * closest to the end of the chain are kept first, the last pass is always
+     * drawn. Kept framebuffers stay locked in the {@link FramebufferPool}.
+     * Disabled by default.
+     *
+     * @param maxBytes the bytes the kept outputs may occupy, 0 to disable
+     */
+    public void setIntermediateCacheLimit(final long maxBytes) {
+        mCacheMaxBytes = Math.max(0, maxBytes);
+    }
+
+    public long getIntermediateCacheLimit() {
+        return mCacheMaxBytes;
+    }
+
+    /**
+     * Tells the group that the content of its input texture changed while the
+     * texture stayed the same, e.g. after a new image was uploaded into it, so
+     * the kept outputs are drawn again.
+     */
+    public void invalidateInput() {
+        mInputChanged = true;
+    }
+
+    /**
+     * @return number of passes drawn by the last draw, less than the number of
+     * passes if kept outputs were reused
+     */
+    public int getDrawnPassCount() {
+        return mDrawnPassCount;
     }
 
     /*
@@ -96,6 +256,10 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     @Override
     public void onInit() {
         super.onInit();
+        // Looked up on the first draw, the filter may be initialized on another
+        // context sharing this one's programs and textures but not framebuffers
+        mFramebufferPool = null;
+        releaseCache();
         for (GPUImageFilter filter : mFilters) {
             filter.init();
         }
@@ -107,24 +271,20 @@ public class GPUImageFilterGroup extends GPUImageFilter {
      */
     @Override
     public void onDestroy() {
-        destroyFramebuffers();
+        releaseCache();
+        if (mPasses != null) {
+            for (GPUImageFilter pass : mPasses) {
+                if (pass instanceof GPUImageFusedFilter && pass.isInitialized()) {
+                    pass.destroy();
+                }
+            }
+        }
         for (GPUImageFilter filter : mFilters) {
             filter.destroy();
         }
         super.onDestroy();
     }
 
-    private void destroyFramebuffers() {
-        if (mFrameBufferTextures != null) {
-            GLES20.glDeleteTextures(mFrameBufferTextures.length, mFrameBufferTextures, 0);
-            mFrameBufferTextures = null;
-        }
-        if (mFrameBuffers != null) {
-            GLES20.glDeleteFramebuffers(mFrameBuffers.length, mFrameBuffers, 0);
-            mFrameBuffers = null;
-        }
-    }
-
     /*
      * (non-Javadoc)
      * @see
@@ -134,45 +294,29 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     @Override
     public void onOutputSizeChanged(final int width, final int height) {
         super.onOutputSizeChanged(width, height);
-        if (mFrameBuffers != null) {
-            destroyFramebuffers();
-        }
 
         int size = mFilters.size();
         for (int i = 0; i < size; i++) {
             mFilters.get(i).onOutputSizeChanged(width, height);
         }
-
-        if (mMergedFilters != null && mMergedFilters.size() > 0) {
-            size = mMergedFilters.size();
-            mFrameBuffers = new int[size - 1];
-            mFrameBufferTextures = new int[size - 1];
-
-            for (int i = 0; i < size - 1; i++) {
-                GLES20.glGenFramebuffers(1, mFrameBuffers, i);
-                GLES20.glGenTextures(1, mFrameBufferTextures, i);
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFrameBufferTextures[i]);
-                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
-                        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
-                GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                        GLES20.GL_TEXTURE_2D, mFrameBufferTextures[i], 0);
-
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (mPasses != null) {
+            for (GPUImageFilter pass : mPasses) {
+                if (pass instanceof GPUImageFusedFilter) {
+                    pass.onOutputSizeChanged(width, height);
+                }
             }
         }
     }
 
+    @Override
+    public void setImageSize(final int width, final int height) {
+        super.setImageSize(width, height);
+        // Fused passes are point-wise and do not depend on the image size
+        for (GPUImageFilter filter : mFilters) {
+            filter.setImageSize(width, height);
+        }
+    }
+
     /*
      * (non-Javadoc)
      * @see jp.co.cyberagent.android.gpuimage.GPUImageFilter#onDraw(int,
@@ -183,35 +327,175 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
                        final FloatBuffer textureBuffer) {
         runPendingOnDrawTasks();
-        if (!isInitialized() || mFrameBuffers == null || mFrameBufferTextures == null) {
+        List<GPUImageFilter> passes = mPasses;
+        if (!isInitialized() || passes == null) {
             return;
         }
-        if (mMergedFilters != null) {
-            int size = mMergedFilters.size();
-            int previousTexture = textureId;
-            for (int i = 0; i < size; i++) {
-                GPUImageFilter filter = mMergedFilters.get(i);
-                boolean isNotLast = i < size - 1;
-                if (isNotLast) {
-                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
-                    GLES20.glClearColor(0, 0, 0, 0);
+        int size = passes.size();
+        if (size > 1 && (mOutputWidth == 0 || mOutputHeight == 0)) {
+            return;
+        }
+        if (mFramebufferPool == null) {
+            mFramebufferPool = FramebufferPool.getInstance();
+        }
+        if (size > 1) {
+            // The last pass renders to whatever the caller bound, not necessarily 0
+            GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mTargetFramebuffer, 0);
+        }
+        int start = 0;
+        boolean caching = mCacheMaxBytes > 0 && size > 1;
+        if (caching) {
+            start = prepareCache(passes, textureId, cubeBuffer, textureBuffer);
+        } else if (mCachedOutputs != null) {
+            releaseCache();
+        }
+        mDrawnPassCount = size - start;
+        // Intermediate results ping-pong between two pooled framebuffers: the
+        // input of a pass is handed back right after the pass read it. Kept
+        // outputs stay locked instead.
+        int previousTexture = start == 0 ? textureId : mCachedOutputs[start - 1].getTextureId();
+        FramebufferPool.Framebuffer previousFramebuffer = null;
+        for (int i = start; i < size; i++) {
+            GPUImageFilter filter = passes.get(i);
+            if (filter instanceof GPUImageFusedFilter && !filter.isInitialized()) {
+                filter.init();
+                filter.onOutputSizeChanged(mOutputWidth, mOutputHeight);
+            }
+            boolean isNotLast = i < size - 1;
+            boolean keep = caching && isNotLast && i >= mRetainFrom;
+            FramebufferPool.Framebuffer framebuffer = null;
+            if (keep) {
+                if (mCachedOutputs[i] == null) {
+                    mCachedOutputs[i] = mFramebufferPool.obtain(mOutputWidth, mOutputHeight);
                 }
+                framebuffer = mCachedOutputs[i];
+            } else if (isNotLast) {
+                framebuffer = mFramebufferPool.obtain(mOutputWidth, mOutputHeight);
+            }
+            if (isNotLast) {
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer.getFramebufferId());
+                GLES20.glClearColor(0, 0, 0, 0);
+            }
+            if (caching) {
+                mCachedVersions[i] = filter.getParameterVersion();
+            }
+
+            if (i == 0) {
+                filter.onDraw(previousTexture, cubeBuffer, textureBuffer);
+            } else if (i == size - 1) {
+                filter.onDraw(previousTexture, mGLCubeBuffer, (size % 2 == 0) ? mGLTextureFlipBuffer : mGLTextureBuffer);
+            } else {
+                filter.onDraw(previousTexture, mGLCubeBuffer, mGLTextureBuffer);
+            }
+
+            if (previousFramebuffer != null) {
+                previousFramebuffer.unlock();
+                previousFramebuffer = null;
+            }
+            if (isNotLast) {
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mTargetFramebuffer[0]);
+                previousTexture = framebuffer.getTextureId();
+                previousFramebuffer = keep ? null : framebuffer;
+            }
+        }
+    }
+
+    /**
+     * Updates the kept outputs for this draw and finds the first pass to draw:
+     * the one after the last kept output whose input and parameters, and
+     * those of all passes before it, did not change since it was drawn.
+     */
+    private int prepareCache(final List<GPUImageFilter> passes, final int textureId,
+                             final FloatBuffer cubeBuffer, final FloatBuffer textureBuffer) {
+        int size = passes.size();
+        if (passes != mCachedPasses || mOutputWidth != mCacheWidth
+                || mOutputHeight != mCacheHeight) {
+            releaseCache();
+            mCachedPasses = passes;
+            mCacheWidth = mOutputWidth;
+            mCacheHeight = mOutputHeight;
+            mCachedOutputs = new FramebufferPool.Framebuffer[size];
+            mCachedVersions = new int[size];
+            mInputChanged = true;
+        }
+        long bytesPerOutput = 4L * mOutputWidth * mOutputHeight;
+        int kept = (int) Math.min(size - 1, mCacheMaxBytes / bytesPerOutput);
+        mRetainFrom = size - 1 - kept;
+        for (int i = 0; i < mRetainFrom; i++) {
+            if (mCachedOutputs[i] != null) {
+                mCachedOutputs[i].unlock();
+                mCachedOutputs[i] = null;
+            }
+        }
+
+        readCoordinates(cubeBuffer, mInputCoordinates, 0);
+        readCoordinates(textureBuffer, mInputCoordinates, 8);
+        boolean inputChanged = mInputChanged || textureId != mCachedInputTexture
+                || !Arrays.equals(mInputCoordinates, mCachedInputCoordinates);
+        mInputChanged = false;
+        mCachedInputTexture = textureId;
+        System.arraycopy(mInputCoordinates, 0, mCachedInputCoordinates, 0,
+                mInputCoordinates.length);
+        if (inputChanged) {
+            return 0;
+        }
+
+        int firstDirty = size - 1;
+        for (int i = 0; i < size - 1; i++) {
+            if (passes.get(i).getParameterVersion() != mCachedVersions[i]) {
+                firstDirty = i;
+                break;
+            }
+        }
+        for (int i = firstDirty - 1; i >= mRetainFrom; i--) {
+            if (mCachedOutputs[i] != null) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
 
-                if (i == 0) {
-                    filter.onDraw(previousTexture, cubeBuffer, textureBuffer);
-                } else if (i == size - 1) {
-                    filter.onDraw(previousTexture, mGLCubeBuffer, (size % 2 == 0) ? mGLTextureFlipBuffer : mGLTextureBuffer);
-                } else {
-                    filter.onDraw(previousTexture, mGLCubeBuffer, mGLTextureBuffer);
+    private static void readCoordinates(final FloatBuffer buffer, final float[] coordinates,
+                                        final int offset) {
+        for (int i = 0; i < 8; i++) {
+            coordinates[offset + i] = i < buffer.limit() ? buffer.get(i) : 0;
+        }
+    }
+
+    private void releaseCache() {
+        if (mCachedOutputs != null) {
+            for (FramebufferPool.Framebuffer output : mCachedOutputs) {
+                if (output != null) {
+                    output.unlock();
                 }
+            }
+        }
+        mCachedOutputs = null;
+        mCachedVersions = null;
+        mCachedPasses = null;
+        mInputChanged = true;
+    }
 
-                if (isNotLast) {
-                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-                    previousTexture = mFrameBufferTextures[i];
+    /*
+     * Also prepares the filters of the group and initializes fused passes.
+     */
+    @Override
+    void prepareForDraw() {
+        runPendingOnDrawTasks();
+        for (GPUImageFilter filter : mFilters) {
+            if (filter.isInitialized()) {
+                filter.prepareForDraw();
+            }
+        }
+        List<GPUImageFilter> passes = mPasses;
+        if (passes != null) {
+            for (GPUImageFilter pass : passes) {
+                if (pass instanceof GPUImageFusedFilter && !pass.isInitialized()) {
+                    pass.init();
                 }
             }
         }
-     }
+    }
 
     /**
      * Gets the filters.
@@ -249,5 +533,53 @@ public class GPUImageFilterGroup extends GPUImageFilter {
             }
             mMergedFilters.add(filter);
         }
+        updatePasses();
+    }
+
+    /**
+     * Rebuilds the list of passes drawn by {@link #onDraw(int, FloatBuffer, FloatBuffer)}.
+     * Without fusion these are the merged filters, with fusion every run of
+     * fusable filters is replaced by one {@link GPUImageFusedFilter}.
+     */
+    private void updatePasses() {
+        final List<GPUImageFilter> oldPasses = mPasses;
+        List<GPUImageFilter> passes = new ArrayList<GPUImageFilter>();
+        if (!mFusionEnabled) {
+            passes.addAll(mMergedFilters);
+        } else {
+            List<GPUImageFilter> run = new ArrayList<GPUImageFilter>();
+            for (GPUImageFilter filter : mMergedFilters) {
+                if (GPUImageFusedFilter.canFuse(filter)) {
+                    run.add(filter);
+                    continue;
+                }
+                addRun(passes, run);
+                passes.add(filter);
+            }
+            addRun(passes, run);
+        }
+        mPasses = passes;
+
+        if (oldPasses != null) {
+            runOnDraw(new Runnable() {
+                @Override
+                public void run() {
+                    for (GPUImageFilter pass : oldPasses) {
+                        if (pass instanceof GPUImageFusedFilter && pass.isInitialized()) {
+                            pass.destroy();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private static void addRun(final List<GPUImageFilter> passes, final List<GPUImageFilter> run) {
+        if (run.size() > 1) {
+            passes.add(new GPUImageFusedFilter(run));
+        } else {
+            passes.addAll(run);
+        }
+        run.clear();
     }
 }
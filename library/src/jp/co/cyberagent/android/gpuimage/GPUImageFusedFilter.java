@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+import jp.co.cyberagent.android.gpuimage.util.ShaderFuser;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies a run of point-wise filters in a single pass. The fragment shaders
+ * of the members are combined by {@link ShaderFuser}; the members themselves
+ * stay initialized and keep receiving their parameter changes, which are
+ * copied into the fused program before each draw.
+ * <br>
+ * Used by {@link GPUImageFilterGroup} when fusion is enabled, see
+ * {@link GPUImageFilterGroup#setFusionEnabled(boolean)}.
+ */
+public class GPUImageFusedFilter extends GPUImageFilter {
+
+    private final List<GPUImageFilter> mMembers;
+    private int[][] mMemberLocations;
+    private int[][] mFusedLocations;
+    private int[] mMemberPrograms;
+
+    public GPUImageFusedFilter(final List<GPUImageFilter> members) {
+        super(NO_FILTER_VERTEX_SHADER, fuse(members));
+        mMembers = new ArrayList<GPUImageFilter>(members);
+    }
+
+    /**
+     * @param filter the filter to check
+     * @return true if the filter only transforms each pixel's color on its own
+     * and can therefore be part of a fused filter
+     */
+    public static boolean canFuse(final GPUImageFilter filter) {
+        if (filter instanceof GPUImageFilterGroup || filter instanceof GPUImageFusedFilter
+                || filter.mExternalOES || !NO_FILTER_VERTEX_SHADER.equals(filter.mVertexShader)) {
+            return false;
+        }
+        // Position dependent filters would see the texture coordinates of the
+        // first pass, which may be rotated or cropped, instead of their own
+        FilterTraits traits = filter.getTraits();
+        if (!traits.isPointWise() || traits.isPositionDependent()) {
+            return false;
+        }
+        if (overrides(filter.getClass(), "onDraw", int.class, FloatBuffer.class, FloatBuffer.class)
+                || overrides(filter.getClass(), "onDraw", int.class, FloatBuffer.class,
+                FloatBuffer.class, float[].class)
+                || overrides(filter.getClass(), "onDrawArraysPre")) {
+            return false;
+        }
+        return ShaderFuser.isFusable(filter.mFragmentShader);
+    }
+
+    /*
+     * Fused filters belong to the group that created them, copying the group
+     * creates new ones.
+     */
+    @Override
+    public boolean canCopy() {
+        return false;
+    }
+
+    @Override
+    public GPUImageFusedFilter copy() {
+        throw new UnsupportedOperationException("Copy the group instead");
+    }
+
+    @Override
+    public FilterTraits getTraits() {
+        FilterTraits traits = FilterTraits.pointWise(true, false);
+        for (GPUImageFilter member : mMembers) {
+            traits = traits.then(member.getTraits());
+        }
+        return traits;
+    }
+
+    @Override
+    public int getParameterVersion() {
+        int version = super.getParameterVersion();
+        for (GPUImageFilter member : mMembers) {
+            version += member.getParameterVersion();
+        }
+        return version;
+    }
+
+    public List<GPUImageFilter> getMembers() {
+        return mMembers;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mapUniforms();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // Values consumed by this program never reached the members' own programs
+        for (GPUImageFilter member : mMembers) {
+            member.mUniforms.markAllDirty();
+        }
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer, final float[] textureMatrix) {
+        for (GPUImageFilter member : mMembers) {
+            if (member.isInitialized()) {
+                GLES20.glUseProgram(member.getProgram());
+                member.runPendingOnDrawTasks();
+            }
+        }
+        for (int i = 0; i < mMembers.size(); i++) {
+            if (mMembers.get(i).getProgram() != mMemberPrograms[i]) {
+                // A member reloaded its shaders, its uniform locations changed
+                mapUniforms();
+                break;
+            }
+        }
+        super.onDraw(textureId, cubeBuffer, textureBuffer, textureMatrix);
+    }
+
+    @Override
+    protected void invalidateUniforms() {
+        super.invalidateUniforms();
+        for (GPUImageFilter member : mMembers) {
+            member.mUniforms.markAllDirty();
+        }
+    }
+
+    @Override
+    protected void onDrawArraysPre() {
+        for (int i = 0; i < mMembers.size(); i++) {
+            mMembers.get(i).mUniforms.flush(mMemberLocations[i], mFusedLocations[i]);
+        }
+    }
+
+    /**
+     * Maps the uniform locations of every member program to the locations of
+     * the prefixed uniforms in the fused program.
+     */
+    private void mapUniforms() {
+        int count = mMembers.size();
+        mMemberLocations = new int[count][];
+        mFusedLocations = new int[count][];
+        mMemberPrograms = new int[count];
+        int[] uniformCount = new int[1];
+        int[] length = new int[1];
+        int[] size = new int[1];
+        int[] type = new int[1];
+        byte[] name = new byte[256];
+        for (int i = 0; i < count; i++) {
+            GPUImageFilter member = mMembers.get(i);
+            int program = member.getProgram();
+            mMemberPrograms[i] = program;
+            GLES20.glGetProgramiv(program, GLES20.GL_ACTIVE_UNIFORMS, uniformCount, 0);
+            int[] memberLocations = new int[uniformCount[0]];
+            int[] fusedLocations = new int[uniformCount[0]];
+            String prefix = ShaderFuser.getPrefix(i);
+            for (int j = 0; j < uniformCount[0]; j++) {
+                GLES20.glGetActiveUniform(program, j, name.length, length, 0, size, 0, type, 0,
+                        name, 0);
+                String uniform = new String(name, 0, length[0]);
+                memberLocations[j] = GLES20.glGetUniformLocation(program, uniform);
+                if (uniform.equals("inputImageTexture") || uniform.equals("textureMatrix")) {
+                    fusedLocations[j] = -1;
+                } else {
+                    fusedLocations[j] = GLES20.glGetUniformLocation(mGLProgId, prefix + uniform);
+                }
+            }
+            mMemberLocations[i] = memberLocations;
+            mFusedLocations[i] = fusedLocations;
+            // The fused program starts without any values, upload all of them
+            member.mUniforms.markAllDirty();
+        }
+    }
+
+    private static String fuse(final List<GPUImageFilter> members) {
+        List<String> fragmentShaders = new ArrayList<String>();
+        for (GPUImageFilter member : members) {
+            fragmentShaders.add(member.mFragmentShader);
+        }
+        return ShaderFuser.fuse(fragmentShaders);
+    }
+
+    private static boolean overrides(Class<?> type, final String method,
+                                     final Class<?>... parameterTypes) {
+        while (type != GPUImageFilter.class) {
+            try {
+                type.getDeclaredMethod(method, parameterTypes);
+                return true;
+            } catch (NoSuchMethodException e) {
+                type = type.getSuperclass();
+            }
+        }
+        return false;
+    }
+}
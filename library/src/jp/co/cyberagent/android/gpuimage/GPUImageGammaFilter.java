@@ -47,6 +47,11 @@ public class GPUImageGammaFilter extends GPUImageFilter {
         mGamma = gamma;
     }
 
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
@@ -89,14 +89,39 @@ public class GPUImageGaussianBlurFilter extends GPUImageTwoPassTextureSamplingFi
         mBlurSize = blurSize;
     }
 
+    /**
+     * Samples 4 steps to each side. The vertex shader swaps the offsets, so
+     * the first pass steps blurSize / width vertically and the second one
+     * blurSize / height horizontally; the radii depend on the aspect ratio of
+     * the image.
+     */
+    @Override
+    public FilterTraits getTraits() {
+        float aspectRatio = getImageWidth() > 0 && getImageHeight() > 0
+                ? (float) getImageWidth() / getImageHeight() : 1f;
+        return FilterTraits.neighbourhood(4 * mBlurSize * aspectRatio, 4 * mBlurSize / aspectRatio,
+                true, false);
+    }
+
     @Override
     public float getVerticalTexelOffsetRatio() {
-        return mBlurSize;
+        return mBlurSize / getTileAspectRatioCorrection();
     }
 
     @Override
     public float getHorizontalTexelOffsetRatio() {
-        return mBlurSize;
+        return mBlurSize * getTileAspectRatioCorrection();
+    }
+
+    /**
+     * The swapped offsets scale with the aspect ratio of the output. A tile
+     * is corrected to step as far as the whole image does.
+     */
+    private float getTileAspectRatioCorrection() {
+        if (mOutputWidth == 0 || mOutputHeight == 0) {
+            return 1f;
+        }
+        return (float) getImageHeight() * mOutputWidth / (getImageWidth() * mOutputHeight);
     }
 
     /**
@@ -106,7 +131,7 @@ public class GPUImageGaussianBlurFilter extends GPUImageTwoPassTextureSamplingFi
      */
     public void setBlurSize(float blurSize) {
         mBlurSize = blurSize;
-        runOnDraw(new Runnable() {
+        runOnDraw(TASK_INIT_TEXEL_OFFSETS, new Runnable() {
             @Override
             public void run() {
                 initTexelOffsets();
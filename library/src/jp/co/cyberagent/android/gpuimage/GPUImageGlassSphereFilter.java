@@ -81,6 +81,18 @@ public class GPUImageGlassSphereFilter extends GPUImageFilter {
         mRefractiveIndex = refractiveIndex;
     }
 
+    @Override
+    public GPUImageGlassSphereFilter copy() {
+        GPUImageGlassSphereFilter copy = (GPUImageGlassSphereFilter) super.copy();
+        copy.mCenter = new PointF(mCenter.x, mCenter.y);
+        return copy;
+    }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.arbitrary(false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
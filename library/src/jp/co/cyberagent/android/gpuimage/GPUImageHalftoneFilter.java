@@ -41,6 +41,17 @@ public class GPUImageHalftoneFilter extends GPUImageFilter {
         mFractionalWidthOfAPixel = fractionalWidthOfAPixel;
     }
 
+    /**
+     * Each pixel reads the center of its dot cell, up to half a cell away.
+     */
+    @Override
+    public FilterTraits getTraits() {
+        float cellWidth = mFractionalWidthOfAPixel * mOutputWidth;
+        float cellHeight = mAspectRatio > 0
+                ? mFractionalWidthOfAPixel / mAspectRatio * mOutputHeight : cellWidth;
+        return FilterTraits.neighbourhood(cellWidth / 2, cellHeight / 2, false, true);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
@@ -61,6 +61,11 @@ public class GPUImageHazeFilter extends GPUImageFilter {
         mSlope = slope;
     }
 
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(false, true);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
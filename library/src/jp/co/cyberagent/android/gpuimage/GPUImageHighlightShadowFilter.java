@@ -60,6 +60,11 @@ public class GPUImageHighlightShadowFilter extends GPUImageFilter {
         mShadows = shadows;
     }
 
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
@@ -113,4 +113,9 @@ public class GPUImageHueBlendFilter extends GPUImageTwoInputFilter {
     public GPUImageHueBlendFilter() {
         super(HUE_BLEND_FRAGMENT_SHADER);
     }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, true);
+    }
 }
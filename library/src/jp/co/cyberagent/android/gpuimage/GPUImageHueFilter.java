@@ -76,6 +76,11 @@ public class GPUImageHueFilter extends GPUImageFilter {
         mHue = hue;
     }
 
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
@@ -29,11 +29,10 @@ public class GPUImageKuwaharaFilter extends GPUImageFilter {
             "varying highp vec2 textureCoordinate;\n" +
             "uniform sampler2D inputImageTexture;\n" +
             "uniform int radius;\n" +
+            "uniform highp vec2 src_size;\n" +
             "\n" +
             "precision highp float;\n" +
             "\n" +
-            "const vec2 src_size = vec2 (1.0 / 768.0, 1.0 / 1024.0);\n" +
-            "\n" +
             "void main (void) \n" +
             "{\n" +
             "vec2 uv = textureCoordinate;\n" +
@@ -116,6 +115,7 @@ public class GPUImageKuwaharaFilter extends GPUImageFilter {
 
     private int mRadius;
     private int mRadiusLocation;
+    private int mSrcSizeLocation;
 
     public GPUImageKuwaharaFilter() {
         this(3);
@@ -126,16 +126,37 @@ public class GPUImageKuwaharaFilter extends GPUImageFilter {
         mRadius = radius;
     }
 
+    /**
+     * The sample step is fixed for a 768x1024 image, so the radius in texels
+     * scales with the image size.
+     */
+    @Override
+    public FilterTraits getTraits() {
+        if (getImageWidth() == 0 || getImageHeight() == 0) {
+            return FilterTraits.neighbourhood(mRadius, mRadius, false, false);
+        }
+        return FilterTraits.neighbourhood(mRadius * getImageWidth() / 768f,
+                mRadius * getImageHeight() / 1024f, false, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
         mRadiusLocation = GLES20.glGetUniformLocation(getProgram(), "radius");
+        mSrcSizeLocation = GLES20.glGetUniformLocation(getProgram(), "src_size");
     }
 
     @Override
     public void onInitialized() {
         super.onInitialized();
         setRadius(mRadius);
+        updateSrcSize();
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        updateSrcSize();
     }
 
     /**
@@ -148,4 +169,13 @@ public class GPUImageKuwaharaFilter extends GPUImageFilter {
         mRadius = radius;
         setInteger(mRadiusLocation, radius);
     }
+
+    /**
+     * Steps 1/768 and 1/1024 of the image, which a tile has to scale up.
+     */
+    private void updateSrcSize() {
+        float scaleX = mOutputWidth > 0 ? (float) getImageWidth() / mOutputWidth : 1f;
+        float scaleY = mOutputHeight > 0 ? (float) getImageHeight() / mOutputHeight : 1f;
+        setFloatVec2(mSrcSizeLocation, new float[]{scaleX / 768f, scaleY / 1024f});
+    }
 }
@@ -76,6 +76,20 @@ public class GPUImageLaplacianFilter extends GPUImage3x3TextureSamplingFilter {
         mConvolutionKernel = convolutionKernel;
     }
 
+    @Override
+    public GPUImageLaplacianFilter copy() {
+        GPUImageLaplacianFilter copy = (GPUImageLaplacianFilter) super.copy();
+        copy.mConvolutionKernel = mConvolutionKernel.clone();
+        return copy;
+    }
+
+    @Override
+    public FilterTraits getTraits() {
+        FilterTraits traits = super.getTraits();
+        return FilterTraits.neighbourhood(traits.getRadiusX(), traits.getRadiusY(), true,
+                traits.isPositionDependent());
+    }
+
     @Override
     public void onInit() {
         super.onInit();
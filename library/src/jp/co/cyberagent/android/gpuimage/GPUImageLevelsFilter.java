@@ -54,6 +54,22 @@ public class GPUImageLevelsFilter extends GPUImageFilter{
         setMin(0.0f, 1.0f, 1.0f, 0.0f, 1.0f);
     }
 
+    @Override
+    public GPUImageLevelsFilter copy() {
+        GPUImageLevelsFilter copy = (GPUImageLevelsFilter) super.copy();
+        copy.mMin = mMin.clone();
+        copy.mMid = mMid.clone();
+        copy.mMax = mMax.clone();
+        copy.mMinOutput = mMinOutput.clone();
+        copy.mMaxOutput = mMaxOutput.clone();
+        return copy;
+    }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
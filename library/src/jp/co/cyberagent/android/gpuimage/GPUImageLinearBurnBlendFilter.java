@@ -34,4 +34,9 @@ public class GPUImageLinearBurnBlendFilter extends GPUImageTwoInputFilter {
     public GPUImageLinearBurnBlendFilter() {
         super(LINEAR_BURN_BLEND_FRAGMENT_SHADER);
     }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, true);
+    }
 }
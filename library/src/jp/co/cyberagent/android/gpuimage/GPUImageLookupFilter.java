@@ -69,6 +69,11 @@ public class GPUImageLookupFilter extends GPUImageTwoInputFilter {
         mIntensity = intensity;
     }
 
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
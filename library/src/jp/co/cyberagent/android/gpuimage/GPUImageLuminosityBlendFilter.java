@@ -63,4 +63,9 @@ public class GPUImageLuminosityBlendFilter extends GPUImageTwoInputFilter {
     public GPUImageLuminosityBlendFilter() {
         super(LUMINOSITY_BLEND_FRAGMENT_SHADER);
     }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, true);
+    }
 }
@@ -70,6 +70,18 @@ public class GPUImageMonochromeFilter extends GPUImageFilter {
         mColor = color;
     }
 
+    @Override
+    public GPUImageMonochromeFilter copy() {
+        GPUImageMonochromeFilter copy = (GPUImageMonochromeFilter) super.copy();
+        copy.mColor = mColor.clone();
+        return copy;
+    }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
@@ -16,6 +16,12 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
 public class GPUImageNativeLibrary {
     static {
         System.loadLibrary("gpuimage-library");
@@ -24,4 +30,218 @@ public class GPUImageNativeLibrary {
     public static native void YUVtoRBGA(byte[] yuv, int width, int height, int[] out);
 
     public static native void YUVtoARBG(byte[] yuv, int width, int height, int[] out);
+
+    /**
+     * Converts a contiguous NV21 frame, as delivered to a
+     * {@link android.hardware.Camera.PreviewCallback}, into R, G, B, A bytes
+     * in a direct buffer, ready for
+     * {@link OpenGlUtils#loadTexture(ByteBuffer, int, int, int)}. The array
+     * is pinned while converting, not copied.
+     *
+     * @param yuv          the frame
+     * @param width        the width of the frame
+     * @param height       the height of the frame
+     * @param out          the direct buffer receiving the pixels
+     * @param outRowStride bytes between the output rows, a multiple of 4 and
+     *                     at least 4 * width
+     * @throws IllegalArgumentException if the array or buffer is too small or
+     *                                  the buffer is not direct
+     */
+    public static native void YUVtoRBGA(byte[] yuv, int width, int height, ByteBuffer out,
+                                        int outRowStride);
+
+    /**
+     * Converts an NV21 frame held in direct buffers into R, G, B, A bytes,
+     * ready for {@link OpenGlUtils#loadTexture(ByteBuffer, int, int, int)}.
+     * Unlike the array variant no Java array is pinned while converting.
+     * Buffers are read from their start regardless of their position, pass
+     * {@link ByteBuffer#slice()}s to convert from an offset.
+     *
+     * @param y            the direct buffer holding the luma plane
+     * @param yRowStride   bytes between the luma rows, at least the width
+     * @param vu           the direct buffer holding the interleaved V and U plane
+     * @param vuRowStride  bytes between the chroma rows
+     * @param width        the width of the frame
+     * @param height       the height of the frame
+     * @param out          the direct buffer receiving the pixels
+     * @param outRowStride bytes between the output rows, a multiple of 4 and
+     *                     at least 4 * width
+     * @throws IllegalArgumentException if a buffer is not direct or too small
+     */
+    public static native void YUVtoRBGA(ByteBuffer y, int yRowStride, ByteBuffer vu,
+                                        int vuRowStride, int width, int height,
+                                        ByteBuffer out, int outRowStride);
+
+    /**
+     * Like {@link #YUVtoRBGA(ByteBuffer, int, ByteBuffer, int, int, int, ByteBuffer, int)}
+     * but writes the pixels as native order 0xAARRGGBB ints, the layout of
+     * {@link android.graphics.Bitmap.Config#ARGB_8888} pixel arrays.
+     */
+    public static native void YUVtoARBG(ByteBuffer y, int yRowStride, ByteBuffer vu,
+                                        int vuRowStride, int width, int height,
+                                        ByteBuffer out, int outRowStride);
+
+    /**
+     * Converts a 4:2:0 frame with arbitrary plane layout into R, G, B, A
+     * bytes. Covers I420 and YV12 (pixel stride 1), NV12 and NV21 (pixel
+     * stride 2, U and V pointing into the same interleaved plane) as well as
+     * the planes of a {@link ImageFormat#YUV_420_888} image. Planar and
+     * interleaved chroma are converted with vector code, other pixel strides
+     * with a scalar loop. The U and V buffers may overlap.
+     *
+     * @param y             the direct buffer holding the luma plane
+     * @param yRowStride    bytes between the luma rows, at least the width
+     * @param u             the direct buffer starting at the first U sample
+     * @param v             the direct buffer starting at the first V sample
+     * @param uvRowStride   bytes between the chroma rows of both planes
+     * @param uvPixelStride bytes between neighbouring chroma samples
+     * @param width         the width of the frame
+     * @param height        the height of the frame
+     * @param out           the direct buffer receiving the pixels
+     * @param outRowStride  bytes between the output rows, a multiple of 4 and
+     *                      at least 4 * width
+     * @throws IllegalArgumentException if a buffer is not direct or too small
+     */
+    public static native void YUVtoRBGA(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v,
+                                        int uvRowStride, int uvPixelStride, int width,
+                                        int height, ByteBuffer out, int outRowStride);
+
+    /**
+     * Like {@link #YUVtoRBGA(ByteBuffer, int, ByteBuffer, ByteBuffer, int, int, int, int,
+     * ByteBuffer, int)} but writes the pixels as native order 0xAARRGGBB ints.
+     */
+    public static native void YUVtoARBG(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v,
+                                        int uvRowStride, int uvPixelStride, int width,
+                                        int height, ByteBuffer out, int outRowStride);
+
+    /**
+     * Converts a tightly packed frame in one of the
+     * {@link GPUImageYUVInputFilter.Format}s, laid out as
+     * {@link GPUImageYUVInputFilter#uploadFrame} expects it, into R, G, B, A
+     * bytes.
+     *
+     * @param yuv          the direct buffer holding the frame from its start
+     * @param format       the layout of the frame
+     * @param width        the width of the frame
+     * @param height       the height of the frame
+     * @param out          the direct buffer receiving the pixels
+     * @param outRowStride bytes between the output rows
+     */
+    public static void YUVtoRBGA(final ByteBuffer yuv, final GPUImageYUVInputFilter.Format format,
+                                 final int width, final int height, final ByteBuffer out,
+                                 final int outRowStride) {
+        int chromaWidth = (width + 1) / 2;
+        int lumaSize = width * height;
+        int chromaSize = chromaWidth * ((height + 1) / 2);
+        switch (format) {
+            case NV21:
+                YUVtoRBGA(yuv, width, slice(yuv, lumaSize + 1), slice(yuv, lumaSize),
+                        chromaWidth * 2, 2, width, height, out, outRowStride);
+                break;
+            case NV12:
+                YUVtoRBGA(yuv, width, slice(yuv, lumaSize), slice(yuv, lumaSize + 1),
+                        chromaWidth * 2, 2, width, height, out, outRowStride);
+                break;
+            case I420:
+                YUVtoRBGA(yuv, width, slice(yuv, lumaSize), slice(yuv, lumaSize + chromaSize),
+                        chromaWidth, 1, width, height, out, outRowStride);
+                break;
+            case YV12:
+                YUVtoRBGA(yuv, width, slice(yuv, lumaSize + chromaSize), slice(yuv, lumaSize),
+                        chromaWidth, 1, width, height, out, outRowStride);
+                break;
+        }
+    }
+
+    /**
+     * Converts a {@link ImageFormat#YUV_420_888} image, as delivered by
+     * camera2 and {@link android.media.ImageReader}, straight from its planes
+     * into R, G, B, A bytes without repacking it first.
+     *
+     * @param image        the image to convert
+     * @param out          the direct buffer receiving the pixels
+     * @param outRowStride bytes between the output rows
+     */
+    @TargetApi(19)
+    public static void YUVtoRBGA(final Image image, final ByteBuffer out, final int outRowStride) {
+        if (image.getFormat() != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException("Unsupported image format " + image.getFormat());
+        }
+        Image.Plane[] planes = image.getPlanes();
+        YUVtoRBGA(planes[0].getBuffer().slice(), planes[0].getRowStride(),
+                planes[1].getBuffer().slice(), planes[2].getBuffer().slice(),
+                planes[1].getRowStride(), planes[1].getPixelStride(),
+                image.getWidth(), image.getHeight(), out, outRowStride);
+    }
+
+    /**
+     * Converts R, G, B, A bytes into a 4:2:0 frame in BT.601 limited range,
+     * e.g. for an encoder. The frame layouts are the ones of
+     * {@link #YUVtoRBGA(ByteBuffer, int, ByteBuffer, ByteBuffer, int, int, int, int,
+     * ByteBuffer, int)}. Flipping happens in the same pass, so pixels read
+     * back with glReadPixels, bottom row first, need no separate flip.
+     *
+     * @param rgba          the direct buffer holding the pixels
+     * @param rgbaRowStride bytes between the pixel rows, a multiple of 4 and
+     *                      at least 4 * width
+     * @param width         the width of the image
+     * @param height        the height of the image
+     * @param flipVertical  true to write the last pixel row as the first frame row
+     * @param y             the direct buffer receiving the luma plane
+     * @param yRowStride    bytes between the luma rows, at least the width
+     * @param u             the direct buffer receiving the first U sample
+     * @param v             the direct buffer receiving the first V sample
+     * @param uvRowStride   bytes between the chroma rows of both planes
+     * @param uvPixelStride bytes between neighbouring chroma samples
+     * @throws IllegalArgumentException if a buffer is not direct or too small
+     */
+    public static native void RGBAtoYUV(ByteBuffer rgba, int rgbaRowStride, int width,
+                                        int height, boolean flipVertical, ByteBuffer y,
+                                        int yRowStride, ByteBuffer u, ByteBuffer v,
+                                        int uvRowStride, int uvPixelStride);
+
+    /**
+     * Converts tightly packed R, G, B, A bytes into a tightly packed frame in
+     * one of the {@link GPUImageYUVInputFilter.Format}s.
+     *
+     * @param rgba         the direct buffer holding the pixels from its start
+     * @param width        the width of the image
+     * @param height       the height of the image
+     * @param flipVertical true to write the last pixel row as the first frame row
+     * @param format       the layout of the frame
+     * @param out          the direct buffer receiving the frame, at least
+     *                     width * height plus both chroma planes
+     */
+    public static void RGBAtoYUV(final ByteBuffer rgba, final int width, final int height,
+                                 final boolean flipVertical,
+                                 final GPUImageYUVInputFilter.Format format,
+                                 final ByteBuffer out) {
+        int chromaWidth = (width + 1) / 2;
+        int lumaSize = width * height;
+        int chromaSize = chromaWidth * ((height + 1) / 2);
+        switch (format) {
+            case NV21:
+                RGBAtoYUV(rgba, width * 4, width, height, flipVertical, out, width,
+                        slice(out, lumaSize + 1), slice(out, lumaSize), chromaWidth * 2, 2);
+                break;
+            case NV12:
+                RGBAtoYUV(rgba, width * 4, width, height, flipVertical, out, width,
+                        slice(out, lumaSize), slice(out, lumaSize + 1), chromaWidth * 2, 2);
+                break;
+            case I420:
+                RGBAtoYUV(rgba, width * 4, width, height, flipVertical, out, width,
+                        slice(out, lumaSize), slice(out, lumaSize + chromaSize), chromaWidth, 1);
+                break;
+            case YV12:
+                RGBAtoYUV(rgba, width * 4, width, height, flipVertical, out, width,
+                        slice(out, lumaSize + chromaSize), slice(out, lumaSize), chromaWidth, 1);
+                break;
+        }
+    }
+
+    private static ByteBuffer slice(final ByteBuffer buffer, final int offset) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        return duplicate.slice();
+    }
 }
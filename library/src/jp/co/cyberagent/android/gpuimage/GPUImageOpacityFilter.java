@@ -48,6 +48,11 @@ public class GPUImageOpacityFilter extends GPUImageFilter {
         mOpacity = opacity;
     }
 
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(false, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
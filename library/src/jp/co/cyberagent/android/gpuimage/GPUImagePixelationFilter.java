@@ -51,6 +51,14 @@ public class GPUImagePixelationFilter extends GPUImageFilter {
         mPixel = 1.0f;
     }
 
+    /**
+     * Each pixel reads the corner of its cell, up to a cell size away.
+     */
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.neighbourhood(mPixel, mPixel, false, true);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
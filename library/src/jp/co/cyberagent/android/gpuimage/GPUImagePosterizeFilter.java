@@ -49,6 +49,11 @@ public class GPUImagePosterizeFilter extends GPUImageFilter {
         mColorLevels = colorLevels;
     }
 
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(false, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
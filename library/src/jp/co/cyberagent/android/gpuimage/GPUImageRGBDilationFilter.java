@@ -253,6 +253,8 @@ public class GPUImageRGBDilationFilter extends GPUImageTwoPassTextureSamplingFil
                     "}\n";
 
 
+    private final int mRadius;
+
     public GPUImageRGBDilationFilter() {
         this(1);
     }
@@ -264,11 +266,17 @@ public class GPUImageRGBDilationFilter extends GPUImageTwoPassTextureSamplingFil
      * @param radius 1, 2, 3 or 4
      */
     public GPUImageRGBDilationFilter(int radius) {
-        this(getVertexShader(radius), getFragmentShader(radius));
+        this(Math.max(1, Math.min(4, radius)), getVertexShader(radius), getFragmentShader(radius));
     }
 
-    private GPUImageRGBDilationFilter(String vertexShader, String fragmentShader) {
+    private GPUImageRGBDilationFilter(int radius, String vertexShader, String fragmentShader) {
         super(vertexShader, fragmentShader, vertexShader, fragmentShader);
+        mRadius = radius;
+    }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.neighbourhood(mRadius, mRadius, false, false);
     }
 
     private static String getVertexShader(int radius) {
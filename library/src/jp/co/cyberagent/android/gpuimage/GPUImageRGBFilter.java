@@ -59,6 +59,11 @@ public class GPUImageRGBFilter extends GPUImageFilter {
         mBlue = blue;
     }
 
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(false, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
@@ -23,12 +23,17 @@ import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.hardware.Camera.PreviewCallback;
 import android.hardware.Camera.Size;
+import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView.Renderer;
+import android.opengl.Matrix;
 
 import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
 
+import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
 import javax.microedition.khronos.opengles.GL10;
 
 import java.io.IOException;
@@ -36,20 +41,30 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_NO_ROTATION;
 
 @TargetApi(11)
 public class GPUImageRenderer implements Renderer, PreviewCallback {
     public static final int NO_IMAGE = -1;
+    protected static final String TASK_UPLOAD_PREVIEW_FRAME = "upload preview frame";
+    protected static final String TASK_SET_FILTER = "set filter";
     static final float CUBE[] = {
             -1.0f, -1.0f,
             1.0f, -1.0f,
             -1.0f, 1.0f,
             1.0f, 1.0f,
     };
+    // Maps the row order of uploaded images to the one of SurfaceTexture coordinates
+    private static final float[] FLIP_TEXTURE_Y = {
+            1, 0, 0, 0,
+            0, -1, 0, 0,
+            0, 0, 1, 0,
+            0, 1, 0, 1
+    };
 
     protected GPUImageFilter mFilter;
 
@@ -59,7 +74,12 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
     protected SurfaceTexture mSurfaceTexture = null;
     protected final FloatBuffer mGLCubeBuffer;
     protected final FloatBuffer mGLTextureBuffer;
+    /**
+     * The converted preview frame while converting on the CPU. A view of a
+     * direct buffer, so it has no backing array.
+     */
     protected IntBuffer mGLRgbBuffer;
+    private ByteBuffer mPreviewPixels;
 
     protected int mOutputWidth;
     protected int mOutputHeight;
@@ -67,8 +87,8 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
     protected int mImageHeight;
     protected int mAddedPadding;
 
-    protected final Queue<Runnable> mRunOnDraw;
-    protected final Queue<Runnable> mRunOnDrawEnd;
+    protected final GLTaskQueue mRunOnDraw;
+    protected final GLTaskQueue mRunOnDrawEnd;
     protected Rotation mRotation = Rotation.NORMAL;
     protected boolean mFlipHorizontal;
     protected boolean mFlipVertical;
@@ -78,15 +98,63 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
     protected float mBackgroundGreen = 0;
     protected float mBackgroundBlue = 0;
 
+    // Proxy resolution rendering, see setRenderScale
+    private volatile float mRenderScale = 1f;
+    private volatile boolean mFrameTimeMeasured;
+    private volatile long mLastFrameNanos;
+    private volatile float mLastFrameScale = 1f;
+    private int mFilterWidth;
+    private int mFilterHeight;
+    private GPUImageFilter mUpscaleFilter;
+    private final FloatBuffer mFramebufferCubeBuffer;
+    private final FloatBuffer mFramebufferTextureBuffer;
+
+    // Camera preview sampled from mSurfaceTexture, see setUpSurfaceTexture
+    private boolean mCameraExternalOES;
+    private int mCameraTextureId = NO_IMAGE;
+    private final float[] mCameraTransform = new float[16];
+    private final float[] mCameraTextureMatrix = new float[16];
+    private GPUImageFilter mCameraCopyFilter;
+    private FramebufferPool.Framebuffer mCameraFramebuffer;
+
+    // Preview frames converted by mPreviewYUVFilter, see onPreviewFrame
+    private final PreviewFrameQueue mPreviewFrames = new PreviewFrameQueue();
+    private final Runnable mUploadPreviewFrame = new Runnable() {
+        @Override
+        public void run() {
+            uploadPreviewFrame();
+        }
+    };
+    private volatile boolean mPreviewConvertedOnGPU = true;
+    private GPUImageYUVInputFilter mPreviewYUVFilter;
+    private FramebufferPool.Framebuffer mPreviewFramebuffer;
+
+    // Guarded by mPendingPrewarm
+    private final List<GPUImageFilter> mPendingPrewarm = new ArrayList<GPUImageFilter>();
+    private EGLDisplay mPrewarmDisplay;
+    private EGLContext mPrewarmContext;
+    private FilterPrewarmer mPrewarmer;
+
     public GPUImageRenderer(final GPUImageFilter filter) {
         mFilter = filter;
-        mRunOnDraw = new LinkedList<Runnable>();
-        mRunOnDrawEnd = new LinkedList<Runnable>();
+        mRunOnDraw = new GLTaskQueue();
+        mRunOnDrawEnd = new GLTaskQueue();
 
         mGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
                 .order(ByteOrder.nativeOrder())
                 .asFloatBuffer();
         mGLCubeBuffer.put(CUBE).position(0);
+        // mGLCubeBuffer is scaled to the image, framebuffer contents fill the viewport
+        mFramebufferCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mFramebufferCubeBuffer.put(CUBE).position(0);
+        // Framebuffer textures are sampled upside down with the bitmap coordinates
+        float[] flip = TextureRotationUtil.getRotation(Rotation.NORMAL, false, true);
+        mFramebufferTextureBuffer = ByteBuffer.allocateDirect(flip.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mFramebufferTextureBuffer.put(flip).position(0);
 
         mGLTextureBuffer = ByteBuffer.allocateDirect(TEXTURE_NO_ROTATION.length * 4)
                 .order(ByteOrder.nativeOrder())
@@ -98,6 +166,13 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
     public void onSurfaceCreated(final GL10 unused, final EGLConfig config) {
         GLES20.glClearColor(mBackgroundRed, mBackgroundGreen, mBackgroundBlue, 1);
         GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+        FramebufferPool.onContextCreated();
+        ShaderProgramCache.onContextCreated();
+        onPrewarmContextCreated();
+        mUpscaleFilter = null;
+        mCameraCopyFilter = null;
+        mPreviewYUVFilter = null;
+        mPreviewFramebuffer = null;
         mFilter.init();
     }
 
@@ -107,7 +182,7 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
         mOutputHeight = height;
         GLES20.glViewport(0, 0, width, height);
         GLES20.glUseProgram(mFilter.getProgram());
-        mFilter.onOutputSizeChanged(width, height);
+        setFilterOutputSize(width, height);
         adjustImageScaling();
         synchronized (mSurfaceChangedWaiter) {
             mSurfaceChangedWaiter.notifyAll();
@@ -118,10 +193,159 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
     public void onDrawFrame(final GL10 gl) {
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
         runAll(mRunOnDraw);
-        mFilter.onDraw(mGLTextureId, mGLCubeBuffer, mGLTextureBuffer);
+        if (mCameraExternalOES && mSurfaceTexture != null) {
+            latchCameraFrame();
+        }
+        float scale = mRenderScale;
+        long start = System.nanoTime();
+        if (scale < 1f && mOutputWidth > 0 && mOutputHeight > 0) {
+            drawScaled(scale);
+        } else {
+            scale = 1f;
+            if (mFilterWidth != mOutputWidth || mFilterHeight != mOutputHeight) {
+                setFilterOutputSize(mOutputWidth, mOutputHeight);
+            }
+            drawFilter();
+        }
+        if (mCameraFramebuffer != null) {
+            mCameraFramebuffer.unlock();
+            mCameraFramebuffer = null;
+        }
+        if (mFrameTimeMeasured) {
+            GLES20.glFinish();
+            mLastFrameScale = scale;
+            mLastFrameNanos = System.nanoTime() - start;
+        }
         runAll(mRunOnDrawEnd);
-        if (mSurfaceTexture != null) {
+        FramebufferPool.getInstance().applyPendingTrim();
+        if (mSurfaceTexture != null && !mCameraExternalOES) {
             mSurfaceTexture.updateTexImage();
+            notifyInputChanged();
+        }
+    }
+
+    private void drawFilter() {
+        if (!mCameraExternalOES) {
+            int textureId = mPreviewFramebuffer != null
+                    ? mPreviewFramebuffer.getTextureId() : mGLTextureId;
+            mFilter.onDraw(textureId, mGLCubeBuffer, mGLTextureBuffer);
+        } else if (mCameraFramebuffer != null) {
+            mFilter.onDraw(mCameraFramebuffer.getTextureId(), mGLCubeBuffer, mGLTextureBuffer);
+        }
+    }
+
+    /**
+     * Latches the newest camera frame and copies it into a framebuffer on the
+     * GPU with a filter owned by this renderer, so the filter set by the app
+     * keeps sampling ordinary textures.
+     */
+    private void latchCameraFrame() {
+        mSurfaceTexture.updateTexImage();
+        mSurfaceTexture.getTransformMatrix(mCameraTransform);
+        Matrix.multiplyMM(mCameraTextureMatrix, 0, mCameraTransform, 0, FLIP_TEXTURE_Y, 0);
+        notifyInputChanged();
+
+        if (mImageWidth == 0 || mImageHeight == 0) {
+            return;
+        }
+        if (mCameraCopyFilter == null) {
+            mCameraCopyFilter = new GPUImageFilter();
+            mCameraCopyFilter.init();
+            mCameraCopyFilter.setExternalOES(true);
+        }
+        mCameraFramebuffer = FramebufferPool.getInstance().obtain(mImageWidth, mImageHeight);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mCameraFramebuffer.getFramebufferId());
+        GLES20.glViewport(0, 0, mImageWidth, mImageHeight);
+        mCameraCopyFilter.onDraw(mCameraTextureId, mFramebufferCubeBuffer,
+                mFramebufferTextureBuffer, mCameraTextureMatrix);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(0, 0, mOutputWidth, mOutputHeight);
+    }
+
+    /**
+     * Draws the filter into a pooled framebuffer of the scaled output size and
+     * stretches the result over the output.
+     */
+    private void drawScaled(final float scale) {
+        int width = Math.max(1, Math.round(mOutputWidth * scale));
+        int height = Math.max(1, Math.round(mOutputHeight * scale));
+        if (mFilterWidth != width || mFilterHeight != height) {
+            setFilterOutputSize(width, height);
+        }
+        FramebufferPool.Framebuffer proxy = FramebufferPool.getInstance().obtain(width, height);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, proxy.getFramebufferId());
+        GLES20.glViewport(0, 0, width, height);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        drawFilter();
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(0, 0, mOutputWidth, mOutputHeight);
+
+        if (mUpscaleFilter == null) {
+            mUpscaleFilter = new GPUImageFilter();
+            mUpscaleFilter.init();
+        }
+        mUpscaleFilter.onDraw(proxy.getTextureId(), mFramebufferCubeBuffer,
+                mFramebufferTextureBuffer);
+        proxy.unlock();
+    }
+
+    private void setFilterOutputSize(final int width, final int height) {
+        mFilterWidth = width;
+        mFilterHeight = height;
+        mFilter.onOutputSizeChanged(width, height);
+    }
+
+    /**
+     * Renders the filter at a fraction of the output size and stretches the
+     * result over the output, e.g. to keep scrubbing a heavy filter smooth.
+     * The filter is sized to the reduced output, so sampling offsets given in
+     * output pixels, as in the blurs, cover a larger part of the image than
+     * at full resolution.
+     *
+     * @param scale the fraction of the output size, 1 for full resolution
+     */
+    public void setRenderScale(final float scale) {
+        mRenderScale = Math.max(0.01f, Math.min(1f, scale));
+    }
+
+    public float getRenderScale() {
+        return mRenderScale;
+    }
+
+    /**
+     * Enables measuring how long the filter takes per frame. Each measured
+     * frame waits for the GPU to finish, so this is meant for short periods
+     * like an interactive adjustment.
+     *
+     * @param measured true to measure frame times
+     */
+    public void setFrameTimeMeasured(final boolean measured) {
+        mFrameTimeMeasured = measured;
+    }
+
+    /**
+     * @return the time the filter took on the last measured frame in
+     * nanoseconds, or 0
+     */
+    public long getLastFrameNanos() {
+        return mLastFrameNanos;
+    }
+
+    /**
+     * @return the render scale of the last measured frame
+     */
+    public float getLastFrameScale() {
+        return mLastFrameScale;
+    }
+
+    /**
+     * Has to be called on the GL thread whenever new content was written into
+     * the input texture, so filter groups do not reuse outputs they kept for
+     * the previous content.
+     */
+    protected void notifyInputChanged() {
+        if (mFilter instanceof GPUImageFilterGroup) {
+            ((GPUImageFilterGroup) mFilter).invalidateInput();
         }
     }
 
@@ -138,49 +362,165 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
         mBackgroundBlue = blue;
     }
 
-    protected void runAll(Queue<Runnable> queue) {
-        synchronized (queue) {
-            while (!queue.isEmpty()) {
-                queue.poll().run();
-            }
-        }
+    protected void runAll(GLTaskQueue queue) {
+        queue.runAll();
+    }
+
+    /**
+     * Chooses how NV21 preview frames delivered to
+     * {@link #onPreviewFrame(byte[], Camera)} are converted to RGB: by a
+     * {@link GPUImageYUVInputFilter} on the GPU, the default, or by the native
+     * library on the CPU.
+     *
+     * @param enabled true to convert on the GPU
+     */
+    public void setPreviewConvertedOnGPU(final boolean enabled) {
+        mPreviewConvertedOnGPU = enabled;
+    }
+
+    public boolean isPreviewConvertedOnGPU() {
+        return mPreviewConvertedOnGPU;
+    }
+
+    /**
+     * Delivers preview frames to the callback ring, see
+     * {@link #getPreviewFrameQueue()}. Only the newest frame is converted
+     * when several arrive during one GL frame.
+     *
+     * @param camera the camera, its preview is started by the caller
+     */
+    public void setUpPreviewCallback(final Camera camera) {
+        mPreviewFrames.attach(camera, this);
+    }
+
+    /**
+     * Returns the ring of preview callback buffers. Its counters show how many
+     * frames the camera delivered, how many were converted and how many were
+     * dropped because a newer one arrived first.
+     *
+     * @return the queue handing preview frames to the GL thread
+     */
+    public PreviewFrameQueue getPreviewFrameQueue() {
+        return mPreviewFrames;
     }
 
     @Override
     public void onPreviewFrame(final byte[] data, final Camera camera) {
-        final Size previewSize = camera.getParameters().getPreviewSize();
-        if (mGLRgbBuffer == null) {
-            mGLRgbBuffer = IntBuffer.allocate(previewSize.width * previewSize.height);
+        mPreviewFrames.offer(data, camera);
+        runOnDraw(TASK_UPLOAD_PREVIEW_FRAME, mUploadPreviewFrame);
+    }
+
+    private void uploadPreviewFrame() {
+        byte[] data = mPreviewFrames.take();
+        if (data == null) {
+            return;
         }
-        if (mRunOnDraw.isEmpty()) {
-            runOnDraw(new Runnable() {
-                @Override
-                public void run() {
-                    GPUImageNativeLibrary.YUVtoRBGA(data, previewSize.width, previewSize.height,
-                            mGLRgbBuffer.array());
-                    mGLTextureId = OpenGlUtils.loadTexture(mGLRgbBuffer, previewSize, mGLTextureId);
-                    camera.addCallbackBuffer(data);
-
-                    if (mImageWidth != previewSize.width) {
-                        mImageWidth = previewSize.width;
-                        mImageHeight = previewSize.height;
-                        adjustImageScaling();
-                    }
-                }
-            });
+        int width = mPreviewFrames.getPreviewWidth();
+        int height = mPreviewFrames.getPreviewHeight();
+        if (mPreviewConvertedOnGPU) {
+            convertPreviewFrame(data, width, height);
+        } else {
+            releasePreviewFramebuffer();
+            convertPreviewFrameOnCPU(data, width, height);
+        }
+        mPreviewFrames.release(data);
+        notifyInputChanged();
+
+        if (mImageWidth != width) {
+            mImageWidth = width;
+            mImageHeight = height;
+            adjustImageScaling();
+        }
+    }
+
+    /**
+     * Converts an NV21 frame straight from the camera array into a direct
+     * buffer, which GL uploads without copying it through a Java array.
+     */
+    private void convertPreviewFrameOnCPU(final byte[] data, final int width, final int height) {
+        int size = width * height * 4;
+        if (mPreviewPixels == null || mPreviewPixels.capacity() != size) {
+            mPreviewPixels = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+            mGLRgbBuffer = mPreviewPixels.asIntBuffer();
+        }
+        GPUImageNativeLibrary.YUVtoRBGA(data, width, height, mPreviewPixels, width * 4);
+        mGLTextureId = OpenGlUtils.loadTexture(mPreviewPixels, width, height, mGLTextureId);
+    }
+
+    /**
+     * Uploads the planes of an NV21 frame and converts them into
+     * mPreviewFramebuffer, once per frame rather than once per draw.
+     */
+    private void convertPreviewFrame(final byte[] data, final int width, final int height) {
+        if (mPreviewYUVFilter == null) {
+            mPreviewYUVFilter = new GPUImageYUVInputFilter(GPUImageYUVInputFilter.Format.NV21);
+            mPreviewYUVFilter.init();
+        }
+        mPreviewYUVFilter.uploadFrame(data, width, height);
+        if (mPreviewFramebuffer != null && (mPreviewFramebuffer.getWidth() != width
+                || mPreviewFramebuffer.getHeight() != height)) {
+            releasePreviewFramebuffer();
+        }
+        if (mPreviewFramebuffer == null) {
+            mPreviewFramebuffer = FramebufferPool.getInstance().obtain(width, height);
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mPreviewFramebuffer.getFramebufferId());
+        GLES20.glViewport(0, 0, width, height);
+        mPreviewYUVFilter.onDraw(OpenGlUtils.NO_TEXTURE, mFramebufferCubeBuffer,
+                mFramebufferTextureBuffer);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(0, 0, mOutputWidth, mOutputHeight);
+    }
+
+    private void releasePreviewFramebuffer() {
+        if (mPreviewFramebuffer != null) {
+            mPreviewFramebuffer.unlock();
+            mPreviewFramebuffer = null;
         }
     }
 
     public void setUpSurfaceTexture(final Camera camera) {
+        setUpSurfaceTexture(camera, false);
+    }
+
+    /**
+     * Starts the camera preview into a SurfaceTexture owned by this renderer.
+     *
+     * @param camera      the camera
+     * @param externalOES true to copy the preview from the SurfaceTexture on
+     *                    the GPU, false to convert each NV21 preview frame and
+     *                    upload it, see {@link #onPreviewFrame(byte[], Camera)}
+     */
+    public void setUpSurfaceTexture(final Camera camera, final boolean externalOES) {
         runOnDraw(new Runnable() {
             @Override
             public void run() {
                 int[] textures = new int[1];
                 GLES20.glGenTextures(1, textures, 0);
                 mSurfaceTexture = new SurfaceTexture(textures[0]);
+                mCameraExternalOES = externalOES;
+                if (externalOES) {
+                    mCameraTextureId = textures[0];
+                    GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
+                    GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                            GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+                    GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                            GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+                    GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                            GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+                    GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                            GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+                    GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+                    Size previewSize = camera.getParameters().getPreviewSize();
+                    mImageWidth = previewSize.width;
+                    mImageHeight = previewSize.height;
+                    adjustImageScaling();
+                }
                 try {
                     camera.setPreviewTexture(mSurfaceTexture);
-                    camera.setPreviewCallback(GPUImageRenderer.this);
+                    if (!externalOES) {
+                        mPreviewFrames.attach(camera, GPUImageRenderer.this);
+                    }
                     camera.startPreview();
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -190,22 +530,81 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
     }
 
     public void setFilter(final GPUImageFilter filter) {
-        runOnDraw(new Runnable() {
+        runOnDraw(TASK_SET_FILTER, new Runnable() {
 
             @Override
             public void run() {
                 final GPUImageFilter oldFilter = mFilter;
                 mFilter = filter;
+                boolean prewarmed = filter != oldFilter && claimPrewarmed(filter);
                 if (oldFilter != null) {
                     oldFilter.destroy();
                 }
-                mFilter.init();
+                if (!prewarmed) {
+                    mFilter.init();
+                }
                 GLES20.glUseProgram(mFilter.getProgram());
-                mFilter.onOutputSizeChanged(mOutputWidth, mOutputHeight);
+                setFilterOutputSize(mOutputWidth, mOutputHeight);
             }
         });
     }
 
+    /**
+     * Initializes the given filters on a background thread with a context
+     * sharing this renderer's programs and textures, so a later
+     * {@link #setFilter(GPUImageFilter)} with one of them does not have to
+     * compile shaders on the render thread. Requests made before the render
+     * context exists are started once it has been created.
+     *
+     * @param filters the filters that are likely to be set soon
+     */
+    public void prewarm(final Collection<GPUImageFilter> filters) {
+        synchronized (mPendingPrewarm) {
+            if (mPrewarmContext == null) {
+                mPendingPrewarm.addAll(filters);
+                return;
+            }
+            if (mPrewarmer == null) {
+                mPrewarmer = new FilterPrewarmer((EGL10) EGLContext.getEGL(), mPrewarmDisplay,
+                        mPrewarmContext);
+            }
+            mPrewarmer.prewarm(filters);
+        }
+    }
+
+    /**
+     * Has to be called on the render thread whenever its EGL context was
+     * created. Filters prewarmed for a previous context are initialized again
+     * when they are set.
+     */
+    protected void onPrewarmContextCreated() {
+        List<GPUImageFilter> pending;
+        synchronized (mPendingPrewarm) {
+            if (mPrewarmer != null) {
+                mPrewarmer.release();
+                mPrewarmer = null;
+            }
+            EGL10 egl = (EGL10) EGLContext.getEGL();
+            mPrewarmDisplay = egl.eglGetCurrentDisplay();
+            mPrewarmContext = egl.eglGetCurrentContext();
+            if (mPendingPrewarm.isEmpty()) {
+                return;
+            }
+            pending = new ArrayList<GPUImageFilter>(mPendingPrewarm);
+            mPendingPrewarm.clear();
+        }
+        prewarm(pending);
+    }
+
+    private boolean claimPrewarmed(final GPUImageFilter filter) {
+        FilterPrewarmer prewarmer;
+        synchronized (mPendingPrewarm) {
+            mPendingPrewarm.remove(filter);
+            prewarmer = mPrewarmer;
+        }
+        return prewarmer != null && prewarmer.claim(filter);
+    }
+
     public void deleteImage() {
         runOnDraw(new Runnable() {
 
@@ -215,6 +614,8 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
                         mGLTextureId
                 }, 0);
                 mGLTextureId = NO_IMAGE;
+                releasePreviewFramebuffer();
+                notifyInputChanged();
             }
         });
     }
@@ -246,6 +647,8 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
 
                 mGLTextureId = OpenGlUtils.loadTexture(
                         resizedBitmap != null ? resizedBitmap : bitmap, mGLTextureId, recycle);
+                releasePreviewFramebuffer();
+                notifyInputChanged();
                 if (resizedBitmap != null) {
                     resizedBitmap.recycle();
                 }
@@ -344,15 +747,32 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
         return mFlipVertical;
     }
 
+    /**
+     * Returns the queue of tasks run before each frame. Its depth and wait
+     * times show how far the GL thread lags behind the posting threads.
+     *
+     * @return the task queue drained at the start of each frame
+     */
+    public GLTaskQueue getRunOnDrawQueue() {
+        return mRunOnDraw;
+    }
+
     protected void runOnDraw(final Runnable runnable) {
-        synchronized (mRunOnDraw) {
-            mRunOnDraw.add(runnable);
-        }
+        mRunOnDraw.post(runnable);
+    }
+
+    /**
+     * Runs the given Runnable at the start of the next frame, replacing a still
+     * pending Runnable that was posted with the same key.
+     *
+     * @param key      identifies Runnables that supersede each other
+     * @param runnable the Runnable to run on the OpenGL thread
+     */
+    protected void runOnDraw(final Object key, final Runnable runnable) {
+        mRunOnDraw.post(key, runnable);
     }
 
     protected void runOnDrawEnd(final Runnable runnable) {
-        synchronized (mRunOnDrawEnd) {
-            mRunOnDrawEnd.add(runnable);
-        }
+        mRunOnDrawEnd.post(runnable);
     }
 }
@@ -113,4 +113,9 @@ public class GPUImageSaturationBlendFilter extends GPUImageTwoInputFilter {
     public GPUImageSaturationBlendFilter() {
         super(SATURATION_BLEND_FRAGMENT_SHADER);
     }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, true);
+    }
 }
@@ -53,6 +53,11 @@ public class GPUImageSaturationFilter extends GPUImageFilter {
         mSaturation = saturation;
     }
 
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
@@ -97,6 +97,11 @@ public class GPUImageSharpenFilter extends GPUImageFilter {
         mSharpness = sharpness;
     }
 
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.neighbourhood(1, 1, false, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
@@ -45,6 +45,17 @@ public class GPUImageSmoothToonFilter extends GPUImageFilterGroup {
         setQuantizationLevels(10.0f);
     }
 
+    /*
+     * Points the accessors at the copied filters.
+     */
+    @Override
+    public GPUImageSmoothToonFilter copy() {
+        GPUImageSmoothToonFilter copy = (GPUImageSmoothToonFilter) super.copy();
+        copy.blurFilter = (GPUImageGaussianBlurFilter) copy.mFilters.get(mFilters.indexOf(blurFilter));
+        copy.toonFilter = (GPUImageToonFilter) copy.mFilters.get(mFilters.indexOf(toonFilter));
+        return copy;
+    }
+
     /**
      * Accessors
      */
@@ -66,6 +66,18 @@ public class GPUImageSphereRefractionFilter extends GPUImageFilter {
         mRefractiveIndex = refractiveIndex;
     }
 
+    @Override
+    public GPUImageSphereRefractionFilter copy() {
+        GPUImageSphereRefractionFilter copy = (GPUImageSphereRefractionFilter) super.copy();
+        copy.mCenter = new PointF(mCenter.x, mCenter.y);
+        return copy;
+    }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.arbitrary(false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
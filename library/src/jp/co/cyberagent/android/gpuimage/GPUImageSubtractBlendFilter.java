@@ -34,4 +34,9 @@ public class GPUImageSubtractBlendFilter extends GPUImageTwoInputFilter {
     public GPUImageSubtractBlendFilter() {
         super(SUBTRACT_BLEND_FRAGMENT_SHADER);
     }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, true);
+    }
 }
@@ -69,6 +69,18 @@ public class GPUImageSwirlFilter extends GPUImageFilter {
         mCenter = center;
     }
 
+    @Override
+    public GPUImageSwirlFilter copy() {
+        GPUImageSwirlFilter copy = (GPUImageSwirlFilter) super.copy();
+        copy.mCenter = new PointF(mCenter.x, mCenter.y);
+        return copy;
+    }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.arbitrary(false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
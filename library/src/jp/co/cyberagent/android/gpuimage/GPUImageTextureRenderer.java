@@ -25,6 +25,7 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
+import android.view.Choreographer;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -45,7 +46,18 @@ import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE
 import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_ROTATED_270;
 import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_ROTATED_90;
 
-@TargetApi(11)
+/**
+ * Renders the frames of a {@link SurfaceTexture} input, e.g. a video, through
+ * the filter into an output {@link SurfaceTexture} on its own thread.
+ * <br>
+ * The thread sleeps until there is something to render: a new input frame, a
+ * queued task, a parameter change of the filter or {@link #requestRender()}.
+ * A frame is rendered as soon as it is ready unless pacing is enabled, see
+ * {@link #setTargetFps(int)} and {@link #setVsyncPaced(boolean)}. Input
+ * frames arriving faster than they are rendered are dropped, only the most
+ * recent one is rendered.
+ */
+@TargetApi(16)
 public class GPUImageTextureRenderer extends GPUImageRenderer implements SurfaceTexture.OnFrameAvailableListener {
     static final float[] SCREEN_CUBE = {
             1.0f, 1.0f,
@@ -66,6 +78,7 @@ public class GPUImageTextureRenderer extends GPUImageRenderer implements Surface
 
     public GPUImageTextureRenderer(final GPUImageFilter filter) {
         super(filter);
+        listenTo(filter);
         screenCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
                 .order(ByteOrder.nativeOrder())
                 .asFloatBuffer();
@@ -85,11 +98,48 @@ public class GPUImageTextureRenderer extends GPUImageRenderer implements Surface
     protected EGLContext eglContext;
     protected EGLSurface eglSurface;
 
-    protected boolean running;
+    protected volatile boolean running;
     GPUImageFilter mNoFilter = new GPUImageFilter();
     protected FloatBuffer screenCubeBuffer;
     protected FloatBuffer screenTextureBuffer;
 
+    private static final long VSYNC_TIMEOUT_NANOS = 50000000L;
+
+    private final Object mFrameLock = new Object();
+    // Guarded by mFrameLock
+    private boolean mRenderRequested;
+    private boolean mVsyncArrived;
+    private volatile int mTargetFps;
+    private volatile boolean mVsyncPaced;
+    private volatile long mDroppedFrameCount;
+    private long mLastFrameNanos;
+    private int mDrawnParameterVersion;
+    // Guarded by mFrameLock
+    private GPUImageFilter mListenedFilter;
+    private final Runnable mParameterListener = new Runnable() {
+        @Override
+        public void run() {
+            requestRender();
+        }
+    };
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Choreographer.FrameCallback mVsyncCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(final long frameTimeNanos) {
+            synchronized (mFrameLock) {
+                mVsyncArrived = true;
+                mFrameLock.notifyAll();
+            }
+        }
+    };
+    // Choreographer only works on looper threads, the render thread has none
+    private final Runnable mPostFrameCallback = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(mVsyncCallback);
+        }
+    };
+
 
     public void startRenderingToOutput(SurfaceTexture outputTexture, Runnable onInputTextureAvailableCallback) {
         this.outputTexture = outputTexture;
@@ -104,6 +154,10 @@ public class GPUImageTextureRenderer extends GPUImageRenderer implements Surface
                 mNoFilter.setExternalOES(true);
             }
         });
+        synchronized (mFrameLock) {
+            // The first frame is rendered right away
+            mRenderRequested = true;
+        }
         new Thread(new Runnable() {
             @Override
             public void run() {
@@ -118,12 +172,6 @@ public class GPUImageTextureRenderer extends GPUImageRenderer implements Surface
 
     public void run() {
         running = true;
-        try {
-            //Waiting for subclass constructor
-            Thread.sleep(100);
-        } catch (InterruptedException e) {
-
-        }
         initGL();
         initGLComponents();
         if (mFilter != null) {
@@ -138,24 +186,20 @@ public class GPUImageTextureRenderer extends GPUImageRenderer implements Surface
             mFilter.setGLTexture(GLES20.GL_TEXTURE1);
         }
         Log.d(LOG_TAG, "OpenGL init OK.");
-        while (running) {
+        while (awaitFrame()) {
             runAll(mRunOnDraw);
-            long loopStart = System.currentTimeMillis();
             pingFps();
 
+            mLastFrameNanos = System.nanoTime();
+            if (mFilter != null) {
+                // Taken before drawing, so a change made while drawing causes another frame
+                mDrawnParameterVersion = mFilter.getParameterVersion();
+            }
             if (draw()) {
                 egl.eglSwapBuffers(eglDisplay, eglSurface);
             }
             runAll(mRunOnDrawEnd);
-            long waitDelta = 16 - (System.currentTimeMillis() - loopStart);    // Targeting 60 fps, no need for faster
-            if (waitDelta > 0) {
-                try {
-                    Thread.sleep(waitDelta);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    continue;
-                }
-            }
+            framebufferPool.applyPendingTrim();
         }
 
         deinitGLComponents();
@@ -166,6 +210,161 @@ public class GPUImageTextureRenderer extends GPUImageRenderer implements Surface
         }
     }
 
+    /**
+     * Blocks the render thread until a frame should be rendered.
+     *
+     * @return false if rendering stopped
+     */
+    private boolean awaitFrame() {
+        synchronized (mFrameLock) {
+            while (running && !isFrameDue()) {
+                try {
+                    mFrameLock.wait();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            if (!running) {
+                return false;
+            }
+            mRenderRequested = false;
+        }
+        awaitPacing();
+        return running;
+    }
+
+    private boolean isFrameDue() {
+        return mRenderRequested || frameAvailable || !mRunOnDraw.isEmpty()
+                || !mRunOnDrawEnd.isEmpty()
+                || (mFilter != null && mFilter.getParameterVersion() != mDrawnParameterVersion);
+    }
+
+    /**
+     * Waits for the next vsync or the next frame slot of the target frame
+     * rate. Frames arriving meanwhile replace each other.
+     */
+    private void awaitPacing() {
+        if (mVsyncPaced) {
+            synchronized (mFrameLock) {
+                mVsyncArrived = false;
+                mMainHandler.post(mPostFrameCallback);
+                long deadline = System.nanoTime() + VSYNC_TIMEOUT_NANOS;
+                long remaining = VSYNC_TIMEOUT_NANOS;
+                // Don't stall when the main thread is busy and misses the vsync
+                while (running && !mVsyncArrived && remaining > 0) {
+                    try {
+                        mFrameLock.wait(remaining / 1000000L, (int) (remaining % 1000000L));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    remaining = deadline - System.nanoTime();
+                }
+            }
+            return;
+        }
+        int targetFps = mTargetFps;
+        if (targetFps <= 0) {
+            return;
+        }
+        long remaining = mLastFrameNanos + 1000000000L / targetFps - System.nanoTime();
+        if (remaining > 0) {
+            try {
+                Thread.sleep(remaining / 1000000L, (int) (remaining % 1000000L));
+            } catch (InterruptedException e) {
+                // Render right away
+            }
+        }
+    }
+
+    @Override
+    public void setFilter(final GPUImageFilter filter) {
+        listenTo(filter);
+        super.setFilter(filter);
+    }
+
+    /**
+     * Wakes the render thread whenever a parameter of the filter changes.
+     */
+    private void listenTo(final GPUImageFilter filter) {
+        GPUImageFilter previous;
+        synchronized (mFrameLock) {
+            previous = mListenedFilter;
+            mListenedFilter = filter;
+        }
+        if (previous != null && previous != filter) {
+            previous.setParameterListener(null);
+        }
+        if (filter != null) {
+            filter.setParameterListener(mParameterListener);
+        }
+    }
+
+    /**
+     * Renders a frame even if no new input frame arrived, e.g. after changing
+     * renderer state while the input is paused. Filter parameter changes are
+     * picked up on their own, calling this just renders them sooner.
+     */
+    public void requestRender() {
+        synchronized (mFrameLock) {
+            mRenderRequested = true;
+            mFrameLock.notifyAll();
+        }
+    }
+
+    /**
+     * Limits the frame rate. Frames arriving faster are dropped.
+     *
+     * @param fps the maximum frames per second, 0 to render every frame as
+     *            soon as it arrives
+     */
+    public void setTargetFps(final int fps) {
+        mTargetFps = Math.max(0, fps);
+    }
+
+    public int getTargetFps() {
+        return mTargetFps;
+    }
+
+    /**
+     * Renders at most one frame per display refresh, aligned to the vsync
+     * signal. Takes precedence over {@link #setTargetFps(int)}.
+     *
+     * @param paced true to pace rendering to the display
+     */
+    public void setVsyncPaced(final boolean paced) {
+        mVsyncPaced = paced;
+    }
+
+    public boolean isVsyncPaced() {
+        return mVsyncPaced;
+    }
+
+    /**
+     * @return number of input frames that were replaced by a newer frame
+     * before they could be rendered
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    @Override
+    protected void runOnDraw(final Runnable runnable) {
+        super.runOnDraw(runnable);
+        requestRender();
+    }
+
+    @Override
+    protected void runOnDraw(final Object key, final Runnable runnable) {
+        super.runOnDraw(key, runnable);
+        requestRender();
+    }
+
+    @Override
+    protected void runOnDrawEnd(final Runnable runnable) {
+        super.runOnDrawEnd(runnable);
+        requestRender();
+    }
+
     private long lastFpsOutput = 0;
     private int frames;
 
@@ -182,11 +381,25 @@ public class GPUImageTextureRenderer extends GPUImageRenderer implements Surface
     }
 
 
+    /**
+     * Frees pooled framebuffers which are currently not in use, on the next
+     * frame of the render thread. Forward
+     * {@link android.content.ComponentCallbacks2#onTrimMemory(int)} calls of
+     * the Activity or Application here.
+     *
+     * @param level the trim memory level
+     */
+    public void onTrimMemory(final int level) {
+        FramebufferPool.trimMemory(level);
+        requestRender();
+    }
+
     /**
      * Call when activity pauses. This stops the rendering thread and deinitializes OpenGL.
      */
     public void onPause() {
         running = false;
+        requestRender();
     }
 
 
@@ -227,6 +440,7 @@ public class GPUImageTextureRenderer extends GPUImageRenderer implements Surface
         }
         shouldReInit = true;
         running = false;
+        requestRender();
     }
 
     private EGLContext createContext(EGL10 egl, EGLDisplay eglDisplay, EGLConfig eglConfig) {
@@ -269,12 +483,11 @@ public class GPUImageTextureRenderer extends GPUImageRenderer implements Surface
 
     private SurfaceTexture inputTexture;
     private float[] videoTextureTransform = new float[16];
-    ;
+    // Guarded by mFrameLock
     private boolean frameAvailable = false;
 
-    private int[] frameBuffers = new int[1];
-    private int[] renderBuffers = new int[1];
-    private int[] offScreenTextures = new int[1];
+    private FramebufferPool framebufferPool;
+    private FramebufferPool.Framebuffer offScreenFramebuffer;
     private boolean frameBufferPrepared;
 
     private void setupTexture() {
@@ -294,11 +507,12 @@ public class GPUImageTextureRenderer extends GPUImageRenderer implements Surface
 
     protected boolean draw() {
 
-        synchronized (this) {
+        synchronized (mFrameLock) {
             if (frameAvailable) {
                 inputTexture.updateTexImage();
                 inputTexture.getTransformMatrix(videoTextureTransform);
                 frameAvailable = false;
+                notifyInputChanged();
             }
         }
         if (!frameBufferPrepared) {
@@ -307,7 +521,7 @@ public class GPUImageTextureRenderer extends GPUImageRenderer implements Surface
         if (!frameBufferPrepared) {
             return false;
         }
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffers[0]);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, offScreenFramebuffer.getFramebufferId());
         GLES20.glViewport(0, 0, mImageWidth, mImageHeight);
         GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
@@ -318,7 +532,7 @@ public class GPUImageTextureRenderer extends GPUImageRenderer implements Surface
         GLES20.glViewport(0, 0, mOutputWidth, mOutputHeight);
         GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-        mFilter.onDraw(offScreenTextures[0], screenCubeBuffer, screenTextureBuffer);
+        mFilter.onDraw(offScreenFramebuffer.getTextureId(), screenCubeBuffer, screenTextureBuffer);
         onDrawAfterFilter();
 
         return true;
@@ -335,12 +549,18 @@ public class GPUImageTextureRenderer extends GPUImageRenderer implements Surface
 
 
     protected void initGLComponents() {
+        FramebufferPool.onContextCreated();
+        ShaderProgramCache.onContextCreated();
+        onPrewarmContextCreated();
+        framebufferPool = FramebufferPool.getInstance();
         setupTexture();
     }
 
     protected void deinitGLComponents() {
         GLES20.glDeleteTextures(1, textures, 0);
         releaseFramebuffer();
+        FramebufferPool.destroyInstance();
+        ShaderProgramCache.destroyInstance();
         if (Build.VERSION.SDK_INT >= 14) {
             inputTexture.release();
         }
@@ -354,6 +574,7 @@ public class GPUImageTextureRenderer extends GPUImageRenderer implements Surface
         if (outputTexture != null) {
             outputTexture.setDefaultBufferSize(width, height);
         }
+        requestRender();
     }
 
     public void setVideoSize(final int width, final int height) {
@@ -373,6 +594,7 @@ public class GPUImageTextureRenderer extends GPUImageRenderer implements Surface
                 mNoFilter.onOutputSizeChanged(width, height);
             }
         });
+        requestRender();
     }
 
 
@@ -389,24 +611,20 @@ public class GPUImageTextureRenderer extends GPUImageRenderer implements Surface
 
     @Override
     public void onFrameAvailable(SurfaceTexture surfaceTexture) {
-        synchronized (this) {
+        synchronized (mFrameLock) {
+            if (frameAvailable) {
+                // updateTexImage latches the most recent frame, the pending one is skipped
+                mDroppedFrameCount++;
+            }
             frameAvailable = true;
+            mFrameLock.notifyAll();
         }
     }
 
     public void releaseFramebuffer() {
-        if (offScreenTextures[0] > 0) {
-            GLES20.glDeleteTextures(1, offScreenTextures, 0);
-            offScreenTextures[0] = -1;
-        }
-        if (renderBuffers[0] > 0) {
-            GLES20.glDeleteRenderbuffers(1, renderBuffers, 0);
-            renderBuffers[0] = -1;
-
-        }
-        if (frameBuffers[0] > 0) {
-            GLES20.glDeleteFramebuffers(1, frameBuffers, 0);
-            frameBuffers[0] = -1;
+        if (offScreenFramebuffer != null) {
+            offScreenFramebuffer.unlock();
+            offScreenFramebuffer = null;
         }
         frameBufferPrepared = false;
     }
@@ -414,56 +632,7 @@ public class GPUImageTextureRenderer extends GPUImageRenderer implements Surface
     private void prepareFramebuffer(int width, int height) {
         if (width == 0 || height == 0) return;
         releaseFramebuffer();
-        // Create a outputTexture object and bind it.  This will be the color buffer.
-        GLES20.glGenTextures(1, offScreenTextures, 0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, offScreenTextures[0]);
-        checkGlError("genTexture");
-        // Create outputTexture storage.
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
-                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
-        checkGlError("texImage");
-
-        // Set parameters.  We're probably using non-power-of-two dimensions, so
-        // some values may not be available for use.
-        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
-                GLES20.GL_NEAREST);
-        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
-                GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
-                GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
-                GLES20.GL_CLAMP_TO_EDGE);
-
-        // Create framebuffer object and bind it.
-        GLES20.glGenFramebuffers(1, frameBuffers, 0);
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffers[0]);
-        checkGlError("genFramebuffer");
-
-        // Create a depth buffer and bind it.
-        GLES20.glGenRenderbuffers(1, renderBuffers, 0);
-        GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, renderBuffers[0]);
-        checkGlError("genRenderbuffer");
-
-        // Allocate storage for the depth buffer.
-        GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16,
-                width, height);
-        checkGlError("renderbufferStorage");
-
-        // Attach the depth buffer and the outputTexture (color buffer) to the framebuffer object.
-        GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT,
-                GLES20.GL_RENDERBUFFER, renderBuffers[0]);
-        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                GLES20.GL_TEXTURE_2D, offScreenTextures[0], 0);
-
-        // See if GLES is happy with all this.
-        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
-        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
-            throw new RuntimeException("Framebuffer not complete, status=" + status);
-        }
-
-        // Switch back to the default framebuffer.
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-
+        offScreenFramebuffer = framebufferPool.obtain(width, height);
         frameBufferPrepared = true;
     }
 
@@ -41,6 +41,7 @@ public class GPUImageToneCurveFilter extends GPUImageFilter {
             "\n" +
             "     gl_FragColor = vec4(redCurveValue, greenCurveValue, blueCurveValue, textureColor.a);\n" +
             " }";
+    private static final String TASK_UPDATE_TONE_CURVE_TEXTURE = "update tone curve texture";
 
     private int[] mToneCurveTexture = new int[]{OpenGlUtils.NO_TEXTURE};
     private int mToneCurveTextureUniformLocation;
@@ -66,6 +67,33 @@ public class GPUImageToneCurveFilter extends GPUImageFilter {
         mBlueControlPoints = defaultCurvePoints;
     }
 
+    @Override
+    public GPUImageToneCurveFilter copy() {
+        GPUImageToneCurveFilter copy = (GPUImageToneCurveFilter) super.copy();
+        copy.mToneCurveTexture = new int[]{OpenGlUtils.NO_TEXTURE};
+        copy.mRgbCompositeControlPoints = copyPoints(mRgbCompositeControlPoints);
+        copy.mRedControlPoints = copyPoints(mRedControlPoints);
+        copy.mGreenControlPoints = copyPoints(mGreenControlPoints);
+        copy.mBlueControlPoints = copyPoints(mBlueControlPoints);
+        return copy;
+    }
+
+    private static PointF[] copyPoints(final PointF[] points) {
+        if (points == null) {
+            return null;
+        }
+        PointF[] copy = new PointF[points.length];
+        for (int i = 0; i < points.length; i++) {
+            copy[i] = new PointF(points[i].x, points[i].y);
+        }
+        return copy;
+    }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
@@ -164,7 +192,7 @@ public class GPUImageToneCurveFilter extends GPUImageFilter {
     }
 
     private void updateToneCurveTexture() {
-        runOnDraw(new Runnable() {
+        runOnDraw(TASK_UPDATE_TONE_CURVE_TEXTURE, new Runnable() {
             @Override
             public void run() {
                 GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
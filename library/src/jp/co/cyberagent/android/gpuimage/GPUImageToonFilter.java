@@ -85,6 +85,13 @@ public class GPUImageToonFilter extends GPUImage3x3TextureSamplingFilter {
         mQuantizationLevels = quantizationLevels;
     }
 
+    @Override
+    public FilterTraits getTraits() {
+        FilterTraits traits = super.getTraits();
+        return FilterTraits.neighbourhood(traits.getRadiusX(), traits.getRadiusY(), true,
+                traits.isPositionDependent());
+    }
+
     @Override
     public void onInit() {
         super.onInit();
@@ -45,6 +45,19 @@ public class GPUImageTransformFilter extends GPUImageFilter {
         Matrix.setIdentityM(transform3D, 0);
     }
 
+    @Override
+    public GPUImageTransformFilter copy() {
+        GPUImageTransformFilter copy = (GPUImageTransformFilter) super.copy();
+        copy.orthographicMatrix = orthographicMatrix.clone();
+        copy.transform3D = transform3D.clone();
+        return copy;
+    }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.arbitrary(false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
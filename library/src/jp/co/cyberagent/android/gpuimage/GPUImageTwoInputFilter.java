@@ -44,6 +44,7 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
     public int mFilterSourceTexture2 = OpenGlUtils.NO_TEXTURE;
     private ByteBuffer mTexture2CoordinatesBuffer;
     private Bitmap mBitmap;
+    private int mSharedTexture2 = OpenGlUtils.NO_TEXTURE;
 
     public GPUImageTwoInputFilter(String fragmentShader) {
         this(VERTEX_SHADER, fragmentShader);
@@ -54,6 +55,24 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
         setRotation(Rotation.NORMAL, false, false);
     }
 
+    @Override
+    public GPUImageTwoInputFilter copy() {
+        GPUImageTwoInputFilter copy = (GPUImageTwoInputFilter) super.copy();
+        copy.mFilterSourceTexture2 = OpenGlUtils.NO_TEXTURE;
+        copy.mTexture2CoordinatesBuffer = mTexture2CoordinatesBuffer.duplicate()
+                .order(ByteOrder.nativeOrder());
+        return copy;
+    }
+
+    /**
+     * Blends read the second image at the same position, which depends on
+     * where the pixel lies in the image.
+     */
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(false, true);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
@@ -75,6 +94,7 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
         if (mBitmap == null) {
             return;
         }
+        mSharedTexture2 = OpenGlUtils.NO_TEXTURE;
         runOnDraw(new Runnable() {
             public void run() {
                 if (mFilterSourceTexture2 == OpenGlUtils.NO_TEXTURE) {
@@ -88,6 +108,20 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
         });
     }
 
+    /**
+     * Uses a texture uploaded once for several contexts, e.g. by
+     * {@link OffscreenRendererPool#shareTexture(Bitmap)}, as the second input
+     * instead of uploading a bitmap into each context. The filter and its
+     * copies never delete the texture.
+     *
+     * @param texture a texture of a context sharing objects with the one the
+     *                filter is drawn with
+     */
+    public void setSharedTexture(final int texture) {
+        mSharedTexture2 = texture;
+        mBitmap = null;
+    }
+
     public Bitmap getBitmap() {
         return mBitmap;
     }
@@ -111,7 +145,8 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
     protected void onDrawArraysPre() {
         GLES20.glEnableVertexAttribArray(mFilterSecondTextureCoordinateAttribute);
         GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFilterSourceTexture2);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mSharedTexture2 != OpenGlUtils.NO_TEXTURE
+                ? mSharedTexture2 : mFilterSourceTexture2);
         GLES20.glUniform1i(mFilterInputTextureUniform2, 3);
 
         mTexture2CoordinatesBuffer.position(0);
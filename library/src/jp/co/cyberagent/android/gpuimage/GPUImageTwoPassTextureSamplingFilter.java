@@ -19,6 +19,8 @@ package jp.co.cyberagent.android.gpuimage;
 import android.opengl.GLES20;
 
 public class GPUImageTwoPassTextureSamplingFilter extends GPUImageTwoPassFilter {
+    protected static final String TASK_INIT_TEXEL_OFFSETS = "init texel offsets";
+
     public GPUImageTwoPassTextureSamplingFilter(String firstVertexShader, String firstFragmentShader,
                                                 String secondVertexShader, String secondFragmentShader) {
         super(firstVertexShader, firstFragmentShader,
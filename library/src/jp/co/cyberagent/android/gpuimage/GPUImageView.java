@@ -23,7 +23,6 @@ import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
-import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.os.*;
 import android.util.AttributeSet;
@@ -35,7 +34,6 @@ import android.widget.ProgressBar;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.nio.IntBuffer;
 import java.util.concurrent.Semaphore;
 
 public class GPUImageView extends FrameLayout {
@@ -43,6 +41,7 @@ public class GPUImageView extends FrameLayout {
     private GLSurfaceView mGLSurfaceView;
     private GPUImage mGPUImage;
     private GPUImageFilter mFilter;
+    private final PixelReader mPixelReader = new PixelReader();
     public Size mForceSize = null;
     private float mRatio = 0.0f;
 
@@ -181,7 +180,21 @@ public class GPUImageView extends FrameLayout {
     }
 
     public void requestRender() {
-        mGLSurfaceView.requestRender();
+        mGPUImage.requestRender();
+    }
+
+    /**
+     * Starts an interactive adjustment, see {@link GPUImage#beginInteraction()}.
+     */
+    public void beginInteraction() {
+        mGPUImage.beginInteraction();
+    }
+
+    /**
+     * Ends an interactive adjustment, see {@link GPUImage#endInteraction()}.
+     */
+    public void endInteraction() {
+        mGPUImage.endInteraction();
     }
 
     /**
@@ -304,29 +317,18 @@ public class GPUImageView extends FrameLayout {
         final int height = mGLSurfaceView.getMeasuredHeight();
 
         // Take picture on OpenGL thread
-        final int[] pixelMirroredArray = new int[width * height];
+        final Bitmap[] bitmap = new Bitmap[1];
         mGPUImage.runOnGLThread(new Runnable() {
             @Override
             public void run() {
-                final IntBuffer pixelBuffer = IntBuffer.allocate(width * height);
-                GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixelBuffer);
-                int[] pixelArray = pixelBuffer.array();
-
-                // Convert upside down mirror-reversed image to right-side up normal image.
-                for (int i = 0; i < height; i++) {
-                    for (int j = 0; j < width; j++) {
-                        pixelMirroredArray[(height - i - 1) * width + j] = pixelArray[i * width + j];
-                    }
-                }
+                bitmap[0] = mPixelReader.readFramebuffer(width, height, null);
                 waiter.release();
             }
         });
         requestRender();
         waiter.acquire();
 
-        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        bitmap.copyPixelsFromBuffer(IntBuffer.wrap(pixelMirroredArray));
-        return bitmap;
+        return bitmap[0];
     }
 
     /**
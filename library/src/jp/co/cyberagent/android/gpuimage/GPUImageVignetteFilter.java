@@ -71,6 +71,19 @@ public class GPUImageVignetteFilter extends GPUImageFilter {
         
     }
 
+    @Override
+    public GPUImageVignetteFilter copy() {
+        GPUImageVignetteFilter copy = (GPUImageVignetteFilter) super.copy();
+        copy.mVignetteCenter = new PointF(mVignetteCenter.x, mVignetteCenter.y);
+        copy.mVignetteColor = mVignetteColor.clone();
+        return copy;
+    }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(false, true);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
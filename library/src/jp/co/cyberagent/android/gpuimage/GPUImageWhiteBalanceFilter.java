@@ -68,6 +68,11 @@ public class GPUImageWhiteBalanceFilter extends GPUImageFilter {
         mTint = tint;
     }
 
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(true, false);
+    }
+
     @Override
     public void onInit() {
         super.onInit();
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Converts YUV frames to RGB on the GPU. The luma plane is uploaded as a
+ * GL_LUMINANCE texture, the chroma planes as one GL_LUMINANCE_ALPHA texture
+ * (NV21, NV12) or two GL_LUMINANCE textures (I420, YV12), i.e. 1.5 bytes per
+ * pixel, and the fragment shader converts them. The texture passed to
+ * {@link #onDraw} is ignored, the last uploaded frame is drawn instead.
+ * <br>
+ * Use it as the first filter of a chain, see {@link #setFrame} and
+ * {@link #uploadFrame}.
+ */
+public class GPUImageYUVInputFilter extends GPUImageFilter {
+
+    public enum Format {
+        /** Y plane followed by interleaved V and U, the camera preview default. */
+        NV21,
+        /** Y plane followed by interleaved U and V. */
+        NV12,
+        /** Y plane followed by the U plane and the V plane. */
+        I420,
+        /** Y plane followed by the V plane and the U plane. */
+        YV12
+    }
+
+    public enum ColorSpace {
+        BT601,
+        BT709
+    }
+
+    private static final String TASK_UPLOAD_FRAME = "upload frame";
+
+    private static final String SEMI_PLANAR_FRAGMENT_SHADER = "" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform sampler2D chromaTexture;\n" +
+            "uniform mediump mat3 colorConversion;\n" +
+            "uniform mediump vec3 colorOffset;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    mediump vec3 yuv;\n" +
+            "    yuv.x = texture2D(inputImageTexture, textureCoordinate).r;\n" +
+            "    yuv.yz = texture2D(chromaTexture, textureCoordinate).%s;\n" +
+            "    gl_FragColor = vec4(colorConversion * (yuv - colorOffset), 1.0);\n" +
+            "}";
+
+    private static final String PLANAR_FRAGMENT_SHADER = "" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform sampler2D chromaTexture;\n" +
+            "uniform sampler2D chromaTexture2;\n" +
+            "uniform mediump mat3 colorConversion;\n" +
+            "uniform mediump vec3 colorOffset;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    mediump vec3 yuv;\n" +
+            "    yuv.x = texture2D(inputImageTexture, textureCoordinate).r;\n" +
+            "    yuv.y = texture2D(chromaTexture, textureCoordinate).r;\n" +
+            "    yuv.z = texture2D(chromaTexture2, textureCoordinate).r;\n" +
+            "    gl_FragColor = vec4(colorConversion * (yuv - colorOffset), 1.0);\n" +
+            "}";
+
+    // Column major, the columns are the contributions of Y, U and V
+    private static final float[] BT601_LIMITED = {
+            1.164f, 1.164f, 1.164f,
+            0.0f, -0.392f, 2.017f,
+            1.596f, -0.813f, 0.0f
+    };
+    private static final float[] BT601_FULL = {
+            1.0f, 1.0f, 1.0f,
+            0.0f, -0.344f, 1.772f,
+            1.402f, -0.714f, 0.0f
+    };
+    private static final float[] BT709_LIMITED = {
+            1.164f, 1.164f, 1.164f,
+            0.0f, -0.213f, 2.112f,
+            1.793f, -0.533f, 0.0f
+    };
+    private static final float[] BT709_FULL = {
+            1.0f, 1.0f, 1.0f,
+            0.0f, -0.187f, 1.856f,
+            1.575f, -0.468f, 0.0f
+    };
+    private static final float[] LIMITED_OFFSET = {16.0f / 255.0f, 0.5f, 0.5f};
+    private static final float[] FULL_OFFSET = {0.0f, 0.5f, 0.5f};
+
+    private final Format mFormat;
+    private ColorSpace mColorSpace;
+    private boolean mFullRange;
+
+    private int mChromaTextureLocation;
+    private int mChromaTexture2Location;
+    private int mColorConversionLocation;
+    private int mColorOffsetLocation;
+
+    private int[] mPlaneTextures = {
+            OpenGlUtils.NO_TEXTURE, OpenGlUtils.NO_TEXTURE, OpenGlUtils.NO_TEXTURE
+    };
+    private int mFrameWidth;
+    private int mFrameHeight;
+
+    public GPUImageYUVInputFilter() {
+        this(Format.NV21);
+    }
+
+    public GPUImageYUVInputFilter(final Format format) {
+        this(format, ColorSpace.BT601, false);
+    }
+
+    /**
+     * @param format     the layout of the frames
+     * @param colorSpace the matrix the frames were encoded with
+     * @param fullRange  true if luma spans 0-255, false for 16-235
+     */
+    public GPUImageYUVInputFilter(final Format format, final ColorSpace colorSpace,
+                                  final boolean fullRange) {
+        super(NO_FILTER_VERTEX_SHADER, getFragmentShader(format));
+        mFormat = format;
+        mColorSpace = colorSpace;
+        mFullRange = fullRange;
+    }
+
+    private static String getFragmentShader(final Format format) {
+        switch (format) {
+            case NV21:
+                // Luminance holds V, alpha holds U
+                return String.format(SEMI_PLANAR_FRAGMENT_SHADER, "ar");
+            case NV12:
+                return String.format(SEMI_PLANAR_FRAGMENT_SHADER, "ra");
+            default:
+                return PLANAR_FRAGMENT_SHADER;
+        }
+    }
+
+    @Override
+    public GPUImageYUVInputFilter copy() {
+        GPUImageYUVInputFilter copy = (GPUImageYUVInputFilter) super.copy();
+        copy.mPlaneTextures = new int[]{
+                OpenGlUtils.NO_TEXTURE, OpenGlUtils.NO_TEXTURE, OpenGlUtils.NO_TEXTURE
+        };
+        copy.mFrameWidth = 0;
+        copy.mFrameHeight = 0;
+        return copy;
+    }
+
+    @Override
+    public FilterTraits getTraits() {
+        return FilterTraits.pointWise(false, false);
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mChromaTextureLocation = GLES20.glGetUniformLocation(getProgram(), "chromaTexture");
+        mChromaTexture2Location = GLES20.glGetUniformLocation(getProgram(), "chromaTexture2");
+        mColorConversionLocation = GLES20.glGetUniformLocation(getProgram(), "colorConversion");
+        mColorOffsetLocation = GLES20.glGetUniformLocation(getProgram(), "colorOffset");
+    }
+
+    @Override
+    public void onInitialized() {
+        super.onInitialized();
+        setColorSpace(mColorSpace, mFullRange);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        GLES20.glDeleteTextures(mPlaneTextures.length, mPlaneTextures, 0);
+        for (int i = 0; i < mPlaneTextures.length; i++) {
+            mPlaneTextures[i] = OpenGlUtils.NO_TEXTURE;
+        }
+        mFrameWidth = 0;
+        mFrameHeight = 0;
+    }
+
+    public Format getFormat() {
+        return mFormat;
+    }
+
+    public ColorSpace getColorSpace() {
+        return mColorSpace;
+    }
+
+    public boolean isFullRange() {
+        return mFullRange;
+    }
+
+    /**
+     * @param colorSpace the matrix the frames were encoded with
+     * @param fullRange  true if luma spans 0-255, false for 16-235
+     */
+    public void setColorSpace(final ColorSpace colorSpace, final boolean fullRange) {
+        mColorSpace = colorSpace;
+        mFullRange = fullRange;
+        float[] conversion;
+        if (colorSpace == ColorSpace.BT709) {
+            conversion = fullRange ? BT709_FULL : BT709_LIMITED;
+        } else {
+            conversion = fullRange ? BT601_FULL : BT601_LIMITED;
+        }
+        setUniformMatrix3f(mColorConversionLocation, conversion);
+        setFloatVec3(mColorOffsetLocation, fullRange ? FULL_OFFSET : LIMITED_OFFSET);
+    }
+
+    /**
+     * Uploads a frame on the next draw. A frame set before the previous one
+     * was uploaded replaces it. The array must not be modified until then.
+     *
+     * @param data   the frame in the format of this filter
+     * @param width  the width of the frame
+     * @param height the height of the frame
+     */
+    public void setFrame(final byte[] data, final int width, final int height) {
+        runOnDraw(TASK_UPLOAD_FRAME, new Runnable() {
+            @Override
+            public void run() {
+                uploadFrame(data, width, height);
+            }
+        });
+    }
+
+    /**
+     * Uploads a frame right away. Has to be called on the GL thread, the array
+     * may be reused as soon as this returns.
+     *
+     * @param data   the frame in the format of this filter
+     * @param width  the width of the frame
+     * @param height the height of the frame
+     */
+    public void uploadFrame(final byte[] data, final int width, final int height) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int lumaSize = width * height;
+        int chromaSize = chromaWidth * chromaHeight;
+        boolean reallocate = width != mFrameWidth || height != mFrameHeight;
+        mFrameWidth = width;
+        mFrameHeight = height;
+
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        uploadPlane(0, GLES20.GL_LUMINANCE, width, height, data, 0, reallocate);
+        switch (mFormat) {
+            case NV21:
+            case NV12:
+                uploadPlane(1, GLES20.GL_LUMINANCE_ALPHA, chromaWidth, chromaHeight, data,
+                        lumaSize, reallocate);
+                break;
+            case I420:
+                uploadPlane(1, GLES20.GL_LUMINANCE, chromaWidth, chromaHeight, data,
+                        lumaSize, reallocate);
+                uploadPlane(2, GLES20.GL_LUMINANCE, chromaWidth, chromaHeight, data,
+                        lumaSize + chromaSize, reallocate);
+                break;
+            case YV12:
+                uploadPlane(2, GLES20.GL_LUMINANCE, chromaWidth, chromaHeight, data,
+                        lumaSize, reallocate);
+                uploadPlane(1, GLES20.GL_LUMINANCE, chromaWidth, chromaHeight, data,
+                        lumaSize + chromaSize, reallocate);
+                break;
+        }
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    }
+
+    private void uploadPlane(final int plane, final int format, final int width,
+                             final int height, final byte[] data, final int offset,
+                             final boolean reallocate) {
+        ByteBuffer pixels = ByteBuffer.wrap(data);
+        pixels.position(offset);
+        if (mPlaneTextures[plane] == OpenGlUtils.NO_TEXTURE) {
+            int[] textures = new int[1];
+            GLES20.glGenTextures(1, textures, 0);
+            mPlaneTextures[plane] = textures[0];
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                    GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                    GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                    GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                    GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0, format,
+                    GLES20.GL_UNSIGNED_BYTE, pixels);
+            return;
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mPlaneTextures[plane]);
+        if (reallocate) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0, format,
+                    GLES20.GL_UNSIGNED_BYTE, pixels);
+        } else {
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width, height, format,
+                    GLES20.GL_UNSIGNED_BYTE, pixels);
+        }
+    }
+
+    /**
+     * @return the width of the last uploaded frame, 0 before the first one
+     */
+    public int getFrameWidth() {
+        return mFrameWidth;
+    }
+
+    /**
+     * @return the height of the last uploaded frame, 0 before the first one
+     */
+    public int getFrameHeight() {
+        return mFrameHeight;
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer, final float[] textureMatrix) {
+        super.onDraw(mPlaneTextures[0], cubeBuffer, textureBuffer, textureMatrix);
+    }
+
+    @Override
+    protected void onDrawArraysPre() {
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mPlaneTextures[1]);
+        GLES20.glUniform1i(mChromaTextureLocation, 3);
+        if (mChromaTexture2Location != -1) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE4);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mPlaneTextures[2]);
+            GLES20.glUniform1i(mChromaTexture2Location, 4);
+        }
+    }
+}
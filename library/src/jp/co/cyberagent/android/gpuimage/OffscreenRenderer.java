@@ -0,0 +1,712 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.egl.EGLSurface;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+
+/**
+ * Renders filtered bitmaps without a view. Unlike {@link PixelBuffer}, which
+ * sets up and tears down EGL for every image, one OffscreenRenderer owns a
+ * single EGL context on a dedicated thread for its whole lifetime and renders
+ * into pooled framebuffers of the requested size, so batch exports pay the EGL
+ * setup once. Each request is drawn exactly once.
+ * <br>
+ * The context is surfaceless where EGL_KHR_surfaceless_context is supported
+ * and uses a 1x1 pbuffer otherwise. Linked programs stay in the context's
+ * {@link ShaderProgramCache} between requests.
+ * <br>
+ * {@link #submit} queues a request without blocking. At most
+ * {@link #setMaxInFlightRequests(int)} submitted requests are queued or
+ * running at a time, further ones are rejected instead of piling up bitmaps.
+ * <br>
+ * Images larger than the maximum texture size are rendered in tiles, see
+ * {@link #renderTiled(Bitmap, GPUImageFilter, int, int)}.
+ */
+public class OffscreenRenderer {
+    private static final String TAG = "OffscreenRenderer";
+    private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+    private static final int EGL_OPENGL_ES2_BIT = 4;
+
+    public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 2;
+
+    private static OffscreenRenderer sInstance;
+
+    // Null when drawing with a pixel buffer on its own thread
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Thread mOwner;
+    private EGL10 mEGL;
+    private EGLDisplay mEGLDisplay;
+    private EGLContext mEGLContext;
+    private EGLSurface mEGLSurface = EGL10.EGL_NO_SURFACE;
+    private boolean mReleased;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicInteger mInFlightRequests = new AtomicInteger();
+    private volatile int mMaxInFlightRequests = DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+
+    private final FloatBuffer mGLCubeBuffer;
+    private final FloatBuffer mGLTextureBuffer;
+    private final PixelReader mPixelReader = new PixelReader();
+
+    // Last uploaded input, reused while the same unmodified bitmap is rendered
+    private Bitmap mInputBitmap;
+    private int mInputGenerationId;
+    private int mInputTexture = OpenGlUtils.NO_TEXTURE;
+    private int mMaxTileSize;
+
+    /**
+     * Returns the renderer shared by the whole process, creating it if
+     * necessary.
+     *
+     * @return the shared renderer
+     */
+    public static synchronized OffscreenRenderer getInstance() {
+        if (sInstance == null) {
+            sInstance = new OffscreenRenderer();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a renderer with its own thread and EGL context. Most callers
+     * should use {@link #getInstance()} instead.
+     */
+    public OffscreenRenderer() {
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mOwner = mThread;
+
+        mGLCubeBuffer = createCubeBuffer();
+        mGLTextureBuffer = createTextureBuffer();
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    setUpEGL();
+                } catch (RuntimeException e) {
+                    // Requests fail with an IllegalStateException from now on
+                    Log.e(TAG, "Could not set up EGL", e);
+                    mEGLContext = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates a renderer drawing with the context of the pixel buffer, on the
+     * thread that created the buffer, instead of on a thread of its own. It
+     * must only be used on that thread; {@link #submit} is not supported.
+     * {@link #release()} leaves the pixel buffer to its owner.
+     *
+     * @param pixelBuffer a pixel buffer whose context is current on the
+     *                    calling thread
+     */
+    OffscreenRenderer(final PixelBuffer pixelBuffer) {
+        mThread = null;
+        mHandler = null;
+        mOwner = Thread.currentThread();
+        mGLCubeBuffer = createCubeBuffer();
+        mGLTextureBuffer = createTextureBuffer();
+        mEGL = pixelBuffer.mEGL;
+        mEGLDisplay = pixelBuffer.mEGLDisplay;
+        mEGLContext = pixelBuffer.mEGLContext;
+        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+    }
+
+    /**
+     * Applies the filter to the bitmap and returns the result in a new bitmap
+     * of the same size. Blocks until the result is ready.
+     *
+     * @param bitmap the input image
+     * @param filter the filter; it is initialized for this renderer's context
+     *               and destroyed again afterwards, so it must not be in use
+     *               by another renderer at the same time
+     * @return the filtered image
+     * @throws IllegalArgumentException if the image is larger than the
+     *                                  maximum texture size and the filter
+     *                                  cannot be rendered in tiles, see
+     *                                  {@link #renderTiled(Bitmap, GPUImageFilter, int, int)}
+     */
+    public Bitmap render(final Bitmap bitmap, final GPUImageFilter filter) {
+        return render(bitmap, filter, false, false);
+    }
+
+    /**
+     * Like {@link #render(Bitmap, GPUImageFilter)}, with the input flipped.
+     *
+     * @param bitmap         the input image
+     * @param filter         the filter
+     * @param flipHorizontal whether to mirror the input horizontally
+     * @param flipVertical   whether to mirror the input vertically
+     * @return the filtered image
+     */
+    public Bitmap render(final Bitmap bitmap, final GPUImageFilter filter,
+                         final boolean flipHorizontal, final boolean flipVertical) {
+        return render(bitmap, filter, flipHorizontal, flipVertical, null);
+    }
+
+    /**
+     * Like {@link #render(Bitmap, GPUImageFilter, boolean, boolean)}, writing
+     * the result into the given bitmap if possible. Reusing one output bitmap
+     * for a series of same-sized images avoids allocating a new one each time.
+     *
+     * @param bitmap         the input image
+     * @param filter         the filter
+     * @param flipHorizontal whether to mirror the input horizontally
+     * @param flipVertical   whether to mirror the input vertically
+     * @param output         a mutable ARGB_8888 bitmap of the input's size, or
+     *                       null
+     * @return the filtered image, either output or a new bitmap
+     */
+    public Bitmap render(final Bitmap bitmap, final GPUImageFilter filter,
+                         final boolean flipHorizontal, final boolean flipVertical,
+                         final Bitmap output) {
+        return runOnThread(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                return renderOnThread(bitmap, filter, flipHorizontal, flipVertical, output);
+            }
+        });
+    }
+
+    /**
+     * Applies the filter to the bitmap one tile at a time, so neither the
+     * input nor the output has to fit into a texture and GPU memory use is
+     * bounded by the tile size. Each tile is rendered with an apron of
+     * neighbouring pixels which is cut off again, so filters sampling at most
+     * that many pixels away, e.g. blurs or edge detection, show no seams.
+     * Sampling offsets that scale with the image, see
+     * {@link GPUImageFilter#setImageSize(int, int)}, keep the size they have
+     * on the whole image.
+     * <br>
+     * {@link #render(Bitmap, GPUImageFilter)} falls back to this for images
+     * above the maximum texture size, with the radius of the filter's
+     * {@link GPUImageFilter#getTraits() traits} as the apron.
+     *
+     * @param bitmap   the input image
+     * @param filter   the filter
+     * @param tileSize the size of the tiles without the apron; reduced if the
+     *                 tiles would not fit into a texture
+     * @param apron    the sampling radius of the filter in pixels
+     * @return the filtered image
+     * @throws IllegalArgumentException if the filter's traits are position
+     *                                  dependent or unbounded, e.g. a vignette
+     *                                  or a distortion, or their radius is
+     *                                  larger than the apron
+     */
+    public Bitmap renderTiled(final Bitmap bitmap, final GPUImageFilter filter,
+                              final int tileSize, final int apron) {
+        return runOnThread(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                if (mEGLContext == null) {
+                    throw new IllegalStateException("No EGL context");
+                }
+                filter.init();
+                try {
+                    filter.onOutputSizeChanged(bitmap.getWidth(), bitmap.getHeight());
+                    return renderTiledOnThread(bitmap, filter, false, false, null, tileSize,
+                            apron);
+                } finally {
+                    filter.destroy();
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues the filter to be applied to the bitmap and returns immediately.
+     * The listener, if any, is called on the main thread with the result, or
+     * with null if rendering failed; it is not called for a request that was
+     * cancelled. Cancelling a request that is already being drawn lets the
+     * draw finish and drops its result.
+     *
+     * @param bitmap         the input image
+     * @param filter         the filter; it is owned by this renderer until the
+     *                       request is done, see {@link GPUImageFilter#copy()}
+     *                       to render a filter that is shown on screen
+     * @param flipHorizontal whether to mirror the input horizontally
+     * @param flipVertical   whether to mirror the input vertically
+     * @param listener       the listener to call, or null
+     * @return the pending result
+     * @throws RejectedExecutionException if the maximum number of requests is
+     *                                    already in flight
+     */
+    public Future<Bitmap> submit(final Bitmap bitmap, final GPUImageFilter filter,
+                                 final boolean flipHorizontal, final boolean flipVertical,
+                                 final GPUImage.ResponseListener<Bitmap> listener) {
+        if (mHandler == null) {
+            throw new UnsupportedOperationException("Renders on the pixel buffer's thread");
+        }
+        if (mInFlightRequests.incrementAndGet() > mMaxInFlightRequests) {
+            mInFlightRequests.decrementAndGet();
+            throw new RejectedExecutionException("Too many requests in flight");
+        }
+        Request request = new Request(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                return renderOnThread(bitmap, filter, flipHorizontal, flipVertical, null);
+            }
+        }, listener);
+        synchronized (this) {
+            if (mReleased) {
+                mInFlightRequests.decrementAndGet();
+                throw new IllegalStateException("OffscreenRenderer was released");
+            }
+            mHandler.post(request);
+        }
+        return request;
+    }
+
+    /**
+     * Sets how many submitted requests may be queued or running at a time.
+     *
+     * @param maxInFlightRequests the limit, at least 1
+     */
+    public void setMaxInFlightRequests(final int maxInFlightRequests) {
+        if (maxInFlightRequests < 1) {
+            throw new IllegalArgumentException("maxInFlightRequests must be at least 1");
+        }
+        mMaxInFlightRequests = maxInFlightRequests;
+    }
+
+    /**
+     * @return number of submitted requests that are queued or running
+     */
+    public int getInFlightRequestCount() {
+        return mInFlightRequests.get();
+    }
+
+    /**
+     * Runs the task on this renderer's GL thread with its context current and
+     * waits for the result.
+     *
+     * @param task the task
+     * @return the result of the task
+     * @throws RuntimeException caused by an {@link InterruptedException} if the
+     *                          calling thread is interrupted while waiting; the
+     *                          task is cancelled unless it already started and
+     *                          the interrupt flag stays set
+     */
+    public <T> T runOnThread(final Callable<T> task) {
+        if (Thread.currentThread() == mOwner) {
+            try {
+                return task.call();
+            } catch (Exception e) {
+                throw rethrow(e);
+            }
+        }
+        if (mHandler == null) {
+            throw new IllegalStateException("Not on the pixel buffer's thread");
+        }
+        FutureTask<T> future = new FutureTask<T>(task);
+        synchronized (this) {
+            if (mReleased) {
+                throw new IllegalStateException("OffscreenRenderer was released");
+            }
+            mHandler.post(future);
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw rethrow(e);
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * Tears down the context and stops the thread once pending requests are
+     * done. Releasing the shared instance makes {@link #getInstance()} create a
+     * new one on the next call.
+     */
+    public void release() {
+        synchronized (OffscreenRenderer.class) {
+            if (sInstance == this) {
+                sInstance = null;
+            }
+        }
+        synchronized (this) {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            if (mHandler == null) {
+                // Called on the owner thread, the context stays with the pixel buffer
+                deleteInput();
+                mPixelReader.release();
+                mEGLContext = null;
+                return;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    tearDownEGL();
+                    mThread.quit();
+                }
+            });
+        }
+    }
+
+    /**
+     * A submitted request. Cancelling it takes it off the GL thread's queue
+     * but never interrupts a draw in progress.
+     */
+    private class Request extends FutureTask<Bitmap> {
+        private final GPUImage.ResponseListener<Bitmap> mListener;
+
+        Request(final Callable<Bitmap> callable, final GPUImage.ResponseListener<Bitmap> listener) {
+            super(callable);
+            mListener = listener;
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            mHandler.removeCallbacks(this);
+            return super.cancel(false);
+        }
+
+        @Override
+        protected void done() {
+            mInFlightRequests.decrementAndGet();
+            if (mListener == null || isCancelled()) {
+                return;
+            }
+            Bitmap result = null;
+            try {
+                result = get();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Could not render", e.getCause());
+            } catch (InterruptedException e) {
+                // Not reached, the request is done
+            }
+            final Bitmap response = result;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.response(response);
+                }
+            });
+        }
+    }
+
+    private Bitmap renderOnThread(final Bitmap bitmap, final GPUImageFilter filter,
+                                  final boolean flipHorizontal, final boolean flipVertical,
+                                  final Bitmap output) {
+        if (mEGLContext == null) {
+            throw new IllegalStateException("No EGL context");
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        filter.init();
+        try {
+            filter.onOutputSizeChanged(width, height);
+            int maxSize = getMaxTileSize();
+            if (width > maxSize || height > maxSize) {
+                // Sized first, the radii of some filters depend on the image size
+                FilterTraits traits = filter.getTraits();
+                return renderTiledOnThread(bitmap, filter, flipHorizontal, flipVertical, output,
+                        maxSize, traits.isBounded() ? traits.getRadius() : 0);
+            }
+            int texture = uploadInput(bitmap);
+            mGLTextureBuffer.clear();
+            mGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.NORMAL,
+                    flipHorizontal, flipVertical)).position(0);
+
+            filter.prepareForDraw();
+
+            FramebufferPool.Framebuffer framebuffer = FramebufferPool.getInstance()
+                    .obtain(width, height);
+            try {
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer.getFramebufferId());
+                try {
+                    GLES20.glViewport(0, 0, width, height);
+                    GLES20.glClearColor(0, 0, 0, 0);
+                    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+                    filter.onDraw(texture, mGLCubeBuffer, mGLTextureBuffer);
+                } finally {
+                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+                }
+                return mPixelReader.readTexture(framebuffer.getTextureId(), width, height,
+                        output);
+            } finally {
+                framebuffer.unlock();
+            }
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    /**
+     * Draws the tiles of an image with a filter that was initialized and sized
+     * to the whole image. The caller destroys the filter.
+     */
+    private Bitmap renderTiledOnThread(final Bitmap bitmap, final GPUImageFilter filter,
+                                       final boolean flipHorizontal, final boolean flipVertical,
+                                       final Bitmap output, final int tileSize, final int apron) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        FilterTraits traits = filter.getTraits();
+        if (traits.isPositionDependent()) {
+            throw new IllegalArgumentException(filter.getClass().getSimpleName()
+                    + " depends on the position in the image and cannot be rendered in tiles");
+        }
+        if (apron < traits.getRadius()) {
+            throw new IllegalArgumentException("The apron must be at least the sampling radius "
+                    + traits.getRadius());
+        }
+        int step = Math.min(tileSize + 2 * apron, getMaxTileSize()) - 2 * apron;
+        if (step <= 0) {
+            throw new IllegalArgumentException("Invalid apron " + apron);
+        }
+        // Only one tile is on the GPU at a time
+        deleteInput();
+        mGLTextureBuffer.clear();
+        mGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.NORMAL,
+                flipHorizontal, flipVertical)).position(0);
+
+        Bitmap result = output;
+        if (result == null || result.isRecycled() || !result.isMutable()
+                || result.getWidth() != width || result.getHeight() != height) {
+            result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        Canvas canvas = new Canvas(result);
+        // Tiles replace what a reused output bitmap contained
+        Paint paint = new Paint();
+        paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+
+        // Every tile is drawn from a source area of the same size, moved inwards
+        // at the right and bottom edges, so one bitmap, texture and framebuffer
+        // serve all tiles
+        int sourceWidth = Math.min(width, step + 2 * apron);
+        int sourceHeight = Math.min(height, step + 2 * apron);
+        Bitmap source = Bitmap.createBitmap(sourceWidth, sourceHeight, Bitmap.Config.ARGB_8888);
+        Canvas sourceCanvas = new Canvas(source);
+        Rect sourceBounds = new Rect(0, 0, sourceWidth, sourceHeight);
+        Rect from = new Rect();
+        Rect to = new Rect();
+        int texture = OpenGlUtils.NO_TEXTURE;
+        Bitmap tile = null;
+
+        // Offsets relative to the image keep their size in each tile
+        filter.setImageSize(width, height);
+        filter.onOutputSizeChanged(sourceWidth, sourceHeight);
+        filter.prepareForDraw();
+        FramebufferPool.Framebuffer framebuffer = FramebufferPool.getInstance()
+                .obtain(sourceWidth, sourceHeight);
+        try {
+            for (int y = 0; y < height; y += step) {
+                for (int x = 0; x < width; x += step) {
+                    int tileWidth = Math.min(step, width - x);
+                    int tileHeight = Math.min(step, height - y);
+                    // The source area in output coordinates, covering the tile and its apron
+                    int left = Math.min(Math.max(0, x - apron), width - sourceWidth);
+                    int top = Math.min(Math.max(0, y - apron), height - sourceHeight);
+                    // A flipped input is read from the mirrored area
+                    int inputLeft = flipHorizontal ? width - sourceWidth - left : left;
+                    int inputTop = flipVertical ? height - sourceHeight - top : top;
+                    from.set(inputLeft, inputTop, inputLeft + sourceWidth, inputTop + sourceHeight);
+                    sourceCanvas.drawBitmap(bitmap, from, sourceBounds, paint);
+                    texture = OpenGlUtils.loadTexture(source, texture, false);
+
+                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer.getFramebufferId());
+                    GLES20.glViewport(0, 0, sourceWidth, sourceHeight);
+                    GLES20.glClearColor(0, 0, 0, 0);
+                    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+                    filter.onDraw(texture, mGLCubeBuffer, mGLTextureBuffer);
+                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+                    tile = mPixelReader.readTexture(framebuffer.getTextureId(), sourceWidth,
+                            sourceHeight, tile);
+
+                    from.set(x - left, y - top, x - left + tileWidth, y - top + tileHeight);
+                    to.set(x, y, x + tileWidth, y + tileHeight);
+                    canvas.drawBitmap(tile, from, to, paint);
+                }
+            }
+        } finally {
+            framebuffer.unlock();
+            filter.setImageSize(0, 0);
+            if (texture != OpenGlUtils.NO_TEXTURE) {
+                GLES20.glDeleteTextures(1, new int[]{texture}, 0);
+            }
+            source.recycle();
+            if (tile != null) {
+                tile.recycle();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the largest texture and viewport size of this context
+     */
+    private int getMaxTileSize() {
+        if (mMaxTileSize == 0) {
+            int[] value = new int[2];
+            GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, value, 0);
+            int maxSize = value[0];
+            GLES20.glGetIntegerv(GLES20.GL_MAX_VIEWPORT_DIMS, value, 0);
+            mMaxTileSize = Math.min(maxSize, Math.min(value[0], value[1]));
+        }
+        return mMaxTileSize;
+    }
+
+    private int uploadInput(final Bitmap bitmap) {
+        if (bitmap == mInputBitmap && bitmap.getGenerationId() == mInputGenerationId
+                && mInputTexture != OpenGlUtils.NO_TEXTURE) {
+            return mInputTexture;
+        }
+        deleteInput();
+        mPixelReader.release();
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            // Rows of other formats may not match the default unpack alignment
+            Bitmap converted = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+            mInputTexture = OpenGlUtils.loadTexture(converted, OpenGlUtils.NO_TEXTURE, true);
+        } else {
+            mInputTexture = OpenGlUtils.loadTexture(bitmap, OpenGlUtils.NO_TEXTURE, false);
+        }
+        mInputBitmap = bitmap;
+        mInputGenerationId = bitmap.getGenerationId();
+        return mInputTexture;
+    }
+
+    private void deleteInput() {
+        if (mInputTexture != OpenGlUtils.NO_TEXTURE) {
+            GLES20.glDeleteTextures(1, new int[]{mInputTexture}, 0);
+            mInputTexture = OpenGlUtils.NO_TEXTURE;
+        }
+        mInputBitmap = null;
+    }
+
+    private static FloatBuffer createCubeBuffer() {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        buffer.put(CUBE).position(0);
+        return buffer;
+    }
+
+    private static FloatBuffer createTextureBuffer() {
+        return ByteBuffer.allocateDirect(TextureRotationUtil.TEXTURE_NO_ROTATION.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+
+    private void setUpEGL() {
+        mEGL = (EGL10) EGLContext.getEGL();
+        mEGLDisplay = mEGL.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        mEGL.eglInitialize(mEGLDisplay, version);
+
+        int[] attribList = new int[]{
+                EGL10.EGL_RED_SIZE, 8,
+                EGL10.EGL_GREEN_SIZE, 8,
+                EGL10.EGL_BLUE_SIZE, 8,
+                EGL10.EGL_ALPHA_SIZE, 8,
+                EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+                EGL10.EGL_SURFACE_TYPE, EGL10.EGL_PBUFFER_BIT,
+                EGL10.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfig = new int[1];
+        if (!mEGL.eglChooseConfig(mEGLDisplay, attribList, configs, 1, numConfig)
+                || numConfig[0] == 0) {
+            throw new RuntimeException("No EGL config: " + GLUtils.getEGLErrorString(mEGL.eglGetError()));
+        }
+        mEGLContext = mEGL.eglCreateContext(mEGLDisplay, configs[0], EGL10.EGL_NO_CONTEXT,
+                new int[]{EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE});
+
+        String extensions = mEGL.eglQueryString(mEGLDisplay, EGL10.EGL_EXTENSIONS);
+        boolean surfaceless = extensions != null
+                && extensions.contains("EGL_KHR_surfaceless_context")
+                && mEGL.eglMakeCurrent(mEGLDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE,
+                mEGLContext);
+        if (!surfaceless) {
+            mEGLSurface = mEGL.eglCreatePbufferSurface(mEGLDisplay, configs[0],
+                    new int[]{EGL10.EGL_WIDTH, 1, EGL10.EGL_HEIGHT, 1, EGL10.EGL_NONE});
+            if (!mEGL.eglMakeCurrent(mEGLDisplay, mEGLSurface, mEGLSurface, mEGLContext)) {
+                throw new RuntimeException("GL Make current error: "
+                        + GLUtils.getEGLErrorString(mEGL.eglGetError()));
+            }
+        }
+        FramebufferPool.onContextCreated();
+        ShaderProgramCache.onContextCreated();
+        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+    }
+
+    private void tearDownEGL() {
+        if (mEGLContext == null) {
+            return;
+        }
+        deleteInput();
+        FramebufferPool.destroyInstance();
+        ShaderProgramCache.destroyInstance();
+        mEGL.eglMakeCurrent(mEGLDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE,
+                EGL10.EGL_NO_CONTEXT);
+        if (mEGLSurface != EGL10.EGL_NO_SURFACE) {
+            mEGL.eglDestroySurface(mEGLDisplay, mEGLSurface);
+        }
+        mEGL.eglDestroyContext(mEGLDisplay, mEGLContext);
+        // The display is not terminated, other contexts of the process may use it
+        mEGLContext = null;
+    }
+
+    private static RuntimeException rethrow(final Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new RuntimeException(t);
+    }
+}
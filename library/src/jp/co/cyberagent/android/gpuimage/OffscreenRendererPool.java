@@ -0,0 +1,546 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.microedition.khronos.egl.EGL10;
+
+/**
+ * Renders on several EGL contexts in parallel. Every worker of the pool is a
+ * thread with its own {@link PixelBuffer}, and decodes, renders and encodes
+ * its jobs on that thread, so the CPU work of one job does not wait for the
+ * GPU work of another.
+ * <br>
+ * The contexts of all workers are in one share group, whose first context
+ * lives on a loader thread of the pool:
+ * <ul>
+ * <li>Programs are linked once for all workers, the workers share one
+ * {@link ShaderProgramCache}. Uniform values belong to the program, so draws
+ * with the same program take turns, see
+ * {@link ShaderProgramCache#setSerializeDraws(boolean)}; only GPU work is
+ * serialized that way, never decoding, uploading or encoding.</li>
+ * <li>Lookup tables, overlays and other textures used by many jobs are
+ * uploaded once with {@link #shareTexture(Bitmap)}.</li>
+ * </ul>
+ * Each worker has its own deque of jobs. Jobs are spread over the deques in
+ * turn and a job submitted by a job goes to the deque of its worker. Workers
+ * take their own jobs from the front of their deque; a worker whose deque is
+ * empty steals from the back of another worker's deque, so a few slow jobs do
+ * not hold up the ones queued behind them.
+ */
+public class OffscreenRendererPool {
+    private static final String TAG = "OffscreenRendererPool";
+
+    public static final int DEFAULT_SIZE = 2;
+
+    /**
+     * Work done by a worker of the pool.
+     */
+    public interface Job<T> {
+        /**
+         * Called on the worker thread, with the worker's context current.
+         *
+         * @param renderer the renderer of the worker, to be used on the worker
+         *                 thread only, see {@link OffscreenRenderer#render} and
+         *                 {@link OffscreenRenderer#runOnThread}
+         * @return the result of the job
+         */
+        T run(OffscreenRenderer renderer) throws Exception;
+    }
+
+    /**
+     * Statistics of one worker.
+     */
+    public static class WorkerStats {
+        private final AtomicInteger mJobCount = new AtomicInteger();
+        private final AtomicInteger mFailedCount = new AtomicInteger();
+        private final AtomicInteger mStolenCount = new AtomicInteger();
+        private final AtomicLong mBusyNanos = new AtomicLong();
+
+        public int getJobCount() {
+            return mJobCount.get();
+        }
+
+        public int getFailedCount() {
+            return mFailedCount.get();
+        }
+
+        /**
+         * @return number of jobs taken from the deques of other workers
+         */
+        public int getStolenCount() {
+            return mStolenCount.get();
+        }
+
+        /**
+         * @return time spent running jobs in nanoseconds
+         */
+        public long getBusyNanos() {
+            return mBusyNanos.get();
+        }
+    }
+
+    private class Worker extends Thread {
+        final int mIndex;
+        final LinkedBlockingDeque<Task<?>> mDeque = new LinkedBlockingDeque<Task<?>>();
+        final WorkerStats mStats = new WorkerStats();
+        OffscreenRenderer mRenderer;
+
+        Worker(final int index) {
+            super(TAG + " #" + (index + 1));
+            mIndex = index;
+        }
+
+        OffscreenRendererPool getPool() {
+            return OffscreenRendererPool.this;
+        }
+
+        @Override
+        public void run() {
+            PixelBuffer pixelBuffer = null;
+            try {
+                pixelBuffer = checkContext(new PixelBuffer(1, 1, getSharedBuffer()));
+                mRenderer = new OffscreenRenderer(pixelBuffer);
+            } catch (Exception e) {
+                // Jobs fail with an IllegalStateException from now on
+                Log.e(TAG, "Could not set up EGL", e);
+            }
+            Task<?> task;
+            while ((task = next(this)) != null) {
+                task.runOn(this);
+            }
+            if (mRenderer != null) {
+                mRenderer.release();
+            }
+            if (pixelBuffer != null) {
+                pixelBuffer.destroy();
+            }
+            if (mLiveWorkers.decrementAndGet() == 0) {
+                tearDownSharedContext();
+            }
+        }
+    }
+
+    /**
+     * Runs a job with the renderer of the worker that took it, which is only
+     * known once a worker runs it.
+     */
+    private static class JobCallable<T> implements Callable<T> {
+        private final Job<T> mJob;
+        // Set and read on the worker thread
+        private Worker mWorker;
+
+        JobCallable(final Job<T> job) {
+            mJob = job;
+        }
+
+        @Override
+        public T call() throws Exception {
+            Worker worker = mWorker;
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                if (worker.mRenderer == null) {
+                    throw new IllegalStateException("No EGL context");
+                }
+                T result = mJob.run(worker.mRenderer);
+                succeeded = true;
+                return result;
+            } finally {
+                if (!succeeded) {
+                    worker.mStats.mFailedCount.incrementAndGet();
+                }
+                worker.mStats.mJobCount.incrementAndGet();
+                worker.mStats.mBusyNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static class Task<T> extends FutureTask<T> {
+        private final JobCallable<T> mCallable;
+
+        Task(final Job<T> job) {
+            this(new JobCallable<T>(job));
+        }
+
+        private Task(final JobCallable<T> callable) {
+            super(callable);
+            mCallable = callable;
+        }
+
+        /**
+         * Runs the job on the worker's thread, unless it was cancelled.
+         */
+        void runOn(final Worker worker) {
+            mCallable.mWorker = worker;
+            run();
+        }
+    }
+
+    private final Worker[] mWorkers;
+    private final Thread mLoader;
+    private final LinkedBlockingDeque<Runnable> mLoaderQueue = new LinkedBlockingDeque<Runnable>();
+    private final CountDownLatch mSharedBufferReady = new CountDownLatch(1);
+    private final CountDownLatch mTerminated = new CountDownLatch(1);
+    private final AtomicInteger mLiveWorkers;
+    private final AtomicInteger mNextWorker = new AtomicInteger();
+    private final AtomicInteger mQueuedCount = new AtomicInteger();
+    private final Object mLock = new Object();
+    private volatile boolean mShutdown;
+
+    // Owned by the loader thread
+    private PixelBuffer mSharedBuffer;
+    private final Set<Integer> mSharedTextures = new HashSet<Integer>();
+
+    public OffscreenRendererPool() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * @param size number of workers, each with its own EGL context. The
+     *             workers and the loader thread start right away.
+     */
+    public OffscreenRendererPool(final int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+        mLoader = new Thread(TAG + " loader") {
+            @Override
+            public void run() {
+                runLoader();
+            }
+        };
+        mLoader.start();
+        mLiveWorkers = new AtomicInteger(size);
+        mWorkers = new Worker[size];
+        for (int i = 0; i < size; i++) {
+            mWorkers[i] = new Worker(i);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Queues a job. It goes to the deque of the calling worker if called
+     * from a job, otherwise to the next worker's deque in turn; an idle
+     * worker steals it if its own worker is busy.
+     *
+     * @param job the job
+     * @return the future result of the job
+     * @throws RejectedExecutionException after {@link #shutdown()}
+     */
+    public <T> Future<T> submit(final Job<T> job) {
+        Task<T> task = new Task<T>(job);
+        Thread current = Thread.currentThread();
+        Worker worker;
+        if (current instanceof Worker && ((Worker) current).getPool() == this) {
+            worker = (Worker) current;
+        } else {
+            int next = mNextWorker.getAndIncrement() & Integer.MAX_VALUE;
+            worker = mWorkers[next % mWorkers.length];
+        }
+        synchronized (mLock) {
+            if (mShutdown) {
+                throw new RejectedExecutionException("OffscreenRendererPool was shut down");
+            }
+            worker.mDeque.addLast(task);
+            mQueuedCount.incrementAndGet();
+            mLock.notifyAll();
+        }
+        return task;
+    }
+
+    /**
+     * Queues a job that decodes the source, applies the filter and hands the
+     * result to the sink. Jobs of different workers run at the same time, so
+     * each job renders its own {@link GPUImageFilter#copy() copy} of the
+     * filter, taken right here; the copies share their programs and shared
+     * textures. Unlike {@link GPUImageBatchProcessor}, the pool does not
+     * recycle the decoded bitmap, so a source may return the same bitmap for
+     * several jobs.
+     *
+     * @param source the input of the job
+     * @param filter the filter to apply
+     * @param sink   the output of the job, or null
+     * @return the future result, the filtered bitmap
+     * @throws IllegalArgumentException if the filter cannot be copied, see
+     *                                  {@link GPUImageFilter#canCopy()}
+     */
+    public Future<Bitmap> submit(final GPUImageBatchProcessor.InputSource source,
+                                 final GPUImageFilter filter,
+                                 final GPUImageBatchProcessor.OutputSink sink) {
+        if (!filter.canCopy()) {
+            throw new IllegalArgumentException(filter.getClass().getSimpleName()
+                    + " cannot be copied");
+        }
+        final GPUImageFilter snapshot = filter.copy();
+        return submit(new Job<Bitmap>() {
+            @Override
+            public Bitmap run(final OffscreenRenderer renderer) throws Exception {
+                Bitmap output = renderer.render(source.decode(), snapshot);
+                if (sink != null) {
+                    sink.encode(output);
+                }
+                return output;
+            }
+        });
+    }
+
+    /**
+     * Uploads the bitmap into a texture visible to all workers, e.g. for
+     * {@link GPUImageTwoInputFilter#setSharedTexture(int)}. Blocks until the
+     * upload is done. The texture is deleted by
+     * {@link #deleteSharedTexture(int)} or once the pool terminates.
+     *
+     * @param bitmap the image to upload; it is not recycled
+     * @return the texture
+     * @throws InterruptedException if interrupted while waiting for the
+     *                              upload; a texture uploaded anyway is
+     *                              deleted once the pool terminates
+     */
+    public int shareTexture(final Bitmap bitmap) throws InterruptedException {
+        return runOnLoader(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int texture = OpenGlUtils.loadTexture(bitmap, OpenGlUtils.NO_TEXTURE, false);
+                // Other contexts may only sample it once the upload is complete
+                GLES20.glFinish();
+                mSharedTextures.add(texture);
+                return texture;
+            }
+        });
+    }
+
+    /**
+     * Deletes a texture created by {@link #shareTexture(Bitmap)}. No job
+     * may use it anymore.
+     *
+     * @param texture the texture
+     * @throws InterruptedException if interrupted while waiting for the
+     *                              texture to be deleted
+     */
+    public void deleteSharedTexture(final int texture) throws InterruptedException {
+        runOnLoader(new Callable<Void>() {
+            @Override
+            public Void call() {
+                if (mSharedTextures.remove(texture)) {
+                    GLES20.glDeleteTextures(1, new int[]{texture}, 0);
+                }
+                return null;
+            }
+        });
+    }
+
+    public int getSize() {
+        return mWorkers.length;
+    }
+
+    /**
+     * @return number of jobs waiting for a worker
+     */
+    public int getQueuedJobCount() {
+        return mQueuedCount.get();
+    }
+
+    /**
+     * @return the statistics of the workers, in the order they were started
+     */
+    public List<WorkerStats> getWorkerStats() {
+        List<WorkerStats> stats = new ArrayList<WorkerStats>(mWorkers.length);
+        for (Worker worker : mWorkers) {
+            stats.add(worker.mStats);
+        }
+        return stats;
+    }
+
+    /**
+     * Finishes the queued jobs and releases all contexts and shared textures
+     * afterwards. No further jobs are accepted.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until all jobs finished after {@link #shutdown()}.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the unit of the timeout
+     * @return true if all jobs finished, false if the timeout elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        return mTerminated.await(timeout, unit);
+    }
+
+    /**
+     * @return the next job of the worker, stolen from another worker if its
+     * own deque is empty, or null once the pool is shut down and all jobs
+     * are taken
+     */
+    private Task<?> next(final Worker worker) {
+        while (true) {
+            boolean stolen = false;
+            Task<?> task = worker.mDeque.pollFirst();
+            for (int i = 1; task == null && i < mWorkers.length; i++) {
+                task = mWorkers[(worker.mIndex + i) % mWorkers.length].mDeque.pollLast();
+                stolen = true;
+            }
+            if (task != null) {
+                mQueuedCount.decrementAndGet();
+                if (stolen) {
+                    worker.mStats.mStolenCount.incrementAndGet();
+                }
+                return task;
+            }
+            synchronized (mLock) {
+                // A positive count with empty deques means another worker is
+                // just taking the last job, look again
+                while (mQueuedCount.get() == 0) {
+                    if (mShutdown) {
+                        return null;
+                    }
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // Workers only stop through shutdown()
+                    }
+                }
+            }
+        }
+    }
+
+    private PixelBuffer getSharedBuffer() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mSharedBufferReady.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (mSharedBuffer == null) {
+            throw new IllegalStateException("No shared EGL context");
+        }
+        return mSharedBuffer;
+    }
+
+    private static PixelBuffer checkContext(final PixelBuffer pixelBuffer) {
+        // PixelBuffer does not check for errors itself
+        if (pixelBuffer.mEGLContext == EGL10.EGL_NO_CONTEXT
+                || pixelBuffer.mEGL.eglGetCurrentContext() != pixelBuffer.mEGLContext) {
+            throw new IllegalStateException("Could not create a context: "
+                    + GLUtils.getEGLErrorString(pixelBuffer.mEGL.eglGetError()));
+        }
+        return pixelBuffer;
+    }
+
+    private <T> T runOnLoader(final Callable<T> task) throws InterruptedException {
+        FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                if (mSharedBuffer == null) {
+                    throw new IllegalStateException("No shared EGL context");
+                }
+                return task.call();
+            }
+        });
+        synchronized (mLock) {
+            if (mShutdown) {
+                throw new RejectedExecutionException("OffscreenRendererPool was shut down");
+            }
+            mLoaderQueue.addLast(future);
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private void runLoader() {
+        try {
+            mSharedBuffer = checkContext(new PixelBuffer(1, 1, null));
+            ShaderProgramCache.getInstance().setSerializeDraws(true);
+        } catch (Exception e) {
+            Log.e(TAG, "Could not set up EGL", e);
+            mSharedBuffer = null;
+        }
+        mSharedBufferReady.countDown();
+        while (mTerminated.getCount() > 0) {
+            try {
+                mLoaderQueue.takeFirst().run();
+            } catch (InterruptedException e) {
+                // The loader only stops once the workers are done
+            }
+        }
+    }
+
+    /**
+     * Destroys the first context of the share group, with the programs and
+     * shared textures, after all workers destroyed theirs.
+     */
+    private void tearDownSharedContext() {
+        mLoaderQueue.addLast(new Runnable() {
+            @Override
+            public void run() {
+                if (mSharedBuffer != null) {
+                    for (int texture : mSharedTextures) {
+                        GLES20.glDeleteTextures(1, new int[]{texture}, 0);
+                    }
+                    mSharedTextures.clear();
+                    mSharedBuffer.destroy();
+                    mSharedBuffer = null;
+                }
+                mTerminated.countDown();
+            }
+        });
+    }
+}
@@ -19,10 +19,6 @@ import static javax.microedition.khronos.egl.EGL10.EGL_NO_CONTEXT;
 import static javax.microedition.khronos.egl.EGL10.EGL_RED_SIZE;
 import static javax.microedition.khronos.egl.EGL10.EGL_STENCIL_SIZE;
 import static javax.microedition.khronos.egl.EGL10.EGL_WIDTH;
-import static javax.microedition.khronos.opengles.GL10.GL_RGBA;
-import static javax.microedition.khronos.opengles.GL10.GL_UNSIGNED_BYTE;
-
-import java.nio.IntBuffer;
 
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
@@ -52,10 +48,34 @@ public class PixelBuffer {
     GL10 mGL;
 
     String mThreadOwner;
+    final PixelBuffer mSharedBuffer;
+    final boolean mTerminateDisplay;
+    final PixelReader mPixelReader = new PixelReader();
 
     public PixelBuffer(final int width, final int height) {
+        this(width, height, null, true);
+    }
+
+    /**
+     * Creates a pixel buffer whose context is in the share group of another
+     * one's, so both see the same textures and linked programs. Destroying it
+     * leaves the EGL display initialized for the other contexts.
+     *
+     * @param width        the width of the surface
+     * @param height       the height of the surface
+     * @param sharedBuffer the pixel buffer to share objects with, or null to
+     *                     start a new share group
+     */
+    public PixelBuffer(final int width, final int height, final PixelBuffer sharedBuffer) {
+        this(width, height, sharedBuffer, false);
+    }
+
+    private PixelBuffer(final int width, final int height, final PixelBuffer sharedBuffer,
+                        final boolean terminateDisplay) {
         mWidth = width;
         mHeight = height;
+        mSharedBuffer = sharedBuffer;
+        mTerminateDisplay = terminateDisplay;
 
         int[] version = new int[2];
         int[] attribList = new int[] {
@@ -78,13 +98,22 @@ public class PixelBuffer {
                 EGL_CONTEXT_CLIENT_VERSION, 2,
                 EGL10.EGL_NONE
         };
-        mEGLContext = mEGL.eglCreateContext(mEGLDisplay, mEGLConfig, EGL_NO_CONTEXT, attrib_list);
+        mEGLContext = mEGL.eglCreateContext(mEGLDisplay, mEGLConfig,
+                sharedBuffer != null ? sharedBuffer.mEGLContext : EGL_NO_CONTEXT, attrib_list);
 
         mEGLSurface = mEGL.eglCreatePbufferSurface(mEGLDisplay, mEGLConfig, attribList);
         mEGL.eglMakeCurrent(mEGLDisplay, mEGLSurface, mEGLSurface, mEGLContext);
 
         mGL = (GL10) mEGLContext.getGL();
 
+        // A destroyed context may have had the same handle
+        FramebufferPool.onContextCreated();
+        if (sharedBuffer != null) {
+            ShaderProgramCache.shareWith(sharedBuffer.mEGLContext);
+        } else {
+            ShaderProgramCache.onContextCreated();
+        }
+
         // Record thread owner of OpenGL context
         mThreadOwner = Thread.currentThread().getName();
     }
@@ -124,15 +153,30 @@ public class PixelBuffer {
         return mBitmap;
     }
 
+    /**
+     * Destroys the context. A pixel buffer sharing objects with another one
+     * has to be destroyed before that one, on the thread that created it.
+     */
     public void destroy() {
-        mRenderer.onDrawFrame(mGL);
-        mRenderer.onDrawFrame(mGL);
+        if (mRenderer != null) {
+            mRenderer.onDrawFrame(mGL);
+            mRenderer.onDrawFrame(mGL);
+        }
+        FramebufferPool.destroyInstance();
+        if (mSharedBuffer != null) {
+            // The programs belong to the share group
+            ShaderProgramCache.unshare();
+        } else {
+            ShaderProgramCache.destroyInstance();
+        }
         mEGL.eglMakeCurrent(mEGLDisplay, EGL10.EGL_NO_SURFACE,
                 EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
 
         mEGL.eglDestroySurface(mEGLDisplay, mEGLSurface);
         mEGL.eglDestroyContext(mEGLDisplay, mEGLContext);
-        mEGL.eglTerminate(mEGLDisplay);
+        if (mTerminateDisplay) {
+            mEGL.eglTerminate(mEGLDisplay);
+        }
     }
 
     private EGLConfig chooseConfig() {
@@ -144,6 +188,7 @@ public class PixelBuffer {
                 EGL_BLUE_SIZE, 8,
                 EGL_ALPHA_SIZE, 8,
                 EGL10.EGL_RENDERABLE_TYPE, 4,
+                EGL10.EGL_SURFACE_TYPE, EGL10.EGL_PBUFFER_BIT,
                 EGL_NONE
         };
 
@@ -189,22 +234,6 @@ public class PixelBuffer {
     }
 
     private void convertToBitmap() {
-        int[] iat = new int[mWidth * mHeight];
-        IntBuffer ib = IntBuffer.allocate(mWidth * mHeight);
-        mGL.glReadPixels(0, 0, mWidth, mHeight, GL_RGBA, GL_UNSIGNED_BYTE, ib);
-        int[] ia = ib.array();
-
-        //Stupid !
-        // Convert upside down mirror-reversed image to right-side up normal
-        // image.
-        for (int i = 0; i < mHeight; i++) {
-            for (int j = 0; j < mWidth; j++) {
-                iat[(mHeight - i - 1) * mWidth + j] = ia[i * mWidth + j];
-            }
-        }
-        
-
-        mBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
-        mBitmap.copyPixelsFromBuffer(IntBuffer.wrap(iat));
+        mBitmap = mPixelReader.readFramebuffer(mWidth, mHeight, null);
     }
 }
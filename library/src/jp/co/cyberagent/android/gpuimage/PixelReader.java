@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+
+import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+
+/**
+ * Reads rendered images back into bitmaps. GL returns rows bottom up, so
+ * instead of flipping them on the CPU the image is drawn upside down into a
+ * pooled framebuffer first; glReadPixels then writes the rows in bitmap order
+ * into a direct buffer that is reused between reads, and the bitmap is filled
+ * from it with a single copy.
+ * <br>
+ * All methods except {@link #release()} must be called on a thread with a
+ * current GL context.
+ */
+public class PixelReader {
+
+    private final FloatBuffer mGLCubeBuffer;
+    private final FloatBuffer mGLTextureBuffer;
+    private final int[] mSavedFramebuffer = new int[1];
+    private final int[] mSavedViewport = new int[4];
+    private ByteBuffer mBuffer;
+
+    public PixelReader() {
+        mGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLCubeBuffer.put(CUBE).position(0);
+        // Sampling a framebuffer texture with the coordinates meant for
+        // uploaded bitmaps turns it upside down
+        mGLTextureBuffer = ByteBuffer.allocateDirect(TextureRotationUtil.TEXTURE_NO_ROTATION.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLTextureBuffer.put(TextureRotationUtil.TEXTURE_NO_ROTATION).position(0);
+    }
+
+    /**
+     * Reads the given area of the currently bound framebuffer, e.g. a window
+     * surface right after a frame was drawn.
+     *
+     * @param width  the width of the area
+     * @param height the height of the area
+     * @param output a bitmap to reuse, or null
+     * @return the image, see {@link #readTexture(int, int, int, Bitmap)}
+     */
+    public Bitmap readFramebuffer(final int width, final int height, final Bitmap output) {
+        FramebufferPool.Framebuffer copy = FramebufferPool.getInstance().obtain(width, height);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, copy.getTextureId());
+        GLES20.glCopyTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, 0, 0, width, height);
+        Bitmap bitmap = readTexture(copy.getTextureId(), width, height, output);
+        copy.unlock();
+        return bitmap;
+    }
+
+    /**
+     * Reads a texture that was rendered into through a framebuffer.
+     *
+     * @param textureId the texture
+     * @param width     the width of the texture
+     * @param height    the height of the texture
+     * @param output    a bitmap to reuse, or null; it is only used if it is a
+     *                  mutable ARGB_8888 bitmap of the same size
+     * @return the image, either output or a new bitmap
+     */
+    public Bitmap readTexture(final int textureId, final int width, final int height,
+                              final Bitmap output) {
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mSavedFramebuffer, 0);
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mSavedViewport, 0);
+
+        FramebufferPool.Framebuffer target = FramebufferPool.getInstance().obtain(width, height);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, target.getFramebufferId());
+        GLES20.glViewport(0, 0, width, height);
+        // The program stays in the ShaderProgramCache, initializing is cheap
+        GPUImageFilter flip = new GPUImageFilter();
+        flip.init();
+        flip.onOutputSizeChanged(width, height);
+        flip.onDraw(textureId, mGLCubeBuffer, mGLTextureBuffer);
+        flip.destroy();
+
+        ByteBuffer buffer = obtainBuffer(width * height * 4);
+        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mSavedFramebuffer[0]);
+        GLES20.glViewport(mSavedViewport[0], mSavedViewport[1], mSavedViewport[2],
+                mSavedViewport[3]);
+        target.unlock();
+
+        Bitmap bitmap = output;
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888
+                || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        bitmap.copyPixelsFromBuffer(buffer);
+        return bitmap;
+    }
+
+    /**
+     * Drops the readback buffer, the next read allocates a new one.
+     */
+    public synchronized void release() {
+        mBuffer = null;
+    }
+
+    private synchronized ByteBuffer obtainBuffer(final int size) {
+        if (mBuffer == null || mBuffer.capacity() < size) {
+            mBuffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        }
+        mBuffer.clear();
+        mBuffer.limit(size);
+        return mBuffer;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.hardware.Camera.Size;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands camera preview frames to the GL thread through a fixed ring of
+ * callback buffers registered with {@link #attach(Camera, Camera.PreviewCallback)}.
+ * The newest frame waits in a single slot; a frame still waiting there when
+ * the next one arrives is dropped and its buffer goes straight back to the
+ * camera. With three buffers the camera therefore always owns at least one,
+ * however slow the GL thread is.
+ * <br>
+ * {@link #offer(byte[], Camera)} is called from the preview callback,
+ * {@link #take()} and {@link #release(byte[])} on the GL thread.
+ */
+public class PreviewFrameQueue {
+
+    public static final int DEFAULT_BUFFER_COUNT = 3;
+
+    private final int mBufferCount;
+    private final AtomicReference<byte[]> mPending = new AtomicReference<byte[]>();
+
+    private volatile Camera mCamera;
+    private volatile boolean mOwnsBuffers;
+    private volatile int mWidth;
+    private volatile int mHeight;
+    private volatile int mFrameSize;
+
+    private final AtomicLong mDeliveredCount = new AtomicLong();
+    private final AtomicLong mConvertedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    public PreviewFrameQueue() {
+        this(DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * @param bufferCount number of callback buffers, at least 3 so the camera
+     *                    keeps one while another waits and a third is converted
+     */
+    public PreviewFrameQueue(final int bufferCount) {
+        if (bufferCount < 3) {
+            throw new IllegalArgumentException("At least 3 buffers are needed");
+        }
+        mBufferCount = bufferCount;
+    }
+
+    /**
+     * Allocates the buffer ring for the camera's current preview size and
+     * format and installs the callback with
+     * {@link Camera#setPreviewCallbackWithBuffer(Camera.PreviewCallback)}.
+     * Call it again after changing the preview size.
+     *
+     * @param camera   the camera
+     * @param callback the callback forwarding frames to {@link #offer(byte[], Camera)}
+     */
+    public void attach(final Camera camera, final Camera.PreviewCallback callback) {
+        Camera.Parameters parameters = camera.getParameters();
+        adopt(camera, parameters, true);
+        camera.setPreviewCallbackWithBuffer(callback);
+        for (int i = 0; i < mBufferCount; i++) {
+            camera.addCallbackBuffer(new byte[mFrameSize]);
+        }
+    }
+
+    /**
+     * Forgets the camera, e.g. before it is released. Buffers still held by
+     * the GL thread are then discarded instead of returned.
+     */
+    public void detach() {
+        mCamera = null;
+        mOwnsBuffers = false;
+        mPending.set(null);
+    }
+
+    /**
+     * Makes a frame the newest one, dropping a frame that is still waiting.
+     * Frames of a camera that was not attached are accepted too; the camera
+     * then allocates the buffers and its preview size is read once.
+     *
+     * @param data   the frame
+     * @param camera the camera that delivered it
+     */
+    public void offer(final byte[] data, final Camera camera) {
+        if (camera != mCamera) {
+            adopt(camera, camera.getParameters(), false);
+        }
+        mDeliveredCount.incrementAndGet();
+        byte[] dropped = mPending.getAndSet(data);
+        if (dropped != null) {
+            mDroppedCount.incrementAndGet();
+            recycle(dropped);
+        }
+    }
+
+    /**
+     * @return the newest frame, or null if none arrived since the last call.
+     * Pass it to {@link #release(byte[])} once it was converted.
+     */
+    public byte[] take() {
+        byte[] data = mPending.getAndSet(null);
+        if (data != null && data.length < mFrameSize) {
+            // Delivered before the preview size changed
+            mDroppedCount.incrementAndGet();
+            return null;
+        }
+        return data;
+    }
+
+    /**
+     * Returns a converted frame's buffer to the camera.
+     *
+     * @param data a frame returned by {@link #take()}
+     */
+    public void release(final byte[] data) {
+        mConvertedCount.incrementAndGet();
+        recycle(data);
+    }
+
+    public int getPreviewWidth() {
+        return mWidth;
+    }
+
+    public int getPreviewHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return number of frames delivered by the camera
+     */
+    public long getDeliveredCount() {
+        return mDeliveredCount.get();
+    }
+
+    /**
+     * @return number of frames converted and returned to the camera
+     */
+    public long getConvertedCount() {
+        return mConvertedCount.get();
+    }
+
+    /**
+     * @return number of frames superseded by a newer one before the GL thread
+     * got to them
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    public void resetStatistics() {
+        mDeliveredCount.set(0);
+        mConvertedCount.set(0);
+        mDroppedCount.set(0);
+    }
+
+    private void adopt(final Camera camera, final Camera.Parameters parameters,
+                       final boolean ownsBuffers) {
+        Size size = parameters.getPreviewSize();
+        int bitsPerPixel = ImageFormat.getBitsPerPixel(parameters.getPreviewFormat());
+        mWidth = size.width;
+        mHeight = size.height;
+        mFrameSize = size.width * size.height * bitsPerPixel / 8;
+        mOwnsBuffers = ownsBuffers;
+        mCamera = camera;
+        mPending.set(null);
+    }
+
+    private void recycle(final byte[] data) {
+        Camera camera = mCamera;
+        if (camera == null || !mOwnsBuffers || data.length != mFrameSize) {
+            return;
+        }
+        try {
+            camera.addCallbackBuffer(data);
+        } catch (RuntimeException e) {
+            // The camera was released while the frame was being converted
+            detach();
+        }
+    }
+}
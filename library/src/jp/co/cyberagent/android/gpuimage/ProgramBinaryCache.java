@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opt-in persistent cache of linked program binaries. On OpenGL ES 3.0+
+ * contexts, programs linked from source are stored with glGetProgramBinary in
+ * an app-private directory, keyed by the shader sources and the GL renderer and
+ * version strings, so the next cold start loads them with glProgramBinary
+ * instead of compiling and linking again. Binaries the driver rejects, e.g.
+ * after a driver update, are deleted and the program is built from source.
+ * <br>
+ * Disabled until {@link #enable(Context)} or {@link #setDirectory(File)} is
+ * called. On older contexts this falls back to {@link OpenGlUtils#loadProgram}.
+ */
+public class ProgramBinaryCache {
+    private static final String TAG = "ProgramBinaryCache";
+    private static final String DIRECTORY_NAME = "gpuimage_programs";
+    private static final int FILE_MAGIC = 0x47504942;
+    /** Magic, binary format and binary length, each an int */
+    private static final int HEADER_SIZE = 12;
+
+    private static volatile File sDirectory;
+
+    private static final AtomicLong sHitCount = new AtomicLong();
+    private static final AtomicLong sMissCount = new AtomicLong();
+    private static final AtomicLong sRejectedCount = new AtomicLong();
+    private static final AtomicLong sHitNanos = new AtomicLong();
+    private static final AtomicLong sMissNanos = new AtomicLong();
+
+    private ProgramBinaryCache() {
+    }
+
+    /**
+     * Enables the cache in a directory below the app's cache directory.
+     *
+     * @param context any context of the app
+     */
+    public static void enable(final Context context) {
+        setDirectory(new File(context.getCacheDir(), DIRECTORY_NAME));
+    }
+
+    /**
+     * Enables the cache in the given directory, or disables it if null.
+     *
+     * @param directory an app-private directory, or null
+     */
+    public static void setDirectory(final File directory) {
+        sDirectory = directory;
+    }
+
+    public static File getDirectory() {
+        return sDirectory;
+    }
+
+    /**
+     * Deletes all stored binaries.
+     */
+    public static void clear() {
+        File directory = sDirectory;
+        File[] files = directory != null ? directory.listFiles() : null;
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Loads the program for the given sources from the cache, or links it from
+     * source and stores its binary. Must be called on the GL thread.
+     *
+     * @param vertexShader   the vertex shader source
+     * @param fragmentShader the fragment shader source
+     * @return the program, 0 if linking failed
+     */
+    public static int loadProgram(final String vertexShader, final String fragmentShader) {
+        File directory = sDirectory;
+        if (directory == null || !OpenGlUtils.isGLES30Supported()) {
+            return OpenGlUtils.loadProgram(vertexShader, fragmentShader);
+        }
+        File file = new File(directory, getKey(vertexShader, fragmentShader));
+
+        long start = System.nanoTime();
+        if (file.exists()) {
+            int program = loadBinary(file);
+            if (program != 0) {
+                sHitCount.incrementAndGet();
+                sHitNanos.addAndGet(System.nanoTime() - start);
+                return program;
+            }
+            sRejectedCount.incrementAndGet();
+            file.delete();
+        }
+
+        int program = OpenGlUtils.loadProgram(vertexShader, fragmentShader);
+        sMissCount.incrementAndGet();
+        sMissNanos.addAndGet(System.nanoTime() - start);
+        if (program != 0) {
+            storeBinary(program, file);
+        }
+        return program;
+    }
+
+    /**
+     * @return number of programs loaded from a stored binary
+     */
+    public static long getHitCount() {
+        return sHitCount.get();
+    }
+
+    /**
+     * @return number of programs that had to be linked from source while the
+     * cache was enabled
+     */
+    public static long getMissCount() {
+        return sMissCount.get();
+    }
+
+    /**
+     * @return number of stored binaries that were corrupt or the driver refused
+     * to load
+     */
+    public static long getRejectedCount() {
+        return sRejectedCount.get();
+    }
+
+    /**
+     * @return average time to load a program from its binary in nanoseconds
+     */
+    public static long getAverageHitNanos() {
+        long count = sHitCount.get();
+        return count == 0 ? 0 : sHitNanos.get() / count;
+    }
+
+    /**
+     * @return average time to build a program from source in nanoseconds,
+     * including a rejected binary load if there was one
+     */
+    public static long getAverageMissNanos() {
+        long count = sMissCount.get();
+        return count == 0 ? 0 : sMissNanos.get() / count;
+    }
+
+    public static void resetStatistics() {
+        sHitCount.set(0);
+        sMissCount.set(0);
+        sRejectedCount.set(0);
+        sHitNanos.set(0);
+        sMissNanos.set(0);
+    }
+
+    private static String getKey(final String vertexShader, final String fragmentShader) {
+        String key = vertexShader + '\u0000' + fragmentShader + '\u0000'
+                + GLES20.glGetString(GLES20.GL_RENDERER) + '\u0000'
+                + GLES20.glGetString(GLES20.GL_VERSION);
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        } catch (IOException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    @TargetApi(18)
+    private static int loadBinary(final File file) {
+        int format;
+        byte[] binary;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != FILE_MAGIC) {
+                return 0;
+            }
+            format = in.readInt();
+            // A truncated or corrupt file must not make us allocate its length
+            int length = in.readInt();
+            if (length <= 0 || length != file.length() - HEADER_SIZE) {
+                Log.w(TAG, "Discarding " + file + ", binary length " + length
+                        + " does not match the file");
+                return 0;
+            }
+            binary = new byte[length];
+            in.readFully(binary);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read " + file, e);
+            return 0;
+        } finally {
+            closeQuietly(in);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(binary.length).order(ByteOrder.nativeOrder());
+        buffer.put(binary).position(0);
+        int program = GLES20.glCreateProgram();
+        GLES30.glProgramBinary(program, format, buffer, binary.length);
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] <= 0) {
+            GLES20.glDeleteProgram(program);
+            // Clear the error a rejected format may have raised
+            GLES20.glGetError();
+            return 0;
+        }
+        return program;
+    }
+
+    @TargetApi(18)
+    private static void storeBinary(final int program, final File file) {
+        int[] values = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, values, 0);
+        if (values[0] <= 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(values[0]).order(ByteOrder.nativeOrder());
+        int[] length = new int[1];
+        int[] format = new int[1];
+        GLES30.glGetProgramBinary(program, values[0], length, 0, format, 0, buffer);
+        if (length[0] <= 0) {
+            return;
+        }
+        final byte[] binary = new byte[length[0]];
+        buffer.position(0);
+        buffer.get(binary);
+        final int binaryFormat = format[0];
+
+        // Keep the file system off the GL thread
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeBinary(file, binaryFormat, binary);
+            }
+        });
+    }
+
+    private static void writeBinary(final File file, final int format, final byte[] binary) {
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+        File temporary = new File(directory, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(temporary));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(format);
+            out.writeInt(binary.length);
+            out.write(binary);
+            out.close();
+            out = null;
+            if (!temporary.renameTo(file)) {
+                temporary.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + file, e);
+            temporary.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to do
+        }
+    }
+}
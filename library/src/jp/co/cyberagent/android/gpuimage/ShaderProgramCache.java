@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLContext;
+
+/**
+ * Linked programs shared by all filters of one EGL context. Filters with the
+ * same vertex and fragment shader source get the same program, so e.g. twenty
+ * saturation filters compile and link their shaders once. Programs are
+ * reference counted; a program nobody references anymore is kept around as
+ * long as it is one of the {@link #MAX_IDLE_PROGRAMS} most recently released
+ * ones, so switching back and forth between filters or toggling
+ * {@link GPUImageFilter#setExternalOES(boolean)} does not link again.
+ * <br>
+ * All methods must be called on a thread with a current GL context. A context
+ * created to share objects with another one can use the other's cache, see
+ * {@link #shareWith(EGLContext)}. Uniform values belong to the program, so
+ * contexts drawing at the same time have to take turns, see
+ * {@link #setSerializeDraws(boolean)}.
+ */
+public class ShaderProgramCache {
+    public static final int MAX_IDLE_PROGRAMS = 8;
+
+    private static final Map<EGLContext, ShaderProgramCache> sCaches =
+            new HashMap<EGLContext, ShaderProgramCache>();
+
+    /**
+     * A linked program with cached attribute and uniform locations.
+     */
+    public static class Program {
+        private final ShaderProgramCache mCache;
+        private final Key mKey;
+        private int mProgramId;
+        private int mReferenceCount;
+        private Object mLastUser;
+        private final ReentrantLock mDrawLock = new ReentrantLock();
+        private final HashMap<String, Integer> mAttribLocations = new HashMap<String, Integer>();
+        private final HashMap<String, Integer> mUniformLocations = new HashMap<String, Integer>();
+
+        private Program(final ShaderProgramCache cache, final Key key, final int programId) {
+            mCache = cache;
+            mKey = key;
+            mProgramId = programId;
+        }
+
+        public int getProgramId() {
+            return mProgramId;
+        }
+
+        public synchronized int getAttribLocation(final String name) {
+            Integer location = mAttribLocations.get(name);
+            if (location == null) {
+                location = GLES20.glGetAttribLocation(mProgramId, name);
+                mAttribLocations.put(name, location);
+            }
+            return location;
+        }
+
+        public synchronized int getUniformLocation(final String name) {
+            Integer location = mUniformLocations.get(name);
+            if (location == null) {
+                location = GLES20.glGetUniformLocation(mProgramId, name);
+                mUniformLocations.put(name, location);
+            }
+            return location;
+        }
+
+        /**
+         * Remembers who set the uniforms of this program last. Returns false if
+         * that was somebody else, in which case the caller has to upload all of
+         * its uniform values again.
+         *
+         * @param user the filter about to draw with this program
+         * @return true if the given user was the last one
+         */
+        public synchronized boolean claim(final Object user) {
+            if (mLastUser == user) {
+                return true;
+            }
+            mLastUser = user;
+            return false;
+        }
+
+        /**
+         * Starts a draw with this program. If the cache serializes draws, waits
+         * until no other context draws with it; call before
+         * {@link #claim(Object)} and before uploading uniform values.
+         */
+        public void beginDraw() {
+            if (mCache.isSerializingDraws()) {
+                mDrawLock.lock();
+            }
+        }
+
+        /**
+         * Ends a draw started with {@link #beginDraw()}. If another context may
+         * draw with the program next, waits until the GPU is done with this
+         * draw, so the other context cannot change its uniforms before it ran.
+         */
+        public void endDraw() {
+            if (mDrawLock.isHeldByCurrentThread()) {
+                GLES20.glFinish();
+                mDrawLock.unlock();
+            }
+        }
+
+        /**
+         * Gives up a reference obtained from {@link ShaderProgramCache#obtain(String, String)}.
+         */
+        public void release() {
+            synchronized (mCache) {
+                if (mReferenceCount <= 0) {
+                    return;
+                }
+                mReferenceCount--;
+                if (mReferenceCount == 0) {
+                    synchronized (this) {
+                        mLastUser = null;
+                    }
+                    mCache.recycle(this);
+                }
+            }
+        }
+
+        private void delete() {
+            GLES20.glDeleteProgram(mProgramId);
+            mProgramId = 0;
+        }
+    }
+
+    private static final class Key {
+        final String mVertexShader;
+        final String mFragmentShader;
+        final int mHash;
+
+        Key(final String vertexShader, final String fragmentShader) {
+            mVertexShader = vertexShader;
+            mFragmentShader = fragmentShader;
+            mHash = 31 * vertexShader.hashCode() + fragmentShader.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mHash == other.mHash && mVertexShader.equals(other.mVertexShader)
+                    && mFragmentShader.equals(other.mFragmentShader);
+        }
+    }
+
+    private final HashMap<Key, Program> mPrograms = new HashMap<Key, Program>();
+    // Programs without references, least recently released first
+    private final ArrayList<Program> mIdle = new ArrayList<Program>();
+    private int mLinkCount;
+    private volatile boolean mSerializeDraws;
+
+    private ShaderProgramCache() {
+    }
+
+    /**
+     * Returns the cache of the EGL context current on the calling thread.
+     *
+     * @return the cache of the current context
+     */
+    public static ShaderProgramCache getInstance() {
+        EGLContext context = ((EGL10) EGLContext.getEGL()).eglGetCurrentContext();
+        synchronized (sCaches) {
+            ShaderProgramCache cache = sCaches.get(context);
+            if (cache == null) {
+                cache = new ShaderProgramCache();
+                sCaches.put(context, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Forgets the cache of the current context without deleting anything. Has
+     * to be called when a new context was created, since the programs of a
+     * cache still registered for it belonged to a destroyed context that may
+     * have had the same handle.
+     */
+    public static void onContextCreated() {
+        EGLContext context = ((EGL10) EGLContext.getEGL()).eglGetCurrentContext();
+        synchronized (sCaches) {
+            sCaches.remove(context);
+        }
+    }
+
+    /**
+     * Makes the current context use the cache of the given context. The
+     * current context must have been created with the given one as its share
+     * context, so the programs are valid in both.
+     *
+     * @param sharedContext the context whose programs are shared
+     */
+    public static void shareWith(final EGLContext sharedContext) {
+        EGLContext context = ((EGL10) EGLContext.getEGL()).eglGetCurrentContext();
+        synchronized (sCaches) {
+            ShaderProgramCache cache = sCaches.get(sharedContext);
+            if (cache == null) {
+                cache = new ShaderProgramCache();
+                sCaches.put(sharedContext, cache);
+            }
+            sCaches.put(context, cache);
+        }
+    }
+
+    /**
+     * Stops the current context from using a shared cache, without deleting
+     * anything. Call before a context set up by {@link #shareWith(EGLContext)}
+     * gets destroyed.
+     */
+    public static void unshare() {
+        onContextCreated();
+    }
+
+    /**
+     * Deletes all programs of the current context and forgets its cache. Call
+     * before the current context gets destroyed.
+     */
+    public static void destroyInstance() {
+        EGLContext context = ((EGL10) EGLContext.getEGL()).eglGetCurrentContext();
+        ShaderProgramCache cache;
+        synchronized (sCaches) {
+            cache = sCaches.remove(context);
+        }
+        if (cache != null) {
+            synchronized (cache) {
+                for (Program program : cache.mPrograms.values()) {
+                    program.delete();
+                }
+                cache.mPrograms.clear();
+                cache.mIdle.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns a referenced program for the given sources, linking it only if
+     * this context has not linked the same sources before.
+     *
+     * @param vertexShader   the vertex shader source
+     * @param fragmentShader the fragment shader source
+     * @return the program, to be released once it is not needed anymore
+     */
+    public Program obtain(final String vertexShader, final String fragmentShader) {
+        Key key = new Key(vertexShader, fragmentShader);
+        synchronized (this) {
+            Program program = mPrograms.get(key);
+            if (program != null) {
+                return reference(program);
+            }
+        }
+        // Link without holding the lock, a context sharing this cache may need
+        // an already linked program in the meantime
+        int programId = ProgramBinaryCache.loadProgram(vertexShader, fragmentShader);
+        if (mSerializeDraws) {
+            // Other contexts may use the program as soon as it is cached
+            GLES20.glFinish();
+        }
+        synchronized (this) {
+            mLinkCount++;
+            Program program = mPrograms.get(key);
+            if (program != null) {
+                // Another context linked the same sources first
+                GLES20.glDeleteProgram(programId);
+                return reference(program);
+            }
+            program = new Program(this, key, programId);
+            if (programId != 0) {
+                // Failed links are not cached so the next obtain tries again
+                mPrograms.put(key, program);
+            }
+            return reference(program);
+        }
+    }
+
+    /**
+     * Makes the contexts sharing this cache draw with a program one at a time,
+     * see {@link Program#beginDraw()}. Needed when contexts that share the
+     * cache draw concurrently on several threads, not when one of them only
+     * prepares filters for the other, like {@link FilterPrewarmer}.
+     *
+     * @param serializeDraws whether to serialize draws
+     */
+    public void setSerializeDraws(final boolean serializeDraws) {
+        mSerializeDraws = serializeDraws;
+    }
+
+    public boolean isSerializingDraws() {
+        return mSerializeDraws;
+    }
+
+    /**
+     * @return number of programs this cache had to link
+     */
+    public synchronized int getLinkCount() {
+        return mLinkCount;
+    }
+
+    public synchronized int getProgramCount() {
+        return mPrograms.size();
+    }
+
+    private Program reference(final Program program) {
+        if (program.mReferenceCount == 0) {
+            mIdle.remove(program);
+        }
+        program.mReferenceCount++;
+        return program;
+    }
+
+    private void recycle(final Program program) {
+        if (mPrograms.get(program.mKey) != program) {
+            // The cache was destroyed in the meantime
+            return;
+        }
+        mIdle.add(program);
+        while (mIdle.size() > MAX_IDLE_PROGRAMS) {
+            Program oldest = mIdle.remove(0);
+            mPrograms.remove(oldest.mKey);
+            oldest.delete();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+
+/**
+ * Holds the pending uniform values of a single program. Each uniform location
+ * gets one preallocated slot, writes only copy the value into the slot and mark
+ * it dirty, and {@link #flush()} uploads every dirty slot once on the GL thread.
+ * Writing to a location that already has a slot of sufficient size does not
+ * allocate.
+ */
+class UniformStore {
+    static final int TYPE_INT = 0;
+    static final int TYPE_FLOAT = 1;
+    static final int TYPE_VEC2 = 2;
+    static final int TYPE_VEC3 = 3;
+    static final int TYPE_VEC4 = 4;
+    static final int TYPE_FLOAT_ARRAY = 5;
+    static final int TYPE_MAT3 = 6;
+    static final int TYPE_MAT4 = 7;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private int mCount;
+    private int[] mLocations = new int[INITIAL_CAPACITY];
+    private int[] mTypes = new int[INITIAL_CAPACITY];
+    private int[] mLengths = new int[INITIAL_CAPACITY];
+    private int[] mIntValues = new int[INITIAL_CAPACITY];
+    private float[][] mFloatValues = new float[INITIAL_CAPACITY][];
+    private boolean[] mDirty = new boolean[INITIAL_CAPACITY];
+    private boolean mAnyDirty;
+    private int mVersion;
+    private volatile Runnable mChangeListener;
+
+    /**
+     * @param listener run whenever {@link #getVersion()} changes, on the
+     *                 writing thread and outside this store's lock, or null
+     */
+    public void setChangeListener(final Runnable listener) {
+        mChangeListener = listener;
+    }
+
+    public void setInteger(final int location, final int value) {
+        if (location < 0) {
+            return;
+        }
+        int version;
+        synchronized (this) {
+            version = mVersion;
+            int slot = obtainSlot(location, TYPE_INT, 0);
+            if (mIntValues[slot] != value) {
+                mIntValues[slot] = value;
+                mVersion++;
+            }
+            markDirty(slot);
+        }
+        notifyIfChanged(version);
+    }
+
+    public void setFloat(final int location, final float value) {
+        if (location < 0) {
+            return;
+        }
+        int version;
+        synchronized (this) {
+            version = mVersion;
+            int slot = obtainSlot(location, TYPE_FLOAT, 1);
+            if (mFloatValues[slot][0] != value) {
+                mFloatValues[slot][0] = value;
+                mVersion++;
+            }
+            markDirty(slot);
+        }
+        notifyIfChanged(version);
+    }
+
+    public void setFloats(final int location, final int type, final float[] values,
+                          final int length) {
+        if (location < 0) {
+            return;
+        }
+        int version;
+        synchronized (this) {
+            version = mVersion;
+            int slot = obtainSlot(location, type, length);
+            float[] value = mFloatValues[slot];
+            for (int i = 0; i < length; i++) {
+                if (value[i] != values[i]) {
+                    System.arraycopy(values, i, value, i, length - i);
+                    mVersion++;
+                    break;
+                }
+            }
+            markDirty(slot);
+        }
+        notifyIfChanged(version);
+    }
+
+    public void setFloatVec2(final int location, final float x, final float y) {
+        if (location < 0) {
+            return;
+        }
+        int version;
+        synchronized (this) {
+            version = mVersion;
+            int slot = obtainSlot(location, TYPE_VEC2, 2);
+            float[] value = mFloatValues[slot];
+            if (value[0] != x || value[1] != y) {
+                value[0] = x;
+                value[1] = y;
+                mVersion++;
+            }
+            markDirty(slot);
+        }
+        notifyIfChanged(version);
+    }
+
+    /**
+     * @return a number that changes whenever a value is written that differs
+     * from the one stored before, e.g. to tell whether a filter's output
+     * changed since it was last drawn
+     */
+    public synchronized int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Uploads all values written since the last flush to the currently bound
+     * program. Must be called on the GL thread.
+     */
+    public synchronized void flush() {
+        if (!mAnyDirty) {
+            return;
+        }
+        for (int i = 0; i < mCount; i++) {
+            if (mDirty[i]) {
+                mDirty[i] = false;
+                upload(mLocations[i], i);
+            }
+        }
+        mAnyDirty = false;
+    }
+
+    /**
+     * Like {@link #flush()}, but uploads to the location that is stored at the
+     * same index of toLocations as the slot's own location in fromLocations.
+     * Values of locations that are not mapped are dropped. Used when the
+     * uniforms of a filter live in another program, e.g. a fused one.
+     *
+     * @param fromLocations locations of this store's program
+     * @param toLocations   locations of the currently bound program
+     */
+    public synchronized void flush(final int[] fromLocations, final int[] toLocations) {
+        if (!mAnyDirty) {
+            return;
+        }
+        for (int i = 0; i < mCount; i++) {
+            if (!mDirty[i]) {
+                continue;
+            }
+            mDirty[i] = false;
+            for (int j = 0; j < fromLocations.length; j++) {
+                if (fromLocations[j] == mLocations[i]) {
+                    if (toLocations[j] >= 0) {
+                        upload(toLocations[j], i);
+                    }
+                    break;
+                }
+            }
+        }
+        mAnyDirty = false;
+    }
+
+    /**
+     * Marks every slot dirty, so the next flush uploads all values again.
+     */
+    public synchronized void markAllDirty() {
+        for (int i = 0; i < mCount; i++) {
+            mDirty[i] = true;
+        }
+        mAnyDirty = mCount > 0;
+    }
+
+    /**
+     * Drops all slots. Used whenever the program is (re)created, since the
+     * locations stored so far belong to the old program.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mCount; i++) {
+            mDirty[i] = false;
+        }
+        mCount = 0;
+        mAnyDirty = false;
+    }
+
+    private void upload(final int location, final int slot) {
+        float[] value = mFloatValues[slot];
+        switch (mTypes[slot]) {
+            case TYPE_INT:
+                GLES20.glUniform1i(location, mIntValues[slot]);
+                break;
+            case TYPE_FLOAT:
+                GLES20.glUniform1f(location, value[0]);
+                break;
+            case TYPE_VEC2:
+                GLES20.glUniform2fv(location, 1, value, 0);
+                break;
+            case TYPE_VEC3:
+                GLES20.glUniform3fv(location, 1, value, 0);
+                break;
+            case TYPE_VEC4:
+                GLES20.glUniform4fv(location, 1, value, 0);
+                break;
+            case TYPE_FLOAT_ARRAY:
+                GLES20.glUniform1fv(location, mLengths[slot], value, 0);
+                break;
+            case TYPE_MAT3:
+                GLES20.glUniformMatrix3fv(location, 1, false, value, 0);
+                break;
+            case TYPE_MAT4:
+                GLES20.glUniformMatrix4fv(location, 1, false, value, 0);
+                break;
+        }
+    }
+
+    /*
+     * Called without holding the lock, so a listener may take locks of its own
+     * that are also held while reading the version.
+     */
+    private void notifyIfChanged(final int previousVersion) {
+        Runnable listener = mChangeListener;
+        if (listener == null) {
+            return;
+        }
+        synchronized (this) {
+            if (mVersion == previousVersion) {
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    private void markDirty(final int slot) {
+        mDirty[slot] = true;
+        mAnyDirty = true;
+    }
+
+    private int obtainSlot(final int location, final int type, final int length) {
+        int slot = -1;
+        for (int i = 0; i < mCount; i++) {
+            if (mLocations[i] == location) {
+                slot = i;
+                break;
+            }
+        }
+        if (slot == -1) {
+            if (mCount == mLocations.length) {
+                grow();
+            }
+            slot = mCount++;
+            mLocations[slot] = location;
+            mVersion++;
+        } else if (mTypes[slot] != type || mLengths[slot] != length) {
+            mVersion++;
+        }
+        mTypes[slot] = type;
+        mLengths[slot] = length;
+        if (mFloatValues[slot] == null || mFloatValues[slot].length < length) {
+            mFloatValues[slot] = new float[Math.max(length, 1)];
+        }
+        return slot;
+    }
+
+    private void grow() {
+        int capacity = mLocations.length * 2;
+        int[] locations = new int[capacity];
+        int[] types = new int[capacity];
+        int[] lengths = new int[capacity];
+        int[] intValues = new int[capacity];
+        float[][] floatValues = new float[capacity][];
+        boolean[] dirty = new boolean[capacity];
+        System.arraycopy(mLocations, 0, locations, 0, mCount);
+        System.arraycopy(mTypes, 0, types, 0, mCount);
+        System.arraycopy(mLengths, 0, lengths, 0, mCount);
+        System.arraycopy(mIntValues, 0, intValues, 0, mCount);
+        System.arraycopy(mFloatValues, 0, floatValues, 0, mCount);
+        System.arraycopy(mDirty, 0, dirty, 0, mCount);
+        mLocations = locations;
+        mTypes = types;
+        mLengths = lengths;
+        mIntValues = intValues;
+        mFloatValues = floatValues;
+        mDirty = dirty;
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Combines the fragment shaders of point-wise filters into one fragment shader.
+ * <br>
+ * A fragment shader can be fused if it samples inputImageTexture only through
+ * {@code texture2D(inputImageTexture, textureCoordinate)} inside main(), uses no
+ * other sampler or varying and no preprocessor directives or structs. Each
+ * shader becomes a function {@code <prefix>main(inputColor)} that returns what
+ * it used to write to gl_FragColor, and all of its global names (uniforms,
+ * constants, helper functions) get the prefix of {@link #getPrefix(int)}, so
+ * uniform {@code brightness} of the first shader is called
+ * {@code f0_brightness} in the fused program.
+ * <br>
+ * This class has no Android dependencies.
+ */
+public class ShaderFuser {
+    private static final String INPUT_TEXTURE = "inputImageTexture";
+    private static final String TEXTURE_COORDINATE = "textureCoordinate";
+    private static final String INPUT_COLOR = "inputColor";
+    private static final String[] PRECISIONS = {"lowp", "mediump", "highp"};
+
+    private ShaderFuser() {
+    }
+
+    /**
+     * @param index position of the shader in the fused chain
+     * @return the prefix of all global names of that shader
+     */
+    public static String getPrefix(final int index) {
+        return "f" + index + "_";
+    }
+
+    /**
+     * @param fragmentShader a fragment shader source
+     * @return true if the shader can be part of {@link #fuse(List)}
+     */
+    public static boolean isFusable(final String fragmentShader) {
+        try {
+            new Member(fragmentShader, getPrefix(0));
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Builds one fragment shader that applies the given fragment shaders in
+     * order. Intermediate colors are clamped to [0, 1], like they would be when
+     * written to a framebuffer between separate passes.
+     *
+     * @param fragmentShaders the fusable fragment shaders, applied in order
+     * @return the fused fragment shader source
+     * @throws IllegalArgumentException if one of the shaders is not fusable
+     */
+    public static String fuse(final List<String> fragmentShaders) {
+        if (fragmentShaders.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to fuse");
+        }
+        List<Member> members = new ArrayList<Member>();
+        int precision = 1;
+        for (int i = 0; i < fragmentShaders.size(); i++) {
+            Member member = new Member(fragmentShaders.get(i), getPrefix(i));
+            precision = Math.max(precision, member.mPrecision);
+            members.add(member);
+        }
+
+        StringBuilder builder = new StringBuilder();
+        builder.append("precision ").append(PRECISIONS[precision]).append(" float;\n");
+        builder.append("varying highp vec2 ").append(TEXTURE_COORDINATE).append(";\n");
+        builder.append("uniform sampler2D ").append(INPUT_TEXTURE).append(";\n");
+        for (Member member : members) {
+            builder.append('\n').append(member.mSource).append('\n');
+        }
+        builder.append("\nvoid main()\n{\n");
+        builder.append("    mediump vec4 color = texture2D(").append(INPUT_TEXTURE).append(", ")
+                .append(TEXTURE_COORDINATE).append(");\n");
+        for (int i = 0; i < members.size(); i++) {
+            String call = getPrefix(i) + "main(color)";
+            if (i < members.size() - 1) {
+                builder.append("    color = clamp(").append(call).append(", 0.0, 1.0);\n");
+            } else {
+                builder.append("    gl_FragColor = ").append(call).append(";\n");
+            }
+        }
+        builder.append("}\n");
+        return builder.toString();
+    }
+
+    /**
+     * One fragment shader rewritten into a prefixed function.
+     */
+    private static class Member {
+        final String mSource;
+        int mPrecision = -1;
+
+        Member(final String fragmentShader, final String prefix) {
+            List<String> tokens = tokenize(stripComments(fragmentShader));
+            List<List<String>> chunks = splitTopLevel(tokens);
+
+            Set<String> globals = new HashSet<String>();
+            List<List<String>> kept = new ArrayList<List<String>>();
+            List<String> main = null;
+            for (List<String> chunk : chunks) {
+                List<String> code = significant(chunk);
+                if (code.isEmpty()) {
+                    continue;
+                }
+                if (code.contains("struct") || code.contains("attribute")) {
+                    throw new IllegalArgumentException("Unsupported declaration: " + code);
+                }
+                if (code.get(0).equals("precision")) {
+                    if (code.size() >= 3 && code.get(2).equals("float")) {
+                        mPrecision = indexOf(PRECISIONS, code.get(1));
+                    }
+                    continue;
+                }
+                if (code.contains("{")) {
+                    String name = code.get(code.indexOf("(") - 1);
+                    globals.add(name);
+                    if (name.equals("main")) {
+                        main = chunk;
+                    }
+                    kept.add(chunk);
+                    continue;
+                }
+                int parenthesis = code.indexOf("(");
+                int assignment = code.indexOf("=");
+                if (parenthesis > 0 && (assignment == -1 || parenthesis < assignment)) {
+                    // Function prototype
+                    globals.add(code.get(parenthesis - 1));
+                    kept.add(chunk);
+                    continue;
+                }
+                List<String> names = declaredNames(code);
+                if (names.contains(INPUT_TEXTURE)) {
+                    if (names.size() != 1 || !code.contains("uniform") || !code.contains("sampler2D")) {
+                        throw new IllegalArgumentException("Unexpected " + INPUT_TEXTURE + ": " + code);
+                    }
+                    continue;
+                }
+                if (names.contains(TEXTURE_COORDINATE)) {
+                    if (names.size() != 1 || !code.contains("varying")) {
+                        throw new IllegalArgumentException("Unexpected " + TEXTURE_COORDINATE + ": " + code);
+                    }
+                    continue;
+                }
+                if (code.contains("varying")) {
+                    throw new IllegalArgumentException("Unsupported varying: " + code);
+                }
+                for (String token : code) {
+                    if (token.startsWith("sampler")) {
+                        throw new IllegalArgumentException("Unsupported sampler: " + code);
+                    }
+                }
+                globals.addAll(names);
+                kept.add(chunk);
+            }
+            if (main == null) {
+                throw new IllegalArgumentException("No main function");
+            }
+
+            StringBuilder builder = new StringBuilder();
+            for (List<String> chunk : kept) {
+                List<String> renamed = rename(chunk, globals, prefix);
+                if (chunk == main) {
+                    renamed = rewriteMain(renamed, prefix);
+                } else if (renamed.contains(INPUT_TEXTURE) || renamed.contains("gl_FragColor")) {
+                    throw new IllegalArgumentException("Input sampled outside of main()");
+                }
+                builder.append(join(renamed).trim()).append('\n');
+            }
+            mSource = builder.toString();
+        }
+
+        private static List<String> rewriteMain(final List<String> chunk, final String prefix) {
+            String fragColor = prefix + "FragColor";
+            List<String> result = new ArrayList<String>();
+            int bodyStart = chunk.indexOf("{");
+            List<String> signature = significant(chunk.subList(0, bodyStart));
+            // void <prefix>main ( [void] )
+            if (!signature.get(0).equals("void") || signature.size() > 5) {
+                throw new IllegalArgumentException("Unexpected main signature: " + signature);
+            }
+            result.add("mediump vec4 " + prefix + "main(mediump vec4 " + INPUT_COLOR + ")\n{\n");
+            result.add("    mediump vec4 " + fragColor + " = " + INPUT_COLOR + ";\n");
+
+            int bodyEnd = chunk.lastIndexOf("}");
+            List<String> body = chunk.subList(bodyStart + 1, bodyEnd);
+            for (int i = 0; i < body.size(); i++) {
+                String token = body.get(i);
+                if (token.equals("texture2D")) {
+                    int end = matchInputSample(body, i);
+                    if (end == -1) {
+                        throw new IllegalArgumentException("Input is not sampled at textureCoordinate");
+                    }
+                    result.add(INPUT_COLOR);
+                    i = end;
+                } else if (token.equals("gl_FragColor")) {
+                    result.add(fragColor);
+                } else if (token.equals("return") && nextSignificant(body, i).equals(";")) {
+                    result.add("return " + fragColor);
+                } else if (token.equals(INPUT_TEXTURE) || token.equals("gl_FragData")) {
+                    throw new IllegalArgumentException("Unsupported use of " + token);
+                } else {
+                    result.add(token);
+                }
+            }
+            result.add("\n    return " + fragColor + ";\n}");
+            return result;
+        }
+
+        /**
+         * @return index of the closing parenthesis if the tokens at start are
+         * {@code texture2D(inputImageTexture, textureCoordinate)}, -1 otherwise
+         */
+        private static int matchInputSample(final List<String> tokens, final int start) {
+            String[] expected = {"texture2D", "(", INPUT_TEXTURE, ",", TEXTURE_COORDINATE, ")"};
+            int matched = 0;
+            for (int i = start; i < tokens.size(); i++) {
+                String token = tokens.get(i);
+                if (isWhitespace(token)) {
+                    continue;
+                }
+                if (!token.equals(expected[matched])) {
+                    return -1;
+                }
+                matched++;
+                if (matched == expected.length) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static List<String> rename(final List<String> tokens, final Set<String> globals,
+                                       final String prefix) {
+        List<String> result = new ArrayList<String>(tokens.size());
+        String previous = "";
+        for (String token : tokens) {
+            if (globals.contains(token) && !previous.equals(".")) {
+                result.add(prefix + token);
+            } else {
+                result.add(token);
+            }
+            if (!isWhitespace(token)) {
+                previous = token;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Names declared by a global variable declaration like
+     * {@code uniform lowp float a, b;} or {@code const vec3 c = vec3(1.0);}.
+     */
+    private static List<String> declaredNames(final List<String> code) {
+        List<String> names = new ArrayList<String>();
+        int depth = 0;
+        boolean initializer = false;
+        for (int i = 0; i < code.size() - 1; i++) {
+            String token = code.get(i);
+            if (token.equals("(") || token.equals("[")) {
+                depth++;
+            } else if (token.equals(")") || token.equals("]")) {
+                depth--;
+            } else if (depth == 0 && token.equals("=")) {
+                initializer = true;
+            } else if (depth == 0 && token.equals(",")) {
+                initializer = false;
+            } else if (depth == 0 && !initializer && isIdentifier(token)) {
+                String next = code.get(i + 1);
+                if (next.equals("=") || next.equals(",") || next.equals(";") || next.equals("[")) {
+                    names.add(token);
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Splits the tokens into top level declarations and function definitions.
+     */
+    private static List<List<String>> splitTopLevel(final List<String> tokens) {
+        List<List<String>> chunks = new ArrayList<List<String>>();
+        List<String> current = new ArrayList<String>();
+        int depth = 0;
+        for (String token : tokens) {
+            if (token.startsWith("#")) {
+                throw new IllegalArgumentException("Preprocessor directives are not supported");
+            }
+            current.add(token);
+            if (token.equals("{")) {
+                depth++;
+            } else if (token.equals("}")) {
+                depth--;
+                if (depth == 0) {
+                    chunks.add(current);
+                    current = new ArrayList<String>();
+                }
+            } else if (token.equals(";") && depth == 0) {
+                chunks.add(current);
+                current = new ArrayList<String>();
+            }
+        }
+        if (depth != 0 || !significant(current).isEmpty()) {
+            throw new IllegalArgumentException("Unbalanced shader source");
+        }
+        return chunks;
+    }
+
+    private static List<String> tokenize(final String source) {
+        List<String> tokens = new ArrayList<String>();
+        int i = 0;
+        int length = source.length();
+        while (i < length) {
+            char c = source.charAt(i);
+            int start = i;
+            if (Character.isWhitespace(c)) {
+                while (i < length && Character.isWhitespace(source.charAt(i))) {
+                    i++;
+                }
+            } else if (Character.isLetter(c) || c == '_') {
+                while (i < length && (Character.isLetterOrDigit(source.charAt(i))
+                        || source.charAt(i) == '_')) {
+                    i++;
+                }
+            } else if (Character.isDigit(c) || (c == '.' && i + 1 < length
+                    && Character.isDigit(source.charAt(i + 1)))) {
+                while (i < length) {
+                    char d = source.charAt(i);
+                    if (Character.isLetterOrDigit(d) || d == '.') {
+                        i++;
+                    } else if ((d == '+' || d == '-')
+                            && (source.charAt(i - 1) == 'e' || source.charAt(i - 1) == 'E')) {
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+            } else if (c == '#') {
+                while (i < length && source.charAt(i) != '\n') {
+                    i++;
+                }
+            } else {
+                i++;
+            }
+            tokens.add(source.substring(start, i));
+        }
+        return tokens;
+    }
+
+    private static String stripComments(final String source) {
+        StringBuilder builder = new StringBuilder(source.length());
+        int i = 0;
+        int length = source.length();
+        while (i < length) {
+            if (source.startsWith("//", i)) {
+                while (i < length && source.charAt(i) != '\n') {
+                    i++;
+                }
+            } else if (source.startsWith("/*", i)) {
+                int end = source.indexOf("*/", i + 2);
+                i = end == -1 ? length : end + 2;
+                builder.append(' ');
+            } else {
+                builder.append(source.charAt(i));
+                i++;
+            }
+        }
+        return builder.toString();
+    }
+
+    private static List<String> significant(final List<String> tokens) {
+        List<String> result = new ArrayList<String>();
+        for (String token : tokens) {
+            if (!isWhitespace(token)) {
+                result.add(token);
+            }
+        }
+        return result;
+    }
+
+    private static String nextSignificant(final List<String> tokens, final int index) {
+        for (int i = index + 1; i < tokens.size(); i++) {
+            if (!isWhitespace(tokens.get(i))) {
+                return tokens.get(i);
+            }
+        }
+        return "";
+    }
+
+    private static String join(final List<String> tokens) {
+        StringBuilder builder = new StringBuilder();
+        for (String token : tokens) {
+            builder.append(token);
+        }
+        return builder.toString();
+    }
+
+    private static boolean isWhitespace(final String token) {
+        return Character.isWhitespace(token.charAt(0));
+    }
+
+    private static boolean isIdentifier(final String token) {
+        char c = token.charAt(0);
+        return Character.isLetter(c) || c == '_';
+    }
+
+    private static int indexOf(final String[] values, final String value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].equals(value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FilterTraitsTest {
+
+    @Test
+    public void pointWiseHasNoRadius() {
+        FilterTraits traits = FilterTraits.pointWise(true, false);
+        assertTrue(traits.isPointWise());
+        assertTrue(traits.isBounded());
+        assertEquals(0, traits.getRadius());
+        assertTrue(traits.preservesAlpha());
+        assertFalse(traits.isPositionDependent());
+    }
+
+    @Test
+    public void neighbourhoodRoundsRadiiUp() {
+        FilterTraits traits = FilterTraits.neighbourhood(2.01f, 0.5f, false, false);
+        assertEquals(FilterTraits.Footprint.NEIGHBOURHOOD, traits.getFootprint());
+        assertEquals(3, traits.getRadiusX());
+        assertEquals(1, traits.getRadiusY());
+        assertEquals(3, traits.getRadius());
+    }
+
+    @Test
+    public void neighbourhoodToleratesRoundingErrors() {
+        // e.g. 3 / 400f * 400
+        assertEquals(2, FilterTraits.neighbourhood(2.0004f, 2f, false, false).getRadius());
+    }
+
+    @Test
+    public void emptyNeighbourhoodIsPointWise() {
+        assertEquals(FilterTraits.pointWise(false, true),
+                FilterTraits.neighbourhood(0f, -1f, false, true));
+        assertEquals(FilterTraits.pointWise(true, false),
+                FilterTraits.neighbourhood(Float.NaN, 0f, true, false));
+    }
+
+    @Test
+    public void arbitraryIsUnboundedAndPositionDependent() {
+        FilterTraits traits = FilterTraits.arbitrary(true);
+        assertFalse(traits.isBounded());
+        assertFalse(traits.isPointWise());
+        assertEquals(FilterTraits.UNBOUNDED, traits.getRadius());
+        assertTrue(traits.isPositionDependent());
+        assertTrue(traits.preservesAlpha());
+    }
+
+    @Test
+    public void thenAddsRadii() {
+        FilterTraits traits = FilterTraits.neighbourhood(2, 1, true, false)
+                .then(FilterTraits.neighbourhood(3, 4, true, false));
+        assertEquals(FilterTraits.neighbourhood(5, 5, true, false), traits);
+    }
+
+    @Test
+    public void thenKeepsRadiusOfPointWiseFilters() {
+        FilterTraits blur = FilterTraits.neighbourhood(4, 2, true, false);
+        FilterTraits pointWise = FilterTraits.pointWise(true, false);
+        assertEquals(blur, pointWise.then(blur));
+        assertEquals(blur, blur.then(pointWise));
+        assertEquals(pointWise, pointWise.then(pointWise));
+    }
+
+    @Test
+    public void thenPreservesAlphaOnlyIfBothDo() {
+        FilterTraits preserving = FilterTraits.pointWise(true, false);
+        FilterTraits changing = FilterTraits.pointWise(false, false);
+        assertTrue(preserving.then(preserving).preservesAlpha());
+        assertFalse(preserving.then(changing).preservesAlpha());
+        assertFalse(changing.then(preserving).preservesAlpha());
+    }
+
+    @Test
+    public void thenIsPositionDependentIfEitherIs() {
+        FilterTraits independent = FilterTraits.neighbourhood(1, 1, true, false);
+        FilterTraits dependent = FilterTraits.pointWise(true, true);
+        assertFalse(independent.then(independent).isPositionDependent());
+        assertTrue(independent.then(dependent).isPositionDependent());
+        assertTrue(dependent.then(independent).isPositionDependent());
+    }
+
+    @Test
+    public void thenWithArbitraryIsArbitrary() {
+        FilterTraits blur = FilterTraits.neighbourhood(4, 4, true, false);
+        FilterTraits arbitrary = FilterTraits.arbitrary(true);
+        assertFalse(blur.then(arbitrary).isBounded());
+        assertFalse(arbitrary.then(blur).isBounded());
+        assertEquals(FilterTraits.arbitrary(false),
+                arbitrary.then(FilterTraits.pointWise(false, false)));
+    }
+
+    @Test
+    public void equalTraitsHaveEqualHashCodes() {
+        FilterTraits a = FilterTraits.neighbourhood(3, 2, false, true);
+        FilterTraits b = FilterTraits.neighbourhood(2.5f, 1.5f, false, true);
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertFalse(a.equals(FilterTraits.neighbourhood(3, 2, true, true)));
+        assertFalse(a.equals(FilterTraits.neighbourhood(3, 2, false, false)));
+    }
+}
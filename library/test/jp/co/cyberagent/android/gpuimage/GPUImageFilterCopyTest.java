@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.PointF;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class GPUImageFilterCopyTest {
+
+    @Test
+    public void copiesDoNotShareArraysOrPoints() throws Exception {
+        GPUImageFilter[] filters = new GPUImageFilter[]{
+                new GPUImageFilter(),
+                new GPUImage3x3ConvolutionFilter(),
+                new GPUImageLaplacianFilter(),
+                new GPUImageChromaKeyBlendFilter(),
+                new GPUImageColorBalanceFilter(),
+                new GPUImageColorMatrixFilter(),
+                new GPUImageFalseColorFilter(),
+                new GPUImageLevelsFilter(),
+                new GPUImageMonochromeFilter(),
+                new GPUImageVignetteFilter(),
+                new GPUImageBulgeDistortionFilter(),
+                new GPUImageGlassSphereFilter(),
+                new GPUImageSphereRefractionFilter(),
+                new GPUImageSwirlFilter(),
+                new GPUImageTransformFilter(),
+                new GPUImageToneCurveFilter()
+        };
+        for (GPUImageFilter filter : filters) {
+            assertNothingShared(filter, filter.copy());
+        }
+    }
+
+    @Test
+    public void groupCopiesItsFilters() throws Exception {
+        GPUImageFilterGroup group = new GPUImageFilterGroup();
+        group.addFilter(new GPUImageVignetteFilter());
+        group.addFilter(new GPUImage3x3ConvolutionFilter());
+        GPUImageFilterGroup copy = group.copy();
+        assertEquals(group.getFilters().size(), copy.getFilters().size());
+        for (int i = 0; i < group.getFilters().size(); i++) {
+            assertNothingShared(group.getFilters().get(i), copy.getFilters().get(i));
+        }
+    }
+
+    @Test
+    public void smoothToonAccessorsChangeTheCopiedFilters() throws Exception {
+        GPUImageSmoothToonFilter filter = new GPUImageSmoothToonFilter();
+        GPUImageSmoothToonFilter copy = filter.copy();
+        assertNotSame(filter.blurFilter, copy.blurFilter);
+        assertNotSame(filter.toonFilter, copy.toonFilter);
+        assertSame(copy.blurFilter, copy.getFilters().get(0));
+        assertSame(copy.toonFilter, copy.getFilters().get(1));
+        // The blur is added twice and stays one filter
+        assertSame(copy.blurFilter, copy.getFilters().get(2));
+    }
+
+    @Test
+    public void groupWithCanvasOverlayCannotBeCopied() {
+        GPUImageFilterGroup group = new GPUImageFilterGroup();
+        group.addFilter(new GPUImageSepiaFilter());
+        assertTrue(group.canCopy());
+        group.addFilter(new GPUImageCanvasOverlayFilter(null));
+        assertFalse(group.canCopy());
+    }
+
+    /**
+     * Fails if the copy refers to an array or point of the original, which
+     * one of them could change in place.
+     */
+    private static void assertNothingShared(final GPUImageFilter filter, final GPUImageFilter copy)
+            throws IllegalAccessException {
+        for (Class<?> c = filter.getClass(); c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                Class<?> type = field.getType();
+                if (!type.isArray() && type != PointF.class) {
+                    continue;
+                }
+                field.setAccessible(true);
+                Object value = field.get(filter);
+                if (value == null) {
+                    continue;
+                }
+                String name = c.getSimpleName() + "." + field.getName();
+                Object copied = field.get(copy);
+                assertNotSame(name, value, copied);
+                if (value instanceof PointF[]) {
+                    PointF[] points = (PointF[]) value;
+                    for (int i = 0; i < points.length; i++) {
+                        assertNotSame(name + "[" + i + "]", points[i], ((PointF[]) copied)[i]);
+                    }
+                }
+            }
+        }
+    }
+}
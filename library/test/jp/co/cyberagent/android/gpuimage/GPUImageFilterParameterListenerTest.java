@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GPUImageFilterParameterListenerTest {
+
+    @Test
+    public void postedTasksRunTheListener() {
+        GPUImageFilter filter = new GPUImageFilter();
+        Counter counter = new Counter();
+        filter.setParameterListener(counter);
+        filter.runOnDraw(new Noop());
+        assertEquals(1, counter.mCount);
+
+        filter.setParameterListener(null);
+        filter.runOnDraw(new Noop());
+        assertEquals(1, counter.mCount);
+    }
+
+    @Test
+    public void groupListensToItsFilters() {
+        GPUImageFilter first = new GPUImageFilter();
+        GPUImageFilterGroup group = new GPUImageFilterGroup();
+        group.addFilter(first);
+        Counter counter = new Counter();
+        group.setParameterListener(counter);
+        first.runOnDraw(new Noop());
+        assertEquals(1, counter.mCount);
+
+        // Adding a filter changes the output as well
+        GPUImageFilter second = new GPUImageFilter();
+        group.addFilter(second);
+        assertTrue(counter.mCount > 1);
+        int count = counter.mCount;
+        second.runOnDraw(new Noop());
+        assertEquals(count + 1, counter.mCount);
+    }
+
+    @Test
+    public void copiesHaveNoListener() {
+        GPUImageFilterGroup group = new GPUImageFilterGroup();
+        group.addFilter(new GPUImageFilter());
+        Counter counter = new Counter();
+        group.setParameterListener(counter);
+        GPUImageFilterGroup copy = group.copy();
+        copy.runOnDraw(new Noop());
+        copy.getFilters().get(0).runOnDraw(new Noop());
+        assertEquals(0, counter.mCount);
+    }
+
+    private static class Counter implements Runnable {
+        int mCount;
+
+        @Override
+        public void run() {
+            mCount++;
+        }
+    }
+
+    private static class Noop implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Traits of the built-in filters, for their parameters and output size.
+ */
+public class GPUImageFilterTraitsTest {
+
+    @Test
+    public void defaultFilterIsPointWise() {
+        assertEquals(FilterTraits.pointWise(true, false), new GPUImageFilter().getTraits());
+    }
+
+    @Test
+    public void customShaderIsArbitrary() {
+        GPUImageFilter filter = new GPUImageFilter(GPUImageFilter.NO_FILTER_VERTEX_SHADER, ""
+                + "varying highp vec2 textureCoordinate;\n"
+                + "uniform sampler2D inputImageTexture;\n"
+                + "void main()\n"
+                + "{\n"
+                + "    gl_FragColor = texture2D(inputImageTexture, textureCoordinate).bgra;\n"
+                + "}");
+        assertFalse(filter.getTraits().isBounded());
+    }
+
+    @Test
+    public void colorAdjustmentsArePointWise() {
+        FilterTraits expected = FilterTraits.pointWise(true, false);
+        assertEquals(expected, new GPUImageBrightnessFilter().getTraits());
+        assertEquals(expected, new GPUImageContrastFilter().getTraits());
+        assertEquals(expected, new GPUImageColorInvertFilter().getTraits());
+        assertEquals(expected, new GPUImageGammaFilter().getTraits());
+    }
+
+    @Test
+    public void vignetteIsPositionDependent() {
+        assertEquals(FilterTraits.pointWise(false, true), new GPUImageVignetteFilter().getTraits());
+    }
+
+    @Test
+    public void distortionsAreUnbounded() {
+        assertFalse(new GPUImageSwirlFilter().getTraits().isBounded());
+        assertFalse(new GPUImageBulgeDistortionFilter().getTraits().isBounded());
+        assertFalse(new GPUImageTransformFilter().getTraits().isBounded());
+    }
+
+    @Test
+    public void gaussianBlurOnSquareImage() {
+        GPUImageGaussianBlurFilter filter = new GPUImageGaussianBlurFilter(1f);
+        filter.onOutputSizeChanged(200, 200);
+        assertEquals(FilterTraits.neighbourhood(4, 4, true, false), filter.getTraits());
+    }
+
+    @Test
+    public void gaussianBlurScalesWithAspectRatio() {
+        // The offsets are swapped: blurSize / height horizontally
+        GPUImageGaussianBlurFilter filter = new GPUImageGaussianBlurFilter(1f);
+        filter.onOutputSizeChanged(300, 100);
+        assertEquals(12, filter.getTraits().getRadiusX());
+        assertEquals(2, filter.getTraits().getRadiusY());
+
+        filter.setBlurSize(2f);
+        assertEquals(24, filter.getTraits().getRadiusX());
+        assertEquals(3, filter.getTraits().getRadiusY());
+
+        filter.onOutputSizeChanged(100, 400);
+        assertEquals(2, filter.getTraits().getRadiusX());
+        assertEquals(32, filter.getTraits().getRadiusY());
+    }
+
+    @Test
+    public void gaussianBlurTileKeepsImageRadius() {
+        GPUImageGaussianBlurFilter filter = new GPUImageGaussianBlurFilter(1f);
+        filter.setImageSize(300, 100);
+        filter.onOutputSizeChanged(64, 64);
+        assertEquals(FilterTraits.neighbourhood(12, 2, true, false), filter.getTraits());
+    }
+
+    @Test
+    public void kuwaharaScalesWithImageSize() {
+        GPUImageKuwaharaFilter filter = new GPUImageKuwaharaFilter(3);
+        filter.onOutputSizeChanged(768, 1024);
+        assertEquals(FilterTraits.neighbourhood(3, 3, false, false), filter.getTraits());
+
+        filter.onOutputSizeChanged(1536, 512);
+        assertEquals(6, filter.getTraits().getRadiusX());
+        assertEquals(2, filter.getTraits().getRadiusY());
+
+        filter.setRadius(5);
+        filter.onOutputSizeChanged(768, 1024);
+        assertEquals(5, filter.getTraits().getRadius());
+    }
+
+    @Test
+    public void kuwaharaTileKeepsImageRadius() {
+        GPUImageKuwaharaFilter filter = new GPUImageKuwaharaFilter(3);
+        filter.setImageSize(1536, 2048);
+        filter.onOutputSizeChanged(100, 100);
+        assertEquals(FilterTraits.neighbourhood(6, 6, false, false), filter.getTraits());
+    }
+
+    @Test
+    public void dilationRadius() {
+        for (int radius = 1; radius <= 4; radius++) {
+            assertEquals(FilterTraits.neighbourhood(radius, radius, false, false),
+                    new GPUImageDilationFilter(radius).getTraits());
+        }
+        // Radii outside 1 to 4 are clamped like the shaders
+        assertEquals(1, new GPUImageDilationFilter(0).getTraits().getRadius());
+        assertEquals(4, new GPUImageDilationFilter(7).getTraits().getRadius());
+    }
+
+    @Test
+    public void texelSamplingUsesLineSize() {
+        GPUImage3x3ConvolutionFilter filter = new GPUImage3x3ConvolutionFilter();
+        filter.onOutputSizeChanged(400, 200);
+        assertEquals(FilterTraits.neighbourhood(1, 1, false, false), filter.getTraits());
+
+        filter.setLineSize(3f);
+        assertEquals(FilterTraits.neighbourhood(3, 3, false, false), filter.getTraits());
+    }
+
+    @Test
+    public void overriddenTexelSizeIsRelativeToImage() {
+        GPUImage3x3ConvolutionFilter filter = new GPUImage3x3ConvolutionFilter();
+        filter.onOutputSizeChanged(400, 200);
+        filter.setTexelWidth(4f / 400);
+        filter.setTexelHeight(2f / 200);
+        assertEquals(FilterTraits.neighbourhood(4, 2, false, false), filter.getTraits());
+
+        filter.setImageSize(400, 200);
+        filter.onOutputSizeChanged(100, 100);
+        assertEquals(FilterTraits.neighbourhood(4, 2, false, false), filter.getTraits());
+    }
+
+    @Test
+    public void groupAddsUpItsFilters() {
+        GPUImageFilterGroup group = new GPUImageFilterGroup();
+        group.addFilter(new GPUImageContrastFilter());
+        group.addFilter(new GPUImageGaussianBlurFilter(1f));
+        group.addFilter(new GPUImageDilationFilter(2));
+        group.onOutputSizeChanged(300, 100);
+
+        FilterTraits traits = group.getTraits();
+        assertEquals(14, traits.getRadiusX());
+        assertEquals(4, traits.getRadiusY());
+        assertFalse(traits.preservesAlpha());
+        assertFalse(traits.isPositionDependent());
+    }
+
+    @Test
+    public void groupForwardsImageSize() {
+        GPUImageFilterGroup group = new GPUImageFilterGroup();
+        group.addFilter(new GPUImageGaussianBlurFilter(1f));
+        group.setImageSize(300, 100);
+        group.onOutputSizeChanged(64, 64);
+        assertEquals(FilterTraits.neighbourhood(12, 2, true, false), group.getTraits());
+    }
+
+    @Test
+    public void nestedGroupsAreAggregated() {
+        GPUImageFilterGroup inner = new GPUImageFilterGroup();
+        inner.addFilter(new GPUImageDilationFilter(3));
+        inner.addFilter(new GPUImageVignetteFilter());
+        GPUImageFilterGroup group = new GPUImageFilterGroup();
+        group.addFilter(new GPUImageDilationFilter(1));
+        group.addFilter(inner);
+
+        FilterTraits traits = group.getTraits();
+        assertEquals(4, traits.getRadius());
+        assertTrue(traits.isPositionDependent());
+
+        group.addFilter(new GPUImageSwirlFilter());
+        assertFalse(group.getTraits().isBounded());
+    }
+
+    @Test
+    public void emptyGroupIsPointWise() {
+        assertEquals(FilterTraits.pointWise(true, false), new GPUImageFilterGroup().getTraits());
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GPUImageFusedFilterTest {
+
+    @Test
+    public void fusesPointWiseFilters() {
+        assertTrue(GPUImageFusedFilter.canFuse(new GPUImageBrightnessFilter()));
+        assertTrue(GPUImageFusedFilter.canFuse(new GPUImageContrastFilter()));
+        assertTrue(GPUImageFusedFilter.canFuse(new GPUImageGrayscaleFilter()));
+        assertTrue(GPUImageFusedFilter.canFuse(new GPUImageFilter()));
+    }
+
+    @Test
+    public void doesNotFusePositionDependentFilters() {
+        assertFalse(GPUImageFusedFilter.canFuse(new GPUImageVignetteFilter()));
+    }
+
+    @Test
+    public void doesNotFuseSamplingFilters() {
+        assertFalse(GPUImageFusedFilter.canFuse(new GPUImageGaussianBlurFilter()));
+        assertFalse(GPUImageFusedFilter.canFuse(new GPUImageSharpenFilter()));
+        assertFalse(GPUImageFusedFilter.canFuse(new GPUImageSwirlFilter()));
+    }
+
+    @Test
+    public void doesNotFuseFiltersWithoutTraits() {
+        // A custom fragment shader without getTraits() counts as arbitrary
+        GPUImageFilter filter = new GPUImageFilter(GPUImageFilter.NO_FILTER_VERTEX_SHADER, ""
+                + "varying highp vec2 textureCoordinate;\n"
+                + "uniform sampler2D inputImageTexture;\n"
+                + "void main()\n"
+                + "{\n"
+                + "    gl_FragColor = texture2D(inputImageTexture, textureCoordinate).bgra;\n"
+                + "}");
+        assertFalse(GPUImageFusedFilter.canFuse(filter));
+    }
+
+    @Test
+    public void doesNotFuseGroups() {
+        assertFalse(GPUImageFusedFilter.canFuse(new GPUImageFilterGroup()));
+    }
+}
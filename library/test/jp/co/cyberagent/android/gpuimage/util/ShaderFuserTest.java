@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShaderFuserTest {
+
+    private static final String BRIGHTNESS = "" +
+            "varying highp vec2 textureCoordinate;\n" +
+            " \n" +
+            " uniform sampler2D inputImageTexture;\n" +
+            " uniform lowp float brightness;\n" +
+            " \n" +
+            " void main()\n" +
+            " {\n" +
+            "     lowp vec4 textureColor = texture2D(inputImageTexture, textureCoordinate);\n" +
+            "     \n" +
+            "     gl_FragColor = vec4((textureColor.rgb + vec3(brightness)), textureColor.w);\n" +
+            " }";
+
+    private static final String CONTRAST = "" +
+            "precision highp float;\n" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform lowp float contrast;\n" +
+            "void main()\n" +
+            "{\n" +
+            "    lowp vec4 textureColor = texture2D(inputImageTexture, textureCoordinate);\n" +
+            "    gl_FragColor = vec4(((textureColor.rgb - vec3(0.5)) * contrast + vec3(0.5)), textureColor.w);\n" +
+            "}";
+
+    private static final String HELPERS = "" +
+            "precision lowp float;\n" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform float brightness, contrast;\n" +
+            "const mediump vec3 luminanceWeighting = vec3(0.2125, 0.7154, 0.0721);\n" +
+            "/* helper with a // comment inside */\n" +
+            "float luminance(vec3 color);\n" +
+            "float luminance(vec3 color)\n" +
+            "{\n" +
+            "    return dot(color, luminanceWeighting); // trailing comment\n" +
+            "}\n" +
+            "void main(void)\n" +
+            "{\n" +
+            "    vec4 c = texture2D( inputImageTexture , textureCoordinate );\n" +
+            "    if (c.a == 0.0) {\n" +
+            "        gl_FragColor = c;\n" +
+            "        return;\n" +
+            "    }\n" +
+            "    gl_FragColor = vec4(vec3(luminance(c.rgb) * contrast + brightness), c.a);\n" +
+            "}";
+
+    @Test
+    public void prefixesAreIndexed() {
+        assertEquals("f0_", ShaderFuser.getPrefix(0));
+        assertEquals("f12_", ShaderFuser.getPrefix(12));
+    }
+
+    @Test
+    public void fusesMembersInOrder() {
+        String fused = ShaderFuser.fuse(Arrays.asList(BRIGHTNESS, CONTRAST));
+
+        assertTrue(fused.contains("mediump vec4 f0_main(mediump vec4 inputColor)"));
+        assertTrue(fused.contains("mediump vec4 f1_main(mediump vec4 inputColor)"));
+        assertTrue(fused.contains("mediump vec4 color = texture2D(inputImageTexture, textureCoordinate);"));
+        assertTrue(fused.contains("color = clamp(f0_main(color), 0.0, 1.0);"));
+        assertTrue(fused.contains("gl_FragColor = f1_main(color);"));
+        assertTrue(fused.indexOf("f0_main(color)") < fused.indexOf("f1_main(color)"));
+    }
+
+    @Test
+    public void singleMemberIsNotClamped() {
+        String fused = ShaderFuser.fuse(Collections.singletonList(BRIGHTNESS));
+
+        assertTrue(fused.contains("gl_FragColor = f0_main(color);"));
+        assertFalse(fused.contains("clamp("));
+    }
+
+    @Test
+    public void namespacesUniforms() {
+        String fused = ShaderFuser.fuse(Arrays.asList(BRIGHTNESS, HELPERS));
+
+        assertTrue(fused.contains("uniform lowp float f0_brightness;"));
+        assertTrue(fused.contains("uniform float f1_brightness, f1_contrast;"));
+        assertTrue(fused.contains("vec3(f0_brightness)"));
+        assertTrue(fused.contains("* f1_contrast + f1_brightness"));
+        assertEquals(0, count(fused, "\\bbrightness\\b"));
+        assertEquals(0, count(fused, "\\bcontrast\\b"));
+    }
+
+    @Test
+    public void renamesConstantsAndFunctions() {
+        String fused = ShaderFuser.fuse(Collections.singletonList(HELPERS));
+
+        assertTrue(fused.contains("const mediump vec3 f0_luminanceWeighting"));
+        assertTrue(fused.contains("float f0_luminance(vec3 color);"));
+        assertTrue(fused.contains("float f0_luminance(vec3 color)\n"));
+        assertTrue(fused.contains("dot(color, f0_luminanceWeighting)"));
+        assertTrue(fused.contains("f0_luminance(c.rgb)"));
+        // Locals and swizzles keep their names
+        assertTrue(fused.contains("vec4 c = inputColor;"));
+        assertEquals(0, count(fused, "\\.f0_"));
+    }
+
+    @Test
+    public void rewritesFragColorAndReturns() {
+        String fused = ShaderFuser.fuse(Collections.singletonList(HELPERS));
+
+        assertTrue(fused.contains("mediump vec4 f0_FragColor = inputColor;"));
+        assertTrue(fused.contains("f0_FragColor = c;"));
+        assertTrue(fused.contains("return f0_FragColor;"));
+        assertEquals(1, count(fused, "gl_FragColor"));
+        // The member's input is the running color, not a texture read
+        assertEquals(1, count(fused, "texture2D"));
+    }
+
+    @Test
+    public void stripsComments() {
+        String fused = ShaderFuser.fuse(Collections.singletonList(HELPERS));
+
+        assertFalse(fused.contains("//"));
+        assertFalse(fused.contains("/*"));
+        assertFalse(fused.contains("comment"));
+    }
+
+    @Test
+    public void declaresSharedInputsOnce() {
+        String fused = ShaderFuser.fuse(Arrays.asList(BRIGHTNESS, CONTRAST, HELPERS));
+
+        assertEquals(1, count(fused, "varying highp vec2 textureCoordinate;"));
+        assertEquals(1, count(fused, "\\bvarying\\b"));
+        assertEquals(1, count(fused, "uniform sampler2D inputImageTexture;"));
+        assertEquals(1, count(fused, "\\bsampler2D\\b"));
+    }
+
+    @Test
+    public void usesHighestDefaultPrecision() {
+        assertTrue(ShaderFuser.fuse(Collections.singletonList(BRIGHTNESS))
+                .startsWith("precision mediump float;\n"));
+        assertTrue(ShaderFuser.fuse(Collections.singletonList(HELPERS))
+                .startsWith("precision mediump float;\n"));
+        assertTrue(ShaderFuser.fuse(Arrays.asList(HELPERS, CONTRAST))
+                .startsWith("precision highp float;\n"));
+        assertEquals(1, count(ShaderFuser.fuse(Arrays.asList(HELPERS, CONTRAST)), "precision"));
+    }
+
+    @Test
+    public void acceptsFusableShaders() {
+        assertTrue(ShaderFuser.isFusable(BRIGHTNESS));
+        assertTrue(ShaderFuser.isFusable(CONTRAST));
+        assertTrue(ShaderFuser.isFusable(HELPERS));
+    }
+
+    @Test
+    public void rejectsOtherSamplers() {
+        assertFalse(ShaderFuser.isFusable(BRIGHTNESS.replace("uniform lowp float brightness;",
+                "uniform lowp float brightness;\nuniform sampler2D inputImageTexture2;")));
+        assertFalse(ShaderFuser.isFusable(BRIGHTNESS.replace("sampler2D", "samplerCube")));
+    }
+
+    @Test
+    public void rejectsSamplingAtOtherCoordinates() {
+        assertFalse(ShaderFuser.isFusable(BRIGHTNESS.replace(
+                "texture2D(inputImageTexture, textureCoordinate)",
+                "texture2D(inputImageTexture, textureCoordinate + vec2(0.01))")));
+        assertFalse(ShaderFuser.isFusable(BRIGHTNESS.replace(
+                "texture2D(inputImageTexture, textureCoordinate)",
+                "texture2D(inputImageTexture, vec2(0.5))")));
+    }
+
+    @Test
+    public void rejectsOtherVaryings() {
+        assertFalse(ShaderFuser.isFusable(BRIGHTNESS.replace("varying highp vec2 textureCoordinate;",
+                "varying highp vec2 textureCoordinate;\nvarying highp vec2 leftTextureCoordinate;")));
+        assertFalse(ShaderFuser.isFusable(BRIGHTNESS.replace("varying highp vec2 textureCoordinate;",
+                "uniform highp vec2 textureCoordinate;")));
+    }
+
+    @Test
+    public void rejectsUnsupportedConstructs() {
+        assertFalse(ShaderFuser.isFusable("#extension GL_OES_EGL_image_external : require\n"
+                + BRIGHTNESS));
+        assertFalse(ShaderFuser.isFusable(BRIGHTNESS.replace("uniform lowp float brightness;",
+                "uniform lowp float brightness;\nstruct S { float a; };")));
+        assertFalse(ShaderFuser.isFusable(BRIGHTNESS.replace("gl_FragColor", "gl_FragData[0]")));
+        assertFalse(ShaderFuser.isFusable(BRIGHTNESS.replace("void main()", "void notMain()")));
+        assertFalse(ShaderFuser.isFusable(BRIGHTNESS.substring(0, BRIGHTNESS.length() - 1)));
+    }
+
+    @Test
+    public void rejectsSamplingOutsideMain() {
+        assertFalse(ShaderFuser.isFusable(BRIGHTNESS.replace(" void main()",
+                "lowp vec4 sample() { return texture2D(inputImageTexture, textureCoordinate); }\n"
+                        + " void main()")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fuseThrowsForUnfusableShaders() {
+        ShaderFuser.fuse(Arrays.asList(BRIGHTNESS, BRIGHTNESS.replace("void main()", "void f()")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fuseThrowsForNoShaders() {
+        ShaderFuser.fuse(Collections.<String>emptyList());
+    }
+
+    private static int count(final String source, final String regex) {
+        Matcher matcher = Pattern.compile(regex).matcher(source);
+        int count = 0;
+        while (matcher.find()) {
+            count++;
+        }
+        return count;
+    }
+}
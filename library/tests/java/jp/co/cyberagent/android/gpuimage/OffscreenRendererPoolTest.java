@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs jobs on several share group contexts at once and compares their
+ * results with a single {@link OffscreenRenderer}. Needs nothing but EGL and
+ * GLES 2, so it also runs on an emulator with a software renderer, e.g.
+ * {@code -gpu swiftshader_indirect} on a host without a GPU.
+ */
+@RunWith(AndroidJUnit4.class)
+public class OffscreenRendererPoolTest {
+    private static final int SIZE = 3;
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private OffscreenRendererPool mPool;
+    private OffscreenRenderer mRenderer;
+    private Bitmap mImage;
+
+    @Before
+    public void setUp() {
+        mPool = new OffscreenRendererPool(SIZE);
+        mRenderer = new OffscreenRenderer();
+        mImage = createImage(WIDTH, HEIGHT, 42);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mPool.shutdown();
+        assertTrue(mPool.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        mRenderer.release();
+        mImage.recycle();
+    }
+
+    @Test
+    public void resultsMatchSingleRenderer() throws Exception {
+        GPUImageFilterGroup group = new GPUImageFilterGroup();
+        group.addFilter(new GPUImageContrastFilter(1.5f));
+        group.addFilter(new GPUImageGaussianBlurFilter(1f));
+        group.addFilter(new GPUImageSepiaFilter());
+        Bitmap expected = mRenderer.render(mImage, group.copy());
+
+        List<Future<Bitmap>> results = new ArrayList<Future<Bitmap>>();
+        for (int i = 0; i < 4 * SIZE; i++) {
+            results.add(mPool.submit(source(mImage), group, null));
+        }
+        for (Future<Bitmap> result : results) {
+            assertSameImage(expected, result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void workersShareTheirPrograms() throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(SIZE);
+        final GPUImageFilter filter = new GPUImageSepiaFilter();
+        List<Future<ShaderProgramCache>> caches = new ArrayList<Future<ShaderProgramCache>>();
+        for (int i = 0; i < SIZE; i++) {
+            caches.add(mPool.submit(new OffscreenRendererPool.Job<ShaderProgramCache>() {
+                @Override
+                public ShaderProgramCache run(final OffscreenRenderer renderer)
+                        throws Exception {
+                    // Every worker holds one job, so all of them take part
+                    barrier.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    renderer.render(mImage, filter.copy());
+                    return ShaderProgramCache.getInstance();
+                }
+            }));
+        }
+        ShaderProgramCache first = caches.get(0).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(first.isSerializingDraws());
+        for (Future<ShaderProgramCache> cache : caches) {
+            assertSame(first, cache.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void sharedTextureMatchesUploadedBitmap() throws Exception {
+        Bitmap lookup = createImage(512, 512, 7);
+        GPUImageLookupFilter uploaded = new GPUImageLookupFilter();
+        uploaded.setBitmap(lookup);
+        Bitmap expected = mRenderer.render(mImage, uploaded);
+
+        int texture = mPool.shareTexture(lookup);
+        GPUImageLookupFilter shared = new GPUImageLookupFilter();
+        shared.setSharedTexture(texture);
+        List<Future<Bitmap>> results = new ArrayList<Future<Bitmap>>();
+        for (int i = 0; i < 2 * SIZE; i++) {
+            results.add(mPool.submit(source(mImage), shared, null));
+        }
+        for (Future<Bitmap> result : results) {
+            assertSameImage(expected, result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+        mPool.deleteSharedTexture(texture);
+        lookup.recycle();
+    }
+
+    @Test
+    public void idleWorkersStealJobs() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        Future<Void> blocker = mPool.submit(new OffscreenRendererPool.Job<Void>() {
+            @Override
+            public Void run(final OffscreenRenderer renderer) throws Exception {
+                blocked.await();
+                return null;
+            }
+        });
+        // Some of these are queued behind the blocked job and finish only if
+        // another worker steals them
+        List<Future<Bitmap>> results = new ArrayList<Future<Bitmap>>();
+        for (int i = 0; i < 2 * SIZE; i++) {
+            results.add(mPool.submit(source(mImage), new GPUImageSepiaFilter(), null));
+        }
+        for (Future<Bitmap> result : results) {
+            result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        blocked.countDown();
+        blocker.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        int jobs = 0;
+        int stolen = 0;
+        for (OffscreenRendererPool.WorkerStats stats : mPool.getWorkerStats()) {
+            jobs += stats.getJobCount();
+            stolen += stats.getStolenCount();
+            assertEquals(0, stats.getFailedCount());
+        }
+        assertEquals(2 * SIZE + 1, jobs);
+        assertTrue("Nothing was stolen", stolen > 0);
+        assertEquals(0, mPool.getQueuedJobCount());
+    }
+
+    @Test
+    public void shutDownPoolRefusesJobs() throws Exception {
+        mPool.shutdown();
+        try {
+            mPool.submit(source(mImage), new GPUImageSepiaFilter(), null);
+            fail("Job was accepted");
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+        assertTrue(mPool.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private static GPUImageBatchProcessor.InputSource source(final Bitmap bitmap) {
+        return new GPUImageBatchProcessor.InputSource() {
+            @Override
+            public Bitmap decode() {
+                return bitmap;
+            }
+        };
+    }
+
+    private static void assertSameImage(final Bitmap expected, final Bitmap actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                if (expected.getPixel(x, y) != actual.getPixel(x, y)) {
+                    fail("Differs at " + x + "," + y + ": "
+                            + Integer.toHexString(expected.getPixel(x, y)) + " != "
+                            + Integer.toHexString(actual.getPixel(x, y)));
+                }
+            }
+        }
+    }
+
+    private static Bitmap createImage(final int width, final int height, final long seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = Color.rgb(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+        }
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+}
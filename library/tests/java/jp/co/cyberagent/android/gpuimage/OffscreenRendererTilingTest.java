@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares tiled renders against the image rendered in one piece. The image
+ * is wider than high so offsets depending on the aspect ratio differ between
+ * the image and its tiles.
+ */
+@RunWith(AndroidJUnit4.class)
+public class OffscreenRendererTilingTest {
+    private static final int WIDTH = 1536;
+    private static final int HEIGHT = 512;
+    private static final int TILE_SIZE = 200;
+    private static final int APRON = 16;
+    // Sampling positions are computed in float on the GPU
+    private static final int TOLERANCE = 2;
+
+    private OffscreenRenderer mRenderer;
+    private Bitmap mImage;
+
+    @Before
+    public void setUp() {
+        mRenderer = new OffscreenRenderer();
+        mImage = createImage(WIDTH, HEIGHT);
+    }
+
+    @After
+    public void tearDown() {
+        mRenderer.release();
+        mImage.recycle();
+    }
+
+    @Test
+    public void gaussianBlurHasNoSeams() {
+        assertTiledMatchesWhole(new GPUImageGaussianBlurFilter(1f));
+    }
+
+    @Test
+    public void kuwaharaHasNoSeams() {
+        assertTiledMatchesWhole(new GPUImageKuwaharaFilter(3));
+    }
+
+    @Test
+    public void dilationHasNoSeams() {
+        for (int radius = 1; radius <= 4; radius++) {
+            assertTiledMatchesWhole(new GPUImageDilationFilter(radius));
+        }
+    }
+
+    @Test
+    public void overriddenTexelSizeHasNoSeams() {
+        GPUImage3x3ConvolutionFilter filter = new GPUImage3x3ConvolutionFilter(new float[]{
+                0f, -1f, 0f,
+                -1f, 5f, -1f,
+                0f, -1f, 0f
+        });
+        filter.setTexelWidth(3f / WIDTH);
+        filter.setTexelHeight(2f / HEIGHT);
+        assertTiledMatchesWhole(filter);
+    }
+
+    @Test
+    public void groupHasNoSeams() {
+        GPUImageFilterGroup group = new GPUImageFilterGroup();
+        group.addFilter(new GPUImageContrastFilter(1.5f));
+        group.addFilter(new GPUImageGaussianBlurFilter(1f));
+        group.addFilter(new GPUImageDilationFilter(2));
+        assertTiledMatchesWhole(group);
+    }
+
+    @Test
+    public void positionDependentFiltersAreRefused() {
+        assertRefused(new GPUImageVignetteFilter(), APRON);
+        assertRefused(new GPUImageSwirlFilter(), APRON);
+    }
+
+    @Test
+    public void apronSmallerThanRadiusIsRefused() {
+        assertRefused(new GPUImageGaussianBlurFilter(1f), 2);
+    }
+
+    private void assertTiledMatchesWhole(final GPUImageFilter filter) {
+        Bitmap whole = mRenderer.render(mImage, filter);
+        Bitmap tiled = mRenderer.renderTiled(mImage, filter, TILE_SIZE, APRON);
+        try {
+            assertEquals(whole.getWidth(), tiled.getWidth());
+            assertEquals(whole.getHeight(), tiled.getHeight());
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    int expected = whole.getPixel(x, y);
+                    int actual = tiled.getPixel(x, y);
+                    if (difference(expected, actual) > TOLERANCE) {
+                        fail(filter.getClass().getSimpleName() + " differs at " + x + "," + y
+                                + ": " + Integer.toHexString(expected) + " != "
+                                + Integer.toHexString(actual));
+                    }
+                }
+            }
+        } finally {
+            whole.recycle();
+            tiled.recycle();
+        }
+    }
+
+    private void assertRefused(final GPUImageFilter filter, final int apron) {
+        try {
+            mRenderer.renderTiled(mImage, filter, TILE_SIZE, apron);
+            fail(filter.getClass().getSimpleName() + " was rendered in tiles");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private static int difference(final int a, final int b) {
+        int max = Math.abs(Color.alpha(a) - Color.alpha(b));
+        max = Math.max(max, Math.abs(Color.red(a) - Color.red(b)));
+        max = Math.max(max, Math.abs(Color.green(a) - Color.green(b)));
+        return Math.max(max, Math.abs(Color.blue(a) - Color.blue(b)));
+    }
+
+    /**
+     * Noise over gradients, so a wrong sampling offset anywhere shows.
+     */
+    private static Bitmap createImage(final int width, final int height) {
+        Random random = new Random(42);
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(96);
+                pixels[y * width + x] = Color.rgb(
+                        (x * 160 / width + noise) & 0xff,
+                        (y * 160 / height + noise) & 0xff,
+                        random.nextInt(256));
+            }
+        }
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+}
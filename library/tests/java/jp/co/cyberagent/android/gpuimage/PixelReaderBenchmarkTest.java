@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.opengl.GLES20;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.Callable;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times reading a rendered image back into a bitmap, the way PixelBuffer
+ * used to do it against {@link PixelReader}, and checks both give the same
+ * pixels. Results are logged with the tag {@value #TAG}:
+ * <pre>
+ * adb logcat -s PixelReaderBenchmark
+ * </pre>
+ */
+@RunWith(AndroidJUnit4.class)
+public class PixelReaderBenchmarkTest {
+    private static final String TAG = "PixelReaderBenchmark";
+    private static final int[][] SIZES = {{640, 480}, {1920, 1080}, {4000, 3000}};
+    private static final int WARM_UP = 2;
+    private static final int RUNS = 10;
+
+    private OffscreenRenderer mRenderer;
+
+    @Before
+    public void setUp() {
+        mRenderer = new OffscreenRenderer();
+    }
+
+    @After
+    public void tearDown() {
+        mRenderer.release();
+    }
+
+    @Test
+    public void compareReadbackPaths() {
+        for (final int[] size : SIZES) {
+            boolean same = mRenderer.runOnThread(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return benchmark(size[0], size[1]);
+                }
+            });
+            assertTrue("Readbacks differ at " + size[0] + "x" + size[1], same);
+        }
+    }
+
+    /**
+     * @return whether both paths read the same image, or true if the size
+     * does not fit into a texture
+     */
+    private static boolean benchmark(final int width, final int height) {
+        int[] maxSize = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxSize, 0);
+        if (width > maxSize[0] || height > maxSize[0]) {
+            Log.i(TAG, width + "x" + height + " skipped, maximum texture size " + maxSize[0]);
+            return true;
+        }
+        FramebufferPool.Framebuffer framebuffer = draw(createImage(width, height));
+
+        Bitmap legacy = null;
+        long start = 0;
+        for (int i = 0; i < WARM_UP + RUNS; i++) {
+            if (i == WARM_UP) {
+                start = System.nanoTime();
+            }
+            if (legacy != null) {
+                legacy.recycle();
+            }
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer.getFramebufferId());
+            legacy = readLegacy(width, height);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        }
+        long legacyNanos = (System.nanoTime() - start) / RUNS;
+
+        PixelReader reader = new PixelReader();
+        Bitmap output = null;
+        for (int i = 0; i < WARM_UP + RUNS; i++) {
+            if (i == WARM_UP) {
+                start = System.nanoTime();
+            }
+            output = reader.readTexture(framebuffer.getTextureId(), width, height, output);
+        }
+        long readerNanos = (System.nanoTime() - start) / RUNS;
+        framebuffer.unlock();
+
+        long frameBytes = (long) width * height * 4;
+        Log.i(TAG, String.format("%dx%d: legacy %.2f ms, %d MB garbage per read;"
+                        + " PixelReader %.2f ms, none after the first read; %.1fx",
+                width, height, legacyNanos / 1e6, frameBytes * 3 / (1024 * 1024),
+                readerNanos / 1e6, (double) legacyNanos / readerNanos));
+        boolean same = legacy.sameAs(output);
+        legacy.recycle();
+        output.recycle();
+        reader.release();
+        return same;
+    }
+
+    /**
+     * The readback PixelBuffer used before {@link PixelReader}: two frame
+     * sized int arrays, a flip loop and a new bitmap for every read.
+     */
+    private static Bitmap readLegacy(final int width, final int height) {
+        int[] iat = new int[width * height];
+        IntBuffer ib = IntBuffer.allocate(width * height);
+        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, ib);
+        int[] ia = ib.array();
+        for (int i = 0; i < height; i++) {
+            for (int j = 0; j < width; j++) {
+                iat[(height - i - 1) * width + j] = ia[i * width + j];
+            }
+        }
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.copyPixelsFromBuffer(IntBuffer.wrap(iat));
+        return bitmap;
+    }
+
+    /**
+     * Draws the image into a framebuffer as {@link OffscreenRenderer} does.
+     */
+    private static FramebufferPool.Framebuffer draw(final Bitmap image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int texture = OpenGlUtils.loadTexture(image, OpenGlUtils.NO_TEXTURE, true);
+        FloatBuffer cube = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        cube.put(CUBE).position(0);
+        float[] coordinates = TextureRotationUtil.getRotation(Rotation.NORMAL, false, false);
+        FloatBuffer textureCoordinates = ByteBuffer.allocateDirect(coordinates.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        textureCoordinates.put(coordinates).position(0);
+
+        FramebufferPool.Framebuffer framebuffer = FramebufferPool.getInstance().obtain(width, height);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer.getFramebufferId());
+        GLES20.glViewport(0, 0, width, height);
+        GPUImageFilter filter = new GPUImageFilter();
+        filter.init();
+        filter.onOutputSizeChanged(width, height);
+        filter.onDraw(texture, cube, textureCoordinates);
+        filter.destroy();
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glDeleteTextures(1, new int[]{texture}, 0);
+        return framebuffer;
+    }
+
+    /**
+     * A gradient that differs in every row, so a missing or wrong flip shows.
+     */
+    private static Bitmap createImage(final int width, final int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = Color.rgb(x & 0xff, y & 0xff, (x + y) >> 4 & 0xff);
+            }
+        }
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+}
@@ -1,22 +1,21 @@
 package jp.co.cyberagent.android.gpuimage.sample;
 
-import android.opengl.GLES20;
-import android.opengl.GLES30;
 import android.os.Environment;
 
 import org.bytedeco.javacpp.avcodec;
-import org.bytedeco.javacpp.opencv_core;
-import org.bytedeco.javacpp.opencv_imgproc;
+import org.bytedeco.javacpp.avutil;
 import org.bytedeco.javacv.FFmpegFrameRecorder;
 import org.bytedeco.javacv.Frame;
 import org.bytedeco.javacv.FrameRecorder;
-import org.bytedeco.javacv.OpenCVFrameConverter;
 
 import java.io.File;
 import java.nio.ByteBuffer;
 
+import jp.co.cyberagent.android.gpuimage.AsyncPixelReader;
 import jp.co.cyberagent.android.gpuimage.GPUImageFilter;
+import jp.co.cyberagent.android.gpuimage.GPUImageNativeLibrary;
 import jp.co.cyberagent.android.gpuimage.GPUImageTextureRenderer;
+import jp.co.cyberagent.android.gpuimage.GPUImageYUVInputFilter;
 
 /**
  * Created by skonb on 16/02/25.
@@ -95,13 +94,12 @@ public class GPUImageRecordableTextureRenderer extends GPUImageTextureRenderer {
         }
     }
 
-    static final int GL_BGR = 0x80E0;
-
-    opencv_core.IplImage rgbaImage;
-    opencv_core.IplImage bgraImage;
+    ByteBuffer yuvFrame;
     long startedTime = 0;
 
 
+    AsyncPixelReader pixelReader;
+
     @Override
     protected void onDrawAfterFilter() {
         int width = mOutputWidth, height = mOutputHeight;
@@ -110,8 +108,7 @@ public class GPUImageRecordableTextureRenderer extends GPUImageTextureRenderer {
                 frameRecorder = new FFmpegFrameRecorder(outputFilePath, width, height, 1);
                 frameRecorder.setFormat("mp4");
                 frameRecorder.setVideoCodec(avcodec.AV_CODEC_ID_MPEG4);
-                rgbaImage = opencv_core.IplImage.create(width, height, opencv_core.IPL_DEPTH_8U, 4);
-                bgraImage = opencv_core.IplImage.create(width, height, opencv_core.IPL_DEPTH_8U, 3);
+                frameRecorder.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
                 try {
                     frameRecorder.start();
                     startedTime = System.currentTimeMillis();
@@ -120,28 +117,51 @@ public class GPUImageRecordableTextureRenderer extends GPUImageTextureRenderer {
                 }
             }
             if (frameRecorder != null) {
-                GLES20.glPixelStorei(GLES20.GL_PACK_ALIGNMENT, 1);
-                GLES30.glPixelStorei(GLES30.GL_UNPACK_ALIGNMENT, 1);
-                ByteBuffer buffer = (ByteBuffer) rgbaImage.createBuffer().position(0);
-                bgraImage.createBuffer(0);
-                GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
-                opencv_imgproc.cvCvtColor(rgbaImage, bgraImage, opencv_imgproc.CV_RGBA2BGR);
-                opencv_core.cvFlip(bgraImage);
-                Frame frame = new OpenCVFrameConverter.ToIplImage().convert(bgraImage);
-                synchronized (this) {
-                    try {
-                        if (running) {
-                            frameRecorder.setTimestamp(1000 * (System.currentTimeMillis() - startedTime));
-                            frameRecorder.record(frame);
+                if (pixelReader == null) {
+                    pixelReader = new AsyncPixelReader(new AsyncPixelReader.OnFrameReadListener() {
+                        @Override
+                        public void onFrameRead(ByteBuffer pixels, int frameWidth, int frameHeight, long timestamp) {
+                            recordFrame(pixels, frameWidth, frameHeight, timestamp);
                         }
-                    } catch (FrameRecorder.Exception e) {
-                        e.printStackTrace();
-                    }
+                    });
+                }
+                // The frame is converted and encoded on the reader's thread
+                pixelReader.readFramebuffer(width, height,
+                        1000 * (System.currentTimeMillis() - startedTime));
+            }
+        }
+    }
+
+    private void recordFrame(ByteBuffer pixels, int width, int height, long timestamp) {
+        int size = width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+        if (yuvFrame == null || yuvFrame.capacity() != size) {
+            yuvFrame = ByteBuffer.allocateDirect(size);
+        }
+        // The pixels are bottom row first, flip them while converting to the encoder's format
+        GPUImageNativeLibrary.RGBAtoYUV(pixels, width, height, true,
+                GPUImageYUVInputFilter.Format.I420, yuvFrame);
+        synchronized (this) {
+            try {
+                if (running) {
+                    frameRecorder.setTimestamp(timestamp);
+                    frameRecorder.recordImage(width, height, Frame.DEPTH_UBYTE, 1, width,
+                            avutil.AV_PIX_FMT_YUV420P, yuvFrame);
                 }
+            } catch (FrameRecorder.Exception e) {
+                e.printStackTrace();
             }
         }
     }
 
+    @Override
+    protected void deinitGLComponents() {
+        if (pixelReader != null) {
+            pixelReader.release();
+            pixelReader = null;
+        }
+        super.deinitGLComponents();
+    }
+
     @Override
     public void onPause() {
         super.onPause();